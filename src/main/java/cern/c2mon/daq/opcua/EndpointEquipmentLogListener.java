@@ -23,7 +23,6 @@ import lombok.extern.slf4j.Slf4j;
 import cern.c2mon.daq.opcua.connection.common.IOPCEndpointListener;
 import cern.c2mon.shared.common.datatag.ISourceDataTag;
 import cern.c2mon.shared.common.datatag.address.OPCHardwareAddress;
-import cern.c2mon.shared.common.type.TypeConverter;
 
 /**
  * Listener for endpoint events. Makes sure all important events are logged.
@@ -40,7 +39,8 @@ public class EndpointEquipmentLogListener implements IOPCEndpointListener {
   }
 
   /**
-   * Logs an onNewTagValue event. The log level is debug.
+   * Logs an onNewTagValue event. The log level is debug. The value is
+   * already converted to the data type of the tag by the endpoint.
    *
    * @param dataTag   The tag which has a value update.
    * @param timestamp The timestamp when the tag changed.
@@ -48,13 +48,37 @@ public class EndpointEquipmentLogListener implements IOPCEndpointListener {
    */
   @Override
   public void onNewTagValue(final ISourceDataTag dataTag, final long timestamp, final Object tagValue) {
-    Object convertedValue = TypeConverter.cast(tagValue, dataTag.getDataType());
+    if (log.isDebugEnabled()) {
+      log.debug("New tag value (ID: '" + dataTag.getId() + "'," + " value: '" + tagValue + "', Tag type: '" + dataTag.getDataType() + "', value type: '"
+              + (tagValue != null ? tagValue.getClass().getSimpleName() : "null") + "', Timestamp: '" + timestamp + " " + new Date(timestamp) + "').");
+    }
+  }
 
+  /**
+   * Logs an onNewTagValue event of a Long tag. The log level is debug.
+   *
+   * @param dataTag   The tag which has a value update.
+   * @param timestamp The timestamp when the tag changed.
+   * @param tagValue  The updated value of the tag.
+   */
+  @Override
+  public void onNewTagValue(final ISourceDataTag dataTag, final long timestamp, final long tagValue) {
+    if (log.isDebugEnabled()) {
+      onNewTagValue(dataTag, timestamp, (Object) tagValue);
+    }
+  }
+
+  /**
+   * Logs an onNewTagValue event of a Double tag. The log level is debug.
+   *
+   * @param dataTag   The tag which has a value update.
+   * @param timestamp The timestamp when the tag changed.
+   * @param tagValue  The updated value of the tag.
+   */
+  @Override
+  public void onNewTagValue(final ISourceDataTag dataTag, final long timestamp, final double tagValue) {
     if (log.isDebugEnabled()) {
-      log.debug("Original value: '" + (tagValue != null ? tagValue.toString() : "null") + "', Tag type: '" + dataTag.getDataType() + "', Original type: '"
-              + (tagValue != null ? tagValue.getClass().getSimpleName() : "null") + "'");
-      log.debug("New tag value (ID: '" + dataTag.getId() + "'," + " converted value: '" + convertedValue + "', converted type: '"
-              + (convertedValue != null ? convertedValue.getClass().getSimpleName() : "null") + "', Timestamp: '" + timestamp + " " + new Date(timestamp) + "').");
+      onNewTagValue(dataTag, timestamp, (Object) tagValue);
     }
   }
 
@@ -50,38 +50,44 @@ public class OPCUAMessageHandler extends AbstractOPCUAMessageHandler {
    *                       problem during startup.
    */
   @Override
-  public synchronized void connectToDataSource() throws EqIOException {
-    IEquipmentConfiguration config = getEquipmentConfiguration();
-    log.debug("connectToDataSource - starting connect to OPC data source");
+  public void connectToDataSource() throws EqIOException {
+    controllerLock.writeLock().lock();
     try {
-      List<OPCUADefaultAddress> opcuaDefaultAddresses = this.opcDefaultAddressParser.createOPCAddressFromAddressString(config.getAddress());
-      log.debug("connectToDataSource - creating endpoint");
-      IOPCEndpointFactory endpointFactory = new DefaultOPCEndpointFactory();
-      controller = new EndpointControllerDefault(
-              endpointFactory, getEquipmentMessageSender(),
-              opcuaDefaultAddresses, config);
-      log.debug("connectToDataSource - starting endpoint");
-      if (!controller.startEndpoint()) {
-        log.debug("connectToDataSource - endpoint NOT started");
+      IEquipmentConfiguration config = getEquipmentConfiguration();
+      log.debug("connectToDataSource - starting connect to OPC data source");
+      try {
+        List<OPCUADefaultAddress> opcuaDefaultAddresses = this.opcDefaultAddressParser.createOPCAddressFromAddressString(config.getAddress());
+        log.debug("connectToDataSource - creating endpoint");
+        IOPCEndpointFactory endpointFactory = new DefaultOPCEndpointFactory();
+        controller = new EndpointControllerDefault(
+                endpointFactory, getEquipmentMessageSender(),
+                opcuaDefaultAddresses, config);
+        controller.setRefreshScheduler(getRefreshScheduler());
+        log.debug("connectToDataSource - starting endpoint");
+        if (!controller.startEndpoint()) {
+          log.debug("connectToDataSource - endpoint NOT started");
+        }
+        else {
+          log.debug("connectToDataSource - endpoint started");
+        }
       }
-      else {
-        log.debug("connectToDataSource - endpoint started");
+      catch (OPCAUAddressException e) {
+        throw new EqIOException(
+                "OPC address configuration string is invalid.", e);
       }
+      catch (EndpointTypesUnknownException e) {
+        throw new EqIOException(
+                "The configured protocol(s) could not be matched to an endpoint implementation.", e);
+      }
+      catch (OPCCriticalException e) {
+        throw new EqIOException("Endpoint creation failed. Reason: " + e.getMessage(), e);
+      }
+      getEquipmentCommandHandler().setCommandRunner(this);
+      getEquipmentConfigurationHandler().setCommandTagChanger(controller);
+      getEquipmentConfigurationHandler().setDataTagChanger(controller);
+      getEquipmentConfigurationHandler().setEquipmentConfigurationChanger(this);
+    } finally {
+      controllerLock.writeLock().unlock();
     }
-    catch (OPCAUAddressException e) {
-      throw new EqIOException(
-              "OPC address configuration string is invalid.", e);
-    }
-    catch (EndpointTypesUnknownException e) {
-      throw new EqIOException(
-              "The configured protocol(s) could not be matched to an endpoint implementation.", e);
-    }
-    catch (OPCCriticalException e) {
-      throw new EqIOException("Endpoint creation failed. Reason: " + e.getMessage(), e);
-    }
-    getEquipmentCommandHandler().setCommandRunner(this);
-    getEquipmentConfigurationHandler().setCommandTagChanger(controller);
-    getEquipmentConfigurationHandler().setDataTagChanger(controller);
-    getEquipmentConfigurationHandler().setEquipmentConfigurationChanger(this);
   }
 }
@@ -52,38 +52,44 @@ public class OPCUASiemensMessageHandler extends AbstractOPCUAMessageHandler {
    *                       problem during startup.
    */
   @Override
-  public synchronized void connectToDataSource() throws EqIOException {
-    IEquipmentConfiguration config = getEquipmentConfiguration();
-    log.debug("connectToDataSource - starting connect to Siemens OPCUA data source");
+  public void connectToDataSource() throws EqIOException {
+    controllerLock.writeLock().lock();
     try {
-      List<OPCUASiemensAddress> opcuaSiemensAddresses = this.siemensAddressParser.createOPCAddressFromAddressString(config.getAddress());
-      log.debug("connectToDataSource - creating endpoint");
-      IOPCEndpointFactory endpointFactory = new DefaultOPCEndpointFactory();
-      this.controller = new EndpointControllerSiemens(endpointFactory, getEquipmentMessageSender(), opcuaSiemensAddresses, config);
-      log.debug("connectToDataSource - starting endpoint");
-      if (!this.controller.startEndpoint()) {
-        log.debug("connectToDataSource - endpoint NOT started");
+      IEquipmentConfiguration config = getEquipmentConfiguration();
+      log.debug("connectToDataSource - starting connect to Siemens OPCUA data source");
+      try {
+        List<OPCUASiemensAddress> opcuaSiemensAddresses = this.siemensAddressParser.createOPCAddressFromAddressString(config.getAddress());
+        log.debug("connectToDataSource - creating endpoint");
+        IOPCEndpointFactory endpointFactory = new DefaultOPCEndpointFactory();
+        this.controller = new EndpointControllerSiemens(endpointFactory, getEquipmentMessageSender(), opcuaSiemensAddresses, config);
+        this.controller.setRefreshScheduler(getRefreshScheduler());
+        log.debug("connectToDataSource - starting endpoint");
+        if (!this.controller.startEndpoint()) {
+          log.debug("connectToDataSource - endpoint NOT started");
+        }
+        else {
+          log.debug("connectToDataSource - endpoint started");
+        }
       }
-      else {
-        log.debug("connectToDataSource - endpoint started");
+      catch (OPCAUAddressException e) {
+        throw new EqIOException(
+                "OPCUA Siemens address configuration string is invalid.", e);
       }
+      catch (EndpointTypesUnknownException e) {
+        throw new EqIOException(
+                "The configured protocol(s) could not be matched to an "
+                        + "Siemens endpoint implementation.", e);
+      }
+      catch (OPCCriticalException e) {
+        throw new EqIOException("Siemens Endpoint creation failed.", e);
+      }
+      getEquipmentCommandHandler().setCommandRunner(this);
+      getEquipmentConfigurationHandler().setCommandTagChanger(this.controller);
+      getEquipmentConfigurationHandler().setDataTagChanger(this.controller);
+      getEquipmentConfigurationHandler().setEquipmentConfigurationChanger(this);
+    } finally {
+      controllerLock.writeLock().unlock();
     }
-    catch (OPCAUAddressException e) {
-      throw new EqIOException(
-              "OPCUA Siemens address configuration string is invalid.", e);
-    }
-    catch (EndpointTypesUnknownException e) {
-      throw new EqIOException(
-              "The configured protocol(s) could not be matched to an "
-                      + "Siemens endpoint implementation.", e);
-    }
-    catch (OPCCriticalException e) {
-      throw new EqIOException("Siemens Endpoint creation failed.", e);
-    }
-    getEquipmentCommandHandler().setCommandRunner(this);
-    getEquipmentConfigurationHandler().setCommandTagChanger(this.controller);
-    getEquipmentConfigurationHandler().setDataTagChanger(this.controller);
-    getEquipmentConfigurationHandler().setEquipmentConfigurationChanger(this);
   }
 
 }
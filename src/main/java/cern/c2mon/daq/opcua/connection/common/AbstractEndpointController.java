@@ -21,6 +21,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -33,7 +36,11 @@ import cern.c2mon.daq.opcua.connection.common.IOPCEndpoint.STATE;
 import cern.c2mon.daq.opcua.connection.common.impl.AliveWriter;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCCommunicationException;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCCriticalException;
+import cern.c2mon.daq.opcua.connection.common.impl.RefreshScheduler;
 import cern.c2mon.daq.opcua.connection.common.impl.StatusChecker;
+import cern.c2mon.daq.opcua.connection.common.impl.TagValueConflator;
+import cern.c2mon.daq.opcua.connection.common.impl.TagValueFilter;
+import cern.c2mon.daq.opcua.connection.common.impl.TagValueRingBuffer;
 import cern.c2mon.shared.common.command.ISourceCommandTag;
 import cern.c2mon.shared.common.datatag.ISourceDataTag;
 import cern.c2mon.shared.common.datatag.SourceDataQuality;
@@ -99,6 +106,54 @@ public abstract class AbstractEndpointController implements IOPCEndpointListener
 
   private Timer statusCheckTimer;
 
+  /**
+   * Interval in milliseconds to check for held values whose time deadband
+   * has passed.
+   */
+  private static final long HELD_VALUE_INTERVAL = 100L;
+
+  /**
+   * Drops duplicate values and values within the deadbands of their tags.
+   */
+  private final TagValueFilter tagValueFilter = new TagValueFilter();
+
+  /**
+   * Timer to send the held values of the filter.
+   */
+  private Timer heldValueTimer;
+
+  /**
+   * Conflates the updates of the endpoint per tag if enabled for the
+   * current address, else null.
+   */
+  private TagValueConflator conflator;
+
+  /**
+   * Hands the updates of the endpoint over to a delivery thread if enabled
+   * for the current address, else null.
+   */
+  private TagValueRingBuffer ringBuffer;
+
+  /**
+   * Minimum time in milliseconds between two refreshes requested because
+   * the handoff ring dropped updates.
+   */
+  private static final long OVERFLOW_REFRESH_INTERVAL = 10000L;
+
+  /**
+   * Merges the refreshes of the equipment, or null if the refreshes after
+   * an overflow of the handoff ring are disabled.
+   */
+  private volatile RefreshScheduler refreshScheduler;
+
+  /**
+   * The time the last refresh after an overflow was requested, or the time
+   * a delayed refresh will be requested. A time in the future means a
+   * refresh is pending which covers all updates dropped until then. Only
+   * used by the delivery thread of the ring.
+   */
+  private long overflowRefreshTime;
+
   /**
    * Reason why the connection cannot be done
    */
@@ -154,7 +209,7 @@ public abstract class AbstractEndpointController implements IOPCEndpointListener
 
     // Register Listeners
     this.endpoint.registerEndpointListener(this.logListener);
-    this.endpoint.registerEndpointListener(this);
+    this.endpoint.registerEndpointListener(getDataListener());
 
     // Add Tags to endpoint
     addTagsToEndpoint();
@@ -164,11 +219,113 @@ public abstract class AbstractEndpointController implements IOPCEndpointListener
 
     startAliveTimer();
     setUpStatusChecker();
+    startHeldValueTimer();
 
     // Change endpoint status to operational
     this.endpoint.setStateOperational();
   }
 
+  /**
+   * Returns the listener the endpoint should send its updates to. By
+   * default this is the handoff ring in front of the controller, which
+   * delivers the tags with at least the high priority of the address first.
+   * If conflation is enabled it is a conflator with the same lanes instead.
+   * With a handoff capacity of 0 the endpoint calls the controller
+   * directly.
+   *
+   * @return The listener for the updates of the endpoint.
+   */
+  protected synchronized IOPCEndpointListener getDataListener() {
+    AbstractOPCUAAddress address = getCurrentOPCAddress();
+    if (address.isConflation()) {
+      if (this.conflator == null) {
+        this.conflator = new TagValueConflator(this, address.getHighPriority());
+        this.conflator.start("OPCConflator-" + this.equipmentConfiguration.getId());
+      }
+      return this.conflator;
+    }
+    if (address.getHandoffCapacity() > 0) {
+      if (this.ringBuffer == null) {
+        // a refresh of all tags has to fit into the ring
+        int capacity = Math.max(address.getHandoffCapacity(),
+                2 * this.equipmentConfiguration.getSourceDataTags().size());
+        this.ringBuffer = new TagValueRingBuffer(this, capacity, address.getHighPriority(), new TagValueRingBuffer.OverflowListener() {
+
+          @Override
+          public void onOverflow(final long droppedCount) {
+            requestOverflowRefresh(droppedCount);
+          }
+        });
+        this.ringBuffer.start("OPCHandoff-" + this.equipmentConfiguration.getId());
+      }
+      return this.ringBuffer;
+    }
+    return this;
+  }
+
+  /**
+   * Requests a refresh of all data tags after the handoff ring dropped
+   * updates. The refresh is only marked as pending in the refresh
+   * scheduler. It runs on the thread of the scheduler, not on the delivery
+   * thread which is needed to drain the ring, and is merged with the other
+   * refresh requests. As the refresh itself may fill the ring again, at
+   * most one refresh is requested per {@link #OVERFLOW_REFRESH_INTERVAL}.
+   * An overflow within the interval delays the refresh until the interval
+   * has passed, so the dropped updates are always refreshed.
+   *
+   * @param droppedCount The number of dropped updates.
+   */
+  private void requestOverflowRefresh(final long droppedCount) {
+    RefreshScheduler scheduler = this.refreshScheduler;
+    if (scheduler == null) {
+      log.warn("requestOverflowRefresh - " + droppedCount + " updates dropped by the handoff ring. No refresh requested.");
+      return;
+    }
+    long now = System.currentTimeMillis();
+    if (this.overflowRefreshTime > now) {
+      log.warn("requestOverflowRefresh - " + droppedCount + " updates dropped by the handoff ring. Refresh of all data tags already pending.");
+      return;
+    }
+    long delay = this.overflowRefreshTime + OVERFLOW_REFRESH_INTERVAL - now;
+    if (delay > 0) {
+      this.overflowRefreshTime = now + delay;
+      log.warn("requestOverflowRefresh - " + droppedCount + " updates dropped by the handoff ring. Refresh of all data tags requested in " + delay + " ms.");
+      scheduler.requestAll(delay);
+      return;
+    }
+    this.overflowRefreshTime = now;
+    log.warn("requestOverflowRefresh - " + droppedCount + " updates dropped by the handoff ring. Refresh of all data tags requested.");
+    scheduler.requestAll();
+  }
+
+  /**
+   * Sets the scheduler which merges the refreshes of the equipment. It is
+   * used to refresh all data tags after the handoff ring dropped updates.
+   *
+   * @param refreshScheduler The refresh scheduler.
+   */
+  public void setRefreshScheduler(final RefreshScheduler refreshScheduler) {
+    this.refreshScheduler = refreshScheduler;
+  }
+
+  /**
+   * Returns the conflator of the updates.
+   *
+   * @return The conflator or null if conflation is disabled.
+   */
+  public synchronized TagValueConflator getConflator() {
+    return this.conflator;
+  }
+
+  /**
+   * Returns the ring which hands the updates over to a delivery thread.
+   *
+   * @return The ring or null if the handoff is disabled.
+   */
+  public synchronized TagValueRingBuffer getRingBuffer() {
+    return this.ringBuffer;
+  }
+
   /**
    * Add Data and Command tags to the the endpoint
    */
@@ -216,6 +373,38 @@ public abstract class AbstractEndpointController implements IOPCEndpointListener
     }, serverTimeout, serverTimeout);
   }
 
+  /**
+   * Starts the timer which sends the held values of the filter once their
+   * time deadband has passed.
+   */
+  protected synchronized void startHeldValueTimer() {
+    stopHeldValueTimer();
+    heldValueTimer = new Timer("OPCHeldValueSender", true);
+    heldValueTimer.schedule(new TimerTask() {
+
+      @Override
+      public void run() {
+        tagValueFilter.releaseHeldValues(System.currentTimeMillis(), new TagValueFilter.HeldValueListener() {
+
+          @Override
+          public void onHeldValue(final ISourceDataTag dataTag, final long timestamp, final Object value) {
+            sendTagValue(dataTag, timestamp, value);
+          }
+        });
+      }
+    }, HELD_VALUE_INTERVAL, HELD_VALUE_INTERVAL);
+  }
+
+  /**
+   * Stops the timer which sends the held values of the filter.
+   */
+  public synchronized void stopHeldValueTimer() {
+    if (heldValueTimer != null) {
+      heldValueTimer.cancel();
+      heldValueTimer = null;
+    }
+  }
+
   /**
    *
    */
@@ -288,8 +477,19 @@ public abstract class AbstractEndpointController implements IOPCEndpointListener
   public synchronized void stop() {
     stopAliveTimer();
     stopStatusChecker();
+    stopHeldValueTimer();
     if (endpoint != null)
       endpoint.reset();
+    if (conflator != null) {
+      conflator.stop();
+      conflator = null;
+    }
+    if (ringBuffer != null) {
+      ringBuffer.stop();
+      ringBuffer = null;
+    }
+    // values after a restart have to pass again
+    tagValueFilter.resetAll();
   }
 
   /**
@@ -325,6 +525,8 @@ public abstract class AbstractEndpointController implements IOPCEndpointListener
   /**
    * Implementation of the IOPCEndpointListener interface. The endpoint
    * controller will forward updates to the core (EquipmentMessageSender).
+   * Duplicates and values within the deadbands of the tag are dropped
+   * before.
    *
    * @param dataTag   The data tag which has a changed value.
    * @param timestamp The timestamp when the value was updated.
@@ -334,6 +536,61 @@ public abstract class AbstractEndpointController implements IOPCEndpointListener
   public void onNewTagValue(final ISourceDataTag dataTag, final long timestamp, final Object tagValue) {
     log.debug("onNewTagValue - New Tag value received for Tag #" + dataTag.getId());
 
+    if (!this.tagValueFilter.accept(dataTag, timestamp, tagValue, System.currentTimeMillis())) {
+      if (log.isDebugEnabled()) {
+        log.debug("onNewTagValue - Tag value " + tagValue + " filtered for Tag #" + dataTag.getId());
+      }
+      return;
+    }
+    sendTagValue(dataTag, timestamp, tagValue);
+  }
+
+  /**
+   * Filters and sends a new value of a Long tag. The value is only boxed
+   * if it is sent.
+   *
+   * @param dataTag   The data tag which has a changed value.
+   * @param timestamp The timestamp when the value was updated.
+   * @param tagValue  The changed value.
+   */
+  @Override
+  public void onNewTagValue(final ISourceDataTag dataTag, final long timestamp, final long tagValue) {
+    if (!this.tagValueFilter.acceptLong(dataTag, timestamp, tagValue, System.currentTimeMillis())) {
+      if (log.isDebugEnabled()) {
+        log.debug("onNewTagValue - Tag value " + tagValue + " filtered for Tag #" + dataTag.getId());
+      }
+      return;
+    }
+    sendTagValue(dataTag, timestamp, Long.valueOf(tagValue));
+  }
+
+  /**
+   * Filters and sends a new value of a Double tag. The value is only boxed
+   * if it is sent.
+   *
+   * @param dataTag   The data tag which has a changed value.
+   * @param timestamp The timestamp when the value was updated.
+   * @param tagValue  The changed value.
+   */
+  @Override
+  public void onNewTagValue(final ISourceDataTag dataTag, final long timestamp, final double tagValue) {
+    if (!this.tagValueFilter.acceptDouble(dataTag, timestamp, tagValue, System.currentTimeMillis())) {
+      if (log.isDebugEnabled()) {
+        log.debug("onNewTagValue - Tag value " + tagValue + " filtered for Tag #" + dataTag.getId());
+      }
+      return;
+    }
+    sendTagValue(dataTag, timestamp, Double.valueOf(tagValue));
+  }
+
+  /**
+   * Sends a tag value to the core.
+   *
+   * @param dataTag   The data tag which has a changed value.
+   * @param timestamp The timestamp when the value was updated.
+   * @param tagValue  The changed value.
+   */
+  private void sendTagValue(final ISourceDataTag dataTag, final long timestamp, final Object tagValue) {
     this.sender.sendTagFiltered(dataTag, tagValue, timestamp);
 
     if (log.isDebugEnabled()) {
@@ -341,6 +598,16 @@ public abstract class AbstractEndpointController implements IOPCEndpointListener
     }
   }
 
+  /**
+   * Returns the filter which drops duplicates and values within the
+   * deadbands of their tags.
+   *
+   * @return The tag value filter.
+   */
+  public TagValueFilter getTagValueFilter() {
+    return this.tagValueFilter;
+  }
+
   /**
    * Refreshes the values of all added data tags.
    */
@@ -363,6 +630,17 @@ public abstract class AbstractEndpointController implements IOPCEndpointListener
     this.endpoint.refreshDataTags(tags);
   }
 
+  /**
+   * Refreshes the values of the provided source data tags.
+   *
+   * @param sourceDataTags The source data tags to refresh the values for.
+   */
+  public synchronized void refresh(final Collection<ISourceDataTag> sourceDataTags) {
+    requiresEndpoint();
+    log.info("Refreshing values of " + sourceDataTags.size() + " data tags.");
+    this.endpoint.refreshDataTags(sourceDataTags);
+  }
+
   /**
    * Invalidates the tag which caused an exception in an endpoint.
    *
@@ -375,6 +653,8 @@ public abstract class AbstractEndpointController implements IOPCEndpointListener
       log.debug("Tag invalid: " + cause.getClass().getSimpleName() + ": "
               + cause.getMessage());
     }
+    // the next valid value has to pass
+    this.tagValueFilter.reset(dataTag.getId());
     this.sender.sendInvalidTag(dataTag, SourceDataQuality.DATA_UNAVAILABLE, cause.getMessage());
   }
 
@@ -447,14 +727,29 @@ public abstract class AbstractEndpointController implements IOPCEndpointListener
 
 
   /**
-   * Runs a command on the current endpoint.
+   * Runs a command on the current endpoint. Returns once the command value
+   * is written. The reset write of a pulse command is done later by the
+   * endpoint; if it fails the failure is logged.
    *
    * @param commandTag            The command to run.
    * @param sourceCommandTagValue The value description of the command to run.
+   * @return Future which completes when all writes of the command are done.
    */
-  public void runCommand(final ISourceCommandTag commandTag, final SourceCommandTagValue sourceCommandTagValue) {
+  public CompletableFuture<Void> runCommand(final ISourceCommandTag commandTag, final SourceCommandTagValue sourceCommandTagValue) {
     requiresEndpoint();
-    this.endpoint.executeCommand((OPCHardwareAddress) commandTag.getHardwareAddress(), sourceCommandTagValue);
+    CompletableFuture<Void> completion = this.endpoint.executeCommand((OPCHardwareAddress) commandTag.getHardwareAddress(), sourceCommandTagValue);
+    if (completion != null) {
+      completion.whenComplete(new BiConsumer<Void, Throwable>() {
+
+        @Override
+        public void accept(final Void result, final Throwable error) {
+          if (error != null) {
+            log.error("runCommand - Reset write of pulse command " + commandTag.getId() + " failed.", error);
+          }
+        }
+      });
+    }
+    return completion;
   }
 
   /**
@@ -541,6 +836,7 @@ public abstract class AbstractEndpointController implements IOPCEndpointListener
     log.info("Removing data tag " + sourceDataTag.getId());
     requiresEndpoint();
     this.endpoint.removeDataTag(sourceDataTag);
+    this.tagValueFilter.reset(sourceDataTag.getId());
     changeReport.appendInfo("DataTag removed.");
     changeReport.setState(CHANGE_STATE.SUCCESS);
     log.info("Removed data tag " + sourceDataTag.getId());
@@ -557,6 +853,7 @@ public abstract class AbstractEndpointController implements IOPCEndpointListener
   public void onUpdateDataTag(final ISourceDataTag sourceDataTag, final ISourceDataTag oldSourceDataTag, final ChangeReport changeReport) {
     log.info("Updating data tag " + sourceDataTag.getId());
     requiresEndpoint();
+    this.tagValueFilter.reset(oldSourceDataTag.getId());
     if (!sourceDataTag.getHardwareAddress().equals(oldSourceDataTag.getHardwareAddress())) {
       this.endpoint.removeDataTag(oldSourceDataTag);
       this.endpoint.addDataTag(sourceDataTag);
@@ -20,6 +20,7 @@ package cern.c2mon.daq.opcua.connection.common;
 import java.net.URI;
 
 import cern.c2mon.daq.opcua.connection.common.impl.AliveWriter;
+import cern.c2mon.shared.common.datatag.DataTagAddress;
 import lombok.Getter;
 
 /**
@@ -70,6 +71,97 @@ public abstract class AbstractOPCUAAddress {
      */
     protected boolean aliveWriterEnabled = true;
 
+    /**
+     * Default value of the fragmentation threshold.
+     */
+    public static final int DEFAULT_FRAGMENTATION_THRESHOLD = 16;
+
+    /**
+     * The number of delta subscriptions and stale items an OPC XML DA
+     * subscription group may collect before it is rebuilt with a single
+     * Subscribe.
+     */
+    protected int fragmentationThreshold = DEFAULT_FRAGMENTATION_THRESHOLD;
+
+    /**
+     * Default value of the minimum hold time.
+     */
+    public static final int DEFAULT_MIN_HOLD_TIME = 250;
+
+    /**
+     * Default value of the maximum hold time.
+     */
+    public static final int DEFAULT_MAX_HOLD_TIME = 5000;
+
+    /**
+     * The minimum hold time of OPC XML DA long polls in milliseconds.
+     */
+    protected int minHoldTime = DEFAULT_MIN_HOLD_TIME;
+
+    /**
+     * The maximum hold time of OPC XML DA long polls in milliseconds.
+     */
+    protected int maxHoldTime = DEFAULT_MAX_HOLD_TIME;
+
+    /**
+     * If set to true the OPC XML DA long polls run on the shared NIO
+     * transport instead of blocking a thread each. Servers which require
+     * NTLM authentication or https are always polled with a thread.
+     * The default value is <code>false</code>.
+     */
+    protected boolean nioTransport = false;
+
+    /**
+     * Default source of OPC DA DCOM refreshes.
+     */
+    public static final String DEFAULT_REFRESH_SOURCE = "cache";
+
+    /**
+     * The source OPC DA DCOM refreshes read from. <code>cache</code> and
+     * <code>device</code> read the items with SyncRead from the cache or
+     * the device of the server. <code>async</code> asks the server for an
+     * asynchronous refresh of the whole group.
+     */
+    protected String refreshSource = DEFAULT_REFRESH_SOURCE;
+
+    /**
+     * If set to true the updates of the endpoint are conflated per tag
+     * before they reach the controller. Only the latest update of a tag is
+     * kept while the controller falls behind. The default value is
+     * <code>false</code>.
+     */
+    protected boolean conflation = false;
+
+    /**
+     * Default number of slots of the handoff ring.
+     */
+    public static final int DEFAULT_HANDOFF_CAPACITY = 1024;
+
+    /**
+     * Default minimum priority of the tags in the high priority lane. Tags
+     * have {@link DataTagAddress#PRIORITY_LOW} unless configured otherwise,
+     * so every tag with a raised priority is in the high priority lane.
+     */
+    public static final int DEFAULT_HIGH_PRIORITY = DataTagAddress.PRIORITY_MEDIUM;
+
+    /**
+     * The number of slots of the ring which hands the updates of the
+     * endpoint over to a delivery thread. The default value is
+     * {@link #DEFAULT_HANDOFF_CAPACITY}. 0 delivers the updates on the
+     * threads of the endpoint without priority lanes. Ignored if conflation
+     * is enabled.
+     */
+    protected int handoffCapacity = DEFAULT_HANDOFF_CAPACITY;
+
+    /**
+     * The minimum priority of the data tag address of the tags whose updates
+     * use the high priority lane. The lanes exist in the handoff ring and in
+     * the conflator. The updates of the high priority lane are always
+     * delivered before the other ones. The default value is
+     * {@link #DEFAULT_HIGH_PRIORITY}.
+     */
+    protected int highPriority = DEFAULT_HIGH_PRIORITY;
+
     /**
      * @return the uri
      */
@@ -145,6 +237,47 @@ public abstract class AbstractOPCUAAddress {
          */
         protected boolean aliveWriterEnabled = true;
 
+        /**
+         * The number of delta subscriptions and stale items an OPC XML DA
+         * subscription group may collect before it is rebuilt.
+         */
+        protected int fragmentationThreshold = DEFAULT_FRAGMENTATION_THRESHOLD;
+
+        /**
+         * The minimum hold time of OPC XML DA long polls.
+         */
+        protected int minHoldTime = DEFAULT_MIN_HOLD_TIME;
+
+        /**
+         * The maximum hold time of OPC XML DA long polls.
+         */
+        protected int maxHoldTime = DEFAULT_MAX_HOLD_TIME;
+
+        /**
+         * If true the OPC XML DA long polls run on the NIO transport.
+         */
+        protected boolean nioTransport = false;
+
+        /**
+         * The source OPC DA DCOM refreshes read from.
+         */
+        protected String refreshSource = DEFAULT_REFRESH_SOURCE;
+
+        /**
+         * If true the updates are conflated per tag.
+         */
+        protected boolean conflation = false;
+
+        /**
+         * The number of slots of the handoff ring or 0 to disable it.
+         */
+        protected int handoffCapacity = DEFAULT_HANDOFF_CAPACITY;
+
+        /**
+         * The minimum priority of the tags using the high priority lane.
+         */
+        protected int highPriority = DEFAULT_HIGH_PRIORITY;
+
         /**
          * Sets the user and domain in the form of user@domain.
          *
@@ -210,6 +343,96 @@ public abstract class AbstractOPCUAAddress {
           return this;
         }
 
+        /**
+         * Sets the fragmentation threshold of OPC XML DA subscription
+         * groups. Added and removed items are handled with small delta
+         * subscriptions until their number plus the number of removed but
+         * still subscribed items exceeds this threshold. Then the group is
+         * rebuilt with a single Subscribe.
+         *
+         * @param fragmentationThreshold The fragmentation threshold.
+         * @return The Builder object itself to chain the calls.
+         */
+        public AbstractBuilder fragmentationThreshold(final int fragmentationThreshold) {
+            this.fragmentationThreshold = fragmentationThreshold;
+            return this;
+        }
+
+        /**
+         * Sets the limits of the hold time of OPC XML DA long polls. The
+         * hold time adapts to the update rate of a group within these
+         * limits.
+         *
+         * @param minHoldTime The minimum hold time in milliseconds.
+         * @param maxHoldTime The maximum hold time in milliseconds.
+         * @return The Builder object itself to chain the calls.
+         */
+        public AbstractBuilder holdTimeLimits(final int minHoldTime, final int maxHoldTime) {
+            this.minHoldTime = minHoldTime;
+            this.maxHoldTime = maxHoldTime;
+            return this;
+        }
+
+        /**
+         * Enables the NIO transport for OPC XML DA long polls. Many polls
+         * then share a single selector thread.
+         *
+         * @param nioTransport True to use the NIO transport.
+         * @return The Builder object itself to chain the calls.
+         */
+        public AbstractBuilder nioTransport(final boolean nioTransport) {
+            this.nioTransport = nioTransport;
+            return this;
+        }
+
+        /**
+         * Sets the source of OPC DA DCOM refreshes.
+         *
+         * @param refreshSource <code>cache</code>, <code>device</code> or
+         * <code>async</code>.
+         * @return The Builder object itself to chain the calls.
+         */
+        public AbstractBuilder refreshSource(final String refreshSource) {
+            this.refreshSource = refreshSource;
+            return this;
+        }
+
+        /**
+         * Enables the conflation of updates per tag.
+         *
+         * @param conflation True to conflate the updates.
+         * @return The Builder object itself to chain the calls.
+         */
+        public AbstractBuilder conflation(final boolean conflation) {
+            this.conflation = conflation;
+            return this;
+        }
+
+        /**
+         * Sets the number of slots of the ring which hands the updates over
+         * to a delivery thread.
+         *
+         * @param handoffCapacity The number of slots or 0 to deliver the
+         * updates on the threads of the endpoint.
+         * @return The Builder object itself to chain the calls.
+         */
+        public AbstractBuilder handoffCapacity(final int handoffCapacity) {
+            this.handoffCapacity = handoffCapacity;
+            return this;
+        }
+
+        /**
+         * Sets the minimum priority of the tags whose updates use the high
+         * priority lane of the handoff ring or the conflator.
+         *
+         * @param highPriority The minimum priority of the data tag address.
+         * @return The Builder object itself to chain the calls.
+         */
+        public AbstractBuilder highPriority(final int highPriority) {
+            this.highPriority = highPriority;
+            return this;
+        }
+
 
         /**
          * Builds the OPCUAAddress object based on the provided parameters.
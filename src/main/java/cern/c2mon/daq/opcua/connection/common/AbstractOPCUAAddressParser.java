@@ -20,6 +20,7 @@ package cern.c2mon.daq.opcua.connection.common;
 import java.util.List;
 import java.util.Properties;
 
+
 /**
  * AbstractOPCUAAddressParser abstract class (no implementation of this class)
  *
@@ -57,7 +58,47 @@ public abstract class AbstractOPCUAAddressParser {
       /**
        * Optional property to define the vendor implementation
        */
-      vendor;
+      vendor,
+
+      /**
+       * Optional fragmentation threshold of OPC XML DA subscription groups
+       */
+      fragmentationThreshold,
+
+      /**
+       * Optional minimum hold time of OPC XML DA long polls
+       */
+      minHoldTime,
+
+      /**
+       * Optional maximum hold time of OPC XML DA long polls
+       */
+      maxHoldTime,
+
+      /**
+       * Optional flag to run OPC XML DA long polls on the NIO transport
+       */
+      nioTransport,
+
+      /**
+       * Optional source of OPC DA DCOM refreshes (cache, device or async)
+       */
+      refreshSource,
+
+      /**
+       * Optional flag to conflate the updates per tag
+       */
+      conflation,
+
+      /**
+       * Optional number of slots of the handoff ring, 0 disables it
+       */
+      handoffCapacity,
+
+      /**
+       * Optional minimum priority of the tags using the high priority lane
+       */
+      highPriority;
     }
 
 
@@ -71,6 +112,22 @@ public abstract class AbstractOPCUAAddressParser {
     protected boolean aliveWriter;
     /** optional value for tcp.ua protocol */
     protected String vendor;
+    /** optional value for http (OPC XML DA) protocol */
+    protected int fragmentationThreshold;
+    /** optional value for http (OPC XML DA) protocol */
+    protected int minHoldTime;
+    /** optional value for http (OPC XML DA) protocol */
+    protected int maxHoldTime;
+    /** optional value for http (OPC XML DA) protocol */
+    protected boolean nioTransport;
+    /** optional value for dcom protocol */
+    protected String refreshSource;
+    /** optional value for all protocols */
+    protected boolean conflation;
+    /** optional value for all protocols */
+    protected int handoffCapacity;
+    /** optional value for all protocols */
+    protected int highPriority;
 
     /**
      * Creates a properties object which has the properties defined in the
@@ -111,6 +168,28 @@ public abstract class AbstractOPCUAAddressParser {
         this.serverRetryTimeout = Integer.valueOf(properties.getProperty(AddressKeys.serverRetryTimeout.name()));
         this.aliveWriter = Boolean.valueOf(properties.getProperty(AddressKeys.aliveWriter.name(), "true"));
         this.vendor = properties.getProperty(AddressKeys.vendor.name(), "");
+        this.fragmentationThreshold = Integer.valueOf(properties.getProperty(
+                AddressKeys.fragmentationThreshold.name(),
+                String.valueOf(AbstractOPCUAAddress.DEFAULT_FRAGMENTATION_THRESHOLD)));
+        this.minHoldTime = Integer.valueOf(properties.getProperty(
+                AddressKeys.minHoldTime.name(),
+                String.valueOf(AbstractOPCUAAddress.DEFAULT_MIN_HOLD_TIME)));
+        this.maxHoldTime = Integer.valueOf(properties.getProperty(
+                AddressKeys.maxHoldTime.name(),
+                String.valueOf(AbstractOPCUAAddress.DEFAULT_MAX_HOLD_TIME)));
+        this.nioTransport = Boolean.valueOf(properties.getProperty(
+                AddressKeys.nioTransport.name(), "false"));
+        this.refreshSource = properties.getProperty(
+                AddressKeys.refreshSource.name(),
+                AbstractOPCUAAddress.DEFAULT_REFRESH_SOURCE);
+        this.conflation = Boolean.valueOf(properties.getProperty(
+                AddressKeys.conflation.name(), "false"));
+        this.handoffCapacity = Integer.valueOf(properties.getProperty(
+                AddressKeys.handoffCapacity.name(),
+                String.valueOf(AbstractOPCUAAddress.DEFAULT_HANDOFF_CAPACITY)));
+        this.highPriority = Integer.valueOf(properties.getProperty(
+                AddressKeys.highPriority.name(),
+                String.valueOf(AbstractOPCUAAddress.DEFAULT_HIGH_PRIORITY)));
     }
 
     /**
@@ -16,17 +16,25 @@
  *****************************************************************************/
 package cern.c2mon.daq.opcua.connection.common;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 import lombok.extern.slf4j.Slf4j;
 
 import cern.c2mon.daq.common.EquipmentMessageHandler;
 import cern.c2mon.daq.common.ICommandRunner;
 import cern.c2mon.daq.common.conf.equipment.IEquipmentConfigurationChanger;
 import cern.c2mon.daq.opcua.EndpointTypesUnknownException;
+import cern.c2mon.daq.opcua.connection.common.impl.CommandExecutor;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCCriticalException;
+import cern.c2mon.daq.opcua.connection.common.impl.RefreshScheduler;
 import cern.c2mon.daq.tools.equipmentexceptions.EqCommandTagException;
 import cern.c2mon.daq.tools.equipmentexceptions.EqIOException;
 import cern.c2mon.shared.common.command.ISourceCommandTag;
 import cern.c2mon.shared.common.datatag.ISourceDataTag;
+import cern.c2mon.shared.common.datatag.address.OPCHardwareAddress;
 import cern.c2mon.shared.common.process.IEquipmentConfiguration;
 import cern.c2mon.shared.daq.command.SourceCommandTagValue;
 import cern.c2mon.shared.daq.config.ChangeReport;
@@ -49,12 +57,80 @@ public abstract class AbstractOPCUAMessageHandler extends EquipmentMessageHandle
    */
   private static final long RESTART_DELAY = 2000L;
 
+  /**
+   * Number of threads running commands.
+   */
+  private static final int COMMAND_THREADS = 4;
+
+  /**
+   * Maximum number of queued and running commands.
+   */
+  private static final int MAX_QUEUED_COMMANDS = 100;
+
+  /**
+   * Time in milliseconds to wait for a command.
+   */
+  private static final long COMMAND_TIMEOUT = 30000L;
+
+  /**
+   * Time in milliseconds refresh requests are collected before they run.
+   */
+  private static final long REFRESH_WINDOW = 200L;
+
+  /**
+   * Maximum number of single tags refreshed at once.
+   */
+  private static final int REFRESH_CHUNK_SIZE = 100;
+
 
   /**
    * The endpoint controller for this module.
    */
   protected AbstractEndpointController controller;
 
+  /**
+   * Guards the controller. Commands and refreshes hold the read lock while
+   * they run on the controller. Connecting, disconnecting and restarting
+   * hold the write lock, so they wait for the running commands and
+   * refreshes and neither runs against a controller which is stopped or
+   * replaced.
+   */
+  protected final ReadWriteLock controllerLock = new ReentrantReadWriteLock();
+
+  /**
+   * Runs the commands. Commands for the same OPC item run one after the
+   * other, commands for different items concurrently.
+   */
+  private final CommandExecutor commandExecutor =
+          new CommandExecutor(COMMAND_THREADS, MAX_QUEUED_COMMANDS, COMMAND_TIMEOUT);
+
+  /**
+   * Merges the refresh requests of the core. At most one refresh runs at a
+   * time.
+   */
+  private final RefreshScheduler refreshScheduler = new RefreshScheduler(new RefreshScheduler.RefreshTarget() {
+
+    @Override
+    public void refreshAll() {
+      controllerLock.readLock().lock();
+      try {
+        controller.refresh();
+      } finally {
+        controllerLock.readLock().unlock();
+      }
+    }
+
+    @Override
+    public void refresh(final Collection<ISourceDataTag> dataTags) {
+      controllerLock.readLock().lock();
+      try {
+        controller.refresh(dataTags);
+      } finally {
+        controllerLock.readLock().unlock();
+      }
+    }
+  }, REFRESH_WINDOW, REFRESH_CHUNK_SIZE);
+
   /**
    * Called when the core wants the OPC module to start up and connect to the
    * OPC server.
@@ -73,38 +149,35 @@ public abstract class AbstractOPCUAMessageHandler extends EquipmentMessageHandle
    *                       problem during stop.
    */
   @Override
-  public synchronized void disconnectFromDataSource() throws EqIOException {
-    log.debug("disconnecting from OPC data source...");
-    controller.stop();
-    log.debug("disconnected");
+  public void disconnectFromDataSource() throws EqIOException {
+    controllerLock.writeLock().lock();
+    try {
+      log.debug("disconnecting from OPC data source...");
+      controller.stop();
+      log.debug("disconnected");
+    } finally {
+      controllerLock.writeLock().unlock();
+    }
   }
 
   /**
-   * Triggers the refresh of all values directly from the OPC server.
+   * Triggers the refresh of all values directly from the OPC server. The
+   * refresh is merged with the other requests of a short window.
    */
   @Override
-  public synchronized void refreshAllDataTags() {
-    new Thread() {
-      @Override
-      public void run() {
-        try {
-          log.debug("refreshAllDataTags() - refreshing data tags");
-          controller.refresh();
-        }
-        catch (Exception e) {
-          log.error("refreshAllDataTags() - Refresh of OPC data failed", e);
-        }
-      }
-    }.start();
+  public void refreshAllDataTags() {
+    log.debug("refreshAllDataTags() - refreshing data tags");
+    refreshScheduler.requestAll();
   }
 
   /**
    * Triggers the refresh of a single value directly from the OPC server.
+   * The refresh is merged with the other requests of a short window.
    *
    * @param dataTagId The id of the data tag to refresh.
    */
   @Override
-  public synchronized void refreshDataTag(final long dataTagId) {
+  public void refreshDataTag(final long dataTagId) {
     if (log.isDebugEnabled()) {
       log.debug("refreshing data tag " + dataTagId);
     }
@@ -113,11 +186,23 @@ public abstract class AbstractOPCUAMessageHandler extends EquipmentMessageHandle
     if (sourceDataTag == null)
       throw new OPCCriticalException("SourceDataTag with id '" + dataTagId
               + "' unknown.");
-    controller.refresh(sourceDataTag);
+    refreshScheduler.request(sourceDataTag);
+  }
+
+  /**
+   * Returns the scheduler which merges the refresh requests. Its counters
+   * show how many requests were merged.
+   *
+   * @return The refresh scheduler.
+   */
+  public RefreshScheduler getRefreshScheduler() {
+    return refreshScheduler;
   }
 
   /**
-   * Runs a command on the current endpoint.
+   * Runs a command on the current endpoint. Only commands for the same OPC
+   * item wait for each other. Commands wait while the DAQ connects,
+   * disconnects or restarts.
    *
    * @param sourceCommandTagValue the value for the command
    *
@@ -126,11 +211,11 @@ public abstract class AbstractOPCUAMessageHandler extends EquipmentMessageHandle
    *                               fails.
    */
   @Override
-  public synchronized String runCommand(
+  public String runCommand(
           final SourceCommandTagValue sourceCommandTagValue)
           throws EqCommandTagException {
     Long commandId = sourceCommandTagValue.getId();
-    ISourceCommandTag commandTag =
+    final ISourceCommandTag commandTag =
             getEquipmentConfiguration().getSourceCommandTag(commandId);
     if (commandTag == null) {
       throw new EqCommandTagException("Command tag with id '" + commandId
@@ -141,7 +226,17 @@ public abstract class AbstractOPCUAMessageHandler extends EquipmentMessageHandle
         log.debug("running command " + commandId
                 + " with value " + sourceCommandTagValue.getValue());
       }
-      controller.runCommand(commandTag, sourceCommandTagValue);
+      commandExecutor.execute(getCommandItem(commandTag), commandId, new Runnable() {
+        @Override
+        public void run() {
+          controllerLock.readLock().lock();
+          try {
+            controller.runCommand(commandTag, sourceCommandTagValue);
+          } finally {
+            controllerLock.readLock().unlock();
+          }
+        }
+      });
     }
     catch (EndpointTypesUnknownException e) {
       throw new EqCommandTagException("The configuration contained no "
@@ -154,6 +249,30 @@ public abstract class AbstractOPCUAMessageHandler extends EquipmentMessageHandle
     return null;
   }
 
+  /**
+   * Returns the item a command targets. Commands for the same item are
+   * serialized.
+   *
+   * @param commandTag The command tag.
+   * @return The OPC item name or the command tag id if the command has no
+   * OPC address.
+   */
+  private Object getCommandItem(final ISourceCommandTag commandTag) {
+    if (commandTag.getHardwareAddress() instanceof OPCHardwareAddress) {
+      return ((OPCHardwareAddress) commandTag.getHardwareAddress()).getOPCItemName();
+    }
+    return commandTag.getId();
+  }
+
+  /**
+   * Returns the latency statistics of the commands of this equipment.
+   *
+   * @return Map of command tag ids to their statistics.
+   */
+  public Map<Long, CommandExecutor.CommandStatistics> getCommandStatistics() {
+    return commandExecutor.getStatistics();
+  }
+
   /**
    * Makes sure the changes to the equipment are applied on OPC level.
    *
@@ -162,7 +281,28 @@ public abstract class AbstractOPCUAMessageHandler extends EquipmentMessageHandle
    * @param changeReport              Report object to fill.
    */
   @Override
-  public synchronized void onUpdateEquipmentConfiguration(
+  public void onUpdateEquipmentConfiguration(
+          final IEquipmentConfiguration equipmentConfiguration,
+          final IEquipmentConfiguration oldEquipmentConfiguration,
+          final ChangeReport changeReport) {
+    controllerLock.writeLock().lock();
+    try {
+      updateEquipmentConfiguration(equipmentConfiguration,
+              oldEquipmentConfiguration, changeReport);
+    } finally {
+      controllerLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Applies the changes to the equipment. Called with the write lock of
+   * the controller, so no command runs during a restart.
+   *
+   * @param equipmentConfiguration    The new equipment configuration.
+   * @param oldEquipmentConfiguration A clone of the old equipment configuration.
+   * @param changeReport              Report object to fill.
+   */
+  private void updateEquipmentConfiguration(
           final IEquipmentConfiguration equipmentConfiguration,
           final IEquipmentConfiguration oldEquipmentConfiguration,
           final ChangeReport changeReport) {
@@ -195,6 +335,8 @@ public abstract class AbstractOPCUAMessageHandler extends EquipmentMessageHandle
   @Override
   public void shutdown() throws EqIOException {
     super.shutdown();
+    commandExecutor.shutdown();
+    refreshScheduler.shutdown();
     // Release COM object references that have not been released through GC
     com.linar.jintegra.Cleaner.releaseAll();
   }
@@ -0,0 +1,232 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cern.c2mon.daq.opcua.connection.common.impl.OPCCriticalException;
+
+/**
+ * Collects writes of concurrent callers into bulk write requests. The first
+ * caller sends its write immediately. Writes which arrive while a request
+ * is in flight are collected and sent with the next request by the first
+ * of their callers which gets the turn.
+ * <p>
+ * Every write is sent with its own value in the order the writes arrived.
+ * If an item is written several times in one batch the batch is split:
+ * a new request is started with the repeated write, so a request contains
+ * every item at most once. Every caller blocks till the request containing
+ * its write returned and gets the result of its own write.
+ *
+ * @param <K> The type of the client handles of the items.
+ */
+public abstract class AbstractWriteBatcher<K> {
+
+    /**
+     * Lock guarding the pending writes, the flushing flag and the done
+     * flags of the writes.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * The writes waiting for the next request in the order they arrived.
+     */
+    private List<PendingWrite<K>> pendingWrites = new ArrayList<PendingWrite<K>>();
+
+    /**
+     * True while a caller sends the requests of a batch.
+     */
+    private boolean flushing = false;
+
+    /**
+     * Writes a value and waits till the request containing it returned.
+     *
+     * @param clientHandle The client handle of the item.
+     * @param itemAddress The address of the item.
+     * @param value The value to write.
+     */
+    protected final void submit(final K clientHandle, final String itemAddress,
+            final Object value) {
+        PendingWrite<K> write = new PendingWrite<K>(clientHandle, itemAddress, value);
+        synchronized (lock) {
+            pendingWrites.add(write);
+        }
+        while (true) {
+            List<PendingWrite<K>> batch;
+            synchronized (lock) {
+                while (!write.done && flushing) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new OPCCriticalException("Write interrupted.");
+                    }
+                }
+                if (write.done) {
+                    break;
+                }
+                flushing = true;
+                batch = pendingWrites;
+                pendingWrites = new ArrayList<PendingWrite<K>>();
+            }
+            try {
+                flushBatch(batch);
+            } finally {
+                synchronized (lock) {
+                    for (PendingWrite<K> batchWrite : batch) {
+                        batchWrite.done = true;
+                    }
+                    flushing = false;
+                    lock.notifyAll();
+                }
+            }
+        }
+        if (write.error != null) {
+            throw write.error;
+        }
+    }
+
+    /**
+     * Splits a batch into requests which contain every item at most once
+     * and sends them one after the other.
+     *
+     * @param batch The writes in the order they arrived.
+     */
+    private void flushBatch(final List<PendingWrite<K>> batch) {
+        Map<K, PendingWrite<K>> request = new LinkedHashMap<K, PendingWrite<K>>();
+        for (PendingWrite<K> write : batch) {
+            if (request.containsKey(write.clientHandle)) {
+                flush(request);
+                request = new LinkedHashMap<K, PendingWrite<K>>();
+            }
+            request.put(write.clientHandle, write);
+        }
+        flush(request);
+    }
+
+    /**
+     * Sends one request and stores the result of every write. Errors have
+     * to be set on the writes; nothing may be thrown.
+     *
+     * @param request The writes of the request by client handle. Every
+     * item is contained at most once.
+     */
+    protected abstract void flush(Map<K, PendingWrite<K>> request);
+
+    /**
+     * Sets an error for all writes which do not have one yet.
+     *
+     * @param writes The writes.
+     * @param error The error to set.
+     */
+    protected static <K> void setError(final Collection<PendingWrite<K>> writes,
+            final RuntimeException error) {
+        for (PendingWrite<K> write : writes) {
+            if (write.error == null) {
+                write.error = error;
+            }
+        }
+    }
+
+    /**
+     * A write waiting for its request. The done flag is guarded by the lock
+     * of the batcher. The error is written by the flushing caller or by the
+     * thread delivering the result before the caller is released.
+     *
+     * @param <K> The type of the client handle.
+     */
+    protected static final class PendingWrite<K> {
+
+        /**
+         * The client handle of the item.
+         */
+        private final K clientHandle;
+
+        /**
+         * The address of the item.
+         */
+        private final String itemAddress;
+
+        /**
+         * The value to write.
+         */
+        private final Object value;
+
+        /**
+         * The error of the write or null if it succeeded.
+         */
+        private volatile RuntimeException error;
+
+        /**
+         * True if the request of this write returned.
+         */
+        private boolean done;
+
+        /**
+         * Creates a new pending write.
+         *
+         * @param clientHandle The client handle of the item.
+         * @param itemAddress The address of the item.
+         * @param value The value to write.
+         */
+        private PendingWrite(final K clientHandle, final String itemAddress,
+                final Object value) {
+            this.clientHandle = clientHandle;
+            this.itemAddress = itemAddress;
+            this.value = value;
+        }
+
+        /**
+         * @return The client handle of the item.
+         */
+        public K getClientHandle() {
+            return clientHandle;
+        }
+
+        /**
+         * @return The address of the item.
+         */
+        public String getItemAddress() {
+            return itemAddress;
+        }
+
+        /**
+         * @return The value to write.
+         */
+        public Object getValue() {
+            return value;
+        }
+
+        /**
+         * @return The error of the write or null if it succeeded.
+         */
+        public RuntimeException getError() {
+            return error;
+        }
+
+        /**
+         * @param error The error of the write.
+         */
+        public void setError(final RuntimeException error) {
+            this.error = error;
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package cern.c2mon.daq.opcua.connection.common;
 
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 
 import cern.c2mon.daq.opcua.connection.common.impl.OPCCommunicationException;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCCriticalException;
@@ -154,12 +155,15 @@ public interface IOPCEndpoint {
     
     /**
      * Executes a command based on the information of the provided
-     * SourceCommandTagValue.
+     * SourceCommandTagValue. Returns once the command value is written.
+     * The reset write of a pulse command is done later.
      * 
      * @param hardwareAddress The properties of the command.
      * @param command The value of the command.
+     * @return Future which completes when all writes of the command are
+     * done. It fails if the reset write of a pulse command fails.
      */
-    void executeCommand(final OPCHardwareAddress hardwareAddress,
+    CompletableFuture<Void> executeCommand(final OPCHardwareAddress hardwareAddress,
             SourceCommandTagValue command);
     
     /**
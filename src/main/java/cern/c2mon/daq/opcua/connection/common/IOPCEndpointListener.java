@@ -35,6 +35,34 @@ public interface IOPCEndpointListener {
      */
     void onNewTagValue(final ISourceDataTag dataTag, long timestamp,
             final Object value);
+
+    /**
+     * Called when a value of a Long tag changes. Endpoints which have the
+     * value as primitive use this method so listeners which do not need the
+     * object (e.g. because the value is filtered) can avoid boxing. The
+     * default implementation boxes the value.
+     * 
+     * @param dataTag The tag whose value changed.
+     * @param timestamp The timestamp when the value was updated.
+     * @param value The new value.
+     */
+    default void onNewTagValue(final ISourceDataTag dataTag, long timestamp,
+            final long value) {
+        onNewTagValue(dataTag, timestamp, (Object) Long.valueOf(value));
+    }
+
+    /**
+     * Called when a value of a Double tag changes. See
+     * {@link #onNewTagValue(ISourceDataTag, long, long)}.
+     * 
+     * @param dataTag The tag whose value changed.
+     * @param timestamp The timestamp when the value was updated.
+     * @param value The new value.
+     */
+    default void onNewTagValue(final ISourceDataTag dataTag, long timestamp,
+            final double value) {
+        onNewTagValue(dataTag, timestamp, (Object) Double.valueOf(value));
+    }
     
     /**
      * Called in case an invalid tag causes an exception.
@@ -0,0 +1,361 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs commands on a small pool. Commands for the same item run one after
+ * the other in the order they were submitted. Commands for different items
+ * run concurrently. The number of queued commands is bounded and every
+ * caller waits at most the command timeout for its command. A command
+ * which timed out before it started is not run anymore. A running command
+ * is not interrupted, the caller is told that its outcome is unknown.
+ * <p>
+ * The latency from submission to completion is recorded per command tag
+ * for all commands which did not time out.
+ */
+public class CommandExecutor {
+
+    /**
+     * logger of this class.
+     */
+    private final static Logger logger = LoggerFactory.getLogger(CommandExecutor.class);
+
+    /**
+     * The pool running the commands.
+     */
+    private final ExecutorService pool;
+
+    /**
+     * Maximum number of queued and running commands.
+     */
+    private final int maxQueuedCommands;
+
+    /**
+     * Time in milliseconds a caller waits for its command.
+     */
+    private final long commandTimeout;
+
+    /**
+     * Number of queued and running commands.
+     */
+    private final AtomicInteger queuedCommands = new AtomicInteger();
+
+    /**
+     * The command queues by item.
+     */
+    private final ConcurrentHashMap<Object, ItemQueue> queues =
+        new ConcurrentHashMap<Object, ItemQueue>();
+
+    /**
+     * The latency statistics by command tag id.
+     */
+    private final ConcurrentHashMap<Long, CommandStatistics> statistics =
+        new ConcurrentHashMap<Long, CommandStatistics>();
+
+    /**
+     * Creates a new command executor.
+     *
+     * @param poolSize The number of threads running commands.
+     * @param maxQueuedCommands The maximum number of queued and running
+     * commands. Further commands are rejected.
+     * @param commandTimeout Time in milliseconds a caller waits for its
+     * command.
+     */
+    public CommandExecutor(final int poolSize, final int maxQueuedCommands,
+            final long commandTimeout) {
+        this.maxQueuedCommands = maxQueuedCommands;
+        this.commandTimeout = commandTimeout;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                        "opc-command-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Runs a command after all commands submitted before for the same item
+     * and waits for it.
+     *
+     * @param item The item the command targets, e.g. its OPC item name.
+     * @param commandTagId The id of the command tag.
+     * @param command The command to run.
+     * @throws OPCCommunicationException Thrown if the queue is full or the
+     * command timed out.
+     * @throws RuntimeException The exception of the command.
+     */
+    public void execute(final Object item, final long commandTagId,
+            final Runnable command) {
+        if (queuedCommands.incrementAndGet() > maxQueuedCommands) {
+            queuedCommands.decrementAndGet();
+            throw new OPCCommunicationException("Command queue full ("
+                    + maxQueuedCommands + " commands). Command " + commandTagId
+                    + " rejected.");
+        }
+        long start = System.nanoTime();
+        // claimed either by the pool to run the command or by a timeout
+        // to drop it, so a timeout knows if the command was sent
+        final AtomicBoolean claimed = new AtomicBoolean();
+        FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                if (claimed.compareAndSet(false, true)) {
+                    command.run();
+                }
+            }
+        }, null);
+        ItemQueue queue = queues.get(item);
+        if (queue == null) {
+            queue = new ItemQueue(item);
+            ItemQueue existing = queues.putIfAbsent(item, queue);
+            if (existing != null) {
+                queue = existing;
+            }
+        }
+        queue.add(task);
+        try {
+            task.get(commandTimeout, TimeUnit.MILLISECONDS);
+            getStatistics(commandTagId).add(System.nanoTime() - start);
+        } catch (TimeoutException e) {
+            if (claimed.compareAndSet(false, true)) {
+                // skipped by its queue
+                task.cancel(false);
+                throw new OPCCommunicationException("Command " + commandTagId
+                        + " did not start within " + commandTimeout
+                        + "ms and was not sent.");
+            }
+            // a running command is not interrupted, this could leave the
+            // connection of the endpoint in an undefined state
+            throw new OPCCommunicationException("Command " + commandTagId
+                    + " did not complete within " + commandTimeout
+                    + "ms. It may still complete, its outcome is unknown.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.cancel(false);
+            throw new OPCCriticalException("Command " + commandTagId + " interrupted.");
+        } catch (ExecutionException e) {
+            getStatistics(commandTagId).add(System.nanoTime() - start);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new OPCCommunicationException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the latency statistics of all command tags.
+     *
+     * @return Map of command tag ids to their statistics.
+     */
+    public Map<Long, CommandStatistics> getStatistics() {
+        return new HashMap<Long, CommandStatistics>(statistics);
+    }
+
+    /**
+     * Returns the number of queued and running commands.
+     *
+     * @return The number of queued and running commands.
+     */
+    public int getQueuedCommands() {
+        return queuedCommands.get();
+    }
+
+    /**
+     * Stops the pool. Queued commands are still run.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Returns the statistics of a command tag and creates them if
+     * necessary.
+     *
+     * @param commandTagId The id of the command tag.
+     * @return The statistics of the command tag.
+     */
+    private CommandStatistics getStatistics(final long commandTagId) {
+        CommandStatistics commandStatistics = statistics.get(commandTagId);
+        if (commandStatistics == null) {
+            commandStatistics = new CommandStatistics();
+            CommandStatistics existing = statistics.putIfAbsent(commandTagId, commandStatistics);
+            if (existing != null) {
+                commandStatistics = existing;
+            }
+        }
+        return commandStatistics;
+    }
+
+    /**
+     * The latency statistics of a command tag. The latency is the time
+     * from the submission of a command till its completion.
+     */
+    public static final class CommandStatistics {
+
+        /**
+         * Number of completed commands.
+         */
+        private final AtomicLong count = new AtomicLong();
+
+        /**
+         * Sum of the latencies in nanoseconds.
+         */
+        private final AtomicLong totalLatency = new AtomicLong();
+
+        /**
+         * Maximum latency in nanoseconds.
+         */
+        private final AtomicLong maxLatency = new AtomicLong();
+
+        /**
+         * Latency of the last command in nanoseconds.
+         */
+        private volatile long lastLatency;
+
+        /**
+         * Adds the latency of a command.
+         *
+         * @param latency The latency in nanoseconds.
+         */
+        private void add(final long latency) {
+            count.incrementAndGet();
+            totalLatency.addAndGet(latency);
+            lastLatency = latency;
+            long max = maxLatency.get();
+            while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+                max = maxLatency.get();
+            }
+        }
+
+        /**
+         * @return The number of completed commands.
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return The average latency in milliseconds.
+         */
+        public double getAverageLatency() {
+            long currentCount = count.get();
+            return currentCount == 0 ? 0.0
+                    : totalLatency.get() / (currentCount * 1000000.0);
+        }
+
+        /**
+         * @return The maximum latency in milliseconds.
+         */
+        public double getMaxLatency() {
+            return maxLatency.get() / 1000000.0;
+        }
+
+        /**
+         * @return The latency of the last command in milliseconds.
+         */
+        public double getLastLatency() {
+            return lastLatency / 1000000.0;
+        }
+    }
+
+    /**
+     * The commands of one item. The item is scheduled on the pool while it
+     * has commands.
+     */
+    private final class ItemQueue implements Runnable {
+
+        /**
+         * The item of the commands.
+         */
+        private final Object item;
+
+        /**
+         * The queued commands.
+         */
+        private final Queue<FutureTask<Void>> tasks =
+            new ConcurrentLinkedQueue<FutureTask<Void>>();
+
+        /**
+         * The number of queued and running commands.
+         */
+        private final AtomicInteger depth = new AtomicInteger();
+
+        /**
+         * Creates a new item queue.
+         *
+         * @param item The item of the commands.
+         */
+        private ItemQueue(final Object item) {
+            this.item = item;
+        }
+
+        /**
+         * Adds a command and schedules the item if it was idle.
+         *
+         * @param task The command to add.
+         */
+        private void add(final FutureTask<Void> task) {
+            tasks.add(task);
+            if (depth.incrementAndGet() == 1) {
+                pool.execute(this);
+            }
+        }
+
+        /**
+         * Runs the next command of this item and reschedules the item if
+         * it has more commands. Cancelled commands are skipped but count as
+         * queued till then.
+         */
+        @Override
+        public void run() {
+            FutureTask<Void> task = tasks.poll();
+            try {
+                task.run();
+            } catch (Throwable e) {
+                logger.error("Error running command for item " + item, e);
+            }
+            queuedCommands.decrementAndGet();
+            if (depth.decrementAndGet() > 0) {
+                // let the other items run
+                pool.execute(this);
+            }
+        }
+    }
+}
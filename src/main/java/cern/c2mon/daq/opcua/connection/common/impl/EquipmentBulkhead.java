@@ -0,0 +1,475 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the share of one equipment of a pool which is shared by all
+ * equipments of the DAQ. Every task has a key, e.g. the OPC item or the
+ * poll it belongs to. The keys are hashed onto a fixed number of lanes, so
+ * the bulkhead does not grow with the number of keys. Tasks of one lane
+ * run one after the other in the order they were submitted, so tasks with
+ * the same key keep their order. Tasks of different lanes run on at most a
+ * fixed number of pool threads at a time.
+ * <p>
+ * The number of queued tasks of the equipment is bounded. If the quota is
+ * used up {@link #execute(Object, Runnable)} lets the submitting thread
+ * wait for a free place, which slows down the source of the burst. If
+ * there is still no place after the maximum block time the task is dropped
+ * and counted. This may only be used by threads which belong to the
+ * equipment. Threads shared with other equipments use
+ * {@link #tryExecute(Object, Runnable)}, which never waits. A task never
+ * runs on the submitting thread and never overtakes a queued task of its
+ * key.
+ * <p>
+ * The number of dropped and rejected tasks, the time the submitting
+ * threads were blocked and the time the tasks waited for a pool thread
+ * are recorded.
+ */
+public class EquipmentBulkhead {
+
+    /**
+     * Maximum number of tasks of one lane run before the next lane gets its
+     * turn.
+     */
+    private static final int MAX_TASKS_PER_LANE = 16;
+
+    /**
+     * Maximum number of tasks a pool thread runs before it gives the
+     * thread back to the pool.
+     */
+    private static final int MAX_TASKS_PER_TURN = 64;
+
+    /**
+     * Number of lanes the keys are hashed onto.
+     */
+    private static final int LANES = 64;
+
+    /**
+     * logger of this class.
+     */
+    private final static Logger logger = LoggerFactory.getLogger(EquipmentBulkhead.class);
+
+    /**
+     * The shared pool.
+     */
+    private final Executor pool;
+
+    /**
+     * Maximum number of pool threads running tasks of this equipment.
+     */
+    private final int maxConcurrency;
+
+    /**
+     * Maximum number of queued tasks of this equipment.
+     */
+    private final int maxQueued;
+
+    /**
+     * Maximum time in milliseconds a submitting thread waits for a free
+     * place in the queue.
+     */
+    private final long maxBlockTime;
+
+    /**
+     * The task queues of the lanes.
+     */
+    private final LaneQueue[] lanes = new LaneQueue[LANES];
+
+    /**
+     * The lanes with queued tasks which are not run by a pool thread at the
+     * moment. A lane is at most once in here.
+     */
+    private final Queue<LaneQueue> readyLanes = new ConcurrentLinkedQueue<LaneQueue>();
+
+    /**
+     * The number of queued tasks.
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * The number of threads waiting for a free place in the queue.
+     */
+    private final AtomicInteger blockedThreads = new AtomicInteger();
+
+    /**
+     * The number of pool threads working for this equipment.
+     */
+    private final AtomicInteger workers = new AtomicInteger();
+
+    /**
+     * The number of tasks run by the pool.
+     */
+    private final AtomicLong executedCount = new AtomicLong();
+
+    /**
+     * The number of tasks dropped because the queue stayed full.
+     */
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * The number of tasks rejected by {@link #tryExecute(Object, Runnable)}
+     * because the queue was full.
+     */
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Sum of the times submitting threads waited for a free place in
+     * nanoseconds.
+     */
+    private final AtomicLong totalBlockTime = new AtomicLong();
+
+    /**
+     * Sum of the times the tasks waited in the queue in nanoseconds.
+     */
+    private final AtomicLong totalWait = new AtomicLong();
+
+    /**
+     * Maximum time a task waited in the queue in nanoseconds.
+     */
+    private final AtomicLong maxWait = new AtomicLong();
+
+    /**
+     * Runs the queued tasks on a pool thread.
+     */
+    private final Runnable worker = new Runnable() {
+        @Override
+        public void run() {
+            work();
+        }
+    };
+
+    /**
+     * Creates a new bulkhead.
+     *
+     * @param pool The pool shared by all equipments.
+     * @param maxConcurrency Maximum number of pool threads running tasks of
+     * this equipment at the same time.
+     * @param maxQueued Maximum number of queued tasks.
+     * @param maxBlockTime Maximum time in milliseconds a submitting thread
+     * waits for a free place in the queue before its task is dropped.
+     */
+    public EquipmentBulkhead(final Executor pool, final int maxConcurrency,
+            final int maxQueued, final long maxBlockTime) {
+        this.pool = pool;
+        this.maxConcurrency = maxConcurrency;
+        this.maxQueued = maxQueued;
+        this.maxBlockTime = maxBlockTime;
+        for (int i = 0; i < LANES; i++) {
+            lanes[i] = new LaneQueue();
+        }
+    }
+
+    /**
+     * Queues a task after all queued tasks of its key. If the queue is full
+     * the calling thread waits up to the maximum block time for a free
+     * place. Only to be called by threads of the equipment.
+     *
+     * @param key The key of the task. Tasks with equal keys run in order.
+     * @param task The task to run.
+     * @return False if the task was dropped because the queue stayed full.
+     */
+    public boolean execute(final Object key, final Runnable task) {
+        if (!reservePlace()) {
+            long dropped = droppedCount.incrementAndGet();
+            if (dropped == 1 || dropped % 1000 == 0) {
+                logger.warn("Queue quota of " + maxQueued + " tasks used up for "
+                        + maxBlockTime + " ms. " + dropped + " tasks dropped so far.");
+            }
+            return false;
+        }
+        enqueue(key, task);
+        return true;
+    }
+
+    /**
+     * Queues a task after all queued tasks of its key if there is a free
+     * place. Never waits, so it can be called by threads shared with other
+     * equipments. The caller has to keep a rejected task and submit it
+     * later, e.g. conflated with newer values.
+     *
+     * @param key The key of the task. Tasks with equal keys run in order.
+     * @param task The task to run.
+     * @return False if the task was rejected because the queue was full.
+     */
+    public boolean tryExecute(final Object key, final Runnable task) {
+        if (!tryReservePlace()) {
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+        enqueue(key, task);
+        return true;
+    }
+
+    /**
+     * Returns the number of tasks run by the pool.
+     *
+     * @return The number of executed tasks.
+     */
+    public long getExecutedCount() {
+        return executedCount.get();
+    }
+
+    /**
+     * Returns the number of tasks dropped because the queue stayed full.
+     *
+     * @return The number of dropped tasks.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Returns the number of tasks rejected by
+     * {@link #tryExecute(Object, Runnable)} because the queue was full.
+     *
+     * @return The number of rejected tasks.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Returns the number of queued tasks.
+     *
+     * @return The number of queued tasks.
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * @return The total time submitting threads waited for a free place in
+     * the queue in milliseconds.
+     */
+    public double getTotalBlockTime() {
+        return totalBlockTime.get() / 1000000.0;
+    }
+
+    /**
+     * @return The average time the tasks waited for a pool thread in
+     * milliseconds.
+     */
+    public double getAverageWait() {
+        long count = executedCount.get();
+        return count == 0 ? 0.0 : totalWait.get() / (count * 1000000.0);
+    }
+
+    /**
+     * @return The maximum time a task waited for a pool thread in
+     * milliseconds.
+     */
+    public double getMaxWait() {
+        return maxWait.get() / 1000000.0;
+    }
+
+    /**
+     * Adds a task to the lane of its key. A place has to be reserved.
+     *
+     * @param key The key of the task.
+     * @param task The task to run.
+     */
+    private void enqueue(final Object key, final Runnable task) {
+        LaneQueue queue = lanes[(key.hashCode() & 0x7fffffff) % LANES];
+        queue.tasks.add(new QueuedTask(task, System.nanoTime()));
+        if (queue.depth.incrementAndGet() == 1) {
+            readyLanes.add(queue);
+            startWorker();
+        }
+    }
+
+    /**
+     * Takes a place in the queue. Waits up to the maximum block time if the
+     * queue is full.
+     *
+     * @return False if no place became free in time.
+     */
+    private boolean reservePlace() {
+        if (tryReservePlace()) {
+            return true;
+        }
+        long start = System.nanoTime();
+        long deadline = start + maxBlockTime * 1000000L;
+        boolean reserved = false;
+        synchronized (blockedThreads) {
+            blockedThreads.incrementAndGet();
+            try {
+                while (!(reserved = tryReservePlace())) {
+                    long remaining = (deadline - System.nanoTime()) / 1000000L;
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    blockedThreads.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                blockedThreads.decrementAndGet();
+            }
+        }
+        totalBlockTime.addAndGet(System.nanoTime() - start);
+        return reserved;
+    }
+
+    /**
+     * Takes a place in the queue if there is one.
+     *
+     * @return True if a place was taken.
+     */
+    private boolean tryReservePlace() {
+        while (true) {
+            int current = queued.get();
+            if (current >= maxQueued) {
+                return false;
+            }
+            if (queued.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives a place in the queue back and wakes a blocked thread.
+     */
+    private void releasePlace() {
+        queued.decrementAndGet();
+        if (blockedThreads.get() > 0) {
+            synchronized (blockedThreads) {
+                blockedThreads.notify();
+            }
+        }
+    }
+
+    /**
+     * Schedules another pool thread if there are ready lanes and the
+     * concurrency limit is not reached.
+     */
+    private void startWorker() {
+        while (!readyLanes.isEmpty()) {
+            int current = workers.get();
+            if (current >= maxConcurrency) {
+                return;
+            }
+            if (workers.compareAndSet(current, current + 1)) {
+                pool.execute(worker);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs the tasks of the ready lanes on a pool thread. A lane is taken by
+     * one thread at a time so its tasks keep their order. After some tasks
+     * the thread is given back to the pool so the other equipments get
+     * their turn.
+     */
+    private void work() {
+        int run = 0;
+        while (run < MAX_TASKS_PER_TURN) {
+            LaneQueue queue = readyLanes.poll();
+            if (queue == null) {
+                workers.decrementAndGet();
+                // a lane which became ready after the poll may have seen all
+                // workers busy
+                startWorker();
+                return;
+            }
+            boolean drained = false;
+            for (int i = 0; i < MAX_TASKS_PER_LANE && !drained; i++) {
+                QueuedTask task = queue.tasks.poll();
+                releasePlace();
+                recordWait(System.nanoTime() - task.queueTime);
+                try {
+                    task.task.run();
+                } catch (Throwable e) {
+                    logger.error("Error running task.", e);
+                }
+                executedCount.incrementAndGet();
+                run++;
+                drained = queue.depth.decrementAndGet() == 0;
+            }
+            if (!drained) {
+                readyLanes.add(queue);
+            }
+        }
+        pool.execute(worker);
+    }
+
+    /**
+     * Adds the time a task waited.
+     *
+     * @param wait The time in nanoseconds.
+     */
+    private void recordWait(final long wait) {
+        totalWait.addAndGet(wait);
+        long max = maxWait.get();
+        while (wait > max && !maxWait.compareAndSet(max, wait)) {
+            max = maxWait.get();
+        }
+    }
+
+    /**
+     * The queued tasks of one lane.
+     */
+    private static final class LaneQueue {
+
+        /**
+         * The queued tasks.
+         */
+        private final Queue<QueuedTask> tasks = new ConcurrentLinkedQueue<QueuedTask>();
+
+        /**
+         * The number of queued and running tasks.
+         */
+        private final AtomicInteger depth = new AtomicInteger();
+    }
+
+    /**
+     * A task with the time it was queued.
+     */
+    private static final class QueuedTask {
+
+        /**
+         * The task.
+         */
+        private final Runnable task;
+
+        /**
+         * The time the task was queued in nanoseconds.
+         */
+        private final long queueTime;
+
+        /**
+         * Creates a new queued task.
+         *
+         * @param task The task.
+         * @param queueTime The time the task was queued in nanoseconds.
+         */
+        private QueuedTask(final Runnable task, final long queueTime) {
+            this.task = task;
+            this.queueTime = queueTime;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with buckets of powers of two microseconds. Bucket
+ * 0 counts latencies below 1 microsecond, bucket i latencies from 2^(i-1)
+ * up to 2^i microseconds. The last bucket counts everything above. Adding a
+ * latency does not allocate and does not lock.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * The number of buckets. The last regular bucket ends at about 18
+     * minutes.
+     */
+    public static final int BUCKETS = 32;
+
+    /**
+     * The counts per bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Adds a latency.
+     *
+     * @param latency The latency in nanoseconds.
+     */
+    public void record(final long latency) {
+        long micros = latency / 1000L;
+        int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+    }
+
+    /**
+     * Returns the count of a bucket.
+     *
+     * @param bucket The index of the bucket.
+     * @return The number of latencies in the bucket.
+     */
+    public long getCount(final int bucket) {
+        return counts.get(bucket);
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     *
+     * @return The total count.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the upper bound of the bucket which contains the given
+     * percentile.
+     *
+     * @param percentile The percentile between 0 and 100.
+     * @return The upper bound of the bucket in microseconds, 0 if nothing
+     * was recorded or Long.MAX_VALUE for the last bucket.
+     */
+    public long getPercentile(final double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(total * percentile / 100.0));
+        long count = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            count += snapshot[i];
+            if (count >= rank) {
+                return 1L << i;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
@@ -19,11 +19,20 @@ package cern.c2mon.daq.opcua.connection.common.impl;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,6 +51,14 @@ import cern.c2mon.shared.daq.command.SourceCommandTagValue;
 
 /**
  * The abstract OPC endpoint.
+ * <p>
+ * The endpoint does not lock its monitor. Structural changes (initialize,
+ * reset and adding or removing data tags) take the write lock of the
+ * structure lock. Refreshes, commands, writes and status checks take its
+ * read lock and can run concurrently. The state is an atomic field and the
+ * lookups of the data path use concurrent maps, so value updates and state
+ * queries never block. Implementations have to make their on... methods
+ * safe for concurrent calls of the read lock operations.
  * 
  * @author Andreas Lang
  *
@@ -55,6 +72,20 @@ public abstract class OPCEndpoint<ID extends ItemDefinition< ? > >
      * logger of this class.
      */
     private final static Logger LOG = LoggerFactory.getLogger(OPCEndpoint.class);
+
+    /**
+     * Timer for the reset writes of pulse commands. It is shared by all
+     * endpoints.
+     */
+    private static final ScheduledExecutorService PULSE_TIMER =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(runnable, "opc-pulse-reset");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
   
     /**
      * Collection of endpoint listeners registered at this endpoint.
@@ -63,15 +94,25 @@ public abstract class OPCEndpoint<ID extends ItemDefinition< ? > >
         new ConcurrentLinkedQueue<IOPCEndpointListener>();
     
     /**
-     * Maps item defintion ids to data tags.
+     * Maps item defintion ids to the data tags sharing the definition and
+     * the value converters of these tags. The arrays are replaced, never
+     * changed, so notifications can iterate them without lock.
+     */
+    private final Map<Long, TagBinding[]> itemDefintionIdsToDataTags =
+        new ConcurrentHashMap<Long, TagBinding[]>();
+
+    /**
+     * The subscribed item definitions by group and addresses. Tags with the
+     * same addresses in the same group share one definition.
      */
-    private final Map<Long, ISourceDataTag> itemDefintionIdsToDataTags =
-        new ConcurrentHashMap<Long, ISourceDataTag>();
+    private final Map<DefinitionKey, ID> sharedDefinitions =
+        new ConcurrentHashMap<DefinitionKey, ID>();
     
     /**
      * Maps item definiton ids to item definitions.
      */
-    private final Map<Long, ID> tagIdsToItemDefinitions = new HashMap<Long, ID>();
+    private final Map<Long, ID> tagIdsToItemDefinitions =
+        new ConcurrentHashMap<Long, ID>();
     
     /**
      * The Item definition factory.
@@ -86,7 +127,61 @@ public abstract class OPCEndpoint<ID extends ItemDefinition< ? > >
     /**
      * The current state of the endpoint.
      */
-    private STATE currentState = STATE.NOT_INITIALIZED;
+    private final AtomicReference<STATE> currentState =
+        new AtomicReference<STATE>(STATE.NOT_INITIALIZED);
+
+    /**
+     * Write lock for structural changes, read lock for operations which
+     * need a stable endpoint.
+     */
+    private final ReadWriteLock structureLock = new ReentrantReadWriteLock();
+
+    /**
+     * The pulse commands waiting for their reset write by item definition
+     * id.
+     */
+    private final Map<Long, PulseCommand> pendingPulses =
+        new ConcurrentHashMap<Long, PulseCommand>();
+
+    /**
+     * The locks serializing the pulse and reset writes by item definition
+     * id. They are taken after the read lock of the structure lock. A lock
+     * is removed with its command tag or when the endpoint is reset, both
+     * with the write lock, so nobody holds it then.
+     */
+    private final ConcurrentHashMap<Long, Object> pulseLocks =
+        new ConcurrentHashMap<Long, Object>();
+
+    /**
+     * Time in milliseconds without update after which the primary address
+     * of a redundant item counts as silent.
+     */
+    private static final long REDUNDANT_SILENCE_TIMEOUT = 30000L;
+
+    /**
+     * Decides which address of item definitions with a redundant address
+     * is reported.
+     */
+    private final RedundantAddressArbiter redundantAddressArbiter =
+        new RedundantAddressArbiter(REDUNDANT_SILENCE_TIMEOUT);
+
+    /**
+     * Forwards the updates chosen by the arbiter to the listeners.
+     */
+    private final RedundantAddressArbiter.Listener arbiterListener =
+        new RedundantAddressArbiter.Listener() {
+            @Override
+            public void onArbitratedValue(final long definitionId,
+                    final long timestamp, final Object value) {
+                fireValueChange(definitionId, timestamp, value);
+            }
+
+            @Override
+            public void onArbitratedError(final long definitionId,
+                    final Throwable cause) {
+                fireItemError(definitionId, cause);
+            }
+        };
     
     /**
      * logger of this class.
@@ -113,13 +208,13 @@ public abstract class OPCEndpoint<ID extends ItemDefinition< ? > >
      * @return The current state of the endpoint.
      */
     @Override
-    public synchronized STATE getState() {
-        return currentState;
+    public STATE getState() {
+        return currentState.get();
     }
     
     @Override
-    public synchronized final void setStateOperational() {
-      currentState = STATE.OPERATIONAL;
+    public final void setStateOperational() {
+      currentState.set(STATE.OPERATIONAL);
     }
 
     /**
@@ -151,13 +246,23 @@ public abstract class OPCEndpoint<ID extends ItemDefinition< ? > >
     }
     
     /**
-     * Removes he command tag from this endpoint.
+     * Removes he command tag from this endpoint. A pending pulse of the
+     * command is reset immediately.
      * 
      * @param commandTag The command tag to remove.
      */
     @Override
     public void removeCommandTag(final ISourceCommandTag commandTag) {
-        tagIdsToItemDefinitions.remove(commandTag.getId());
+        structureLock.writeLock().lock();
+        try {
+            ID definition = tagIdsToItemDefinitions.remove(commandTag.getId());
+            if (definition != null) {
+                resetPendingPulse(definition.getId());
+                pulseLocks.remove(definition.getId());
+            }
+        } finally {
+            structureLock.writeLock().unlock();
+        }
     }
 
     /**
@@ -166,17 +271,22 @@ public abstract class OPCEndpoint<ID extends ItemDefinition< ? > >
      * @param dataTags The tags to add.
      */
     @Override
-    public synchronized void addDataTags(
+    public void addDataTags(
             final Collection<ISourceDataTag> dataTags) {
-        requireState(STATE.INITIALIZED);
-        final Collection<SubscriptionGroup<ID>> subscriptionGroups = 
-            new HashSet<SubscriptionGroup<ID>>();
-        for (ISourceDataTag dataTag : dataTags) {
-            SubscriptionGroup<ID> subscriptionGroup = processTag(dataTag);
-            if (subscriptionGroup != null)
-                subscriptionGroups.add(subscriptionGroup);
+        structureLock.writeLock().lock();
+        try {
+            requireState(STATE.INITIALIZED);
+            final Collection<SubscriptionGroup<ID>> subscriptionGroups = 
+                new HashSet<SubscriptionGroup<ID>>();
+            for (ISourceDataTag dataTag : dataTags) {
+                SubscriptionGroup<ID> subscriptionGroup = processTag(dataTag);
+                if (subscriptionGroup != null)
+                    subscriptionGroups.add(subscriptionGroup);
+            }
+            onSubscribe(subscriptionGroups);
+        } finally {
+            structureLock.writeLock().unlock();
         }
-        onSubscribe(subscriptionGroups);
     }
 
     /**
@@ -193,9 +303,25 @@ public abstract class OPCEndpoint<ID extends ItemDefinition< ? > >
         if (definition != null) {
             subscriptionGroup = 
                 groupProvider.getOrCreateGroup(dataTag);
+            DefinitionKey key = new DefinitionKey(subscriptionGroup, definition);
+            ID sharedDefinition = sharedDefinitions.get(key);
+            if (sharedDefinition != null) {
+                // the item is already subscribed, only add the tag
+                addSharingTag(sharedDefinition.getId(), dataTag);
+                tagIdsToItemDefinitions.put(dataTag.getId(), sharedDefinition);
+                logger.debug("processTag() - data tag " + dataTag.getId()
+                        + " shares item definition " + sharedDefinition.getId());
+                return null;
+            }
+            sharedDefinitions.put(key, definition);
             subscriptionGroup.addDefintion(definition);
-            itemDefintionIdsToDataTags.put(definition.getId(), dataTag);
+            itemDefintionIdsToDataTags.put(definition.getId(),
+                    new TagBinding[] {new TagBinding(dataTag)});
             tagIdsToItemDefinitions.put(dataTag.getId(), definition);
+            if (definition.hasRedundantAddress()) {
+                redundantAddressArbiter.register(definition.getId(),
+                        System.currentTimeMillis());
+            }
         }
         else {
           logger.warn("processTag() - itemDefinitionFactory returned no item definition -> No subscription to data tag " + dataTag.getId() + " possible!");
@@ -209,60 +335,190 @@ public abstract class OPCEndpoint<ID extends ItemDefinition< ? > >
      * @param sourceDataTag The data tag to add.
      */
     @Override
-    public synchronized void addDataTag(final ISourceDataTag sourceDataTag) {
-    	requireState(STATE.INITIALIZED, STATE.OPERATIONAL);
-        SubscriptionGroup<ID> subscriptionGroup = processTag(sourceDataTag);
-        onSubscribe(subscriptionGroup);
+    public void addDataTag(final ISourceDataTag sourceDataTag) {
+        structureLock.writeLock().lock();
+        try {
+            requireState(STATE.INITIALIZED, STATE.OPERATIONAL);
+            SubscriptionGroup<ID> subscriptionGroup = processTag(sourceDataTag);
+            if (subscriptionGroup != null) {
+                onSubscribe(subscriptionGroup);
+            }
+        } finally {
+            structureLock.writeLock().unlock();
+        }
     }
     
     /**
-     * Called when a data tag should be removed from this endpoint.
+     * Called when a data tag should be removed from this endpoint. The item
+     * is only removed from the server when no other tag shares it. If the
+     * tag whose id the shared definition carries is removed, the item is
+     * subscribed again under the id of one of the remaining tags.
      * 
      * @param dataTag The data tag to remove.
      */
     @Override
-    public synchronized void removeDataTag(final ISourceDataTag dataTag) {
-    	requireState(STATE.OPERATIONAL);
-        ID definition = tagIdsToItemDefinitions.remove(dataTag.getId());
-        itemDefintionIdsToDataTags.remove(definition.getId());
-        if (definition != null) {
-            SubscriptionGroup<ID> subscriptionGroup = 
-                groupProvider.getOrCreateGroup(dataTag);
-            subscriptionGroup.removeDefintion(definition);
-            onRemove(subscriptionGroup, definition);
+    public void removeDataTag(final ISourceDataTag dataTag) {
+        structureLock.writeLock().lock();
+        try {
+            requireState(STATE.OPERATIONAL);
+            ID definition = tagIdsToItemDefinitions.remove(dataTag.getId());
+            if (definition != null) {
+                TagBinding[] remainingTags =
+                    removeSharingTag(definition.getId(), dataTag.getId());
+                if (remainingTags.length > 0 && definition.getId() != dataTag.getId()) {
+                    return;
+                }
+                itemDefintionIdsToDataTags.remove(definition.getId());
+                redundantAddressArbiter.unregister(definition.getId());
+                SubscriptionGroup<ID> subscriptionGroup = 
+                    groupProvider.getOrCreateGroup(dataTag);
+                sharedDefinitions.remove(new DefinitionKey(subscriptionGroup, definition));
+                subscriptionGroup.removeDefintion(definition);
+                onRemove(subscriptionGroup, definition);
+                for (TagBinding remainingTag : remainingTags) {
+                    tagIdsToItemDefinitions.remove(remainingTag.dataTag.getId());
+                    SubscriptionGroup<ID> group = processTag(remainingTag.dataTag);
+                    if (group != null) {
+                        onSubscribe(group);
+                    }
+                }
+            }
+        } finally {
+            structureLock.writeLock().unlock();
         }
     }
+
+    /**
+     * Subscribes a group again after its subscription failed. It runs under
+     * the write lock like the other structural changes and is skipped if
+     * the endpoint was reset in the meantime.
+     * 
+     * @param subscriptionGroup The group to subscribe again.
+     */
+    public void resubscribe(final SubscriptionGroup<ID> subscriptionGroup) {
+        structureLock.writeLock().lock();
+        try {
+            if (currentState.get() == STATE.NOT_INITIALIZED) {
+                LOG.debug("Endpoint reset, subscription not restarted.");
+                return;
+            }
+            onSubscribe(subscriptionGroup);
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a tag to the tags sharing a definition.
+     * 
+     * @param definitionId The id of the item definition.
+     * @param dataTag The tag to add.
+     */
+    private void addSharingTag(final long definitionId, final ISourceDataTag dataTag) {
+        TagBinding[] tags = itemDefintionIdsToDataTags.get(definitionId);
+        TagBinding[] newTags = Arrays.copyOf(tags, tags.length + 1);
+        newTags[tags.length] = new TagBinding(dataTag);
+        itemDefintionIdsToDataTags.put(definitionId, newTags);
+    }
+
+    /**
+     * Removes a tag from the tags sharing a definition.
+     * 
+     * @param definitionId The id of the item definition.
+     * @param tagId The id of the tag to remove.
+     * @return The tags which still share the definition.
+     */
+    private TagBinding[] removeSharingTag(final long definitionId, final long tagId) {
+        TagBinding[] tags = itemDefintionIdsToDataTags.get(definitionId);
+        if (tags == null) {
+            return new TagBinding[0];
+        }
+        TagBinding[] remainingTags = new TagBinding[tags.length];
+        int count = 0;
+        for (TagBinding tag : tags) {
+            if (tag.dataTag.getId() != tagId) {
+                remainingTags[count++] = tag;
+            }
+        }
+        remainingTags = Arrays.copyOf(remainingTags, count);
+        itemDefintionIdsToDataTags.put(definitionId, remainingTags);
+        return remainingTags;
+    }
+
+    /**
+     * Returns the number of item definitions subscribed for the data tags.
+     * Tags with the same addresses and deadbands share one definition.
+     * 
+     * @return The number of item definitions.
+     */
+    public int getItemDefinitionCount() {
+        return sharedDefinitions.size();
+    }
+
     /**
      * Refreshes the values for the provided data tags.
      * 
      * @param dataTags The data tags whose values shall be refreshed.
      */
     @Override
-    public synchronized void refreshDataTags(
+    public void refreshDataTags(
             final Collection<ISourceDataTag> dataTags) {
-        requireState(STATE.OPERATIONAL);
-        final Collection<ID> itemDefintions = new ArrayList<ID>(dataTags.size());
-        for (ISourceDataTag dataTag : dataTags) {
-            ID itemDefinition = tagIdsToItemDefinitions.get(dataTag.getId());
-            if (itemDefinition != null)
-                itemDefintions.add(itemDefinition);
+        structureLock.readLock().lock();
+        try {
+            requireState(STATE.OPERATIONAL);
+            // tags sharing a definition refresh it only once
+            final Map<Long, ID> itemDefintions = new LinkedHashMap<Long, ID>();
+            for (ISourceDataTag dataTag : dataTags) {
+                ID itemDefinition = tagIdsToItemDefinitions.get(dataTag.getId());
+                if (itemDefinition != null)
+                    itemDefintions.put(itemDefinition.getId(), itemDefinition);
+            }
+            onRefresh(new ArrayList<ID>(itemDefintions.values()));
+        } finally {
+            structureLock.readLock().unlock();
         }
-        onRefresh(itemDefintions);
     }
 
     /**
-     * Executes a command.
+     * Executes a command. A pulse command returns after the first write,
+     * the reset write is done by a timer. Commands only take the read lock
+     * so commands for different items can run concurrently. Commands for
+     * the same item have to be serialized by the caller (see
+     * {@link CommandExecutor}).
      * 
      * @param hardwareAddress The configuration of the command to execute.
      * @param command The command to execute.
+     * @return Future which completes when all writes of the command are
+     * done.
      */
     @Override
-    public synchronized void executeCommand(
+    public CompletableFuture<Void> executeCommand(
+            final OPCHardwareAddress hardwareAddress,
+            final SourceCommandTagValue command) {
+        structureLock.readLock().lock();
+        try {
+            requireState(STATE.OPERATIONAL);
+            return executeCommand(
+                    tagIdsToItemDefinitions.get(command.getId()),
+                    hardwareAddress, command);
+        } finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Executes a command for an item definition.
+     * 
+     * @param itemDefintion The item definition of the command or null if
+     * the command is unknown.
+     * @param hardwareAddress The configuration of the command to execute.
+     * @param command The command to execute.
+     * @return Future which completes when all writes of the command are
+     * done.
+     */
+    private CompletableFuture<Void> executeCommand(final ID itemDefintion,
             final OPCHardwareAddress hardwareAddress,
             final SourceCommandTagValue command) {
-        requireState(STATE.OPERATIONAL);
-        ID itemDefintion = 
-            tagIdsToItemDefinitions.get(command.getId());
         if (itemDefintion != null) {
             Object value = TypeConverter.cast(
                     command.getValue().toString(), command.getDataType());
@@ -271,15 +527,15 @@ public abstract class OPCEndpoint<ID extends ItemDefinition< ? > >
                 case METHOD:
                     onCallMethod(itemDefintion, 
                             command.getValue());
-                    break;
+                    return CompletableFuture.completedFuture(null);
                 case CLASSIC:
                     int pulseLength = hardwareAddress.getCommandPulseLength();
                     if (pulseLength > 0)
-                        writeRewrite(itemDefintion, pulseLength , value);
+                        return writeRewrite(itemDefintion, pulseLength , value);
                     else {
                         onWrite(itemDefintion, value);
                     }
-                    break;
+                    return CompletableFuture.completedFuture(null);
                 default:
                     throw new OPCCriticalException("Provided command type "
                             + "is unknown.");
@@ -303,8 +559,9 @@ public abstract class OPCEndpoint<ID extends ItemDefinition< ? > >
      */
     private void requireState(STATE... requiredStates) {
       boolean hasState = false;
+      STATE state = currentState.get();
       for (STATE requiredState : requiredStates) {
-        if (currentState == requiredState) {
+        if (state == requiredState) {
           hasState = true;
         }
       } 
@@ -343,35 +600,49 @@ public abstract class OPCEndpoint<ID extends ItemDefinition< ? > >
      * @param address The address to use to initialize the endpoint.
      */
     @Override
-    public synchronized void initialize(final AbstractOPCUAAddress address) {
-        if (currentState == STATE.INITIALIZED) { 
-            reset();
+    public void initialize(final AbstractOPCUAAddress address) {
+        structureLock.writeLock().lock();
+        try {
+            if (currentState.get() == STATE.INITIALIZED) { 
+                reset();
+            }
+            onInit(address);
+            currentState.set(STATE.INITIALIZED);
+        } finally {
+            structureLock.writeLock().unlock();
         }
-        onInit(address);
-        currentState = STATE.INITIALIZED;
     }
     
     /**
      * Stops and resets the endpoint completely.
      */
     @Override
-    public synchronized void reset() {
-        if (currentState != STATE.NOT_INITIALIZED) {
-            try {
-              onStop();
-            }
-            catch (Exception ex) {
-              logger.error("Exception while stopping endpoint", ex);
+    public void reset() {
+        structureLock.writeLock().lock();
+        try {
+            if (currentState.get() != STATE.NOT_INITIALIZED) {
+                resetPendingPulses();
+                try {
+                  onStop();
+                }
+                catch (Exception ex) {
+                  logger.error("Exception while stopping endpoint", ex);
+                }
+                listeners.clear();
+                itemDefintionIdsToDataTags.clear();
+                tagIdsToItemDefinitions.clear();
+                sharedDefinitions.clear();
+                redundantAddressArbiter.clear();
+                currentState.set(STATE.NOT_INITIALIZED);
             }
-            listeners.clear();
-            itemDefintionIdsToDataTags.clear();
-            tagIdsToItemDefinitions.clear();
-            currentState = STATE.NOT_INITIALIZED;
+        } finally {
+            structureLock.writeLock().unlock();
         }
     }
     
     /**
-     * Notifies all endpoint listeners about a value change.
+     * Notifies all endpoint listeners about a value change of the primary
+     * address of an item.
      * 
      * @param itemdefintionId The id of the item definition whose value changed.
      * @param timestamp The timestamp of the changed value.
@@ -380,21 +651,209 @@ public abstract class OPCEndpoint<ID extends ItemDefinition< ? > >
     public void notifyEndpointListenersValueChange(
             final long itemdefintionId,
             final long timestamp, final Object value) {
-        ISourceDataTag dataTag = itemDefintionIdsToDataTags.get(itemdefintionId);
-        if (dataTag != null) {
-          if (!listeners.isEmpty()) {
-            for (IOPCEndpointListener listener : listeners) {
-              listener.onNewTagValue(dataTag, timestamp, value);
+        notifyEndpointListenersValueChange(itemdefintionId, false, timestamp, value);
+    }
+
+    /**
+     * Notifies all endpoint listeners about a value change if the address
+     * which changed is the active address of the item.
+     * 
+     * @param itemdefintionId The id of the item definition whose value changed.
+     * @param redundant True if the value is from the redundant address.
+     * @param timestamp The timestamp of the changed value.
+     * @param value The value which changed.
+     */
+    public void notifyEndpointListenersValueChange(
+            final long itemdefintionId, final boolean redundant,
+            final long timestamp, final Object value) {
+        redundantAddressArbiter.onValue(itemdefintionId, redundant, timestamp,
+                value, System.currentTimeMillis(), arbiterListener);
+    }
+
+    /**
+     * Notifies all endpoint listeners about a change of a long value if the
+     * address which changed is the active address of the item. Long tags
+     * get the value without boxing.
+     * 
+     * @param itemdefintionId The id of the item definition whose value changed.
+     * @param redundant True if the value is from the redundant address.
+     * @param timestamp The timestamp of the changed value.
+     * @param value The value which changed.
+     */
+    public void notifyEndpointListenersValueChange(
+            final long itemdefintionId, final boolean redundant,
+            final long timestamp, final long value) {
+        if (redundantAddressArbiter.isRegistered(itemdefintionId)) {
+            // the arbiter keeps the values of both addresses as objects
+            notifyEndpointListenersValueChange(itemdefintionId, redundant,
+                    timestamp, (Object) Long.valueOf(value));
+        }
+        else if (!redundant) {
+            fireValueChange(itemdefintionId, timestamp, value);
+        }
+    }
+
+    /**
+     * Notifies all endpoint listeners about a change of a double value if
+     * the address which changed is the active address of the item. Double
+     * tags get the value without boxing.
+     * 
+     * @param itemdefintionId The id of the item definition whose value changed.
+     * @param redundant True if the value is from the redundant address.
+     * @param timestamp The timestamp of the changed value.
+     * @param value The value which changed.
+     */
+    public void notifyEndpointListenersValueChange(
+            final long itemdefintionId, final boolean redundant,
+            final long timestamp, final double value) {
+        if (redundantAddressArbiter.isRegistered(itemdefintionId)) {
+            // the arbiter keeps the values of both addresses as objects
+            notifyEndpointListenersValueChange(itemdefintionId, redundant,
+                    timestamp, (Object) Double.valueOf(value));
+        }
+        else if (!redundant) {
+            fireValueChange(itemdefintionId, timestamp, value);
+        }
+    }
+
+    /**
+     * Notifies all endpoint listeners about a change of a boolean value if
+     * the address which changed is the active address of the item. The
+     * shared Boolean instances are used so this does not allocate either.
+     * 
+     * @param itemdefintionId The id of the item definition whose value changed.
+     * @param redundant True if the value is from the redundant address.
+     * @param timestamp The timestamp of the changed value.
+     * @param value The value which changed.
+     */
+    public void notifyEndpointListenersValueChange(
+            final long itemdefintionId, final boolean redundant,
+            final long timestamp, final boolean value) {
+        notifyEndpointListenersValueChange(itemdefintionId, redundant,
+                timestamp, (Object) Boolean.valueOf(value));
+    }
+
+    /**
+     * Returns the number of switch-overs between primary and redundant
+     * addresses of items.
+     *
+     * @return The number of switch-overs.
+     */
+    public long getRedundancySwitchCount() {
+        return redundantAddressArbiter.getSwitchCount();
+    }
+
+    /**
+     * Passes a value change to all endpoint listeners for every tag sharing
+     * the item definition. The value is converted to the data type of each
+     * tag with the converter resolved when the tag was added. Numbers which
+     * a Long or Double tag takes unchanged are passed as primitives, so the
+     * boxed values of the UA and DCOM libraries use the primitive path of
+     * the listeners as well.
+     * 
+     * @param itemdefintionId The id of the item definition whose value changed.
+     * @param timestamp The timestamp of the changed value.
+     * @param value The value which changed.
+     */
+    private void fireValueChange(final long itemdefintionId,
+            final long timestamp, final Object value) {
+        TagBinding[] dataTags = itemDefintionIdsToDataTags.get(itemdefintionId);
+        if (dataTags != null) {
+          for (TagBinding dataTag : dataTags) {
+            if (!listeners.isEmpty()) {
+              if (!dataTag.converter.takesPrimitive(value)) {
+                Object convertedValue = dataTag.converter.convert(value);
+                for (IOPCEndpointListener listener : listeners) {
+                  listener.onNewTagValue(dataTag.dataTag, timestamp, convertedValue);
+                }
+              }
+              else if (dataTag.converter.getPrimitiveType() == TagValueConverter.PRIMITIVE_LONG) {
+                long longValue = ((Number) value).longValue();
+                for (IOPCEndpointListener listener : listeners) {
+                  listener.onNewTagValue(dataTag.dataTag, timestamp, longValue);
+                }
+              }
+              else {
+                double doubleValue = ((Number) value).doubleValue();
+                for (IOPCEndpointListener listener : listeners) {
+                  listener.onNewTagValue(dataTag.dataTag, timestamp, doubleValue);
+                }
+              }
+            }
+            else {
+              LOG.warn("notifyEndpointListenersValueChange() - No endpoint listeners registerd! Nobody got informed about update for datatag " + dataTag.dataTag.getId());
             }
           }
-          else {
-            LOG.warn("notifyEndpointListenersValueChange() - No endpoint listeners registerd! Nobody got informed about update for datatag " + dataTag.getId());
+        }
+    }
+    
+    /**
+     * Passes a long value change to all endpoint listeners for every tag
+     * sharing the item definition. The value is only boxed for tags which
+     * are not Long tags.
+     * 
+     * @param itemdefintionId The id of the item definition whose value changed.
+     * @param timestamp The timestamp of the changed value.
+     * @param value The value which changed.
+     */
+    private void fireValueChange(final long itemdefintionId,
+            final long timestamp, final long value) {
+        TagBinding[] dataTags = itemDefintionIdsToDataTags.get(itemdefintionId);
+        if (dataTags != null) {
+          for (TagBinding dataTag : dataTags) {
+            if (listeners.isEmpty()) {
+              LOG.warn("notifyEndpointListenersValueChange() - No endpoint listeners registerd! Nobody got informed about update for datatag " + dataTag.dataTag.getId());
+            }
+            else if (dataTag.converter.getPrimitiveType() == TagValueConverter.PRIMITIVE_LONG) {
+              for (IOPCEndpointListener listener : listeners) {
+                listener.onNewTagValue(dataTag.dataTag, timestamp, value);
+              }
+            }
+            else {
+              Object convertedValue = dataTag.converter.convert(Long.valueOf(value));
+              for (IOPCEndpointListener listener : listeners) {
+                listener.onNewTagValue(dataTag.dataTag, timestamp, convertedValue);
+              }
+            }
+          }
+        }
+    }
+
+    /**
+     * Passes a double value change to all endpoint listeners for every tag
+     * sharing the item definition. The value is only boxed for tags which
+     * are not Double tags.
+     * 
+     * @param itemdefintionId The id of the item definition whose value changed.
+     * @param timestamp The timestamp of the changed value.
+     * @param value The value which changed.
+     */
+    private void fireValueChange(final long itemdefintionId,
+            final long timestamp, final double value) {
+        TagBinding[] dataTags = itemDefintionIdsToDataTags.get(itemdefintionId);
+        if (dataTags != null) {
+          for (TagBinding dataTag : dataTags) {
+            if (listeners.isEmpty()) {
+              LOG.warn("notifyEndpointListenersValueChange() - No endpoint listeners registerd! Nobody got informed about update for datatag " + dataTag.dataTag.getId());
+            }
+            else if (dataTag.converter.getPrimitiveType() == TagValueConverter.PRIMITIVE_DOUBLE) {
+              for (IOPCEndpointListener listener : listeners) {
+                listener.onNewTagValue(dataTag.dataTag, timestamp, value);
+              }
+            }
+            else {
+              Object convertedValue = dataTag.converter.convert(Double.valueOf(value));
+              for (IOPCEndpointListener listener : listeners) {
+                listener.onNewTagValue(dataTag.dataTag, timestamp, convertedValue);
+              }
+            }
           }
         }
     }
     
     /**
-     * Notifies all endpoint listeners about an error connected to an OPCItem.
+     * Notifies all endpoint listeners about an error connected to the
+     * primary address of an OPCItem.
      * 
      * @param itemdefintionId The id of the item defintion which caused the 
      * error.
@@ -402,16 +861,45 @@ public abstract class OPCEndpoint<ID extends ItemDefinition< ? > >
      */
     public void notifyEndpointListenersItemError(
             final long itemdefintionId, final Throwable ex) {
-        
-      ISourceDataTag dataTag = itemDefintionIdsToDataTags.get(itemdefintionId);
-      if (dataTag != null) {
-        if (!listeners.isEmpty()) {
-          for (IOPCEndpointListener listener : listeners) {
-            listener.onTagInvalidException(dataTag, ex);
+        notifyEndpointListenersItemError(itemdefintionId, false, ex);
+    }
+
+    /**
+     * Notifies all endpoint listeners about an error connected to an OPCItem
+     * if the address with the error is the active address of the item.
+     * 
+     * @param itemdefintionId The id of the item defintion which caused the 
+     * error.
+     * @param redundant True if the error is from the redundant address.
+     * @param ex The exception thrown in the endpoint.
+     */
+    public void notifyEndpointListenersItemError(
+            final long itemdefintionId, final boolean redundant,
+            final Throwable ex) {
+        redundantAddressArbiter.onError(itemdefintionId, redundant, ex,
+                arbiterListener);
+    }
+
+    /**
+     * Passes an item error to all endpoint listeners for every tag sharing
+     * the item definition.
+     * 
+     * @param itemdefintionId The id of the item defintion which caused the 
+     * error.
+     * @param ex The exception thrown in the endpoint.
+     */
+    private void fireItemError(final long itemdefintionId, final Throwable ex) {
+      TagBinding[] dataTags = itemDefintionIdsToDataTags.get(itemdefintionId);
+      if (dataTags != null) {
+        for (TagBinding dataTag : dataTags) {
+          if (!listeners.isEmpty()) {
+            for (IOPCEndpointListener listener : listeners) {
+              listener.onTagInvalidException(dataTag.dataTag, ex);
+            }
+          }
+          else {
+            LOG.warn("notifyEndpointListenersItemError() - No endpoint listeners registerd! Nobody got informed about invalidation of datatag " + dataTag.dataTag.getId());
           }
-        }
-        else {
-          LOG.warn("notifyEndpointListenersItemError() - No endpoint listeners registerd! Nobody got informed about invalidation of datatag " + dataTag.getId());
         }
       }
     }
@@ -435,33 +923,170 @@ public abstract class OPCEndpoint<ID extends ItemDefinition< ? > >
     }
     
     /**
-     * Writes a value to an item and rewrites it after a provided pulse length.
+     * Writes a value to an item and schedules the rewrite after a provided
+     * pulse length. A pulse on an item whose previous pulse is not reset yet
+     * extends the previous pulse: its reset is cancelled and replaced by
+     * one after the new pulse length, and both commands share its future.
+     * <p>
+     * The pulse write and the reset write of an item hold the pulse lock
+     * of the item. As a write only returns once it is done, a pulse and a
+     * reset of the same item are never sent together.
      * 
      * @param itemDefintion The item definition which defines where to write.
      * @param pulseLength The pulse length after which the value should be
      * rewritten.
      * @param value The value to write.
+     * @return Future which completes with the reset write.
      */
-    private void writeRewrite(final ID itemDefintion,
+    private CompletableFuture<Void> writeRewrite(final ID itemDefintion,
             final int pulseLength, final Object value) {
-        onWrite(itemDefintion, value);
-        
-        try {
-            Thread.sleep(pulseLength);
-        } catch (InterruptedException e) {
-            throw new OPCCriticalException("Sleep Interrupted.");
+        Long id = itemDefintion.getId();
+        synchronized (getPulseLock(id)) {
+            onWrite(itemDefintion, value);
+            PulseCommand pulse = pendingPulses.get(id);
+            if (pulse == null) {
+                pulse = new PulseCommand(itemDefintion);
+                pendingPulses.put(id, pulse);
+            }
+            else {
+                // a reset which already fired waits for the lock and sees
+                // that it was replaced
+                pulse.resetTask.cancel(false);
+            }
+            pulse.resetValue = getResetValue(value);
+            final PulseCommand scheduledPulse = pulse;
+            final int generation = ++pulse.generation;
+            pulse.resetTask = PULSE_TIMER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    resetPulse(scheduledPulse, generation);
+                }
+            }, pulseLength, TimeUnit.MILLISECONDS);
+            return pulse.completion;
         }
-        finally {
-            if (value instanceof Boolean) {
-              onWrite(itemDefintion, !((Boolean) value));
+    }
+
+    /**
+     * Returns the lock which serializes the pulse and reset writes of an
+     * item.
+     * 
+     * @param id The id of the item definition.
+     * @return The lock of the item.
+     */
+    private Object getPulseLock(final Long id) {
+        Object lock = pulseLocks.get(id);
+        if (lock == null) {
+            lock = new Object();
+            Object existing = pulseLocks.putIfAbsent(id, lock);
+            if (existing != null) {
+                lock = existing;
             }
-            else if (value instanceof String) {
-              onWrite(itemDefintion, "");
+        }
+        return lock;
+    }
+
+    /**
+     * Returns the value which resets a pulse.
+     * 
+     * @param value The value of the pulse.
+     * @return The reset value.
+     */
+    private Object getResetValue(final Object value) {
+        if (value instanceof Boolean) {
+          return !((Boolean) value);
+        }
+        else if (value instanceof String) {
+          return "";
+        }
+        else {
+          // This applies to all numeric use cases and Bytes
+          return value.getClass().cast(Integer.valueOf(0));
+        }
+    }
+
+    /**
+     * Writes the reset value of a pulse. Called by the timer.
+     * 
+     * @param pulse The pulse to reset.
+     * @param generation The generation of the pulse the reset was
+     * scheduled for.
+     */
+    private void resetPulse(final PulseCommand pulse, final int generation) {
+        Long id = pulse.itemDefinition.getId();
+        structureLock.readLock().lock();
+        try {
+            Object lock = pulseLocks.get(id);
+            if (lock == null) {
+                // reset with its command tag or the endpoint
+                return;
             }
-            else {
-              // This applies to all numeric use cases and Bytes
-              onWrite(itemDefintion, value.getClass().cast(Integer.valueOf(0)));
+            synchronized (lock) {
+                if (pulse.generation != generation
+                        || !pendingPulses.remove(id, pulse)) {
+                    // replaced by a newer pulse or reset by resetPendingPulses()
+                    return;
+                }
+                if (currentState.get() != STATE.OPERATIONAL) {
+                    pulse.completion.completeExceptionally(new OPCCriticalException(
+                            "Endpoint not operational. Pulse of item " + id + " not reset."));
+                    return;
+                }
+                writeResetValue(pulse);
             }
+        } finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the reset values of all pending pulses immediately and drops
+     * the pulse locks. Called with the write lock before the endpoint is
+     * stopped.
+     */
+    private void resetPendingPulses() {
+        for (Long id : new ArrayList<Long>(pendingPulses.keySet())) {
+            resetPendingPulse(id);
+        }
+        pulseLocks.clear();
+    }
+
+    /**
+     * Writes the reset value of the pending pulse of an item immediately.
+     * Called with the write lock, so no pulse or reset write of the item
+     * runs and its pulse lock is not needed.
+     * 
+     * @param id The id of the item definition.
+     */
+    private void resetPendingPulse(final Long id) {
+        PulseCommand pulse = pendingPulses.remove(id);
+        if (pulse != null) {
+            pulse.resetTask.cancel(false);
+            if (!pulse.completion.isDone()) {
+                writeResetValue(pulse);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of items with a pulse lock.
+     * 
+     * @return The number of pulse locks.
+     */
+    int getPulseLockCount() {
+        return pulseLocks.size();
+    }
+
+    /**
+     * Writes the reset value of a pulse and completes its future.
+     * 
+     * @param pulse The pulse to reset.
+     */
+    private void writeResetValue(final PulseCommand pulse) {
+        try {
+            onWrite(pulse.itemDefinition, pulse.resetValue);
+            pulse.completion.complete(null);
+        } catch (RuntimeException e) {
+            pulse.completion.completeExceptionally(e);
         }
     }
     
@@ -472,20 +1097,33 @@ public abstract class OPCEndpoint<ID extends ItemDefinition< ? > >
      * @param value The value to write.
      */
     @Override
-    public synchronized void write(
+    public void write(
             final OPCHardwareAddress address, final Object value) {
-        requireState(STATE.OPERATIONAL);
-        ID itemDefinition = 
-            itemDefinitionFactory.createItemDefinition(1L, address);
-        if (itemDefinition != null) {
-            onWrite(itemDefinition, value);
+        structureLock.readLock().lock();
+        try {
+            requireState(STATE.OPERATIONAL);
+            ID itemDefinition = 
+                itemDefinitionFactory.createItemDefinition(1L, address);
+            if (itemDefinition != null) {
+                onWrite(itemDefinition, value);
+            }
+        } finally {
+            structureLock.readLock().unlock();
         }
     }
     
     @Override
-    public synchronized void checkConnection() {
-        requireState(STATE.INITIALIZED, STATE.OPERATIONAL);
-        checkStatus();
+    public void checkConnection() {
+        structureLock.readLock().lock();
+        try {
+            requireState(STATE.INITIALIZED, STATE.OPERATIONAL);
+            checkStatus();
+            // the server answers, so look for primaries which stopped reporting
+            redundantAddressArbiter.checkSilence(System.currentTimeMillis(),
+                    arbiterListener);
+        } finally {
+            structureLock.readLock().unlock();
+        }
     }
     /**
      * Checks the status of the endpoint.
@@ -553,4 +1191,129 @@ public abstract class OPCEndpoint<ID extends ItemDefinition< ? > >
      */
     protected abstract void onCallMethod(ID itemDefintion, Object ...value);
 
+    /**
+     * A data tag together with the converter for its values.
+     */
+    private static final class TagBinding {
+
+        /**
+         * The data tag.
+         */
+        private final ISourceDataTag dataTag;
+
+        /**
+         * The converter from the received values to the data type of the
+         * tag.
+         */
+        private final TagValueConverter converter;
+
+        /**
+         * Creates a new binding and resolves the converter of the tag.
+         *
+         * @param dataTag The data tag.
+         */
+        private TagBinding(final ISourceDataTag dataTag) {
+            this.dataTag = dataTag;
+            this.converter = TagValueConverter.forDataType(dataTag.getDataType());
+        }
+    }
+
+    /**
+     * Identifies the item of a definition on the server: its subscription
+     * group, which fixes sampling rate and deadband, and its addresses.
+     */
+    private static final class DefinitionKey {
+
+        /**
+         * The subscription group of the definition.
+         */
+        private final SubscriptionGroup<?> group;
+
+        /**
+         * The primary address.
+         */
+        private final Object address;
+
+        /**
+         * The redundant address or null.
+         */
+        private final Object redundantAddress;
+
+        /**
+         * Creates a new key.
+         *
+         * @param group The subscription group of the definition.
+         * @param definition The item definition.
+         */
+        private DefinitionKey(final SubscriptionGroup<?> group,
+                final ItemDefinition<?> definition) {
+            this.group = group;
+            this.address = definition.getAddress();
+            this.redundantAddress = definition.getRedundantAddress();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof DefinitionKey)) {
+                return false;
+            }
+            DefinitionKey other = (DefinitionKey) obj;
+            return group == other.group
+                && (address == null ? other.address == null : address.equals(other.address))
+                && (redundantAddress == null ? other.redundantAddress == null
+                        : redundantAddress.equals(other.redundantAddress));
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = System.identityHashCode(group);
+            hash = 31 * hash + (address == null ? 0 : address.hashCode());
+            return 31 * hash + (redundantAddress == null ? 0 : redundantAddress.hashCode());
+        }
+    }
+
+    /**
+     * A pulse command waiting for its reset write. Pulses of the same item
+     * are scheduled one after the other by the command caller.
+     */
+    private final class PulseCommand {
+
+        /**
+         * The item definition of the command.
+         */
+        private final ID itemDefinition;
+
+        /**
+         * Completed when the reset write is done.
+         */
+        private final CompletableFuture<Void> completion =
+            new CompletableFuture<Void>();
+
+        /**
+         * The value to write when the pulse ends.
+         */
+        private volatile Object resetValue;
+
+        /**
+         * The scheduled reset write.
+         */
+        private volatile ScheduledFuture<?> resetTask;
+
+        /**
+         * Counts the pulses which extended this one. Only the reset
+         * scheduled for the latest pulse is written. Guarded by the pulse
+         * lock of the item.
+         */
+        private int generation;
+
+        /**
+         * Creates a new pulse command.
+         * 
+         * @param itemDefinition The item definition of the command.
+         */
+        private PulseCommand(final ID itemDefinition) {
+            this.itemDefinition = itemDefinition;
+        }
+    }
+
 }
@@ -45,6 +45,14 @@ public class OPCUADefaultAddress extends AbstractOPCUAAddress {
         this.password = defaultBuilder.getPassword();
         this.domain = defaultBuilder.getDomain();
         this.aliveWriterEnabled = defaultBuilder.isAliveWriterEnabled();
+        this.fragmentationThreshold = defaultBuilder.getFragmentationThreshold();
+        this.minHoldTime = defaultBuilder.getMinHoldTime();
+        this.maxHoldTime = defaultBuilder.getMaxHoldTime();
+        this.nioTransport = defaultBuilder.isNioTransport();
+        this.refreshSource = defaultBuilder.getRefreshSource();
+        this.conflation = defaultBuilder.isConflation();
+        this.handoffCapacity = defaultBuilder.getHandoffCapacity();
+        this.highPriority = defaultBuilder.getHighPriority();
         this.vendor = defaultBuilder.getVendor();
     }
 
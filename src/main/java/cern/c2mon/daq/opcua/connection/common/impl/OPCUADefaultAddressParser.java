@@ -39,7 +39,10 @@ public class OPCUADefaultAddressParser extends AbstractOPCUAAddressParser {
      * URI=protocol1://host1[:port1]/[path1][,protocol2://host2[:port2]/[path2]];
      * user=user1[@domain1][,user2[@domain2]];password=password1[,password2];
      * serverTimeout=serverTimeout;serverRetryTimeout=serverRetryTimeout
-     * [;aliveWriter=true|false]
+     * [;aliveWriter=true|false][;fragmentationThreshold=threshold]
+     * [;minHoldTime=minHoldTime][;maxHoldTime=maxHoldTime]
+     * [;nioTransport=true|false][;refreshSource=cache|device|async]
+     * [;conflation=true|false][;handoffCapacity=capacity][;highPriority=priority]
      * </pre>
      *
      */
@@ -77,6 +80,13 @@ public class OPCUADefaultAddressParser extends AbstractOPCUAAddressParser {
                 .userAtDomain(userAtDomain != null ? userAtDomain.trim() : null)
                 .password(password.trim())
                 .aliveWriterEnabled(this.aliveWriter)
+                .fragmentationThreshold(this.fragmentationThreshold)
+                .holdTimeLimits(this.minHoldTime, this.maxHoldTime)
+                .nioTransport(this.nioTransport)
+                .refreshSource(this.refreshSource)
+                .conflation(this.conflation)
+                .handoffCapacity(this.handoffCapacity)
+                .highPriority(this.highPriority)
                 .build();
         } catch (URISyntaxException e) {
             throw new OPCAUAddressException("Syntax of OPC URI is incorrect: " + uri, e);
@@ -56,6 +56,14 @@ public final class OPCUASiemensAddress extends AbstractOPCUAAddress {
         this.password = builderSiemens.getPassword();
         this.domain = builderSiemens.getDomain();
         this.aliveWriterEnabled = builderSiemens.isAliveWriterEnabled();
+        this.fragmentationThreshold = builderSiemens.getFragmentationThreshold();
+        this.minHoldTime = builderSiemens.getMinHoldTime();
+        this.maxHoldTime = builderSiemens.getMaxHoldTime();
+        this.nioTransport = builderSiemens.isNioTransport();
+        this.refreshSource = builderSiemens.getRefreshSource();
+        this.conflation = builderSiemens.isConflation();
+        this.handoffCapacity = builderSiemens.getHandoffCapacity();
+        this.highPriority = builderSiemens.getHighPriority();
         this.redundantServerStateName = builderSiemens.redundantServerStateName;
     }
 
@@ -0,0 +1,432 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides for item definitions with a redundant address which of the two
+ * addresses is reported. Only the updates of the active address are
+ * forwarded, so a tag never receives interleaved values of both addresses.
+ * <p>
+ * The primary address is active by default. The secondary address becomes
+ * active if the primary address goes bad while the secondary has a good
+ * value, or if the primary stayed silent for the silence timeout while the
+ * secondary has a good value. A silent primary is detected when the
+ * secondary changes to a value the primary did not report, and by the
+ * periodic {@link #checkSilence(long, Listener)} for a quiet secondary. The
+ * primary becomes active again with its next good value or if the
+ * secondary goes bad. An error of the secondary is only forwarded if the
+ * primary is bad as well. The decisions only depend on the order of the
+ * updates and checks, so the same sequence always leads to the same
+ * switch-overs. Every switch-over is counted.
+ * <p>
+ * Definitions which were not registered are passed through unchanged.
+ */
+public class RedundantAddressArbiter {
+
+    /**
+     * The initial number of slots.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Factor between the sampling rate of the primary and the slower
+     * sampling rate of the secondary address.
+     */
+    private static final int SECONDARY_RATE_FACTOR = 10;
+
+    /**
+     * Minimum sampling rate of the secondary address in milliseconds.
+     */
+    private static final int MIN_SECONDARY_RATE = 5000;
+
+    /**
+     * logger of this class.
+     */
+    private final static Logger logger = LoggerFactory.getLogger(RedundantAddressArbiter.class);
+
+    /**
+     * Receives the updates which should be forwarded.
+     */
+    public interface Listener {
+
+        /**
+         * Called for a value which should be forwarded.
+         *
+         * @param definitionId The id of the item definition.
+         * @param timestamp The timestamp of the value.
+         * @param value The value.
+         */
+        void onArbitratedValue(long definitionId, long timestamp, Object value);
+
+        /**
+         * Called for an error which should be forwarded.
+         *
+         * @param definitionId The id of the item definition.
+         * @param cause The cause of the error.
+         */
+        void onArbitratedError(long definitionId, Throwable cause);
+    }
+
+    /**
+     * Time in milliseconds without update after which the primary address
+     * counts as silent.
+     */
+    private final long silenceTimeout;
+
+    /**
+     * The slots of the definitions.
+     */
+    private final TagSlotIndex index = new TagSlotIndex(INITIAL_CAPACITY);
+
+    /**
+     * True per slot if the definition is registered.
+     */
+    private boolean[] registered = new boolean[INITIAL_CAPACITY];
+
+    /**
+     * The id of the item definition per slot.
+     */
+    private long[] definitionIds = new long[INITIAL_CAPACITY];
+
+    /**
+     * True per slot if the secondary address is active.
+     */
+    private boolean[] secondaryActive = new boolean[INITIAL_CAPACITY];
+
+    /**
+     * True per slot if the last update of the primary address was good.
+     */
+    private boolean[] primaryGood = new boolean[INITIAL_CAPACITY];
+
+    /**
+     * The time of the last update of the primary address per slot.
+     */
+    private long[] primaryTimes = new long[INITIAL_CAPACITY];
+
+    /**
+     * The last good value of the primary address per slot.
+     */
+    private Object[] primaryValues = new Object[INITIAL_CAPACITY];
+
+    /**
+     * True per slot if the secondary address has a good value.
+     */
+    private boolean[] secondaryGood = new boolean[INITIAL_CAPACITY];
+
+    /**
+     * The last good value of the secondary address per slot.
+     */
+    private Object[] secondaryValues = new Object[INITIAL_CAPACITY];
+
+    /**
+     * The timestamp of the last good value of the secondary address per slot.
+     */
+    private long[] secondaryTimestamps = new long[INITIAL_CAPACITY];
+
+    /**
+     * The number of switch-overs.
+     */
+    private long switchCount;
+
+    /**
+     * Creates a new arbiter.
+     *
+     * @param silenceTimeout Time in milliseconds without update after which
+     * the primary address counts as silent.
+     */
+    public RedundantAddressArbiter(final long silenceTimeout) {
+        this.silenceTimeout = silenceTimeout;
+    }
+
+    /**
+     * Returns the sampling rate to use for a secondary address.
+     *
+     * @param timeDeadband The sampling rate of the primary address.
+     * @return The slower sampling rate of the secondary address.
+     */
+    public static int getSecondarySamplingRate(final int timeDeadband) {
+        return Math.max(timeDeadband * SECONDARY_RATE_FACTOR, MIN_SECONDARY_RATE);
+    }
+
+    /**
+     * Registers a definition with a redundant address. The primary address
+     * is active.
+     *
+     * @param definitionId The id of the item definition.
+     * @param now The current time in milliseconds.
+     */
+    public synchronized void register(final long definitionId, final long now) {
+        int slot = index.getOrCreateSlot(definitionId);
+        if (slot == registered.length) {
+            grow();
+        }
+        resetSlot(slot);
+        registered[slot] = true;
+        definitionIds[slot] = definitionId;
+        primaryGood[slot] = true;
+        primaryTimes[slot] = now;
+    }
+
+    /**
+     * Unregisters a definition. Its updates are passed through afterwards.
+     *
+     * @param definitionId The id of the item definition.
+     */
+    public synchronized void unregister(final long definitionId) {
+        int slot = index.getSlot(definitionId);
+        if (slot >= 0) {
+            resetSlot(slot);
+        }
+    }
+
+    /**
+     * Unregisters all definitions.
+     */
+    public synchronized void clear() {
+        for (int slot = 0; slot < index.size(); slot++) {
+            resetSlot(slot);
+        }
+    }
+
+    /**
+     * Checks if a definition is registered, i.e. if it has a redundant
+     * address whose values are arbitrated.
+     *
+     * @param definitionId The id of the item definition.
+     * @return True if the definition is registered else false.
+     */
+    public synchronized boolean isRegistered(final long definitionId) {
+        int slot = index.getSlot(definitionId);
+        return slot >= 0 && registered[slot];
+    }
+
+    /**
+     * Returns true if the secondary address of a definition is active.
+     *
+     * @param definitionId The id of the item definition.
+     * @return True if the secondary address is active else false.
+     */
+    public synchronized boolean isSecondaryActive(final long definitionId) {
+        int slot = index.getSlot(definitionId);
+        return slot >= 0 && secondaryActive[slot];
+    }
+
+    /**
+     * Returns the number of switch-overs between primary and secondary
+     * addresses.
+     *
+     * @return The number of switch-overs.
+     */
+    public synchronized long getSwitchCount() {
+        return switchCount;
+    }
+
+    /**
+     * Processes a good value of an address.
+     *
+     * @param definitionId The id of the item definition.
+     * @param redundant True if the value is from the redundant address.
+     * @param timestamp The timestamp of the value.
+     * @param value The value.
+     * @param now The current time in milliseconds.
+     * @param listener The listener to forward to. It is called outside of
+     * the lock of this arbiter.
+     */
+    public void onValue(final long definitionId, final boolean redundant,
+            final long timestamp, final Object value, final long now,
+            final Listener listener) {
+        boolean forward;
+        synchronized (this) {
+            int slot = index.getSlot(definitionId);
+            if (slot < 0 || !registered[slot]) {
+                forward = !redundant;
+            }
+            else if (!redundant) {
+                primaryGood[slot] = true;
+                primaryTimes[slot] = now;
+                primaryValues[slot] = value;
+                if (secondaryActive[slot]) {
+                    switchTo(slot, definitionId, false, "primary is good again");
+                }
+                forward = true;
+            }
+            else {
+                secondaryGood[slot] = true;
+                secondaryValues[slot] = value;
+                secondaryTimestamps[slot] = timestamp;
+                if (!secondaryActive[slot]) {
+                    if (!primaryGood[slot]) {
+                        switchTo(slot, definitionId, true, "primary is bad");
+                    }
+                    else if (now - primaryTimes[slot] >= silenceTimeout
+                            && !equal(value, primaryValues[slot])) {
+                        switchTo(slot, definitionId, true, "primary is silent");
+                    }
+                }
+                forward = secondaryActive[slot];
+            }
+        }
+        if (forward) {
+            listener.onArbitratedValue(definitionId, timestamp, value);
+        }
+    }
+
+    /**
+     * Processes an error of an address.
+     *
+     * @param definitionId The id of the item definition.
+     * @param redundant True if the error is from the redundant address.
+     * @param cause The cause of the error.
+     * @param listener The listener to forward to. It is called outside of
+     * the lock of this arbiter.
+     */
+    public void onError(final long definitionId, final boolean redundant,
+            final Throwable cause, final Listener listener) {
+        boolean forwardError;
+        boolean forwardSecondary = false;
+        Object value = null;
+        long timestamp = 0L;
+        synchronized (this) {
+            int slot = index.getSlot(definitionId);
+            if (slot < 0 || !registered[slot]) {
+                forwardError = !redundant;
+            }
+            else if (!redundant) {
+                primaryGood[slot] = false;
+                primaryValues[slot] = null;
+                if (!secondaryActive[slot] && secondaryGood[slot]) {
+                    switchTo(slot, definitionId, true, "primary is bad");
+                    forwardSecondary = true;
+                    value = secondaryValues[slot];
+                    timestamp = secondaryTimestamps[slot];
+                }
+                forwardError = !secondaryActive[slot];
+            }
+            else {
+                secondaryGood[slot] = false;
+                secondaryValues[slot] = null;
+                // the tag is only invalid if the primary is bad as well
+                forwardError = secondaryActive[slot] && !primaryGood[slot];
+                if (secondaryActive[slot]) {
+                    switchTo(slot, definitionId, false, "secondary is bad");
+                }
+            }
+        }
+        if (forwardSecondary) {
+            listener.onArbitratedValue(definitionId, timestamp, value);
+        }
+        else if (forwardError) {
+            listener.onArbitratedError(definitionId, cause);
+        }
+    }
+
+    /**
+     * Switches the definitions whose primary address stayed silent for the
+     * silence timeout to their secondary address if it has a good value.
+     * This covers a primary which stopped reporting without an error while
+     * the secondary does not change. The value of the secondary is only
+     * forwarded if the primary did not report it last.
+     *
+     * @param now The current time in milliseconds.
+     * @param listener The listener to forward to. It is called outside of
+     * the lock of this arbiter.
+     */
+    public void checkSilence(final long now, final Listener listener) {
+        List<Object[]> switched = new ArrayList<Object[]>();
+        synchronized (this) {
+            for (int slot = 0; slot < index.size(); slot++) {
+                if (registered[slot] && !secondaryActive[slot]
+                        && secondaryGood[slot]
+                        && now - primaryTimes[slot] >= silenceTimeout) {
+                    long definitionId = definitionIds[slot];
+                    switchTo(slot, definitionId, true, "primary is silent");
+                    if (!equal(secondaryValues[slot], primaryValues[slot])) {
+                        switched.add(new Object[] {definitionId,
+                                secondaryTimestamps[slot], secondaryValues[slot]});
+                    }
+                }
+            }
+        }
+        for (Object[] update : switched) {
+            listener.onArbitratedValue((Long) update[0], (Long) update[1], update[2]);
+        }
+    }
+
+    /**
+     * Changes the active address of a slot.
+     *
+     * @param slot The slot of the definition.
+     * @param definitionId The id of the item definition.
+     * @param toSecondary True to activate the secondary address.
+     * @param reason The reason of the switch-over for the log.
+     */
+    private void switchTo(final int slot, final long definitionId,
+            final boolean toSecondary, final String reason) {
+        secondaryActive[slot] = toSecondary;
+        switchCount++;
+        logger.info("Item definition " + definitionId + " switched to its "
+                + (toSecondary ? "secondary" : "primary") + " address: " + reason);
+    }
+
+    /**
+     * Checks if two values are equal.
+     *
+     * @param value The first value.
+     * @param other The second value.
+     * @return True if both values are equal else false.
+     */
+    private static boolean equal(final Object value, final Object other) {
+        return value == null ? other == null : value.equals(other);
+    }
+
+    /**
+     * Forgets the state of a slot.
+     *
+     * @param slot The slot of the definition.
+     */
+    private void resetSlot(final int slot) {
+        registered[slot] = false;
+        secondaryActive[slot] = false;
+        primaryGood[slot] = false;
+        primaryValues[slot] = null;
+        secondaryGood[slot] = false;
+        secondaryValues[slot] = null;
+    }
+
+    /**
+     * Doubles the number of slots.
+     */
+    private void grow() {
+        int capacity = registered.length * 2;
+        registered = Arrays.copyOf(registered, capacity);
+        definitionIds = Arrays.copyOf(definitionIds, capacity);
+        secondaryActive = Arrays.copyOf(secondaryActive, capacity);
+        primaryGood = Arrays.copyOf(primaryGood, capacity);
+        primaryTimes = Arrays.copyOf(primaryTimes, capacity);
+        primaryValues = Arrays.copyOf(primaryValues, capacity);
+        secondaryGood = Arrays.copyOf(secondaryGood, capacity);
+        secondaryValues = Arrays.copyOf(secondaryValues, capacity);
+        secondaryTimestamps = Arrays.copyOf(secondaryTimestamps, capacity);
+    }
+}
@@ -0,0 +1,327 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cern.c2mon.shared.common.datatag.ISourceDataTag;
+
+/**
+ * Merges refresh requests. The requests which arrive within a short window
+ * are run as one refresh. A request for all tags covers every request for
+ * single tags in the same window. The tags requested one by one are
+ * refreshed once each, in chunks of limited size.
+ * <p>
+ * The refreshes run one after the other on a single thread, so there is at
+ * most one refresh in flight. Requests which arrive during a refresh are
+ * merged into the next one.
+ */
+public class RefreshScheduler {
+
+    /**
+     * logger of this class.
+     */
+    private final static Logger logger = LoggerFactory.getLogger(RefreshScheduler.class);
+
+    /**
+     * The target of the merged refreshes.
+     */
+    public interface RefreshTarget {
+
+        /**
+         * Refreshes the values of all tags.
+         */
+        void refreshAll();
+
+        /**
+         * Refreshes the values of some tags.
+         *
+         * @param dataTags The tags to refresh.
+         */
+        void refresh(Collection<ISourceDataTag> dataTags);
+    }
+
+    /**
+     * The target of the merged refreshes.
+     */
+    private final RefreshTarget target;
+
+    /**
+     * Time in milliseconds requests are collected before they are run.
+     */
+    private final long window;
+
+    /**
+     * Maximum number of tags refreshed with one call of the target.
+     */
+    private final int maxChunkSize;
+
+    /**
+     * The thread running the refreshes.
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * The task running the pending requests.
+     */
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * True if a refresh of all tags is pending.
+     */
+    private boolean allPending;
+
+    /**
+     * The tags with a pending refresh by id in the order they were
+     * requested.
+     */
+    private Map<Long, ISourceDataTag> pendingTags = new LinkedHashMap<Long, ISourceDataTag>();
+
+    /**
+     * True if the pending requests are scheduled to run.
+     */
+    private boolean scheduled;
+
+    /**
+     * The number of requests.
+     */
+    private long requestCount;
+
+    /**
+     * The number of requests merged into another one.
+     */
+    private long mergedCount;
+
+    /**
+     * The number of refreshes of all tags which were run.
+     */
+    private long fullRefreshCount;
+
+    /**
+     * The number of single tags which were refreshed.
+     */
+    private long tagRefreshCount;
+
+    /**
+     * The number of chunks the single tags were refreshed in.
+     */
+    private long chunkCount;
+
+    /**
+     * Creates a new refresh scheduler.
+     *
+     * @param target The target of the merged refreshes.
+     * @param window Time in milliseconds requests are collected before they
+     * are run.
+     * @param maxChunkSize Maximum number of tags refreshed with one call of
+     * the target.
+     */
+    public RefreshScheduler(final RefreshTarget target, final long window,
+            final int maxChunkSize) {
+        this.target = target;
+        this.window = window;
+        this.maxChunkSize = maxChunkSize;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(runnable, "opc-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Requests a refresh of all tags.
+     */
+    public synchronized void requestAll() {
+        requestCount++;
+        if (allPending) {
+            mergedCount++;
+        }
+        allPending = true;
+        schedule();
+    }
+
+    /**
+     * Requests a refresh of all tags once a delay has passed. The request is
+     * merged like one made at that time. It is dropped if the scheduler is
+     * shut down before.
+     *
+     * @param delay The delay in milliseconds.
+     */
+    public void requestAll(final long delay) {
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    requestAll();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            logger.debug("Delayed refresh of all data tags dropped, the scheduler is shut down.");
+        }
+    }
+
+    /**
+     * Requests a refresh of a single tag.
+     *
+     * @param dataTag The tag to refresh.
+     */
+    public synchronized void request(final ISourceDataTag dataTag) {
+        requestCount++;
+        if (allPending || pendingTags.containsKey(dataTag.getId())) {
+            mergedCount++;
+            return;
+        }
+        pendingTags.put(dataTag.getId(), dataTag);
+        schedule();
+    }
+
+    /**
+     * Stops the refresh thread. Pending requests are dropped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the number of requests.
+     *
+     * @return The number of requests.
+     */
+    public synchronized long getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Returns the number of requests which were merged into another one.
+     *
+     * @return The number of merged requests.
+     */
+    public synchronized long getMergedCount() {
+        return mergedCount;
+    }
+
+    /**
+     * Returns the number of refreshes of all tags which were run.
+     *
+     * @return The number of full refreshes.
+     */
+    public synchronized long getFullRefreshCount() {
+        return fullRefreshCount;
+    }
+
+    /**
+     * Returns the number of single tags which were refreshed.
+     *
+     * @return The number of refreshed single tags.
+     */
+    public synchronized long getTagRefreshCount() {
+        return tagRefreshCount;
+    }
+
+    /**
+     * Returns the number of chunks the single tags were refreshed in.
+     *
+     * @return The number of chunks.
+     */
+    public synchronized long getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Schedules the pending requests to run after the window if they are not
+     * scheduled yet.
+     */
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            executor.schedule(flushTask, window, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Runs the pending requests.
+     */
+    private void flush() {
+        boolean all;
+        List<ISourceDataTag> dataTags;
+        synchronized (this) {
+            all = allPending;
+            dataTags = new ArrayList<ISourceDataTag>(pendingTags.values());
+            allPending = false;
+            pendingTags = new LinkedHashMap<Long, ISourceDataTag>();
+            scheduled = false;
+            if (all) {
+                // requested before the refresh of all tags in this window
+                mergedCount += dataTags.size();
+                fullRefreshCount++;
+            }
+            else {
+                tagRefreshCount += dataTags.size();
+                chunkCount += (dataTags.size() + maxChunkSize - 1) / maxChunkSize;
+            }
+        }
+        if (all) {
+            logger.debug("Refreshing all data tags.");
+            run(null);
+        }
+        else {
+            for (int i = 0; i < dataTags.size(); i += maxChunkSize) {
+                run(dataTags.subList(i, Math.min(i + maxChunkSize, dataTags.size())));
+            }
+        }
+    }
+
+    /**
+     * Runs a refresh on the target. A failed refresh is logged so the
+     * following chunks and requests still run.
+     *
+     * @param dataTags The tags to refresh or null to refresh all tags.
+     */
+    private void run(final Collection<ISourceDataTag> dataTags) {
+        try {
+            if (dataTags == null) {
+                target.refreshAll();
+            }
+            else {
+                target.refresh(dataTags);
+            }
+        } catch (Exception e) {
+            logger.error("Refresh of OPC data failed", e);
+        }
+    }
+}
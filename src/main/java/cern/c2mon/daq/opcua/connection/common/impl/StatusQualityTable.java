@@ -0,0 +1,116 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import java.util.Arrays;
+
+/**
+ * Maps the status codes (OPC UA) or qualities (OPC DA) of values which are
+ * not good to the exception which invalidates the tags of the item. The
+ * exception of a code is created the first time the code is seen and then
+ * reused, so a server reporting a bad quality for many values does not
+ * allocate an exception (and a message) per value.
+ * <p>
+ * Lookups do not lock. New codes are added by replacing the table.
+ */
+public class StatusQualityTable {
+
+    /**
+     * The current table.
+     */
+    private volatile Entries entries = new Entries(new int[0],
+            new OPCCommunicationException[0]);
+
+    /**
+     * Returns the exception of a status code.
+     *
+     * @param statusCode The status code or quality.
+     * @return The exception of the code or null if the code was not added
+     * yet.
+     */
+    public OPCCommunicationException get(final int statusCode) {
+        Entries current = entries;
+        int index = Arrays.binarySearch(current.codes, statusCode);
+        return index >= 0 ? current.exceptions[index] : null;
+    }
+
+    /**
+     * Adds the exception of a status code if there is none yet.
+     *
+     * @param statusCode The status code or quality.
+     * @param exception The exception for the code.
+     * @return The exception stored for the code. This is the provided
+     * exception unless another thread added the code before.
+     */
+    public synchronized OPCCommunicationException put(final int statusCode,
+            final OPCCommunicationException exception) {
+        Entries current = entries;
+        int index = Arrays.binarySearch(current.codes, statusCode);
+        if (index >= 0) {
+            return current.exceptions[index];
+        }
+        int insert = -index - 1;
+        int size = current.codes.length;
+        int[] codes = new int[size + 1];
+        OPCCommunicationException[] exceptions = new OPCCommunicationException[size + 1];
+        System.arraycopy(current.codes, 0, codes, 0, insert);
+        System.arraycopy(current.exceptions, 0, exceptions, 0, insert);
+        codes[insert] = statusCode;
+        exceptions[insert] = exception;
+        System.arraycopy(current.codes, insert, codes, insert + 1, size - insert);
+        System.arraycopy(current.exceptions, insert, exceptions, insert + 1, size - insert);
+        entries = new Entries(codes, exceptions);
+        return exception;
+    }
+
+    /**
+     * Returns the number of status codes in the table.
+     *
+     * @return The number of status codes.
+     */
+    public int size() {
+        return entries.codes.length;
+    }
+
+    /**
+     * The sorted codes and their exceptions.
+     */
+    private static final class Entries {
+
+        /**
+         * The status codes in ascending order.
+         */
+        private final int[] codes;
+
+        /**
+         * The exception per status code.
+         */
+        private final OPCCommunicationException[] exceptions;
+
+        /**
+         * Creates new entries.
+         *
+         * @param codes The status codes in ascending order.
+         * @param exceptions The exception per status code.
+         */
+        private Entries(final int[] codes,
+                final OPCCommunicationException[] exceptions) {
+            this.codes = codes;
+            this.exceptions = exceptions;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+/**
+ * Maps tag ids to dense slot numbers starting at zero. The ids are kept in
+ * an open addressing table of primitive arrays so a lookup does not
+ * allocate. Slots are never reused.
+ * <p>
+ * This class is not thread safe. The owner has to guard it with its own
+ * lock.
+ */
+class TagSlotIndex {
+
+    /**
+     * The ids of the table.
+     */
+    private long[] ids;
+
+    /**
+     * The slots of the table plus one. Zero marks a free entry.
+     */
+    private int[] slots;
+
+    /**
+     * The number of used slots.
+     */
+    private int size;
+
+    /**
+     * Creates a new index.
+     *
+     * @param initialCapacity The number of slots before the table grows.
+     */
+    TagSlotIndex(final int initialCapacity) {
+        // the table is kept at most half full
+        int length = Integer.highestOneBit(Math.max(initialCapacity, 1) * 4 - 1);
+        ids = new long[length];
+        slots = new int[length];
+    }
+
+    /**
+     * Returns the slot of a tag id.
+     *
+     * @param tagId The id of the tag.
+     * @return The slot of the tag or -1 if the id is unknown.
+     */
+    int getSlot(final long tagId) {
+        return slots[findIndex(tagId)] - 1;
+    }
+
+    /**
+     * Returns the slot of a tag id. A new slot is created if the id is
+     * unknown.
+     *
+     * @param tagId The id of the tag.
+     * @return The slot of the tag.
+     */
+    int getOrCreateSlot(final long tagId) {
+        int index = findIndex(tagId);
+        if (slots[index] != 0) {
+            return slots[index] - 1;
+        }
+        if ((size + 1) * 2 > slots.length) {
+            grow();
+            index = findIndex(tagId);
+        }
+        int slot = size++;
+        ids[index] = tagId;
+        slots[index] = slot + 1;
+        return slot;
+    }
+
+    /**
+     * Returns the number of used slots.
+     *
+     * @return The number of slots.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the index in the table which holds the tag id or the free
+     * index where it should be stored.
+     *
+     * @param tagId The id of the tag.
+     * @return The index in the table.
+     */
+    private int findIndex(final long tagId) {
+        int mask = ids.length - 1;
+        int index = (int) (tagId ^ (tagId >>> 32)) * 0x9E3779B9 & mask;
+        while (slots[index] != 0 && ids[index] != tagId) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    /**
+     * Doubles the size of the table.
+     */
+    private void grow() {
+        long[] oldIds = ids;
+        int[] oldSlots = slots;
+        ids = new long[oldIds.length * 2];
+        slots = new int[oldSlots.length * 2];
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] != 0) {
+                int index = findIndex(oldIds[i]);
+                ids[index] = oldIds[i];
+                slots[index] = oldSlots[i];
+            }
+        }
+    }
+}
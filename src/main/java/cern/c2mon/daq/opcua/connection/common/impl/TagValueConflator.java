@@ -0,0 +1,472 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cern.c2mon.daq.opcua.connection.common.IOPCEndpointListener;
+import cern.c2mon.shared.common.datatag.ISourceDataTag;
+
+/**
+ * Decouples the threads of an endpoint from a slower listener. Every tag
+ * keeps at most one pending update. A newer value or invalidation of a tag
+ * replaces its pending update, which is counted as conflated. The slots of
+ * tags with a pending update are queued in a ring which is drained by a
+ * delivery thread. The memory used is therefore bounded by the number of
+ * tags, whatever the rate of updates is.
+ * <p>
+ * Tags whose data tag address has at least a configured priority are
+ * queued in a high priority lane. Its pending updates are always delivered
+ * before the ones of the normal lane.
+ * <p>
+ * Primitive values are kept without boxing and delivered through the
+ * primitive callbacks of the listener.
+ * <p>
+ * Subscription exceptions are passed to the listener directly.
+ */
+public class TagValueConflator implements IOPCEndpointListener {
+
+    /**
+     * The initial number of tag slots.
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Kind of a pending object value or invalidation.
+     */
+    private static final byte KIND_OBJECT = 0;
+
+    /**
+     * Kind of a pending long. The value is kept in pendingBits.
+     */
+    private static final byte KIND_LONG = 1;
+
+    /**
+     * Kind of a pending double. The raw bits of the value are kept in
+     * pendingBits.
+     */
+    private static final byte KIND_DOUBLE = 2;
+
+    /**
+     * logger of this class.
+     */
+    private final static Logger logger = LoggerFactory.getLogger(TagValueConflator.class);
+
+    /**
+     * The listener the updates are delivered to.
+     */
+    private final IOPCEndpointListener listener;
+
+    /**
+     * The minimum priority of the data tag address of the tags in the high
+     * priority lane.
+     */
+    private final int highPriority;
+
+    /**
+     * The slots of the tags.
+     */
+    private final TagSlotIndex index = new TagSlotIndex(INITIAL_CAPACITY);
+
+    /**
+     * The tag of the pending update per slot or null if there is none.
+     */
+    private ISourceDataTag[] pendingTags = new ISourceDataTag[INITIAL_CAPACITY];
+
+    /**
+     * The pending value per slot.
+     */
+    private Object[] pendingValues = new Object[INITIAL_CAPACITY];
+
+    /**
+     * The kind of the pending value per slot.
+     */
+    private byte[] pendingKinds = new byte[INITIAL_CAPACITY];
+
+    /**
+     * The pending value per slot if it is a primitive.
+     */
+    private long[] pendingBits = new long[INITIAL_CAPACITY];
+
+    /**
+     * The timestamp of the pending value per slot.
+     */
+    private long[] pendingTimestamps = new long[INITIAL_CAPACITY];
+
+    /**
+     * The cause per slot if the pending update is an invalidation.
+     */
+    private Throwable[] pendingCauses = new Throwable[INITIAL_CAPACITY];
+
+    /**
+     * The slots of the high priority lane with a pending update in the
+     * order they became pending.
+     */
+    private final SlotRing highRing = new SlotRing(INITIAL_CAPACITY);
+
+    /**
+     * The slots of the normal lane with a pending update in the order they
+     * became pending.
+     */
+    private final SlotRing normalRing = new SlotRing(INITIAL_CAPACITY);
+
+    /**
+     * The number of updates replaced by a newer one.
+     */
+    private long conflatedCount;
+
+    /**
+     * The number of delivered updates.
+     */
+    private long deliveredCount;
+
+    /**
+     * The delivery thread or null if stopped.
+     */
+    private Thread deliveryThread;
+
+    /**
+     * Creates a new conflator with a single lane.
+     *
+     * @param listener The listener to deliver the updates to.
+     */
+    public TagValueConflator(final IOPCEndpointListener listener) {
+        this(listener, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a new conflator.
+     *
+     * @param listener The listener to deliver the updates to.
+     * @param highPriority The minimum priority of the data tag address of
+     * the tags in the high priority lane.
+     */
+    public TagValueConflator(final IOPCEndpointListener listener,
+            final int highPriority) {
+        this.listener = listener;
+        this.highPriority = highPriority;
+    }
+
+    /**
+     * Starts the delivery thread.
+     *
+     * @param name The name of the thread.
+     */
+    public synchronized void start(final String name) {
+        if (deliveryThread != null) {
+            return;
+        }
+        deliveryThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deliver();
+            }
+        }, name);
+        deliveryThread.setDaemon(true);
+        deliveryThread.start();
+    }
+
+    /**
+     * Stops the delivery thread and drops all pending updates.
+     */
+    public synchronized void stop() {
+        if (deliveryThread != null) {
+            deliveryThread.interrupt();
+            deliveryThread = null;
+        }
+        while (highRing.size > 0) {
+            clearPending(highRing.poll());
+        }
+        while (normalRing.size > 0) {
+            clearPending(normalRing.poll());
+        }
+    }
+
+    /**
+     * Stores the value as pending update of the tag.
+     *
+     * @param dataTag The tag whose value changed.
+     * @param timestamp The timestamp when the value was updated.
+     * @param value The new value.
+     */
+    @Override
+    public void onNewTagValue(final ISourceDataTag dataTag, final long timestamp,
+            final Object value) {
+        offer(dataTag, timestamp, KIND_OBJECT, 0L, value, null);
+    }
+
+    /**
+     * Stores the long value as pending update of the tag without boxing.
+     *
+     * @param dataTag The tag whose value changed.
+     * @param timestamp The timestamp when the value was updated.
+     * @param value The new value.
+     */
+    @Override
+    public void onNewTagValue(final ISourceDataTag dataTag, final long timestamp,
+            final long value) {
+        offer(dataTag, timestamp, KIND_LONG, value, null, null);
+    }
+
+    /**
+     * Stores the double value as pending update of the tag without boxing.
+     *
+     * @param dataTag The tag whose value changed.
+     * @param timestamp The timestamp when the value was updated.
+     * @param value The new value.
+     */
+    @Override
+    public void onNewTagValue(final ISourceDataTag dataTag, final long timestamp,
+            final double value) {
+        offer(dataTag, timestamp, KIND_DOUBLE, Double.doubleToRawLongBits(value), null, null);
+    }
+
+    /**
+     * Stores the invalidation as pending update of the tag.
+     *
+     * @param dataTag The tag which caused the exception.
+     * @param cause The cause of the exception.
+     */
+    @Override
+    public void onTagInvalidException(final ISourceDataTag dataTag,
+            final Throwable cause) {
+        offer(dataTag, 0L, KIND_OBJECT, 0L, null, cause);
+    }
+
+    /**
+     * Passes the exception to the listener.
+     *
+     * @param cause The cause of the subscription failure.
+     */
+    @Override
+    public void onSubscriptionException(final Throwable cause) {
+        listener.onSubscriptionException(cause);
+    }
+
+    /**
+     * Returns the number of updates replaced by a newer one.
+     *
+     * @return The number of conflated updates.
+     */
+    public synchronized long getConflatedCount() {
+        return conflatedCount;
+    }
+
+    /**
+     * Returns the number of delivered updates.
+     *
+     * @return The number of delivered updates.
+     */
+    public synchronized long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    /**
+     * Returns the number of tags with a pending update.
+     *
+     * @return The number of pending updates.
+     */
+    public synchronized int getPendingCount() {
+        return highRing.size + normalRing.size;
+    }
+
+    /**
+     * Stores an update as pending update of its tag.
+     *
+     * @param dataTag The tag of the update.
+     * @param timestamp The timestamp of the value.
+     * @param kind The kind of the value.
+     * @param bits The value if it is a primitive.
+     * @param value The value if it is an object.
+     * @param cause The cause of an invalidation or null for a value.
+     */
+    private synchronized void offer(final ISourceDataTag dataTag,
+            final long timestamp, final byte kind, final long bits,
+            final Object value, final Throwable cause) {
+        int slot = index.getOrCreateSlot(dataTag.getId());
+        if (slot == pendingTags.length) {
+            grow();
+        }
+        if (pendingTags[slot] != null) {
+            conflatedCount++;
+        }
+        else {
+            if (getPendingCount() == 0) {
+                notifyAll();
+            }
+            if (dataTag.getAddress() != null
+                    && dataTag.getAddress().getPriority() >= highPriority) {
+                highRing.add(slot);
+            }
+            else {
+                normalRing.add(slot);
+            }
+        }
+        pendingTags[slot] = dataTag;
+        pendingValues[slot] = value;
+        pendingKinds[slot] = kind;
+        pendingBits[slot] = bits;
+        pendingTimestamps[slot] = timestamp;
+        pendingCauses[slot] = cause;
+    }
+
+    /**
+     * Delivers the pending updates until the thread is stopped.
+     */
+    private void deliver() {
+        Thread current = Thread.currentThread();
+        while (!current.isInterrupted()) {
+            ISourceDataTag dataTag;
+            Object value;
+            byte kind;
+            long bits;
+            long timestamp;
+            Throwable cause;
+            synchronized (this) {
+                while (getPendingCount() == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                int slot = highRing.size > 0 ? highRing.poll() : normalRing.poll();
+                dataTag = pendingTags[slot];
+                value = pendingValues[slot];
+                kind = pendingKinds[slot];
+                bits = pendingBits[slot];
+                timestamp = pendingTimestamps[slot];
+                cause = pendingCauses[slot];
+                clearPending(slot);
+                deliveredCount++;
+            }
+            try {
+                if (cause != null) {
+                    listener.onTagInvalidException(dataTag, cause);
+                }
+                else if (kind == KIND_LONG) {
+                    listener.onNewTagValue(dataTag, timestamp, bits);
+                }
+                else if (kind == KIND_DOUBLE) {
+                    listener.onNewTagValue(dataTag, timestamp, Double.longBitsToDouble(bits));
+                }
+                else {
+                    listener.onNewTagValue(dataTag, timestamp, value);
+                }
+            } catch (RuntimeException e) {
+                logger.error("Error delivering update of tag " + dataTag.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * Removes the pending update of a slot.
+     *
+     * @param slot The slot.
+     */
+    private void clearPending(final int slot) {
+        pendingTags[slot] = null;
+        pendingValues[slot] = null;
+        pendingCauses[slot] = null;
+    }
+
+    /**
+     * Doubles the number of slots.
+     */
+    private void grow() {
+        int capacity = pendingTags.length * 2;
+        highRing.grow(capacity);
+        normalRing.grow(capacity);
+        pendingTags = Arrays.copyOf(pendingTags, capacity);
+        pendingValues = Arrays.copyOf(pendingValues, capacity);
+        pendingKinds = Arrays.copyOf(pendingKinds, capacity);
+        pendingBits = Arrays.copyOf(pendingBits, capacity);
+        pendingTimestamps = Arrays.copyOf(pendingTimestamps, capacity);
+        pendingCauses = Arrays.copyOf(pendingCauses, capacity);
+    }
+
+    /**
+     * Ring of slots with a pending update. A slot is at most once in the
+     * ring, so it never holds more slots than there are tags.
+     */
+    private static final class SlotRing {
+
+        /**
+         * The slots.
+         */
+        private int[] slots;
+
+        /**
+         * Position of the oldest slot.
+         */
+        private int head;
+
+        /**
+         * The number of slots in the ring.
+         */
+        private int size;
+
+        /**
+         * Creates a new ring.
+         *
+         * @param capacity The initial number of slots.
+         */
+        private SlotRing(final int capacity) {
+            slots = new int[capacity];
+        }
+
+        /**
+         * Adds a slot as newest one.
+         *
+         * @param slot The slot.
+         */
+        private void add(final int slot) {
+            slots[(head + size) % slots.length] = slot;
+            size++;
+        }
+
+        /**
+         * Removes the oldest slot.
+         *
+         * @return The slot.
+         */
+        private int poll() {
+            int slot = slots[head];
+            head = (head + 1) % slots.length;
+            size--;
+            return slot;
+        }
+
+        /**
+         * Enlarges the ring. It is unrolled so its oldest slot is at the
+         * start again.
+         *
+         * @param capacity The new number of slots.
+         */
+        private void grow(final int capacity) {
+            int[] newSlots = new int[capacity];
+            for (int i = 0; i < size; i++) {
+                newSlots[i] = slots[(head + i) % slots.length];
+            }
+            slots = newSlots;
+            head = 0;
+        }
+    }
+}
@@ -0,0 +1,397 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import cern.c2mon.shared.common.type.TypeConverter;
+
+/**
+ * Converts the values received for a data tag to the data type of the tag.
+ * A converter is resolved once per tag when the tag is subscribed, so the
+ * conversion of a value does not have to dispatch on the data type name
+ * again.
+ * <p>
+ * Values which already have the type of the tag are passed through. Lossless
+ * conversions of integral numbers (e.g. Short to Integer or a Long in the
+ * range of an Integer) are done directly. All other values are converted by
+ * the {@link TypeConverter} like before. Values of tags with a data type
+ * which is not a simple type and values the TypeConverter cannot convert
+ * are passed through unchanged and left to the core, which invalidates the
+ * tag if the value does not fit its type.
+ * <p>
+ * Long, Double and Boolean tags take primitive values without conversion
+ * (see {@link #getPrimitiveType()}). Boxed values which these tags take
+ * unchanged or widen losslessly can be passed to them as primitives as
+ * well (see {@link #takesPrimitive(Object)}), whatever endpoint they come
+ * from.
+ */
+public abstract class TagValueConverter {
+
+    /**
+     * Primitive type of tags which only take objects.
+     */
+    public static final int PRIMITIVE_NONE = 0;
+
+    /**
+     * Primitive type of Long tags.
+     */
+    public static final int PRIMITIVE_LONG = 1;
+
+    /**
+     * Primitive type of Double tags.
+     */
+    public static final int PRIMITIVE_DOUBLE = 2;
+
+    /**
+     * Primitive type of Boolean tags.
+     */
+    public static final int PRIMITIVE_BOOLEAN = 3;
+
+    /**
+     * Converter which passes all values through.
+     */
+    public static final TagValueConverter IDENTITY = new TagValueConverter(null, PRIMITIVE_NONE) {
+        @Override
+        public Object convert(final Object value) {
+            return value;
+        }
+    };
+
+    /**
+     * Prefix of the java.lang type names.
+     */
+    private static final String JAVA_LANG = "java.lang.";
+
+    /**
+     * Largest long which can be converted exactly to a double.
+     */
+    private static final long MAX_EXACT_DOUBLE = 1L << 53;
+
+    /**
+     * The data type of the tag.
+     */
+    private final String dataType;
+
+    /**
+     * The primitive type the tag takes without conversion.
+     */
+    private final int primitiveType;
+
+    /**
+     * Creates a new converter.
+     *
+     * @param dataType The data type of the tag.
+     * @param primitiveType The primitive type the tag takes without
+     * conversion.
+     */
+    private TagValueConverter(final String dataType, final int primitiveType) {
+        this.dataType = dataType;
+        this.primitiveType = primitiveType;
+    }
+
+    /**
+     * Returns the converter for a data type.
+     *
+     * @param dataType The data type of the tag as returned by
+     * ISourceDataTag.getDataType().
+     * @return The converter for the data type. Never null.
+     */
+    public static TagValueConverter forDataType(final String dataType) {
+        if (dataType == null) {
+            return IDENTITY;
+        }
+        String simpleType = dataType.startsWith(JAVA_LANG)
+            ? dataType.substring(JAVA_LANG.length()) : dataType;
+        switch (simpleType) {
+        case "Boolean":
+            return new ExactTypeConverter(dataType, Boolean.class, PRIMITIVE_BOOLEAN);
+        case "String":
+            return new ExactTypeConverter(dataType, String.class, PRIMITIVE_NONE);
+        case "Byte":
+            return new ExactTypeConverter(dataType, Byte.class, PRIMITIVE_NONE);
+        case "Short":
+            return new ShortConverter(dataType);
+        case "Integer":
+            return new IntegerConverter(dataType);
+        case "Long":
+            return new LongConverter(dataType);
+        case "Float":
+            return new FloatConverter(dataType);
+        case "Double":
+            return new DoubleConverter(dataType);
+        default:
+            return IDENTITY;
+        }
+    }
+
+    /**
+     * Converts a value to the data type of the tag.
+     *
+     * @param value The value received from the server.
+     * @return The converted value or the value itself if it cannot be
+     * converted.
+     */
+    public abstract Object convert(Object value);
+
+    /**
+     * Returns the primitive type the tag takes without conversion. Values
+     * of this type can be passed to the tag unboxed.
+     *
+     * @return One of the PRIMITIVE_* constants.
+     */
+    public int getPrimitiveType() {
+        return primitiveType;
+    }
+
+    /**
+     * Checks if a boxed value can be passed to the tag as a primitive of
+     * {@link #getPrimitiveType()}. This is the case for the values which
+     * {@link #convert(Object)} passes through or widens losslessly to the
+     * type of the tag.
+     *
+     * @param value The value received from the server.
+     * @return True if the value is a Number whose primitive value the tag
+     * takes unchanged.
+     */
+    public boolean takesPrimitive(final Object value) {
+        return false;
+    }
+
+    /**
+     * Converts a value with the TypeConverter.
+     *
+     * @param value The value to convert.
+     * @return The converted value or the value itself if it cannot be
+     * converted.
+     */
+    protected Object cast(final Object value) {
+        Object convertedValue = TypeConverter.cast(value, dataType);
+        return convertedValue != null ? convertedValue : value;
+    }
+
+    /**
+     * Checks if a value is a Byte or Short.
+     *
+     * @param value The value to check.
+     * @return True if the value is a Byte or Short.
+     */
+    private static boolean isShortOrSmaller(final Object value) {
+        return value instanceof Short || value instanceof Byte;
+    }
+
+    /**
+     * Checks if a value is a Long in a range.
+     *
+     * @param value The value to check.
+     * @param min The minimum of the range.
+     * @param max The maximum of the range.
+     * @return True if the value is a Long in the range.
+     */
+    private static boolean isLongInRange(final Object value, final long min,
+            final long max) {
+        if (!(value instanceof Long)) {
+            return false;
+        }
+        long longValue = ((Long) value).longValue();
+        return longValue >= min && longValue <= max;
+    }
+
+    /**
+     * Checks if a value is a Byte, Short or Integer.
+     *
+     * @param value The value to check.
+     * @return True if the value is a Byte, Short or Integer.
+     */
+    private static boolean isIntegerOrSmaller(final Object value) {
+        return value instanceof Integer || isShortOrSmaller(value);
+    }
+
+    /**
+     * Passes values of one type through and casts all others.
+     */
+    private static final class ExactTypeConverter extends TagValueConverter {
+
+        /**
+         * The type of the tag.
+         */
+        private final Class<?> type;
+
+        /**
+         * Creates a new converter.
+         *
+         * @param dataType The data type of the tag.
+         * @param type The type of the tag.
+         * @param primitiveType The primitive type of the tag.
+         */
+        private ExactTypeConverter(final String dataType, final Class<?> type,
+                final int primitiveType) {
+            super(dataType, primitiveType);
+            this.type = type;
+        }
+
+        @Override
+        public Object convert(final Object value) {
+            if (value == null || value.getClass() == type) {
+                return value;
+            }
+            return cast(value);
+        }
+    }
+
+    /**
+     * Converter for Short tags.
+     */
+    private static final class ShortConverter extends TagValueConverter {
+
+        /**
+         * Creates a new converter.
+         *
+         * @param dataType The data type of the tag.
+         */
+        private ShortConverter(final String dataType) {
+            super(dataType, PRIMITIVE_NONE);
+        }
+
+        @Override
+        public Object convert(final Object value) {
+            if (value == null || value instanceof Short) {
+                return value;
+            }
+            if (value instanceof Byte
+                    || isLongInRange(value, Short.MIN_VALUE, Short.MAX_VALUE)) {
+                return ((Number) value).shortValue();
+            }
+            return cast(value);
+        }
+    }
+
+    /**
+     * Converter for Integer tags.
+     */
+    private static final class IntegerConverter extends TagValueConverter {
+
+        /**
+         * Creates a new converter.
+         *
+         * @param dataType The data type of the tag.
+         */
+        private IntegerConverter(final String dataType) {
+            super(dataType, PRIMITIVE_NONE);
+        }
+
+        @Override
+        public Object convert(final Object value) {
+            if (value == null || value instanceof Integer) {
+                return value;
+            }
+            if (isShortOrSmaller(value)
+                    || isLongInRange(value, Integer.MIN_VALUE, Integer.MAX_VALUE)) {
+                return ((Number) value).intValue();
+            }
+            return cast(value);
+        }
+    }
+
+    /**
+     * Converter for Long tags.
+     */
+    private static final class LongConverter extends TagValueConverter {
+
+        /**
+         * Creates a new converter.
+         *
+         * @param dataType The data type of the tag.
+         */
+        private LongConverter(final String dataType) {
+            super(dataType, PRIMITIVE_LONG);
+        }
+
+        @Override
+        public Object convert(final Object value) {
+            if (value == null || value instanceof Long) {
+                return value;
+            }
+            if (isIntegerOrSmaller(value)) {
+                return ((Number) value).longValue();
+            }
+            return cast(value);
+        }
+
+        @Override
+        public boolean takesPrimitive(final Object value) {
+            return value instanceof Long || isIntegerOrSmaller(value);
+        }
+    }
+
+    /**
+     * Converter for Float tags.
+     */
+    private static final class FloatConverter extends TagValueConverter {
+
+        /**
+         * Creates a new converter.
+         *
+         * @param dataType The data type of the tag.
+         */
+        private FloatConverter(final String dataType) {
+            super(dataType, PRIMITIVE_NONE);
+        }
+
+        @Override
+        public Object convert(final Object value) {
+            if (value == null || value instanceof Float) {
+                return value;
+            }
+            if (isShortOrSmaller(value)) {
+                return ((Number) value).floatValue();
+            }
+            return cast(value);
+        }
+    }
+
+    /**
+     * Converter for Double tags.
+     */
+    private static final class DoubleConverter extends TagValueConverter {
+
+        /**
+         * Creates a new converter.
+         *
+         * @param dataType The data type of the tag.
+         */
+        private DoubleConverter(final String dataType) {
+            super(dataType, PRIMITIVE_DOUBLE);
+        }
+
+        @Override
+        public Object convert(final Object value) {
+            if (value == null || value instanceof Double) {
+                return value;
+            }
+            if (isIntegerOrSmaller(value)
+                    || isLongInRange(value, -MAX_EXACT_DOUBLE, MAX_EXACT_DOUBLE)) {
+                return ((Number) value).doubleValue();
+            }
+            return cast(value);
+        }
+
+        @Override
+        public boolean takesPrimitive(final Object value) {
+            return value instanceof Double || isIntegerOrSmaller(value)
+                    || isLongInRange(value, -MAX_EXACT_DOUBLE, MAX_EXACT_DOUBLE);
+        }
+    }
+}
@@ -0,0 +1,637 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import java.util.Arrays;
+
+import cern.c2mon.shared.common.datatag.DataTagDeadband;
+import cern.c2mon.shared.common.datatag.ISourceDataTag;
+
+/**
+ * Filters the values of data tags before they are converted and sent to the
+ * core. A value is dropped if it is equal to the last sent value of the tag
+ * or if it lies within the absolute or relative value deadband of the tag.
+ * <p>
+ * A value which arrives within the time deadband of the tag is held back.
+ * Only the latest held value of a tag is kept. It is handed to a
+ * {@link HeldValueListener} by {@link #releaseHeldValues(long, HeldValueListener)}
+ * once the time deadband has passed, so the last value of a tag is never
+ * lost.
+ * <p>
+ * The state of the tags is kept in arrays indexed by the slot of the tag
+ * in a {@link TagSlotIndex}. Filtering a value of a known tag does not
+ * allocate. Primitive values ({@link #acceptLong(ISourceDataTag, long, long, long)}
+ * and {@link #acceptDouble(ISourceDataTag, long, double, long)}) are also
+ * held without boxing; they are boxed when they are released.
+ * <p>
+ * Integral values are kept as long and compared exactly, also above
+ * 2<sup>53</sup> where a double cannot tell neighbouring values apart.
+ * Only the distance to the last value for the value deadband is computed
+ * as double.
+ */
+public class TagValueFilter {
+
+    /**
+     * The initial number of tag slots.
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Kind of a slot without a sent value.
+     */
+    private static final byte KIND_NONE = 0;
+
+    /**
+     * Kind of a slot whose last sent value was an integral number.
+     */
+    private static final byte KIND_LONG = 1;
+
+    /**
+     * Kind of a slot whose last sent value was a floating point number.
+     */
+    private static final byte KIND_DOUBLE = 2;
+
+    /**
+     * Kind of a slot whose last sent value was any other object.
+     */
+    private static final byte KIND_OBJECT = 3;
+
+    /**
+     * Kind of a held object.
+     */
+    private static final byte HELD_OBJECT = 0;
+
+    /**
+     * Kind of a held long. The value is kept in heldBits.
+     */
+    private static final byte HELD_LONG = 1;
+
+    /**
+     * Kind of a held double. The raw bits of the value are kept in heldBits.
+     */
+    private static final byte HELD_DOUBLE = 2;
+
+    /**
+     * Listener for held values whose time deadband has passed.
+     */
+    public interface HeldValueListener {
+
+        /**
+         * Called for a held value which should be sent now.
+         *
+         * @param dataTag The data tag of the value.
+         * @param timestamp The timestamp of the value.
+         * @param value The value.
+         */
+        void onHeldValue(ISourceDataTag dataTag, long timestamp, Object value);
+    }
+
+    /**
+     * The slots of the tags.
+     */
+    private final TagSlotIndex index = new TagSlotIndex(INITIAL_CAPACITY);
+
+    /**
+     * The kind of the last sent value per slot.
+     */
+    private byte[] kinds;
+
+    /**
+     * The last sent value per slot if it was an integral number.
+     */
+    private long[] lastLongs;
+
+    /**
+     * The last sent value per slot if it was a floating point number.
+     */
+    private double[] lastDoubles;
+
+    /**
+     * The last sent value per slot if it was not a number.
+     */
+    private Object[] lastObjects;
+
+    /**
+     * The time the last value was sent per slot.
+     */
+    private long[] lastSendTimes;
+
+    /**
+     * The tag of the held value per slot or null if there is none.
+     */
+    private ISourceDataTag[] heldTags;
+
+    /**
+     * The held value per slot if it is an object.
+     */
+    private Object[] heldValues;
+
+    /**
+     * The kind of the held value per slot.
+     */
+    private byte[] heldKinds;
+
+    /**
+     * The held value per slot if it is a primitive.
+     */
+    private long[] heldBits;
+
+    /**
+     * The timestamp of the held value per slot.
+     */
+    private long[] heldTimestamps;
+
+    /**
+     * The number of held values.
+     */
+    private int heldCount;
+
+    /**
+     * The number of dropped values.
+     */
+    private long filteredCount;
+
+    /**
+     * Creates a new filter.
+     */
+    public TagValueFilter() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Checks if a value should be sent now. A value which passes is
+     * remembered as last sent value of the tag.
+     *
+     * @param dataTag The data tag of the value.
+     * @param timestamp The timestamp of the value.
+     * @param value The value.
+     * @param now The current time in milliseconds.
+     * @return True if the value should be sent now else false.
+     */
+    public synchronized boolean accept(final ISourceDataTag dataTag,
+            final long timestamp, final Object value, final long now) {
+        if (isIntegral(value)) {
+            return acceptLong(dataTag, timestamp, ((Number) value).longValue(),
+                    HELD_OBJECT, 0L, value, now);
+        }
+        if (value instanceof Number) {
+            return acceptDouble(dataTag, timestamp, ((Number) value).doubleValue(),
+                    HELD_OBJECT, 0L, value, now);
+        }
+        int slot = getOrCreateSlot(dataTag);
+        if (kinds[slot] == KIND_OBJECT
+                && (value == null ? lastObjects[slot] == null : value.equals(lastObjects[slot]))) {
+            return drop(slot);
+        }
+        if (hold(slot, dataTag, timestamp, HELD_OBJECT, 0L, value, now)) {
+            return false;
+        }
+        clearHeldValue(slot);
+        kinds[slot] = KIND_OBJECT;
+        lastObjects[slot] = value;
+        lastSendTimes[slot] = now;
+        return true;
+    }
+
+    /**
+     * Checks if a long value should be sent now. Like
+     * {@link #accept(ISourceDataTag, long, Object, long)} without boxing.
+     *
+     * @param dataTag The data tag of the value.
+     * @param timestamp The timestamp of the value.
+     * @param value The value.
+     * @param now The current time in milliseconds.
+     * @return True if the value should be sent now else false.
+     */
+    public synchronized boolean acceptLong(final ISourceDataTag dataTag,
+            final long timestamp, final long value, final long now) {
+        return acceptLong(dataTag, timestamp, value, HELD_LONG, value, null, now);
+    }
+
+    /**
+     * Checks if a double value should be sent now. Like
+     * {@link #accept(ISourceDataTag, long, Object, long)} without boxing.
+     *
+     * @param dataTag The data tag of the value.
+     * @param timestamp The timestamp of the value.
+     * @param value The value.
+     * @param now The current time in milliseconds.
+     * @return True if the value should be sent now else false.
+     */
+    public synchronized boolean acceptDouble(final ISourceDataTag dataTag,
+            final long timestamp, final double value, final long now) {
+        return acceptDouble(dataTag, timestamp, value, HELD_DOUBLE,
+                Double.doubleToRawLongBits(value), null, now);
+    }
+
+    /**
+     * Checks if an integral number should be sent now.
+     *
+     * @param dataTag The data tag of the value.
+     * @param timestamp The timestamp of the value.
+     * @param number The value as long.
+     * @param heldKind The kind of the value if it has to be held.
+     * @param bits The value if it is a primitive.
+     * @param value The value if it is an object.
+     * @param now The current time in milliseconds.
+     * @return True if the value should be sent now else false.
+     */
+    private boolean acceptLong(final ISourceDataTag dataTag,
+            final long timestamp, final long number, final byte heldKind,
+            final long bits, final Object value, final long now) {
+        int slot = getOrCreateSlot(dataTag);
+        if (kinds[slot] == KIND_LONG
+                && (lastLongs[slot] == number
+                    || isInValueDeadband(dataTag, distance(number, lastLongs[slot]), lastLongs[slot]))) {
+            return drop(slot);
+        }
+        if (kinds[slot] == KIND_DOUBLE
+                && (isEqual(number, lastDoubles[slot])
+                    || isInValueDeadband(dataTag, Math.abs(number - lastDoubles[slot]), lastDoubles[slot]))) {
+            return drop(slot);
+        }
+        if (hold(slot, dataTag, timestamp, heldKind, bits, value, now)) {
+            return false;
+        }
+        clearHeldValue(slot);
+        setLastLong(slot, number, now);
+        return true;
+    }
+
+    /**
+     * Checks if a floating point number should be sent now.
+     *
+     * @param dataTag The data tag of the value.
+     * @param timestamp The timestamp of the value.
+     * @param number The value as double.
+     * @param heldKind The kind of the value if it has to be held.
+     * @param bits The value if it is a primitive.
+     * @param value The value if it is an object.
+     * @param now The current time in milliseconds.
+     * @return True if the value should be sent now else false.
+     */
+    private boolean acceptDouble(final ISourceDataTag dataTag,
+            final long timestamp, final double number, final byte heldKind,
+            final long bits, final Object value, final long now) {
+        int slot = getOrCreateSlot(dataTag);
+        if (kinds[slot] == KIND_DOUBLE
+                && (Double.compare(lastDoubles[slot], number) == 0
+                    || isInValueDeadband(dataTag, Math.abs(number - lastDoubles[slot]), lastDoubles[slot]))) {
+            return drop(slot);
+        }
+        if (kinds[slot] == KIND_LONG
+                && (isEqual(lastLongs[slot], number)
+                    || isInValueDeadband(dataTag, Math.abs(number - lastLongs[slot]), lastLongs[slot]))) {
+            return drop(slot);
+        }
+        if (hold(slot, dataTag, timestamp, heldKind, bits, value, now)) {
+            return false;
+        }
+        clearHeldValue(slot);
+        setLastDouble(slot, number, now);
+        return true;
+    }
+
+    /**
+     * Checks if a value is an integral number which fits into a long.
+     *
+     * @param value The value.
+     * @return True if the value is a Long, Integer, Short or Byte.
+     */
+    private static boolean isIntegral(final Object value) {
+        return value instanceof Long || value instanceof Integer
+            || value instanceof Short || value instanceof Byte;
+    }
+
+    /**
+     * Checks if a long and a double are exactly the same number.
+     *
+     * @param longValue The long.
+     * @param doubleValue The double.
+     * @return True if the double is integral and equal to the long.
+     */
+    private static boolean isEqual(final long longValue, final double doubleValue) {
+        // the cast back rejects doubles the long was rounded to, 2^63
+        // would be cast to Long.MAX_VALUE
+        return (double) longValue == doubleValue && (long) doubleValue == longValue
+            && doubleValue != 0x1p63;
+    }
+
+    /**
+     * Returns the distance of two longs as double without overflow.
+     *
+     * @param value The new value.
+     * @param lastValue The last sent value.
+     * @return The absolute difference.
+     */
+    private static double distance(final long value, final long lastValue) {
+        long difference = value - lastValue;
+        if (((value ^ lastValue) & (value ^ difference)) < 0) {
+            // the difference overflows a long
+            return Math.abs((double) value - (double) lastValue);
+        }
+        return Math.abs((double) difference);
+    }
+
+    /**
+     * Returns the slot of a tag and creates it if needed.
+     *
+     * @param dataTag The data tag.
+     * @return The slot of the tag.
+     */
+    private int getOrCreateSlot(final ISourceDataTag dataTag) {
+        int slot = index.getOrCreateSlot(dataTag.getId());
+        if (slot == kinds.length) {
+            grow();
+        }
+        return slot;
+    }
+
+    /**
+     * Drops a duplicate or a value within the value deadband.
+     *
+     * @param slot The slot of the tag.
+     * @return Always false.
+     */
+    private boolean drop(final int slot) {
+        // the last sent value is the latest again
+        clearHeldValue(slot);
+        filteredCount++;
+        return false;
+    }
+
+    /**
+     * Holds a value back if it arrived within the time deadband of the tag.
+     *
+     * @param slot The slot of the tag.
+     * @param dataTag The data tag of the value.
+     * @param timestamp The timestamp of the value.
+     * @param heldKind The kind of the value.
+     * @param bits The value if it is a primitive.
+     * @param value The value if it is an object.
+     * @param now The current time in milliseconds.
+     * @return True if the value was held else false.
+     */
+    private boolean hold(final int slot, final ISourceDataTag dataTag,
+            final long timestamp, final byte heldKind, final long bits,
+            final Object value, final long now) {
+        int timeDeadband = dataTag.getTimeDeadband();
+        if (kinds[slot] == KIND_NONE || timeDeadband <= 0
+                || now - lastSendTimes[slot] >= timeDeadband) {
+            return false;
+        }
+        if (heldTags[slot] == null) {
+            heldCount++;
+        }
+        else {
+            filteredCount++;
+        }
+        heldTags[slot] = dataTag;
+        heldKinds[slot] = heldKind;
+        heldBits[slot] = bits;
+        heldValues[slot] = value;
+        heldTimestamps[slot] = timestamp;
+        return true;
+    }
+
+    /**
+     * Hands all held values whose time deadband has passed to the listener.
+     * The listener is called outside of the lock of this filter.
+     *
+     * @param now The current time in milliseconds.
+     * @param listener The listener to send the values.
+     */
+    public void releaseHeldValues(final long now, final HeldValueListener listener) {
+        int slot = 0;
+        while (true) {
+            ISourceDataTag dataTag;
+            Object value;
+            long timestamp;
+            synchronized (this) {
+                if (heldCount == 0) {
+                    return;
+                }
+                while (slot < index.size() && (heldTags[slot] == null
+                        || now - lastSendTimes[slot] < heldTags[slot].getTimeDeadband())) {
+                    slot++;
+                }
+                if (slot == index.size()) {
+                    return;
+                }
+                dataTag = heldTags[slot];
+                value = getHeldValue(slot);
+                timestamp = heldTimestamps[slot];
+                clearHeldValue(slot);
+                setLastValue(slot, value, now);
+            }
+            listener.onHeldValue(dataTag, timestamp, value);
+            slot++;
+        }
+    }
+
+    /**
+     * Forgets the state of a tag. The next value of the tag will pass.
+     *
+     * @param tagId The id of the tag.
+     */
+    public synchronized void reset(final long tagId) {
+        int slot = index.getSlot(tagId);
+        if (slot >= 0) {
+            resetSlot(slot);
+        }
+    }
+
+    /**
+     * Forgets the state of all tags.
+     */
+    public synchronized void resetAll() {
+        for (int slot = 0; slot < index.size(); slot++) {
+            resetSlot(slot);
+        }
+    }
+
+    /**
+     * Returns the number of values which were dropped.
+     *
+     * @return The number of dropped values.
+     */
+    public synchronized long getFilteredCount() {
+        return filteredCount;
+    }
+
+    /**
+     * Returns the number of values which are held back at the moment.
+     *
+     * @return The number of held values.
+     */
+    public synchronized int getHeldCount() {
+        return heldCount;
+    }
+
+    /**
+     * Checks if a number lies within the value deadband of the tag around
+     * the last sent value.
+     *
+     * @param dataTag The data tag with the deadband configuration.
+     * @param difference The absolute difference to the last sent value.
+     * @param lastValue The last sent value.
+     * @return True if the value is within the deadband else false.
+     */
+    private static boolean isInValueDeadband(final ISourceDataTag dataTag,
+            final double difference, final double lastValue) {
+        float deadband = dataTag.getValueDeadband();
+        if (deadband <= 0.0f) {
+            return false;
+        }
+        short type = dataTag.getValueDeadbandType();
+        if (type == DataTagDeadband.DEADBAND_PROCESS_ABSOLUTE
+                || type == DataTagDeadband.DEADBAND_EQUIPMENT_ABSOLUTE) {
+            return difference < deadband;
+        }
+        if (type == DataTagDeadband.DEADBAND_PROCESS_RELATIVE
+                || type == DataTagDeadband.DEADBAND_EQUIPMENT_RELATIVE) {
+            // the relative deadband is a percentage of the last value
+            return lastValue != 0.0 && difference / Math.abs(lastValue) * 100.0 < deadband;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the held value of a slot. Primitives are boxed.
+     *
+     * @param slot The slot of the tag.
+     * @return The held value.
+     */
+    private Object getHeldValue(final int slot) {
+        switch (heldKinds[slot]) {
+        case HELD_LONG:
+            return Long.valueOf(heldBits[slot]);
+        case HELD_DOUBLE:
+            return Double.valueOf(Double.longBitsToDouble(heldBits[slot]));
+        default:
+            return heldValues[slot];
+        }
+    }
+
+    /**
+     * Remembers a value as last sent value of a slot.
+     *
+     * @param slot The slot of the tag.
+     * @param value The sent value.
+     * @param now The time the value was sent.
+     */
+    private void setLastValue(final int slot, final Object value, final long now) {
+        if (isIntegral(value)) {
+            setLastLong(slot, ((Number) value).longValue(), now);
+        }
+        else if (value instanceof Number) {
+            setLastDouble(slot, ((Number) value).doubleValue(), now);
+        }
+        else {
+            kinds[slot] = KIND_OBJECT;
+            lastObjects[slot] = value;
+            lastSendTimes[slot] = now;
+        }
+    }
+
+    /**
+     * Remembers an integral number as last sent value of a slot.
+     *
+     * @param slot The slot of the tag.
+     * @param value The sent value.
+     * @param now The time the value was sent.
+     */
+    private void setLastLong(final int slot, final long value, final long now) {
+        kinds[slot] = KIND_LONG;
+        lastLongs[slot] = value;
+        lastObjects[slot] = null;
+        lastSendTimes[slot] = now;
+    }
+
+    /**
+     * Remembers a floating point number as last sent value of a slot.
+     *
+     * @param slot The slot of the tag.
+     * @param value The sent value.
+     * @param now The time the value was sent.
+     */
+    private void setLastDouble(final int slot, final double value, final long now) {
+        kinds[slot] = KIND_DOUBLE;
+        lastDoubles[slot] = value;
+        lastObjects[slot] = null;
+        lastSendTimes[slot] = now;
+    }
+
+    /**
+     * Removes the held value of a slot if there is one.
+     *
+     * @param slot The slot of the tag.
+     */
+    private void clearHeldValue(final int slot) {
+        if (heldTags[slot] != null) {
+            heldTags[slot] = null;
+            heldValues[slot] = null;
+            heldCount--;
+        }
+    }
+
+    /**
+     * Forgets the sent and held value of a slot.
+     *
+     * @param slot The slot of the tag.
+     */
+    private void resetSlot(final int slot) {
+        clearHeldValue(slot);
+        kinds[slot] = KIND_NONE;
+        lastObjects[slot] = null;
+    }
+
+    /**
+     * Doubles the number of slots.
+     */
+    private void grow() {
+        int capacity = kinds.length * 2;
+        kinds = Arrays.copyOf(kinds, capacity);
+        lastLongs = Arrays.copyOf(lastLongs, capacity);
+        lastDoubles = Arrays.copyOf(lastDoubles, capacity);
+        lastObjects = Arrays.copyOf(lastObjects, capacity);
+        lastSendTimes = Arrays.copyOf(lastSendTimes, capacity);
+        heldTags = Arrays.copyOf(heldTags, capacity);
+        heldValues = Arrays.copyOf(heldValues, capacity);
+        heldKinds = Arrays.copyOf(heldKinds, capacity);
+        heldBits = Arrays.copyOf(heldBits, capacity);
+        heldTimestamps = Arrays.copyOf(heldTimestamps, capacity);
+    }
+
+    /**
+     * Creates empty arrays for the provided number of slots.
+     *
+     * @param capacity The number of slots.
+     */
+    private void allocate(final int capacity) {
+        kinds = new byte[capacity];
+        lastLongs = new long[capacity];
+        lastDoubles = new double[capacity];
+        lastObjects = new Object[capacity];
+        lastSendTimes = new long[capacity];
+        heldTags = new ISourceDataTag[capacity];
+        heldValues = new Object[capacity];
+        heldKinds = new byte[capacity];
+        heldBits = new long[capacity];
+        heldTimestamps = new long[capacity];
+    }
+}
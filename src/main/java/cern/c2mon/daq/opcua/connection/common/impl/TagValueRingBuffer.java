@@ -0,0 +1,586 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cern.c2mon.daq.opcua.connection.common.IOPCEndpointListener;
+import cern.c2mon.shared.common.datatag.ISourceDataTag;
+
+/**
+ * Hands the updates of an endpoint over to a delivery thread without
+ * locking. The updates are written to rings of preallocated slots which any
+ * number of endpoint threads can fill. A slot holds the tag, the timestamp
+ * and either a primitive value, a value object or the cause of an
+ * invalidation. The delivery thread drains the rings in batches into the
+ * listener. The updates of a ring are delivered in the order their slots
+ * were claimed.
+ * <p>
+ * The slots are preallocated arrays on the Java heap, not off-heap memory.
+ * The tags, value objects and causes are Java objects which the listener
+ * needs as they are, so an off-heap ring would have to serialize them or
+ * still keep a reference per slot on the heap. Preallocating the slots
+ * already keeps the ring free of allocations, and primitive values stay
+ * unboxed in their long slots.
+ * <p>
+ * There is a high priority and a normal ring. Tags whose priority is at
+ * least the high priority threshold use the high priority ring, which is
+ * always drained first. The normal ring is drained in small batches, so an
+ * update of a high priority tag waits for at most one small batch of
+ * normal updates. The time every update waits in its ring is recorded in a
+ * latency histogram per ring.
+ * <p>
+ * An endpoint thread never waits for the listener. If a ring is full the
+ * update is dropped and counted. Once the delivery thread has caught up it
+ * reports the dropped updates to the {@link OverflowListener} so the lost
+ * values can be refreshed.
+ * <p>
+ * Subscription exceptions are passed to the listener directly.
+ */
+public class TagValueRingBuffer implements IOPCEndpointListener {
+
+    /**
+     * The slot holds a value object.
+     */
+    private static final byte KIND_OBJECT = 0;
+
+    /**
+     * The slot holds a long value.
+     */
+    private static final byte KIND_LONG = 1;
+
+    /**
+     * The slot holds a double value.
+     */
+    private static final byte KIND_DOUBLE = 2;
+
+    /**
+     * The slot holds an invalidation.
+     */
+    private static final byte KIND_INVALID = 3;
+
+    /**
+     * Maximum number of high priority slots delivered before they are given
+     * back to the endpoint threads.
+     */
+    private static final int MAX_BATCH = 256;
+
+    /**
+     * Maximum number of normal slots delivered before the high priority ring
+     * is checked again.
+     */
+    private static final int MAX_NORMAL_BATCH = 16;
+
+    /**
+     * Maximum time the delivery thread parks in nanoseconds before it
+     * checks the rings again.
+     */
+    private static final long PARK_NANOS = 10000000L;
+
+    /**
+     * logger of this class.
+     */
+    private final static Logger logger = LoggerFactory.getLogger(TagValueRingBuffer.class);
+
+    /**
+     * Listener for updates dropped because a ring was full.
+     */
+    public interface OverflowListener {
+
+        /**
+         * Called by the delivery thread once the rings are empty again after
+         * updates were dropped.
+         *
+         * @param droppedCount The number of updates dropped since the last
+         * call.
+         */
+        void onOverflow(long droppedCount);
+    }
+
+    /**
+     * The listener the updates are delivered to.
+     */
+    private final IOPCEndpointListener listener;
+
+    /**
+     * The listener for dropped updates or null.
+     */
+    private final OverflowListener overflowListener;
+
+    /**
+     * The minimum priority of the tags using the high priority ring.
+     */
+    private final int highPriority;
+
+    /**
+     * The ring of the high priority tags.
+     */
+    private final Ring highRing;
+
+    /**
+     * The ring of all other tags.
+     */
+    private final Ring normalRing;
+
+    /**
+     * True while the delivery thread is parked or about to park.
+     */
+    private volatile boolean waiting;
+
+    /**
+     * The number of dropped updates.
+     */
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * The number of dropped updates already reported to the overflow
+     * listener. Only used by the delivery thread.
+     */
+    private long reportedDroppedCount;
+
+    /**
+     * The delivery thread or null if stopped.
+     */
+    private volatile Thread deliveryThread;
+
+    /**
+     * Creates a new ring buffer.
+     *
+     * @param listener The listener to deliver the updates to.
+     * @param capacity The minimum number of slots per ring. It is rounded up
+     * to a power of two.
+     * @param highPriority The minimum priority of the data tag address of
+     * the tags which use the high priority ring.
+     * @param overflowListener The listener for dropped updates or null to
+     * only log them.
+     */
+    public TagValueRingBuffer(final IOPCEndpointListener listener,
+            final int capacity, final int highPriority,
+            final OverflowListener overflowListener) {
+        this.listener = listener;
+        this.highPriority = highPriority;
+        this.overflowListener = overflowListener;
+        int size = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1);
+        this.highRing = new Ring(size);
+        this.normalRing = new Ring(size);
+    }
+
+    /**
+     * Starts the delivery thread.
+     *
+     * @param name The name of the thread.
+     */
+    public synchronized void start(final String name) {
+        if (deliveryThread != null) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deliver();
+            }
+        }, name);
+        thread.setDaemon(true);
+        deliveryThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the delivery thread. Updates which are not yet delivered are
+     * dropped with the rings.
+     */
+    public synchronized void stop() {
+        if (deliveryThread != null) {
+            deliveryThread.interrupt();
+            deliveryThread = null;
+        }
+    }
+
+    /**
+     * Writes the value to the ring of the tag.
+     *
+     * @param dataTag The tag whose value changed.
+     * @param timestamp The timestamp when the value was updated.
+     * @param value The new value.
+     */
+    @Override
+    public void onNewTagValue(final ISourceDataTag dataTag, final long timestamp,
+            final Object value) {
+        offer(dataTag, timestamp, KIND_OBJECT, 0L, value);
+    }
+
+    /**
+     * Writes the value to the ring of the tag without boxing it.
+     *
+     * @param dataTag The tag whose value changed.
+     * @param timestamp The timestamp when the value was updated.
+     * @param value The new value.
+     */
+    @Override
+    public void onNewTagValue(final ISourceDataTag dataTag, final long timestamp,
+            final long value) {
+        offer(dataTag, timestamp, KIND_LONG, value, null);
+    }
+
+    /**
+     * Writes the value to the ring of the tag without boxing it.
+     *
+     * @param dataTag The tag whose value changed.
+     * @param timestamp The timestamp when the value was updated.
+     * @param value The new value.
+     */
+    @Override
+    public void onNewTagValue(final ISourceDataTag dataTag, final long timestamp,
+            final double value) {
+        offer(dataTag, timestamp, KIND_DOUBLE, Double.doubleToRawLongBits(value), null);
+    }
+
+    /**
+     * Writes the invalidation to the ring of the tag.
+     *
+     * @param dataTag The tag which caused the exception.
+     * @param cause The cause of the exception.
+     */
+    @Override
+    public void onTagInvalidException(final ISourceDataTag dataTag,
+            final Throwable cause) {
+        offer(dataTag, 0L, KIND_INVALID, 0L, cause);
+    }
+
+    /**
+     * Passes the exception to the listener.
+     *
+     * @param cause The cause of the subscription failure.
+     */
+    @Override
+    public void onSubscriptionException(final Throwable cause) {
+        listener.onSubscriptionException(cause);
+    }
+
+    /**
+     * Returns the number of slots per ring.
+     *
+     * @return The capacity of a ring.
+     */
+    public int getCapacity() {
+        return normalRing.mask + 1;
+    }
+
+    /**
+     * Returns the number of updates dropped because a ring was full.
+     *
+     * @return The number of dropped updates.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Returns the number of delivered updates.
+     *
+     * @return The number of delivered updates.
+     */
+    public long getDeliveredCount() {
+        return highRing.consumed + normalRing.consumed;
+    }
+
+    /**
+     * Returns the number of claimed slots which are not delivered yet.
+     *
+     * @return The number of pending updates.
+     */
+    public int getPendingCount() {
+        return highRing.getPendingCount() + normalRing.getPendingCount();
+    }
+
+    /**
+     * Returns the histogram of the time the updates of high priority tags
+     * waited for their delivery.
+     *
+     * @return The latency histogram of the high priority ring.
+     */
+    public LatencyHistogram getHighPriorityLatency() {
+        return highRing.latency;
+    }
+
+    /**
+     * Returns the histogram of the time the updates of the other tags waited
+     * for their delivery.
+     *
+     * @return The latency histogram of the normal ring.
+     */
+    public LatencyHistogram getNormalLatency() {
+        return normalRing.latency;
+    }
+
+    /**
+     * Writes an update to the ring of its tag and wakes the delivery thread
+     * if it is waiting.
+     *
+     * @param dataTag The tag of the update.
+     * @param timestamp The timestamp of the value.
+     * @param kind The kind of update.
+     * @param primitive The primitive value.
+     * @param reference The value object or the cause of an invalidation.
+     */
+    private void offer(final ISourceDataTag dataTag, final long timestamp,
+            final byte kind, final long primitive, final Object reference) {
+        Ring ring = dataTag.getAddress() != null
+            && dataTag.getAddress().getPriority() >= highPriority ? highRing : normalRing;
+        if (!ring.offer(dataTag, timestamp, kind, primitive, reference)) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        if (waiting) {
+            Thread thread = deliveryThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    /**
+     * Delivers the published updates until the thread is stopped. The high
+     * priority ring is checked before every batch of the normal ring.
+     */
+    private void deliver() {
+        Thread current = Thread.currentThread();
+        while (!current.isInterrupted()) {
+            if (highRing.drain(MAX_BATCH) > 0 || normalRing.drain(MAX_NORMAL_BATCH) > 0) {
+                continue;
+            }
+            long dropped = droppedCount.get();
+            if (dropped != reportedDroppedCount) {
+                reportOverflow(dropped - reportedDroppedCount);
+                reportedDroppedCount = dropped;
+                continue;
+            }
+            waiting = true;
+            if (!highRing.isPublished() && !normalRing.isPublished()) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            waiting = false;
+        }
+    }
+
+    /**
+     * Reports dropped updates to the overflow listener.
+     *
+     * @param dropped The number of dropped updates.
+     */
+    private void reportOverflow(final long dropped) {
+        if (overflowListener == null) {
+            logger.warn("Ring full. " + dropped + " updates dropped.");
+            return;
+        }
+        try {
+            overflowListener.onOverflow(dropped);
+        } catch (RuntimeException e) {
+            logger.error("Error reporting dropped updates.", e);
+        }
+    }
+
+    /**
+     * A ring of preallocated slots filled by any number of endpoint threads
+     * and drained by the delivery thread.
+     */
+    private final class Ring {
+
+        /**
+         * The number of slots minus one. The number of slots is a power of
+         * two.
+         */
+        private final int mask;
+
+        /**
+         * The tag per slot.
+         */
+        private final ISourceDataTag[] tags;
+
+        /**
+         * The timestamp per slot.
+         */
+        private final long[] timestamps;
+
+        /**
+         * The kind of update per slot.
+         */
+        private final byte[] kinds;
+
+        /**
+         * The long value or the bits of the double value per slot.
+         */
+        private final long[] primitives;
+
+        /**
+         * The value object or the cause of the invalidation per slot.
+         */
+        private final Object[] references;
+
+        /**
+         * The time in nanoseconds the update was written per slot.
+         */
+        private final long[] offerTimes;
+
+        /**
+         * The sequence number of the update per slot once it is completely
+         * written. The delivery thread reads a slot only after its sequence
+         * number is published here.
+         */
+        private final AtomicLongArray published;
+
+        /**
+         * The next sequence number to claim.
+         */
+        private final AtomicLong claimed = new AtomicLong();
+
+        /**
+         * The sequence number of the next update to deliver. Slots below it
+         * are free again. Only written by the delivery thread.
+         */
+        private volatile long consumed;
+
+        /**
+         * The time the updates waited in this ring.
+         */
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        /**
+         * Creates a new ring.
+         *
+         * @param size The number of slots. It has to be a power of two.
+         */
+        private Ring(final int size) {
+            this.mask = size - 1;
+            this.tags = new ISourceDataTag[size];
+            this.timestamps = new long[size];
+            this.kinds = new byte[size];
+            this.primitives = new long[size];
+            this.references = new Object[size];
+            this.offerTimes = new long[size];
+            this.published = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                published.set(i, -1L);
+            }
+        }
+
+        /**
+         * Claims a slot, writes the update to it and publishes it to the
+         * delivery thread.
+         *
+         * @param dataTag The tag of the update.
+         * @param timestamp The timestamp of the value.
+         * @param kind The kind of update.
+         * @param primitive The primitive value.
+         * @param reference The value object or the cause of an invalidation.
+         * @return False if the ring is full.
+         */
+        private boolean offer(final ISourceDataTag dataTag, final long timestamp,
+                final byte kind, final long primitive, final Object reference) {
+            long sequence;
+            do {
+                sequence = claimed.get();
+                if (sequence - consumed > mask) {
+                    return false;
+                }
+            } while (!claimed.compareAndSet(sequence, sequence + 1));
+            int slot = (int) sequence & mask;
+            tags[slot] = dataTag;
+            timestamps[slot] = timestamp;
+            kinds[slot] = kind;
+            primitives[slot] = primitive;
+            references[slot] = reference;
+            offerTimes[slot] = System.nanoTime();
+            published.set(slot, sequence);
+            return true;
+        }
+
+        /**
+         * Returns true if the next update to deliver is published.
+         *
+         * @return True if the ring has an update to deliver.
+         */
+        private boolean isPublished() {
+            long next = consumed;
+            return published.get((int) next & mask) == next;
+        }
+
+        /**
+         * Returns the number of claimed slots which are not delivered yet.
+         *
+         * @return The number of pending updates.
+         */
+        private int getPendingCount() {
+            return (int) (claimed.get() - consumed);
+        }
+
+        /**
+         * Delivers the published updates in order and frees their slots.
+         *
+         * @param maxCount The maximum number of updates to deliver.
+         * @return The number of delivered updates.
+         */
+        private int drain(final int maxCount) {
+            long next = consumed;
+            int count = 0;
+            while (count < maxCount && published.get((int) (next + count) & mask) == next + count) {
+                deliverSlot((int) (next + count) & mask);
+                count++;
+            }
+            if (count > 0) {
+                consumed = next + count;
+            }
+            return count;
+        }
+
+        /**
+         * Delivers the update of a slot to the listener and clears the slot.
+         *
+         * @param slot The slot.
+         */
+        private void deliverSlot(final int slot) {
+            latency.record(System.nanoTime() - offerTimes[slot]);
+            ISourceDataTag dataTag = tags[slot];
+            Object reference = references[slot];
+            tags[slot] = null;
+            references[slot] = null;
+            try {
+                switch (kinds[slot]) {
+                case KIND_LONG:
+                    listener.onNewTagValue(dataTag, timestamps[slot], primitives[slot]);
+                    break;
+                case KIND_DOUBLE:
+                    listener.onNewTagValue(dataTag, timestamps[slot],
+                            Double.longBitsToDouble(primitives[slot]));
+                    break;
+                case KIND_INVALID:
+                    listener.onTagInvalidException(dataTag, (Throwable) reference);
+                    break;
+                default:
+                    listener.onNewTagValue(dataTag, timestamps[slot], reference);
+                }
+            } catch (RuntimeException e) {
+                logger.error("Error delivering update of tag " + dataTag.getId(), e);
+            }
+        }
+    }
+}
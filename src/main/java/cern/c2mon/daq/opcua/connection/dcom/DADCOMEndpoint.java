@@ -18,13 +18,13 @@ package cern.c2mon.daq.opcua.connection.dcom;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,15 +35,16 @@ import cern.c2mon.daq.opcua.connection.common.IItemDefinitionFactory;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCCommunicationException;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCCriticalException;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCEndpoint;
+import cern.c2mon.daq.opcua.connection.common.impl.StatusQualityTable;
 import cern.c2mon.daq.opcua.connection.common.impl.SubscriptionGroup;
 import cern.c2mon.daq.opcua.jintegraInterface.DIOPCGroupEventAdapter;
+import cern.c2mon.daq.opcua.jintegraInterface.DIOPCGroupEventAsyncWriteCompleteEvent;
 import cern.c2mon.daq.opcua.jintegraInterface.DIOPCGroupEventDataChangeEvent;
 import cern.c2mon.daq.opcua.jintegraInterface.IOPCAutoServer;
 import cern.c2mon.daq.opcua.jintegraInterface.IOPCGroup;
 import cern.c2mon.daq.opcua.jintegraInterface.IOPCGroups;
 import cern.c2mon.daq.opcua.jintegraInterface.OPCDataSource;
 import cern.c2mon.daq.opcua.jintegraInterface.OPCGroup;
-import cern.c2mon.daq.opcua.jintegraInterface.OPCItem;
 import cern.c2mon.daq.opcua.jintegraInterface.OPCItems;
 import cern.c2mon.daq.opcua.jintegraInterface.OPCServer;
 import cern.c2mon.daq.opcua.jintegraInterface.OPCServerState;
@@ -70,6 +71,41 @@ public class DADCOMEndpoint extends OPCEndpoint<DADCOMItemDefintion> {
      */
     private static final int[] CANCEL_ID = new int[1];
 
+    /**
+     * Maximum number of items added to a group with one call.
+     */
+    private static final int ADD_ITEMS_CHUNK_SIZE = 500;
+
+    /**
+     * Number of threads which process incomming data of all groups.
+     */
+    private static final int DATA_CHANGE_THREADS = 4;
+
+    /**
+     * Maximum number of items read with one SyncRead during a refresh.
+     */
+    private static final int REFRESH_CHUNK_SIZE = 500;
+
+    /**
+     * Pause in milliseconds between the calls of a refresh.
+     */
+    private static final long REFRESH_PAUSE = 100L;
+
+    /**
+     * Time in milliseconds to wait for the completion of an async write.
+     */
+    private static final long WRITE_TIMEOUT = 10000L;
+
+    /**
+     * Refresh source to read from the device.
+     */
+    private static final String DEVICE_REFRESH = "device";
+
+    /**
+     * Refresh source to refresh whole groups asynchronously.
+     */
+    private static final String ASYNC_REFRESH = "async";
+
     /**
      * The OPC server object.
      */
@@ -81,30 +117,46 @@ public class DADCOMEndpoint extends OPCEndpoint<DADCOMItemDefintion> {
     private Long groupNameCounter = 0L;
 
     /**
-     * Map of client item handles to opc items.
+     * Map of client item handles to subscribed items.
      */
-    private final Map<Integer, OPCItem> itemHandleOpcItems =
-        new HashMap<Integer, OPCItem>();
+    private final Map<Integer, SubscribedItem> subscribedItems =
+        new HashMap<Integer, SubscribedItem>();
 
     /**
      * Group for all OPCItems used as commands.
      */
     private OPCGroup opcCommandGroup;
 
+    /**
+     * Batches the writes to the command group into AsyncWrite calls.
+     */
+    private DCOMWriteBatcher writeBatcher;
+
     /**
      * The authentication info of this endpoint.
      */
     private AuthInfo authInfo;
 
     /**
-     * Thread pool for incomming data.
+     * The source refreshes read from (see AbstractOPCUAAddress).
+     */
+    private String refreshSource = AbstractOPCUAAddress.DEFAULT_REFRESH_SOURCE;
+
+    /**
+     * Thread pool for incomming data. Data of one group is processed in
+     * order.
      */
-    private ExecutorService executorService;
+    private volatile DCOMGroupExecutor groupExecutor;
 
     /**
-     * Calendar to correct GMT time given by OPC server to local time
+     * Converter to correct GMT time given by OPC server to local time
      */
-    private final GregorianCalendar gregorianCalendar = new GregorianCalendar();
+    private final DCOMTimestampConverter timestampConverter = new DCOMTimestampConverter();
+
+    /**
+     * The exceptions of the bad and uncertain qualities received so far.
+     */
+    private final StatusQualityTable badQualities = new StatusQualityTable();
 
     /**
      * logger of this class.
@@ -140,7 +192,10 @@ public class DADCOMEndpoint extends OPCEndpoint<DADCOMItemDefintion> {
         String user = opcAddress.getUser();
         String password = opcAddress.getPassword();
         authInfo = new AuthInfo(domain, user, password);
-        executorService = Executors.newFixedThreadPool(1);
+        if (opcAddress.getRefreshSource() != null) {
+            refreshSource = opcAddress.getRefreshSource().toLowerCase();
+        }
+        groupExecutor = new DCOMGroupExecutor(DATA_CHANGE_THREADS);
         try {
             setUpConnection(uri);
         } catch (AutomationException e) {
@@ -218,13 +273,14 @@ public class DADCOMEndpoint extends OPCEndpoint<DADCOMItemDefintion> {
     private IOPCGroup processGroup(
             final SubscriptionGroup<DADCOMItemDefintion> subscritionGroup)
             throws IOException, AutomationException {
-        IOPCGroup group = subscribe(subscritionGroup);
+        final String groupName = getNewGroupName();
+        IOPCGroup group = subscribe(subscritionGroup, groupName);
         group.addDIOPCGroupEventListener(new DIOPCGroupEventAdapter() {
             private static final long serialVersionUID = 1L;
 
             @Override
             public void dataChange(final DIOPCGroupEventDataChangeEvent theEvent) throws IOException {
-                notifyListeners(theEvent);
+                notifyListeners(groupName, theEvent);
             }
 
         });
@@ -243,46 +299,98 @@ public class DADCOMEndpoint extends OPCEndpoint<DADCOMItemDefintion> {
      *
      * @param subscriptionGroup
      *            The SubscriptionGroup with the items to connect to.
+     * @param groupName
+     *            The name of the new OPC group.
      * @return The created group.
      * @throws IOException
      *             Throws an IOException if the subscription to the server fails
      *             due to an I/O error.
      */
-    private IOPCGroup subscribe(final SubscriptionGroup<DADCOMItemDefintion> subscriptionGroup) throws IOException {
+    private IOPCGroup subscribe(final SubscriptionGroup<DADCOMItemDefintion> subscriptionGroup,
+            final String groupName) throws IOException {
         IOPCGroups opcGroups = server.getOPCGroups();
         int updateRate = subscriptionGroup.getTimeDeadband();
         float valueDeadband = subscriptionGroup.getValueDeadband();
-        IOPCGroup group = OPCDCOMFactory.createOPCGroup(opcGroups, getNewGroupName(), updateRate, valueDeadband);
+        IOPCGroup group = OPCDCOMFactory.createOPCGroup(opcGroups, groupName, updateRate, valueDeadband);
         OPCItems items = group.getOPCItems();
+        List<DADCOMItemDefintion> definitions = new ArrayList<DADCOMItemDefintion>();
+        List<String> itemAddresses = new ArrayList<String>();
+        List<Integer> clientHandles = new ArrayList<Integer>();
         for (DADCOMItemDefintion definition : subscriptionGroup.getUnsubscribedDefinitions()) {
-            long itemDefinitionId = definition.getId();
-            int clientHandle = Long.valueOf(itemDefinitionId).intValue();
-            String itemAddress = definition.getAddress();
+            int clientHandle = Long.valueOf(definition.getId()).intValue();
 
             // Mark this item as subscribed, in order to prevent re-creating it
             // unnecessarily (see TIMD-140)
             definition.setSubscribed(true);
 
-            try {
-                OPCItem item = OPCDCOMFactory.createOPCItem(items, clientHandle, itemAddress);
-                itemHandleOpcItems.put(clientHandle, item);
-                if (definition.hasRedundantAddress()) {
-                    // use just the negative value makes it easy to map back
-                    int redundantClientHandle = -clientHandle;
-                    String redundantItemAddress = definition.getRedundantAddress();
-                    item = OPCDCOMFactory.createOPCItem(items, redundantClientHandle, redundantItemAddress);
-                    itemHandleOpcItems.put(redundantClientHandle, item);
-                }
-            } catch (AutomationException e) {
-                RuntimeException ex = OPCDCOMFactory.createWrappedAutomationException(e, itemAddress);
-                notifyEndpointListenersItemError(itemDefinitionId, ex);
-            } catch (Throwable e) {
-                notifyEndpointListenersItemError(itemDefinitionId, e);
+            definitions.add(definition);
+            itemAddresses.add(definition.getAddress());
+            clientHandles.add(clientHandle);
+            if (definition.hasRedundantAddress()) {
+                // use just the negative value makes it easy to map back
+                definitions.add(definition);
+                itemAddresses.add(definition.getRedundantAddress());
+                clientHandles.add(-clientHandle);
             }
         }
+        for (int start = 0; start < definitions.size(); start += ADD_ITEMS_CHUNK_SIZE) {
+            int end = Math.min(start + ADD_ITEMS_CHUNK_SIZE, definitions.size());
+            addItems(group, groupName, items, definitions.subList(start, end),
+                    itemAddresses.subList(start, end),
+                    clientHandles.subList(start, end));
+        }
         return group;
     }
 
+    /**
+     * Adds items to a group with a single call. Errors are reported per
+     * item definition.
+     *
+     * @param group The group of the items.
+     * @param groupName The name of the group.
+     * @param items The items of the group.
+     * @param definitions The definition of each item.
+     * @param itemAddresses The address of each item.
+     * @param clientHandles The client handle of each item.
+     */
+    private void addItems(final IOPCGroup group, final String groupName, final OPCItems items,
+            final List<DADCOMItemDefintion> definitions,
+            final List<String> itemAddresses, final List<Integer> clientHandles) {
+        int size = definitions.size();
+        String[] addressArray = itemAddresses.toArray(new String[size]);
+        int[] clientHandleArray = new int[size];
+        for (int i = 0; i < size; i++) {
+            clientHandleArray[i] = clientHandles.get(i);
+        }
+        int[] serverHandles = new int[size];
+        int[] errors = new int[size];
+        try {
+            OPCDCOMFactory.createOPCItems(items, addressArray, clientHandleArray,
+                    serverHandles, errors);
+        } catch (AutomationException e) {
+            for (int i = 0; i < size; i++) {
+                RuntimeException ex = OPCDCOMFactory.createWrappedAutomationException(e, addressArray[i]);
+                notifyEndpointListenersItemError(definitions.get(i).getId(), clientHandleArray[i] < 0, ex);
+            }
+            return;
+        } catch (Throwable e) {
+            for (int i = 0; i < size; i++) {
+                notifyEndpointListenersItemError(definitions.get(i).getId(), clientHandleArray[i] < 0, e);
+            }
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            if (errors[i] == 0) {
+                subscribedItems.put(clientHandleArray[i],
+                        new SubscribedItem(group, groupName, serverHandles[i], addressArray[i]));
+            }
+            else {
+                RuntimeException ex = OPCDCOMFactory.createItemException(errors[i], addressArray[i]);
+                notifyEndpointListenersItemError(definitions.get(i).getId(), clientHandleArray[i] < 0, ex);
+            }
+        }
+    }
+
     /**
      * Returns a new unique group name.
      *
@@ -295,47 +403,67 @@ public class DADCOMEndpoint extends OPCEndpoint<DADCOMItemDefintion> {
     }
 
     /**
-     * Notifies all listeners about the updates in the event.
+     * Notifies all listeners about the updates in the event. Events of the
+     * same group are processed in order.
      *
+     * @param groupName
+     *            The name of the OPC group of the event.
      * @param theEvent
      *            The event with the updates.
      */
-    private void notifyListeners(final DIOPCGroupEventDataChangeEvent theEvent) {
-        executorService.execute(new Runnable() {
+    private void notifyListeners(final String groupName, final DIOPCGroupEventDataChangeEvent theEvent) {
+        groupExecutor.execute(groupName, new Runnable() {
             @Override
             public void run() {
-                int[] clientHandles = theEvent.getClientHandles();
-                Date[] timestamps = theEvent.getTimeStamps();
-                Object[] values = theEvent.getItemValues();
-                int[] qualities = theEvent.getQualities();
-                for (int i = 0; i < clientHandles.length; i++) {
-                    // redundant addresses have negative id
-                    long itemAdressId = Math.abs(clientHandles[i]);
-                    if (isGoodQuality(qualities[i])) {
-                        Object value = values[i];
-                        long timestamp = timestamps[i].getTime();
-                        notifyEndpointListenersValueChange(itemAdressId, getAdjustedTimestamp(timestamp), value);
-                    } else {
-                        OPCCommunicationException ex = OPCDCOMFactory.createQualityException(qualities[i]);
-                        notifyEndpointListenersItemError(itemAdressId, ex);
-                    }
-                }
+                processValues(theEvent.getClientHandles(), theEvent.getTimeStamps(),
+                        theEvent.getItemValues(), theEvent.getQualities());
             }
         });
     }
 
     /**
-     * Returns the adjusted OPC timestamp to the time zone
-     * of the DAQ server.
+     * Notifies all listeners about new values of items. This is used for
+     * data change events and refreshes.
      *
-     * @param opcTimestamp The GMT timestamp received from the OPC
-     * @return The adjusted timestamp in milliseconds.
-     */
-    private synchronized long getAdjustedTimestamp(long opcTimestamp) {
-      gregorianCalendar.setTimeInMillis(opcTimestamp);
-      int timezoneAdjustment =
-        gregorianCalendar.get(GregorianCalendar.ZONE_OFFSET) + gregorianCalendar.get(GregorianCalendar.DST_OFFSET);
-      return opcTimestamp + (long) timezoneAdjustment;
+     * @param clientHandles The client handles of the items.
+     * @param timestamps The GMT timestamps of the values.
+     * @param values The values.
+     * @param qualities The qualities of the values.
+     */
+    private void processValues(final int[] clientHandles, final Date[] timestamps,
+            final Object[] values, final int[] qualities) {
+        long[] localTimestamps = timestampConverter.toLocalTime(
+                timestamps, new long[timestamps.length]);
+        for (int i = 0; i < clientHandles.length; i++) {
+            // redundant addresses have negative id
+            long itemAdressId = Math.abs(clientHandles[i]);
+            boolean redundant = clientHandles[i] < 0;
+            if (isGoodQuality(qualities[i])) {
+                Object value = values[i];
+                notifyEndpointListenersValueChange(itemAdressId, redundant, localTimestamps[i], value);
+            } else {
+                OPCCommunicationException ex = badQualities.get(qualities[i]);
+                if (ex == null) {
+                    ex = badQualities.put(qualities[i],
+                            OPCDCOMFactory.createQualityException(qualities[i]));
+                }
+                notifyEndpointListenersItemError(itemAdressId, redundant, ex);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of data change events queued or in processing
+     * per OPC group.
+     *
+     * @return Map of group names to queue depths.
+     */
+    public Map<String, Integer> getDataChangeQueueDepths() {
+        DCOMGroupExecutor executor = groupExecutor;
+        if (executor == null) {
+            return new HashMap<String, Integer>();
+        }
+        return executor.getQueueDepths();
     }
 
     /**
@@ -352,94 +480,149 @@ public class DADCOMEndpoint extends OPCEndpoint<DADCOMItemDefintion> {
         return (quality & 0xC0) == 0xC0;
     }
 
-//    /**
-//     * Refreshes the values of a collection of item definitions.
-//     *
-//     * @param itemDefintions
-//     *            The item definitions to refresh.
-//     */
-//    @Override
-//    protected synchronized void onRefresh(
-//            final Collection<DADCOMItemDefintion> itemDefintions) {
-//        AuthInfo.setThreadDefault(authInfo);
-//        logger.debug("Enter refresh");
-//        for (DADCOMItemDefintion definition : itemDefintions) {
-//            long itemDefinitionId = definition.getId();
-//            int clientHandle = Long.valueOf(itemDefinitionId).intValue();
-//            OPCItem item = itemHandleOpcItems.get(clientHandle);
-//            if (item != null) {
-//                Object[] value = new Object[1];
-//                Object[] quality = new Object[1];
-//                Object[] timeStamp = new Object[1];
-//                try {
-//                	logger.debug("Reading from OPC for item: " + item.getItemID());
-//                    item.read((short) OPCDataSource.OPCCache, value, quality, timeStamp);
-//                    notifyEndpointListenersValueChange(
-//                            itemDefinitionId, getAdjustedTimestamp(((Date) timeStamp[0]).getTime()), value[0]);
-//                    if (definition.hasRedundantAddress()) {
-//                        clientHandle = -Long.valueOf(definition.getId()).intValue();
-//                        item = itemHandleOpcItems.get(clientHandle);
-//                        item.read((short) OPCDataSource.OPCCache, value, quality, timeStamp);
-//                        notifyEndpointListenersValueChange(itemDefinitionId, getAdjustedTimestamp(((Date) timeStamp[0]).getTime()), value[0]);
-//                    }
-//                } catch (AutomationException e) {
-//                    RuntimeException ex = OPCDCOMFactory.createWrappedAutomationException(e, definition.getAddress());
-//                    notifyEndpointListenersItemError(itemDefinitionId, ex);
-//                } catch (Exception e) {
-//                    notifyEndpointListenersItemError(itemDefinitionId, e);
-//                }
-//            }
-//        }
-//        logger.debug("Finished refresh");
-//    }
-
-    /**
-     * Refreshes the values of a collection of item definitions.
-     * TODO: This method needs to be rewritten since it does not work
-     *       most of the time, especially after an OPC reboot!
+    /**
+     * Refreshes the values of a collection of item definitions. The
+     * definitions are grouped by their OPC group. Depending on the refresh
+     * source of the address every group is read with SyncRead from the
+     * cache or the device or refreshed asynchronously. The results take
+     * the normal data change path. Large refreshes are split and paced to
+     * protect the server. Called with the read lock of the endpoint, so
+     * the subscribed items do not change meanwhile and refreshes can run
+     * concurrently with each other and with writes.
      *
      * @param itemDefintions
      *            The item definitions to refresh.
      */
     @Override
-    protected synchronized void onRefresh(
+    protected void onRefresh(
             final Collection<DADCOMItemDefintion> itemDefintions) {
+        AuthInfo.setThreadDefault(authInfo);
+        Map<IOPCGroup, List<Integer>> groupClientHandles =
+            new LinkedHashMap<IOPCGroup, List<Integer>>();
+        for (DADCOMItemDefintion definition : itemDefintions) {
+            int clientHandle = Long.valueOf(definition.getId()).intValue();
+            for (int handle : new int[] {clientHandle, -clientHandle}) {
+                SubscribedItem item = subscribedItems.get(handle);
+                if (item != null) {
+                    List<Integer> clientHandles = groupClientHandles.get(item.getGroup());
+                    if (clientHandles == null) {
+                        clientHandles = new ArrayList<Integer>();
+                        groupClientHandles.put(item.getGroup(), clientHandles);
+                    }
+                    clientHandles.add(handle);
+                }
+            }
+        }
+        logger.debug("onRefresh() - Refreshing " + itemDefintions.size()
+                + " items in " + groupClientHandles.size() + " groups from " + refreshSource);
+        boolean first = true;
+        for (Map.Entry<IOPCGroup, List<Integer>> entry : groupClientHandles.entrySet()) {
+            List<Integer> clientHandles = entry.getValue();
+            if (ASYNC_REFRESH.equals(refreshSource)) {
+                first = pauseRefresh(first);
+                try {
+                    entry.getKey().asyncRefresh((short) OPCDataSource.OPCDevice, 666, CANCEL_ID);
+                } catch (AutomationException e) {
+                    throw OPCDCOMFactory.createWrappedAutomationException(e);
+                } catch (Exception e) {
+                    throw new OPCCommunicationException("Problems wih the async DCOM group refresh occured", e);
+                }
+                continue;
+            }
+            short source = (short) (DEVICE_REFRESH.equals(refreshSource)
+                    ? OPCDataSource.OPCDevice : OPCDataSource.OPCCache);
+            for (int start = 0; start < clientHandles.size(); start += REFRESH_CHUNK_SIZE) {
+                first = pauseRefresh(first);
+                int end = Math.min(start + REFRESH_CHUNK_SIZE, clientHandles.size());
+                readItems(entry.getKey(), source, clientHandles.subList(start, end));
+            }
+        }
+    }
 
-      logger.debug("onRefresh() - Method call is disabled for DCOM. An async refresh is triggered at initialization by processGroup() method");
-
-//        AuthInfo.setThreadDefault(authInfo);
-//        logger.debug("Enter refresh");
-//        Set<OPCGroup> opcGroups = new HashSet<OPCGroup>();
-//        for (DADCOMItemDefintion definition : itemDefintions) {
-//            logger.debug("onRefresh() - Trying to determine group for definition " + definition.getAddress());
-//            long itemDefinitionId = definition.getId();
-//            int clientHandle = Long.valueOf(itemDefinitionId).intValue();
-//            OPCItem item = itemHandleOpcItems.get(clientHandle);
-//            if (item != null) {
-//                try {
-//                  OPCGroup group = item.getParent();
-//                  if (opcGroups.add(group)) {
-//                    logger.debug("onRefresh() - Added group " + group.getName());
-//                  }
-//                } catch (AutomationException e) {
-//                    RuntimeException ex = OPCDCOMFactory.createWrappedAutomationException(e, definition.getAddress());
-//                    notifyEndpointListenersItemError(itemDefinitionId, ex);
-//                } catch (Exception e) {
-//                    notifyEndpointListenersItemError(itemDefinitionId, e);
-//                }
-//            }
-//        }
-//        for (OPCGroup group : opcGroups) {
-//          try {
-//            logger.debug("onRefresh() - trigger async refresh for group " + group.getName());
-//            group.asyncRefresh((short) OPCDataSource.OPCDevice, 666, CANCEL_ID);
-//          } catch (AutomationException e) {
-//              throw OPCDCOMFactory.createWrappedAutomationException(e);
-//          } catch (Exception e) {
-//              throw new OPCCommunicationException("Problems wih the async DCOM group refresh occured", e);
-//          }
-//        }
-//        logger.debug("Finished refresh");
+    /**
+     * Pauses between the calls of a refresh.
+     *
+     * @param first True if no call was made yet.
+     * @return False since a call will follow.
+     */
+    private boolean pauseRefresh(final boolean first) {
+        if (!first) {
+            try {
+                Thread.sleep(REFRESH_PAUSE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads items of a group with a single SyncRead and hands the results
+     * to the data change processing of the group.
+     *
+     * @param group The group of the items.
+     * @param source The data source to read from.
+     * @param clientHandles The client handles of the items.
+     */
+    private void readItems(final IOPCGroup group, final short source,
+            final List<Integer> clientHandles) {
+        int size = clientHandles.size();
+        SubscribedItem[] items = new SubscribedItem[size];
+        int[] serverHandles = new int[size];
+        for (int i = 0; i < size; i++) {
+            items[i] = subscribedItems.get(clientHandles.get(i));
+            serverHandles[i] = items[i].getServerHandle();
+        }
+        Object[] values = new Object[size];
+        int[] qualities = new int[size];
+        Date[] timestamps = new Date[size];
+        int[] errors = new int[size];
+        try {
+            OPCDCOMFactory.readOPCItems(group, source, serverHandles, values,
+                    qualities, timestamps, errors);
+        } catch (AutomationException e) {
+            RuntimeException ex = OPCDCOMFactory.createWrappedAutomationException(e);
+            for (int clientHandle : clientHandles) {
+                notifyEndpointListenersItemError(Math.abs(clientHandle), clientHandle < 0, ex);
+            }
+            return;
+        } catch (Exception e) {
+            for (int clientHandle : clientHandles) {
+                notifyEndpointListenersItemError(Math.abs(clientHandle), clientHandle < 0, e);
+            }
+            return;
+        }
+        // only items which were read take the data change path
+        int readCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (errors[i] == 0) {
+                readCount++;
+            }
+            else {
+                notifyEndpointListenersItemError(Math.abs(clientHandles.get(i)),
+                        clientHandles.get(i) < 0, OPCDCOMFactory.createItemException(errors[i], items[i].getItemAddress()));
+            }
+        }
+        final int[] readClientHandles = new int[readCount];
+        final Date[] readTimestamps = new Date[readCount];
+        final Object[] readValues = new Object[readCount];
+        final int[] readQualities = new int[readCount];
+        int index = 0;
+        for (int i = 0; i < size; i++) {
+            if (errors[i] == 0) {
+                readClientHandles[index] = clientHandles.get(i);
+                readTimestamps[index] = timestamps[i];
+                readValues[index] = values[i];
+                readQualities[index] = qualities[i];
+                index++;
+            }
+        }
+        groupExecutor.execute(items[0].getGroupName(), new Runnable() {
+            @Override
+            public void run() {
+                processValues(readClientHandles, readTimestamps, readValues, readQualities);
+            }
+        });
     }
 
     /**
@@ -458,7 +641,10 @@ public class DADCOMEndpoint extends OPCEndpoint<DADCOMItemDefintion> {
     }
 
     /**
-     * Writes a value to the OPC server.
+     * Writes a value to the OPC server. The write is sent with the next
+     * AsyncWrite of the command group. Only the creation of the command
+     * group needs the lock of the endpoint, waiting for the completion of
+     * the write does not.
      *
      * @param itemDefintion
      *            Defines where to write.
@@ -466,24 +652,56 @@ public class DADCOMEndpoint extends OPCEndpoint<DADCOMItemDefintion> {
      *            The value to write to the item.
      */
     @Override
-    protected synchronized void onWrite(
+    protected void onWrite(
             final DADCOMItemDefintion itemDefintion, final Object value) {
         AuthInfo.setThreadDefault(authInfo);
-        try {
-            OPCItems items = getCommandGroup().getOPCItems();
-            int clientHandle = Long.valueOf(itemDefintion.getId()).intValue();
-            OPCItem item = itemHandleOpcItems.get(clientHandle);
-            if (item == null) {
-                item = items.addItem(itemDefintion.getAddress(), clientHandle);
-                itemHandleOpcItems.put(clientHandle, item);
+        int clientHandle = Long.valueOf(itemDefintion.getId()).intValue();
+        getWriteBatcher(itemDefintion.getAddress()).write(
+                clientHandle, itemDefintion.getAddress(), value);
+    }
+
+    /**
+     * Returns the write batcher of the command group. The command group is
+     * created with the first write.
+     *
+     * @param itemAddress The address of the item to write for errors.
+     * @return The write batcher.
+     */
+    private synchronized DCOMWriteBatcher getWriteBatcher(final String itemAddress) {
+        if (writeBatcher == null) {
+            try {
+                writeBatcher = createWriteBatcher(getCommandGroup());
+            } catch (AutomationException e) {
+                throw OPCDCOMFactory.createWrappedAutomationException(e, itemAddress);
+            } catch (Exception e) {
+                throw new OPCCommunicationException("Problems wih the DCOM connection occured", e);
             }
-            item.write(value);
-        } catch (AutomationException e) {
-            throw OPCDCOMFactory.createWrappedAutomationException(e, itemDefintion.getAddress());
-        } catch (Exception e) {
-            throw new OPCCommunicationException("Problems wih the DCOM connection occured", e);
         }
+        return writeBatcher;
+    }
+
+    /**
+     * Creates a write batcher for the command group and passes the
+     * AsyncWriteComplete events of the group to it.
+     *
+     * @param commandGroup The command group.
+     * @return The new write batcher.
+     * @throws IOException
+     *             Throws an IOException if the DCOM connection fails.
+     */
+    private DCOMWriteBatcher createWriteBatcher(final OPCGroup commandGroup) throws IOException {
+        final DCOMWriteBatcher batcher = new DCOMWriteBatcher(commandGroup, WRITE_TIMEOUT);
+        commandGroup.addDIOPCGroupEventListener(new DIOPCGroupEventAdapter() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void asyncWriteComplete(final DIOPCGroupEventAsyncWriteCompleteEvent theEvent) {
+                batcher.writeComplete(theEvent.getTransactionID(),
+                        theEvent.getClientHandles(), theEvent.getErrors());
+            }
 
+        });
+        return batcher;
     }
 
     /**
@@ -520,13 +738,17 @@ public class DADCOMEndpoint extends OPCEndpoint<DADCOMItemDefintion> {
 
         try {
             opcCommandGroup = null;
-            executorService.shutdown();
+            if (writeBatcher != null) {
+                writeBatcher.cancel();
+                writeBatcher = null;
+            }
+            groupExecutor.shutdown();
         } catch (Exception e) {
             throw new OPCCommunicationException(e);
         }
         finally {
             server = null;
-            itemHandleOpcItems.clear();
+            subscribedItems.clear();
         }
     }
 
@@ -541,21 +763,38 @@ public class DADCOMEndpoint extends OPCEndpoint<DADCOMItemDefintion> {
             final SubscriptionGroup<DADCOMItemDefintion> subscriptionGroup,
             final DADCOMItemDefintion removedDefinition) {
         AuthInfo.setThreadDefault(authInfo);
-        if (itemHandleOpcItems.containsKey(removedDefinition.getId())) {
-            OPCItem item = itemHandleOpcItems.get(removedDefinition.getId());
-            try {
-                item.setIsActive(false);
-                IOPCGroup group = item.getParent();
-                int[] serverHandles = { item.getServerHandle() };
-                group.getOPCItems().remove(1, serverHandles, new int[0][0]);
-            } catch (AutomationException e) {
-                throw OPCDCOMFactory.createWrappedAutomationException(e, removedDefinition.getAddress());
-            } catch (Exception e) {
-                throw new OPCCommunicationException(
-                        "Problems wih the DCOM connection occured", e);
+        int clientHandle = Long.valueOf(removedDefinition.getId()).intValue();
+        SubscribedItem item = subscribedItems.remove(clientHandle);
+        SubscribedItem redundantItem = subscribedItems.remove(-clientHandle);
+        List<Integer> serverHandles = new ArrayList<Integer>(2);
+        IOPCGroup group = null;
+        for (SubscribedItem subscribedItem : new SubscribedItem[] {item, redundantItem}) {
+            if (subscribedItem != null) {
+                group = subscribedItem.getGroup();
+                serverHandles.add(subscribedItem.getServerHandle());
             }
         }
-
+        if (group == null) {
+            return;
+        }
+        int[] serverHandleArray = new int[serverHandles.size()];
+        for (int i = 0; i < serverHandleArray.length; i++) {
+            serverHandleArray[i] = serverHandles.get(i);
+        }
+        try {
+            int[] errors = OPCDCOMFactory.removeOPCItems(group.getOPCItems(), serverHandleArray);
+            for (int error : errors) {
+                if (error != 0) {
+                    logger.warn("onRemove() - Item of " + removedDefinition.getAddress()
+                        + " could not be removed: 0x" + Integer.toHexString(error).toUpperCase());
+                }
+            }
+        } catch (AutomationException e) {
+            throw OPCDCOMFactory.createWrappedAutomationException(e, removedDefinition.getAddress());
+        } catch (Exception e) {
+            throw new OPCCommunicationException(
+                    "Problems wih the DCOM connection occured", e);
+        }
     }
 
     /**
@@ -625,4 +864,75 @@ public class DADCOMEndpoint extends OPCEndpoint<DADCOMItemDefintion> {
         }
     }
 
+    /**
+     * An item added to a subscription group. Only the server handle is kept
+     * so adding an item does not need a further call to get the item object.
+     */
+    private static final class SubscribedItem {
+
+        /**
+         * The group of the item.
+         */
+        private final IOPCGroup group;
+
+        /**
+         * The name of the group.
+         */
+        private final String groupName;
+
+        /**
+         * The server handle of the item.
+         */
+        private final int serverHandle;
+
+        /**
+         * The address of the item.
+         */
+        private final String itemAddress;
+
+        /**
+         * Creates a new subscribed item.
+         *
+         * @param group The group of the item.
+         * @param groupName The name of the group.
+         * @param serverHandle The server handle of the item.
+         * @param itemAddress The address of the item.
+         */
+        private SubscribedItem(final IOPCGroup group, final String groupName,
+                final int serverHandle, final String itemAddress) {
+            this.group = group;
+            this.groupName = groupName;
+            this.serverHandle = serverHandle;
+            this.itemAddress = itemAddress;
+        }
+
+        /**
+         * @return The name of the group.
+         */
+        public String getGroupName() {
+            return groupName;
+        }
+
+        /**
+         * @return The address of the item.
+         */
+        public String getItemAddress() {
+            return itemAddress;
+        }
+
+        /**
+         * @return The group of the item.
+         */
+        public IOPCGroup getGroup() {
+            return group;
+        }
+
+        /**
+         * @return The server handle of the item.
+         */
+        public int getServerHandle() {
+            return serverHandle;
+        }
+    }
+
 }
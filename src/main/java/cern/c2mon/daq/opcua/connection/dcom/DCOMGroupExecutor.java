@@ -0,0 +1,201 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.dcom;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the data change processing of OPC groups on a small shared pool.
+ * Tasks of the same group run one after the other in the order they were
+ * submitted. Tasks of different groups run in parallel. A slow listener or
+ * a big event therefore only delays its own group.
+ */
+public class DCOMGroupExecutor {
+
+    /**
+     * Maximum number of tasks a group runs before it gives its thread to
+     * the other groups.
+     */
+    private static final int MAX_TASKS_PER_TURN = 16;
+
+    /**
+     * Queue depth of a group at which a warning is logged.
+     */
+    private static final int QUEUE_DEPTH_WARNING = 100;
+
+    /**
+     * logger of this class.
+     */
+    private final static Logger logger = LoggerFactory.getLogger(DCOMGroupExecutor.class);
+
+    /**
+     * The shared pool.
+     */
+    private final ExecutorService pool;
+
+    /**
+     * The task queues of the groups.
+     */
+    private final ConcurrentHashMap<String, GroupQueue> queues =
+        new ConcurrentHashMap<String, GroupQueue>();
+
+    /**
+     * Creates a new executor.
+     *
+     * @param poolSize The number of threads shared by all groups.
+     */
+    public DCOMGroupExecutor(final int poolSize) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                        "dcom-data-change-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Runs a task after all tasks submitted before for the same group.
+     *
+     * @param groupName The name of the OPC group.
+     * @param task The task to run.
+     */
+    public void execute(final String groupName, final Runnable task) {
+        GroupQueue queue = queues.get(groupName);
+        if (queue == null) {
+            queue = new GroupQueue(groupName);
+            GroupQueue existing = queues.putIfAbsent(groupName, queue);
+            if (existing != null) {
+                queue = existing;
+            }
+        }
+        queue.add(task);
+    }
+
+    /**
+     * Returns the number of queued and running tasks of a group.
+     *
+     * @param groupName The name of the OPC group.
+     * @return The queue depth of the group.
+     */
+    public int getQueueDepth(final String groupName) {
+        GroupQueue queue = queues.get(groupName);
+        return queue == null ? 0 : queue.depth.get();
+    }
+
+    /**
+     * Returns the queue depths of all groups.
+     *
+     * @return Map of group names to queue depths.
+     */
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new HashMap<String, Integer>();
+        for (GroupQueue queue : queues.values()) {
+            depths.put(queue.groupName, queue.depth.get());
+        }
+        return depths;
+    }
+
+    /**
+     * Stops the pool. Queued tasks are still run.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * The tasks of one group. The group is scheduled on the pool while it
+     * has tasks.
+     */
+    private final class GroupQueue implements Runnable {
+
+        /**
+         * The name of the group.
+         */
+        private final String groupName;
+
+        /**
+         * The queued tasks.
+         */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        /**
+         * The number of queued and running tasks.
+         */
+        private final AtomicInteger depth = new AtomicInteger();
+
+        /**
+         * Creates a new group queue.
+         *
+         * @param groupName The name of the group.
+         */
+        private GroupQueue(final String groupName) {
+            this.groupName = groupName;
+        }
+
+        /**
+         * Adds a task and schedules the group if it was idle.
+         *
+         * @param task The task to add.
+         */
+        private void add(final Runnable task) {
+            tasks.add(task);
+            int newDepth = depth.incrementAndGet();
+            if (newDepth == 1) {
+                pool.execute(this);
+            }
+            else if (newDepth == QUEUE_DEPTH_WARNING) {
+                logger.warn("Data change queue of group " + groupName
+                        + " reached " + newDepth + " events.");
+            }
+        }
+
+        /**
+         * Runs the queued tasks of this group.
+         */
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_TASKS_PER_TURN; i++) {
+                Runnable task = tasks.poll();
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    logger.error("Error processing data change of group " + groupName, e);
+                }
+                if (depth.decrementAndGet() == 0) {
+                    return;
+                }
+            }
+            // let the other groups run
+            pool.execute(this);
+        }
+    }
+}
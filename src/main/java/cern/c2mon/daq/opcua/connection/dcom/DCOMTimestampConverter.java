@@ -0,0 +1,162 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.dcom;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Converts the GMT timestamps of a DCOM OPC server to the time zone of the
+ * DAQ. The offset transitions of the zone are expanded once into sorted
+ * arrays. A conversion is a binary search over these arrays. It does not
+ * allocate and does not lock so it can be used by any number of threads.
+ * <p>
+ * Timestamps outside the cached range are converted with the zone rules
+ * directly.
+ */
+public final class DCOMTimestampConverter {
+
+    /**
+     * Milliseconds of a (non leap) year.
+     */
+    private static final long YEAR = 365L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Years before now covered by the cached transitions.
+     */
+    private static final int YEARS_BEFORE = 20;
+
+    /**
+     * Years after now covered by the cached transitions.
+     */
+    private static final int YEARS_AFTER = 30;
+
+    /**
+     * The rules of the zone.
+     */
+    private final ZoneRules rules;
+
+    /**
+     * Start of the cached range in milliseconds (inclusive).
+     */
+    private final long rangeStart;
+
+    /**
+     * End of the cached range in milliseconds (exclusive).
+     */
+    private final long rangeEnd;
+
+    /**
+     * The times of the offset transitions in the range in ascending order.
+     */
+    private final long[] transitionTimes;
+
+    /**
+     * The offsets in milliseconds. The offset at index i is valid before
+     * the transition at index i and from the transition at index i - 1 on.
+     */
+    private final int[] offsets;
+
+    /**
+     * Creates a converter for the default time zone of the DAQ.
+     */
+    public DCOMTimestampConverter() {
+        this(ZoneId.systemDefault(),
+                System.currentTimeMillis() - YEARS_BEFORE * YEAR,
+                System.currentTimeMillis() + YEARS_AFTER * YEAR);
+    }
+
+    /**
+     * Creates a converter.
+     *
+     * @param zone The zone to convert to.
+     * @param rangeStart The start of the range whose transitions are
+     * cached in milliseconds.
+     * @param rangeEnd The end of the range whose transitions are cached in
+     * milliseconds.
+     */
+    public DCOMTimestampConverter(final ZoneId zone, final long rangeStart,
+            final long rangeEnd) {
+        this.rules = zone.getRules();
+        this.rangeStart = rangeStart;
+        this.rangeEnd = rangeEnd;
+        List<ZoneOffsetTransition> transitions = new ArrayList<ZoneOffsetTransition>();
+        ZoneOffsetTransition transition =
+            rules.nextTransition(Instant.ofEpochMilli(rangeStart));
+        while (transition != null
+                && transition.getInstant().toEpochMilli() < rangeEnd) {
+            transitions.add(transition);
+            transition = rules.nextTransition(transition.getInstant());
+        }
+        transitionTimes = new long[transitions.size()];
+        offsets = new int[transitions.size() + 1];
+        offsets[0] = getOffset(Instant.ofEpochMilli(rangeStart));
+        for (int i = 0; i < transitionTimes.length; i++) {
+            transition = transitions.get(i);
+            transitionTimes[i] = transition.getInstant().toEpochMilli();
+            offsets[i + 1] = transition.getOffsetAfter().getTotalSeconds() * 1000;
+        }
+    }
+
+    /**
+     * Converts a GMT timestamp to local time.
+     *
+     * @param opcTimestamp The GMT timestamp received from the OPC server.
+     * @return The adjusted timestamp in milliseconds.
+     */
+    public long toLocalTime(final long opcTimestamp) {
+        if (opcTimestamp < rangeStart || opcTimestamp >= rangeEnd) {
+            return opcTimestamp + getOffset(Instant.ofEpochMilli(opcTimestamp));
+        }
+        int index = Arrays.binarySearch(transitionTimes, opcTimestamp);
+        // a transition time already has the offset after the transition
+        index = index >= 0 ? index + 1 : -index - 1;
+        return opcTimestamp + offsets[index];
+    }
+
+    /**
+     * Converts all GMT timestamps of a data change event to local time.
+     *
+     * @param opcTimestamps The GMT timestamps received from the OPC server.
+     * @param localTimestamps The array to store the adjusted timestamps in.
+     * It has to be at least as long as opcTimestamps.
+     * @return The localTimestamps array.
+     */
+    public long[] toLocalTime(final Date[] opcTimestamps,
+            final long[] localTimestamps) {
+        for (int i = 0; i < opcTimestamps.length; i++) {
+            localTimestamps[i] = toLocalTime(opcTimestamps[i].getTime());
+        }
+        return localTimestamps;
+    }
+
+    /**
+     * Returns the offset of the zone at an instant.
+     *
+     * @param instant The instant.
+     * @return The offset in milliseconds.
+     */
+    private int getOffset(final Instant instant) {
+        return rules.getOffset(instant).getTotalSeconds() * 1000;
+    }
+}
@@ -0,0 +1,295 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.dcom;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cern.c2mon.daq.opcua.connection.common.AbstractWriteBatcher;
+import cern.c2mon.daq.opcua.connection.common.impl.OPCCommunicationException;
+import cern.c2mon.daq.opcua.connection.common.impl.OPCCriticalException;
+import cern.c2mon.daq.opcua.jintegraInterface.IOPCGroup;
+
+import com.linar.jintegra.AutomationException;
+
+/**
+ * Collects writes of concurrent callers into AsyncWrite calls on the
+ * command group (see {@link AbstractWriteBatcher}).
+ * <p>
+ * The result of an AsyncWrite is correlated by its transaction ID with the
+ * AsyncWriteComplete event of the group, which has to be passed to
+ * {@link #writeComplete(int, int[], int[])}. Every caller blocks till the
+ * event of its write arrived or the write timed out. Errors are thrown only
+ * to the caller of the failed write.
+ */
+public class DCOMWriteBatcher extends AbstractWriteBatcher<Integer> {
+
+    /**
+     * logger of this class.
+     */
+    private final static Logger logger = LoggerFactory.getLogger(DCOMWriteBatcher.class);
+
+    /**
+     * The command group the items are written with.
+     */
+    private final IOPCGroup group;
+
+    /**
+     * Time in milliseconds to wait for the AsyncWriteComplete event.
+     */
+    private final long writeTimeout;
+
+    /**
+     * The server handles of the items already added to the group by client
+     * handle. Only used by the flushing caller.
+     */
+    private final Map<Integer, Integer> serverHandles = new HashMap<Integer, Integer>();
+
+    /**
+     * The AsyncWrites waiting for their event by transaction ID.
+     */
+    private final ConcurrentHashMap<Integer, Transaction> transactions =
+        new ConcurrentHashMap<Integer, Transaction>();
+
+    /**
+     * Counter for the transaction IDs.
+     */
+    private final AtomicInteger transactionCounter = new AtomicInteger();
+
+    /**
+     * Creates a new write batcher.
+     *
+     * @param group The command group to write with. Its AsyncWriteComplete
+     * events have to be passed to this batcher.
+     * @param writeTimeout Time in milliseconds to wait for the
+     * AsyncWriteComplete event of a write.
+     */
+    public DCOMWriteBatcher(final IOPCGroup group, final long writeTimeout) {
+        this.group = group;
+        this.writeTimeout = writeTimeout;
+    }
+
+    /**
+     * Writes a value and waits till the server completed the write.
+     *
+     * @param clientHandle The client handle of the item.
+     * @param itemAddress The address of the item.
+     * @param value The value to write.
+     */
+    public void write(final int clientHandle, final String itemAddress,
+            final Object value) {
+        submit(clientHandle, itemAddress, value);
+    }
+
+    /**
+     * Stores the result of an AsyncWrite and releases its callers. Called
+     * with the AsyncWriteComplete events of the command group.
+     *
+     * @param transactionID The transaction ID of the AsyncWrite.
+     * @param clientHandles The client handles of the written items.
+     * @param errors The error codes of the items. Zero means written.
+     */
+    public void writeComplete(final int transactionID,
+            final int[] clientHandles, final int[] errors) {
+        Transaction transaction = transactions.remove(transactionID);
+        if (transaction == null) {
+            logger.debug("writeComplete() - Unknown or timed out transaction " + transactionID);
+            return;
+        }
+        if (clientHandles != null && errors != null) {
+            for (int i = 0; i < clientHandles.length && i < errors.length; i++) {
+                PendingWrite<Integer> write = transaction.writes.get(clientHandles[i]);
+                if (write != null && errors[i] != 0) {
+                    write.setError(OPCDCOMFactory.createItemException(
+                            errors[i], write.getItemAddress()));
+                }
+            }
+        }
+        transaction.completed.countDown();
+    }
+
+    /**
+     * Fails all writes waiting for an AsyncWriteComplete event. Used when
+     * the endpoint is stopped.
+     */
+    public void cancel() {
+        for (Integer transactionID : transactions.keySet()) {
+            Transaction transaction = transactions.remove(transactionID);
+            if (transaction != null) {
+                setError(transaction.writes.values(), new OPCCommunicationException(
+                        "Endpoint stopped before the write completed."));
+                transaction.completed.countDown();
+            }
+        }
+    }
+
+    /**
+     * Adds the missing items of a request to the group, sends one
+     * AsyncWrite and waits for its event.
+     *
+     * @param request The writes to send by client handle.
+     */
+    @Override
+    protected void flush(final Map<Integer, PendingWrite<Integer>> request) {
+        try {
+            addItems(request.values());
+            Map<Integer, PendingWrite<Integer>> writes =
+                new LinkedHashMap<Integer, PendingWrite<Integer>>();
+            for (PendingWrite<Integer> write : request.values()) {
+                if (write.getError() == null) {
+                    writes.put(write.getClientHandle(), write);
+                }
+            }
+            if (writes.isEmpty()) {
+                return;
+            }
+            int[] handles = new int[writes.size()];
+            Object[] values = new Object[writes.size()];
+            int i = 0;
+            for (PendingWrite<Integer> write : writes.values()) {
+                handles[i] = serverHandles.get(write.getClientHandle());
+                values[i++] = write.getValue();
+            }
+            int transactionID = transactionCounter.incrementAndGet();
+            Transaction transaction = new Transaction(writes);
+            transactions.put(transactionID, transaction);
+            int[] errors;
+            try {
+                errors = OPCDCOMFactory.asyncWriteOPCItems(group, handles,
+                        values, transactionID);
+            } catch (IOException e) {
+                transactions.remove(transactionID);
+                throw e;
+            } catch (RuntimeException e) {
+                transactions.remove(transactionID);
+                throw e;
+            }
+            // rejected items are not part of the event
+            boolean accepted = false;
+            i = 0;
+            for (PendingWrite<Integer> write : writes.values()) {
+                if (errors[i] != 0) {
+                    write.setError(OPCDCOMFactory.createItemException(
+                            errors[i], write.getItemAddress()));
+                } else {
+                    accepted = true;
+                }
+                i++;
+            }
+            if (!accepted) {
+                transactions.remove(transactionID);
+                return;
+            }
+            if (!transaction.completed.await(writeTimeout, TimeUnit.MILLISECONDS)
+                    && transactions.remove(transactionID) != null) {
+                setError(writes.values(), new OPCCommunicationException(
+                        "No AsyncWriteComplete event within " + writeTimeout
+                        + "ms for transaction " + transactionID));
+            }
+        } catch (AutomationException e) {
+            for (PendingWrite<Integer> write : request.values()) {
+                if (write.getError() == null) {
+                    write.setError(OPCDCOMFactory.createWrappedAutomationException(
+                            e, write.getItemAddress()));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            setError(request.values(), new OPCCriticalException("Write interrupted."));
+        } catch (IOException e) {
+            setError(request.values(), new OPCCommunicationException(
+                    "Problems wih the DCOM connection occured", e));
+        } catch (RuntimeException e) {
+            setError(request.values(), e);
+        }
+    }
+
+    /**
+     * Adds the items of a request which are not in the group yet with a
+     * single call. Items which could not be added get an error.
+     *
+     * @param request The writes of the request.
+     * @throws IOException Thrown if there are problems with the connection.
+     */
+    private void addItems(final Collection<PendingWrite<Integer>> request) throws IOException {
+        List<PendingWrite<Integer>> newItems = new ArrayList<PendingWrite<Integer>>();
+        for (PendingWrite<Integer> write : request) {
+            if (!serverHandles.containsKey(write.getClientHandle())) {
+                newItems.add(write);
+            }
+        }
+        if (newItems.isEmpty()) {
+            return;
+        }
+        int size = newItems.size();
+        String[] itemAddresses = new String[size];
+        int[] clientHandles = new int[size];
+        for (int i = 0; i < size; i++) {
+            itemAddresses[i] = newItems.get(i).getItemAddress();
+            clientHandles[i] = newItems.get(i).getClientHandle();
+        }
+        int[] newServerHandles = new int[size];
+        int[] errors = new int[size];
+        OPCDCOMFactory.createOPCItems(group.getOPCItems(), itemAddresses,
+                clientHandles, newServerHandles, errors);
+        for (int i = 0; i < size; i++) {
+            if (errors[i] == 0) {
+                serverHandles.put(clientHandles[i], newServerHandles[i]);
+            } else {
+                newItems.get(i).setError(OPCDCOMFactory.createItemException(
+                        errors[i], itemAddresses[i]));
+            }
+        }
+    }
+
+    /**
+     * An AsyncWrite waiting for its AsyncWriteComplete event.
+     */
+    private static final class Transaction {
+
+        /**
+         * The writes sent with the AsyncWrite by client handle.
+         */
+        private final Map<Integer, PendingWrite<Integer>> writes;
+
+        /**
+         * Released when the event arrived or the writes were cancelled.
+         */
+        private final CountDownLatch completed = new CountDownLatch(1);
+
+        /**
+         * Creates a new transaction.
+         *
+         * @param writes The writes sent with the AsyncWrite.
+         */
+        private Transaction(final Map<Integer, PendingWrite<Integer>> writes) {
+            this.writes = writes;
+        }
+    }
+}
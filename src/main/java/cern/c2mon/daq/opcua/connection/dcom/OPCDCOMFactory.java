@@ -17,6 +17,8 @@
 package cern.c2mon.daq.opcua.connection.dcom;
 
 import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Date;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,6 +42,11 @@ import com.linar.jintegra.AutomationException;
  */
 public final class OPCDCOMFactory {
     
+    /**
+     * Quality of a good value without limits.
+     */
+    public static final int OPC_QUALITY_GOOD = 0xC0;
+
     /**
      * logger of this class.
      */
@@ -107,6 +114,142 @@ public final class OPCDCOMFactory {
         return item;
     }
 
+    /**
+     * Adds many items to a group with a single call. The results are stored
+     * per item in the provided arrays.
+     * 
+     * @param items The items the new items will belong to.
+     * @param itemAddresses The item addresses inside the OPC server.
+     * @param clientHandles The client handles used to identify value updates.
+     * @param serverHandles Array to store the server handles of the new
+     * items in. It has to be as long as itemAddresses.
+     * @param errors Array to store the error codes of the items in. Zero
+     * means the item was added. It has to be as long as itemAddresses.
+     * @throws IOException Throws and IOException if there are general problems
+     * with the connection.
+     */
+    public static void createOPCItems(final OPCItems items,
+            final String[] itemAddresses, final int[] clientHandles,
+            final int[] serverHandles, final int[] errors) throws IOException {
+        int[][] serverHandlesOut = new int[1][];
+        int[][] errorsOut = new int[1][];
+        items.addItems(itemAddresses.length, itemAddresses, clientHandles,
+                serverHandlesOut, errorsOut, null, null);
+        copyResult(serverHandlesOut[0], serverHandles);
+        copyResult(errorsOut[0], errors);
+    }
+
+    /**
+     * Removes many items from a group with a single call.
+     * 
+     * @param items The items to remove the items from.
+     * @param serverHandles The server handles of the items to remove.
+     * @return The error codes of the items. Zero means the item was removed.
+     * @throws IOException Throws and IOException if there are general problems
+     * with the connection.
+     */
+    public static int[] removeOPCItems(final OPCItems items,
+            final int[] serverHandles) throws IOException {
+        int[][] errorsOut = new int[1][];
+        items.remove(serverHandles.length, serverHandles, errorsOut);
+        int[] errors = new int[serverHandles.length];
+        copyResult(errorsOut[0], errors);
+        return errors;
+    }
+
+    /**
+     * Reads many items of a group with a single SyncRead call. The results
+     * are stored per item in the provided arrays.
+     * 
+     * @param group The group of the items.
+     * @param source The data source (see OPCDataSource).
+     * @param serverHandles The server handles of the items to read.
+     * @param values Array to store the values in.
+     * @param qualities Array to store the qualities in. Items without a
+     * returned quality are considered good.
+     * @param timestamps Array to store the timestamps in. Items without a
+     * returned timestamp get the current time.
+     * @param errors Array to store the error codes of the items in. Zero
+     * means the item was read.
+     * @throws IOException Throws and IOException if there are general problems
+     * with the connection.
+     */
+    public static void readOPCItems(final IOPCGroup group, final short source,
+            final int[] serverHandles, final Object[] values, final int[] qualities,
+            final Date[] timestamps, final int[] errors) throws IOException {
+        Object[][] valuesOut = new Object[1][];
+        int[][] errorsOut = new int[1][];
+        Object[] qualitiesOut = new Object[1];
+        Object[] timestampsOut = new Object[1];
+        group.syncRead(source, serverHandles.length, serverHandles, valuesOut,
+                errorsOut, qualitiesOut, timestampsOut);
+        if (valuesOut[0] != null) {
+            System.arraycopy(valuesOut[0], 0, values, 0,
+                    Math.min(valuesOut[0].length, values.length));
+        }
+        copyResult(errorsOut[0], errors);
+        // qualities and timestamps are variants of arrays
+        Object qualityArray = qualitiesOut[0];
+        Object timestampArray = timestampsOut[0];
+        for (int i = 0; i < serverHandles.length; i++) {
+            if (qualityArray != null && qualityArray.getClass().isArray()
+                    && i < Array.getLength(qualityArray)) {
+                qualities[i] = ((Number) Array.get(qualityArray, i)).intValue();
+            }
+            else {
+                qualities[i] = OPC_QUALITY_GOOD;
+            }
+            if (timestampArray != null && timestampArray.getClass().isArray()
+                    && i < Array.getLength(timestampArray)
+                    && Array.get(timestampArray, i) instanceof Date) {
+                timestamps[i] = (Date) Array.get(timestampArray, i);
+            }
+            else {
+                timestamps[i] = new Date();
+            }
+        }
+    }
+
+    /**
+     * Writes many items of a group with a single AsyncWrite call. The
+     * result of the write arrives later with the AsyncWriteComplete event
+     * of the group with the same transaction ID.
+     *
+     * @param group The group of the items.
+     * @param serverHandles The server handles of the items to write.
+     * @param values The values to write.
+     * @param transactionID The transaction ID of the AsyncWriteComplete
+     * event.
+     * @return The error codes of the items. Zero means the write was
+     * accepted. Items with an error are not part of the event.
+     * @throws IOException Throws and IOException if there are general problems
+     * with the connection.
+     */
+    public static int[] asyncWriteOPCItems(final IOPCGroup group,
+            final int[] serverHandles, final Object[] values,
+            final int transactionID) throws IOException {
+        int[][] errorsOut = new int[1][];
+        group.asyncWrite(serverHandles.length, serverHandles, values,
+                errorsOut, transactionID, new int[1]);
+        int[] errors = new int[serverHandles.length];
+        copyResult(errorsOut[0], errors);
+        return errors;
+    }
+
+    /**
+     * Copies an out parameter of a bulk call. Servers may omit the array
+     * if all items succeeded.
+     * 
+     * @param result The returned array or null.
+     * @param target The array to copy to.
+     */
+    private static void copyResult(final int[] result, final int[] target) {
+        if (result != null) {
+            System.arraycopy(result, 0, target, 0,
+                    Math.min(result.length, target.length));
+        }
+    }
+
     /**
      * Creates a new OPCCommunication exception which reflects the quality.
      * 
@@ -239,4 +382,30 @@ public final class OPCDCOMFactory {
         // to create the communication exception
         return new OPCCommunicationException(cause.getDescription(), cause);
     }
+
+    /**
+     * Creates an exception for the error code of a single item returned by
+     * a bulk call. Known codes are mapped like the codes of automation
+     * exceptions.
+     * 
+     * @param errorCode The error code of the item.
+     * @param itemAddress The opc item address.
+     * @return The exception for the error.
+     */
+    public static RuntimeException createItemException(final int errorCode,
+            final String itemAddress) {
+        long code = errorCode & 0xFFFFFFFFL;
+        for (DCOMErrorConstant error : DCOMErrorConstant.values()) {
+          if (code == error.getCode().longValue()) {
+            return new OPCCriticalException(error.toString() + " Item: " + itemAddress);
+          }
+        }
+        for (COMErrorConstant error : COMErrorConstant.values()) {
+          if (code == error.getCode().longValue()) {
+            return new OPCCommunicationException(error.toString() + " Item: " + itemAddress);
+          }
+        }
+        return new OPCCommunicationException("0x" + Long.toHexString(code).toUpperCase()
+                + " - OPC item error. Item: " + itemAddress);
+    }
 }
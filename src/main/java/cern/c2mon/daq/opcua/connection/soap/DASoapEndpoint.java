@@ -16,16 +16,21 @@
  *****************************************************************************/
 package cern.c2mon.daq.opcua.connection.soap;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.axis2.AxisFault;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.opcfoundation.xmlda.GetStatus;
 import org.opcfoundation.xmlda.GetStatusResponse;
 import org.opcfoundation.xmlda.ItemValue;
@@ -37,14 +42,15 @@ import org.opcfoundation.xmlda.ReadResponse;
 import org.opcfoundation.xmlda.Subscribe;
 import org.opcfoundation.xmlda.SubscribeRequestItem;
 import org.opcfoundation.xmlda.SubscribeResponse;
-import org.opcfoundation.xmlda.WriteResponse;
 
 import cern.c2mon.daq.opcua.connection.common.AbstractOPCUAAddress;
 import cern.c2mon.daq.opcua.connection.common.IGroupProvider;
 import cern.c2mon.daq.opcua.connection.common.IItemDefinitionFactory;
+import cern.c2mon.daq.opcua.connection.common.impl.EquipmentBulkhead;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCCommunicationException;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCCriticalException;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCEndpoint;
+import cern.c2mon.daq.opcua.connection.common.impl.RedundantAddressArbiter;
 import cern.c2mon.daq.opcua.connection.common.impl.SubscriptionGroup;
 
 /**
@@ -55,6 +61,11 @@ import cern.c2mon.daq.opcua.connection.common.impl.SubscriptionGroup;
  */
 public class DASoapEndpoint extends OPCEndpoint<DASoapItemDefintion> {
 
+    /**
+     * Logger of this class.
+     */
+    private Logger logger = LoggerFactory.getLogger(DASoapEndpoint.class);
+
     /**
      * Constant indicating if items should be buffered.
      */
@@ -67,22 +78,50 @@ public class DASoapEndpoint extends OPCEndpoint<DASoapItemDefintion> {
     private static final int SUBSCRIPTION_PING_RATE = 1000 * 30;
 
     /**
-     * Default Hold time.
-     * @see SoapLongPoll
+     * Initial Hold time. It adapts to the update rate of the group within
+     * the limits of the address.
+     * @see SoapLongPollTiming
      */
     private static final int HOLD_TIME = 1000;
 
     /**
-     * Default Wait time.
-     * @see SoapLongPoll
+     * Maximum of hold and wait time. It has to stay below the subscription
+     * ping rate and the socket timeout.
+     * @see SoapLongPollTiming
+     */
+    private static final int MAX_POLL_TIME = 1000 * 25;
+
+    /**
+     * Suffix of the client handles of redundant addresses.
+     */
+    private static final String ALTERNATIVE_HANDLE_SUFFIX = ".0";
+
+    /**
+     * The exceptions of the bad qualities received so far.
      */
-    private static final int WAIT_TIME = 4000;
+    private final ConcurrentHashMap<String, OPCCommunicationException> qualityExceptions =
+        new ConcurrentHashMap<String, OPCCommunicationException>();
 
     /**
      * Soap stub object. This is only intended for short calls.
      */
     private OPCXML_DataAccessStub dataAccess;
 
+    /**
+     * Lock serializing every call on the stub, including the cleanup of its
+     * transport. Refreshes and status checks only hold the read lock of the
+     * endpoint and may run concurrently with each other and with a
+     * subscription restarted after a poll failure; the stub can only send
+     * one call at a time. Only the call itself is guarded, the values are
+     * decoded outside.
+     */
+    private final Object dataAccessLock = new Object();
+
+    /**
+     * Collects the writes into bulk Write requests. It uses its own stub.
+     */
+    private volatile SoapWriteBatcher writeBatcher;
+
     /**
      * The OPC address of this endpoint.
      */
@@ -93,6 +132,12 @@ public class DASoapEndpoint extends OPCEndpoint<DASoapItemDefintion> {
      */
     private Map<SubscriptionGroup<DASoapItemDefintion>, SoapLongPoll> polls =
         new HashMap<SubscriptionGroup<DASoapItemDefintion>, SoapLongPoll>();
+
+    /**
+     * Limits the share of the polls of this endpoint of the pool shared by
+     * all equipments.
+     */
+    private final EquipmentBulkhead pollBulkhead = SoapLongPoll.createBulkhead();
     
     /**
      * Collection of Soap long polls.
@@ -100,6 +145,12 @@ public class DASoapEndpoint extends OPCEndpoint<DASoapItemDefintion> {
     private Map<SubscriptionGroup<DASoapItemDefintion>, ISoapLongPollExceptionHandler> exceptionHandlers =
         new HashMap<SubscriptionGroup<DASoapItemDefintion>, ISoapLongPollExceptionHandler>();
 
+    /**
+     * The server subscriptions of every group.
+     */
+    private Map<SubscriptionGroup<DASoapItemDefintion>, SoapGroupSubscriptions> groupSubscriptions =
+        new HashMap<SubscriptionGroup<DASoapItemDefintion>, SoapGroupSubscriptions>();
+
     /**
      * Creates a new DASoapEndpoint.
      * 
@@ -128,6 +179,9 @@ public class DASoapEndpoint extends OPCEndpoint<DASoapItemDefintion> {
             dataAccess = 
                 SoapObjectFactory.createOPCDataAccessSoapInterface(serverURL,
                     domain, user, password);
+            writeBatcher = new SoapWriteBatcher(
+                    SoapObjectFactory.createOPCDataAccessSoapInterface(serverURL,
+                        domain, user, password));
         } catch (MalformedURLException e) {
             throw new OPCCriticalException(e);
         } catch (AxisFault e) {
@@ -146,9 +200,25 @@ public class DASoapEndpoint extends OPCEndpoint<DASoapItemDefintion> {
             subscriptionGroups) {
         for (SubscriptionGroup<DASoapItemDefintion> subscriptionGroup
                 : subscriptionGroups) {
-            stopPollForSubscription(subscriptionGroup);
-            subscribe(subscriptionGroup);
+            rebuild(subscriptionGroup);
+        }
+    }
+
+    /**
+     * Rebuilds the server side of a group. All its server subscriptions are
+     * replaced by one subscription which is polled by a new poll.
+     * 
+     * @param subscriptionGroup The group to rebuild.
+     */
+    private void rebuild(
+            final SubscriptionGroup<DASoapItemDefintion> subscriptionGroup) {
+        stopPollForSubscription(subscriptionGroup);
+        SoapGroupSubscriptions subscriptions =
+            groupSubscriptions.get(subscriptionGroup);
+        if (subscriptions != null) {
+            cancelSubscriptions(subscriptions.clear());
         }
+        subscribe(subscriptionGroup);
     }
 
     /**
@@ -160,6 +230,68 @@ public class DASoapEndpoint extends OPCEndpoint<DASoapItemDefintion> {
             final SubscriptionGroup<DASoapItemDefintion> subscriptionGroup) {
         Collection<DASoapItemDefintion> itemDefinitions = 
             subscriptionGroup.getDefintions();
+        SubscribeResponse subscribeResponse =
+            createSubscription(subscriptionGroup, itemDefinitions);
+        getGroupSubscriptions(subscriptionGroup).add(
+                subscribeResponse.getServerSubHandle(),
+                getDefinitionIds(itemDefinitions));
+        SoapLongPoll poll = 
+            startPoll(subscribeResponse.getServerSubHandle(),
+                    subscriptionGroup);
+        polls.put(subscriptionGroup, poll);
+        checkErrors(subscribeResponse.getErrors());
+    }
+
+    /**
+     * Subscribes the definitions of the provided group which are not yet
+     * subscribed with a delta subscription. The delta subscription is
+     * polled together with the other subscriptions of the group. If the
+     * group is too fragmented or its poll is not running the group is
+     * rebuilt instead.
+     * 
+     * @param subscriptionGroup The group to subscribe for.
+     */
+    private void subscribeDelta(
+            final SubscriptionGroup<DASoapItemDefintion> subscriptionGroup) {
+        SoapLongPoll poll = polls.get(subscriptionGroup);
+        SoapGroupSubscriptions subscriptions =
+            getGroupSubscriptions(subscriptionGroup);
+        if (poll == null || !poll.isRunning() || subscriptions.isEmpty()
+                || subscriptions.getFragmentation()
+                    >= address.getFragmentationThreshold()) {
+            rebuild(subscriptionGroup);
+            return;
+        }
+        List<DASoapItemDefintion> newDefinitions =
+            new ArrayList<DASoapItemDefintion>();
+        for (DASoapItemDefintion definition
+                : subscriptionGroup.getDefintions()) {
+            if (!subscriptions.contains(definition.getId())) {
+                newDefinitions.add(definition);
+            }
+        }
+        if (newDefinitions.isEmpty()) {
+            return;
+        }
+        SubscribeResponse subscribeResponse =
+            createSubscription(subscriptionGroup, newDefinitions);
+        subscriptions.add(subscribeResponse.getServerSubHandle(),
+                getDefinitionIds(newDefinitions));
+        poll.addServerSubscriptionHandle(subscribeResponse.getServerSubHandle());
+        poll.getTiming().setSubscribedItemCount(subscriptionGroup.size());
+        checkErrors(subscribeResponse.getErrors());
+    }
+
+    /**
+     * Creates a server subscription for the provided definitions of a group.
+     * 
+     * @param subscriptionGroup The group of the definitions.
+     * @param itemDefinitions The definitions to subscribe.
+     * @return The response of the server.
+     */
+    private SubscribeResponse createSubscription(
+            final SubscriptionGroup<DASoapItemDefintion> subscriptionGroup,
+            final Collection<DASoapItemDefintion> itemDefinitions) {
         List<SubscribeRequestItem> subscribeRequestItems = 
             new ArrayList<SubscribeRequestItem>(itemDefinitions.size());
         for (DASoapItemDefintion itemDefinition : itemDefinitions) {
@@ -173,35 +305,128 @@ public class DASoapEndpoint extends OPCEndpoint<DASoapItemDefintion> {
                         timeDeadband, BUFFER_ENABLED)
                     );
             if (itemDefinition.hasRedundantAddress()) {
+                // the redundant address is only a standby, sample it slowly
                 subscribeRequestItems.add(
                         SoapObjectFactory.createSubscribeRequestItem(
                             getAlternativeClientHandle(definitionId),
                             itemDefinition.getRedundantAddress(), valueDeadband,
-                            timeDeadband, BUFFER_ENABLED)
+                            RedundantAddressArbiter.getSecondarySamplingRate(timeDeadband),
+                            BUFFER_ENABLED)
                         );
             }
         }
         Subscribe subscribe = SoapObjectFactory.createSubscribe(
                 subscriptionGroup.toString(), subscribeRequestItems,
                 SUBSCRIPTION_PING_RATE);
-        try {
-            SubscribeResponse subscribeResponse = 
-                dataAccess.subscribe(subscribe);
-            SoapLongPoll poll = 
-                startPoll(subscribeResponse.getServerSubHandle(),
-                        subscriptionGroup);
-            polls.put(subscriptionGroup, poll);
-            checkErrors(subscribeResponse.getErrors());
-        } catch (RemoteException e) {
-            throw new OPCCommunicationException(e);
-        }
-        finally {
+        synchronized (dataAccessLock) {
             try {
-                dataAccess._getServiceClient().cleanupTransport();
-            } catch (AxisFault e) {
+                return dataAccess.subscribe(subscribe);
+            } catch (RemoteException e) {
                 throw new OPCCommunicationException(e);
             }
+            finally {
+                try {
+                    dataAccess._getServiceClient().cleanupTransport();
+                } catch (AxisFault e) {
+                    throw new OPCCommunicationException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels server subscriptions. Failures are only logged since the
+     * subscriptions will expire on the server anyway if they are not polled
+     * anymore. If the server cannot be reached the remaining subscriptions
+     * are not tried to avoid waiting for a timeout per subscription.
+     * 
+     * @param serverSubHandles The handles of the subscriptions to cancel.
+     */
+    private void cancelSubscriptions(final Collection<String> serverSubHandles) {
+        int remaining = serverSubHandles.size();
+        for (String serverSubHandle : serverSubHandles) {
+            synchronized (dataAccessLock) {
+                try {
+                    dataAccess.subscriptionCancel(
+                            SoapObjectFactory.createSubscriptionCancel(serverSubHandle));
+                } catch (RemoteException e) {
+                    if (e.getCause() instanceof IOException) {
+                        logger.warn("Server not reachable. " + remaining
+                                + " subscription(s) not cancelled.", e);
+                        return;
+                    }
+                    logger.warn("Cancelling subscription '" + serverSubHandle
+                            + "' failed.", e);
+                }
+                finally {
+                    remaining--;
+                    try {
+                        dataAccess._getServiceClient().cleanupTransport();
+                    } catch (AxisFault e) {
+                        throw new OPCCommunicationException(e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of server subscriptions this endpoint created and
+     * did not cancel yet.
+     * 
+     * @return The number of live server subscriptions.
+     */
+    public synchronized int getServerSubscriptionCount() {
+        int count = 0;
+        for (SoapGroupSubscriptions subscriptions : groupSubscriptions.values()) {
+            count += subscriptions.size();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the bulkhead which limits the share of the polls of this
+     * endpoint of the shared pool. All listener notifications of the polls
+     * go through it as one task per response. It records the dropped and
+     * rejected responses and the time they waited.
+     * 
+     * @return The poll bulkhead.
+     */
+    public EquipmentBulkhead getPollBulkhead() {
+        return pollBulkhead;
+    }
+
+    /**
+     * Returns the server subscriptions of a group. They are created if
+     * necessary.
+     * 
+     * @param subscriptionGroup The group to get the subscriptions for.
+     * @return The server subscriptions of the group.
+     */
+    private SoapGroupSubscriptions getGroupSubscriptions(
+            final SubscriptionGroup<DASoapItemDefintion> subscriptionGroup) {
+        SoapGroupSubscriptions subscriptions =
+            groupSubscriptions.get(subscriptionGroup);
+        if (subscriptions == null) {
+            subscriptions = new SoapGroupSubscriptions();
+            groupSubscriptions.put(subscriptionGroup, subscriptions);
+        }
+        return subscriptions;
+    }
+
+    /**
+     * Returns the ids of the provided definitions.
+     * 
+     * @param itemDefinitions The definitions.
+     * @return The ids of the definitions.
+     */
+    private List<Long> getDefinitionIds(
+            final Collection<DASoapItemDefintion> itemDefinitions) {
+        List<Long> definitionIds = new ArrayList<Long>(itemDefinitions.size());
+        for (DASoapItemDefintion itemDefinition : itemDefinitions) {
+            definitionIds.add(itemDefinition.getId());
         }
+        return definitionIds;
     }
 
     /**
@@ -213,14 +438,41 @@ public class DASoapEndpoint extends OPCEndpoint<DASoapItemDefintion> {
      */
     private SoapLongPoll startPoll(final String serverSubHandle,
             final SubscriptionGroup<DASoapItemDefintion> group) {
+        SoapLongPollTiming timing = new SoapLongPollTiming(HOLD_TIME,
+                Math.max(address.getMinHoldTime(), group.getTimeDeadband()),
+                address.getMaxHoldTime(), MAX_POLL_TIME);
+        timing.setSubscribedItemCount(group.size());
         SoapLongPoll soapLongPoll = new SoapLongPoll(
-                address, serverSubHandle, HOLD_TIME, WAIT_TIME);
+                address, serverSubHandle, timing);
+        soapLongPoll.setBulkhead(pollBulkhead);
         soapLongPoll.addListener(new ISoapLongPollListener() {
             @Override
             public void valueChanged(final String clientHandle,
                     final long timestamp, final Object value) {
-                notifyEndpointListenersValueChange(getDefinitionId(clientHandle), 
-                        timestamp, value);
+                notifyEndpointListenersValueChange(getDefinitionId(clientHandle),
+                        isAlternativeClientHandle(clientHandle), timestamp, value);
+            }
+
+            @Override
+            public void valueChanged(final String clientHandle,
+                    final long timestamp, final long value) {
+                notifyEndpointListenersValueChange(getDefinitionId(clientHandle),
+                        isAlternativeClientHandle(clientHandle), timestamp, value);
+            }
+
+            @Override
+            public void valueChanged(final String clientHandle,
+                    final long timestamp, final double value) {
+                notifyEndpointListenersValueChange(getDefinitionId(clientHandle),
+                        isAlternativeClientHandle(clientHandle), timestamp, value);
+            }
+
+            @Override
+            public void invalidQuality(final String clientHandle,
+                    final String quality) {
+                notifyEndpointListenersItemError(getDefinitionId(clientHandle),
+                        isAlternativeClientHandle(clientHandle),
+                        createQualityException(quality));
             }
         });
         ISoapLongPollExceptionHandler handler;
@@ -237,12 +489,13 @@ public class DASoapEndpoint extends OPCEndpoint<DASoapItemDefintion> {
     }
 
     /**
-     * Refreshes the values of a collection of item definitions.
+     * Refreshes the values of a collection of item definitions. Called with
+     * the read lock of the endpoint.
      * 
      * @param itemDefintions The item definitions to refresh.
      */
     @Override
-    protected synchronized void onRefresh(
+    protected void onRefresh(
             final Collection<DASoapItemDefintion> itemDefintions) {
         ReadRequestItemList itemList = new ReadRequestItemList();
         for (DASoapItemDefintion definition : itemDefintions) {
@@ -253,8 +506,8 @@ public class DASoapEndpoint extends OPCEndpoint<DASoapItemDefintion> {
                             clientItemHandle, address));
             if (definition.hasRedundantAddress()) {
                 String redClientItemHandle =
-                    Long.valueOf(definition.getId()).toString();
-                String redAddress = definition.getAddress();
+                    getAlternativeClientHandle(definition.getId());
+                String redAddress = definition.getRedundantAddress();
                 itemList.addItems(
                         SoapObjectFactory.createReadRequestItem(
                                 redClientItemHandle, redAddress));
@@ -263,29 +516,62 @@ public class DASoapEndpoint extends OPCEndpoint<DASoapItemDefintion> {
         Read read = new Read();
         read.setOptions(SoapObjectFactory.createDefaultRequestOptions("read"));
         read.setItemList(itemList);
-        try {
-            ReadResponse readResponse = dataAccess.read(read);
-            checkErrors(readResponse.getErrors());
-            for (ItemValue value : readResponse.getRItemList().getItems()) {
-                String clientItemHandle = value.getClientItemHandle();
+        ReadResponse readResponse;
+        synchronized (dataAccessLock) {
+            try {
+                readResponse = dataAccess.read(read);
+            } catch (RemoteException e) {
+                throw new OPCCommunicationException(e);
+            }
+            finally {
+                try {
+                    dataAccess._getServiceClient().cleanupTransport();
+                } catch (AxisFault e) {
+                    throw new OPCCommunicationException(e);
+                }
+            }
+        }
+        checkErrors(readResponse.getErrors());
+        for (ItemValue value : readResponse.getRItemList().getItems()) {
+            String clientItemHandle = value.getClientItemHandle();
+            String quality = SoapValueDecoder.getQuality(value);
+            if (SoapValueDecoder.isGoodQuality(quality)) {
                 notifyEndpointListenersValueChange(
-                        getDefinitionId(clientItemHandle), 
+                        getDefinitionId(clientItemHandle),
+                        isAlternativeClientHandle(clientItemHandle),
                         value.getTimestamp().getTimeInMillis(), 
-                        value.getValue().getText());
+                        SoapValueDecoder.decode(value));
             }
-            
-        } catch (RemoteException e) {
-            throw new OPCCommunicationException(e);
-        }
-        finally {
-            try {
-                dataAccess._getServiceClient().cleanupTransport();
-            } catch (AxisFault e) {
-                throw new OPCCommunicationException(e);
+            else {
+                notifyEndpointListenersItemError(
+                        getDefinitionId(clientItemHandle),
+                        isAlternativeClientHandle(clientItemHandle),
+                        createQualityException(quality));
             }
         }
     }
     
+    /**
+     * Returns the exception used to invalidate an item with a bad quality.
+     * The exception of a quality is created once and then reused.
+     * 
+     * @param quality The quality field of the item.
+     * @return The exception describing the quality.
+     */
+    private OPCCommunicationException createQualityException(
+            final String quality) {
+        OPCCommunicationException exception = qualityExceptions.get(quality);
+        if (exception == null) {
+            exception = new OPCCommunicationException("Item has quality '" + quality + "'.");
+            OPCCommunicationException existing =
+                qualityExceptions.putIfAbsent(quality, exception);
+            if (existing != null) {
+                exception = existing;
+            }
+        }
+        return exception;
+    }
+
     /**
      * Gets the definition id to the provided client item handle.
      * 
@@ -293,9 +579,23 @@ public class DASoapEndpoint extends OPCEndpoint<DASoapItemDefintion> {
      * @return The definition id.
      */
     private long getDefinitionId(final String clientItemHandle) {
+        if (isAlternativeClientHandle(clientItemHandle)) {
+            return Long.valueOf(clientItemHandle.substring(0,
+                    clientItemHandle.length() - ALTERNATIVE_HANDLE_SUFFIX.length()));
+        }
         return Long.valueOf(clientItemHandle);
     }
 
+    /**
+     * Checks if a client item handle belongs to a redundant address.
+     * 
+     * @param clientItemHandle The item handle to check.
+     * @return True if it is an alternative client handle else false.
+     */
+    private boolean isAlternativeClientHandle(final String clientItemHandle) {
+        return clientItemHandle.endsWith(ALTERNATIVE_HANDLE_SUFFIX);
+    }
+
     /**
      * Gets an alternative client handle.
      * 
@@ -303,7 +603,7 @@ public class DASoapEndpoint extends OPCEndpoint<DASoapItemDefintion> {
      * @return The modified item handle.
      */
     private String getAlternativeClientHandle(final long definitionId) {
-        return getClientHandle(definitionId) + ".0";
+        return getClientHandle(definitionId) + ALTERNATIVE_HANDLE_SUFFIX;
     }
     
     /**
@@ -331,33 +631,19 @@ public class DASoapEndpoint extends OPCEndpoint<DASoapItemDefintion> {
     }
 
     /**
-     * Writes to a value in the OPC server.
+     * Writes to a value in the OPC server. Concurrent writes are sent
+     * together in one Write request (see {@link SoapWriteBatcher}). This
+     * method is not synchronized so that writes of several threads can be
+     * collected.
      * 
      * @param itemDefintion The item definition to write to.
      * @param value The value to write.
      */
     @Override
-    protected synchronized void onWrite(final DASoapItemDefintion itemDefintion,
+    protected void onWrite(final DASoapItemDefintion itemDefintion,
             final Object value) {
-        long id = itemDefintion.getId();
-        ItemValue[] values = {SoapObjectFactory.createItemValue(
-                getClientHandle(id),
-                itemDefintion.getAddress(), value)};
-        try {
-            WriteResponse response = dataAccess.write(
-                    SoapObjectFactory.createWrite(getClientHandle(id), values));
-            OPCError[] errors = response.getErrors();
-            checkErrors(errors);
-        } catch (RemoteException e) {
-            throw new OPCCommunicationException(e);
-        }
-        finally {
-            try {
-                dataAccess._getServiceClient().cleanupTransport();
-            } catch (AxisFault e) {
-                throw new OPCCommunicationException(e);
-            }
-        }
+        writeBatcher.write(getClientHandle(itemDefintion.getId()),
+                itemDefintion.getAddress(), value);
     }
 
     /**
@@ -390,13 +676,24 @@ public class DASoapEndpoint extends OPCEndpoint<DASoapItemDefintion> {
         for (SoapLongPoll poll : polls.values()) {
             poll.release();
         }
+        List<String> serverSubHandles = new ArrayList<String>();
+        for (SoapGroupSubscriptions subscriptions : groupSubscriptions.values()) {
+            serverSubHandles.addAll(subscriptions.clear());
+        }
+        if (dataAccess != null) {
+            cancelSubscriptions(serverSubHandles);
+        }
         polls.clear();
         exceptionHandlers.clear();
+        groupSubscriptions.clear();
         address = null;
     }
 
     /**
-     * Called on removal of a subscription group.
+     * Called on removal of a definition from a subscription group. The
+     * subscription of the definition is cancelled as soon as it has no live
+     * definitions anymore. The group is only rebuilt if it gets too
+     * fragmented.
      * 
      * @param subscriptionGroup The group to remove.
      * @param removedDefinition The definition to remove.
@@ -405,21 +702,42 @@ public class DASoapEndpoint extends OPCEndpoint<DASoapItemDefintion> {
     protected synchronized void onRemove(
             final SubscriptionGroup<DASoapItemDefintion> subscriptionGroup,
             final DASoapItemDefintion removedDefinition) {
-        stopPollForSubscription(subscriptionGroup);
-        if (subscriptionGroup.size() > 0)
-            subscribe(subscriptionGroup);
+        SoapLongPoll poll = polls.get(subscriptionGroup);
+        SoapGroupSubscriptions subscriptions =
+            getGroupSubscriptions(subscriptionGroup);
+        if (subscriptionGroup.size() == 0) {
+            stopPollForSubscription(subscriptionGroup);
+            polls.remove(subscriptionGroup);
+            groupSubscriptions.remove(subscriptionGroup);
+            cancelSubscriptions(subscriptions.clear());
+        }
+        else if (poll == null || !poll.isRunning()) {
+            rebuild(subscriptionGroup);
+        }
+        else {
+            poll.getTiming().setSubscribedItemCount(subscriptionGroup.size());
+            String releasedHandle = subscriptions.remove(removedDefinition.getId());
+            if (releasedHandle != null) {
+                poll.removeServerSubscriptionHandle(releasedHandle);
+                cancelSubscriptions(Collections.singletonList(releasedHandle));
+            }
+            if (subscriptions.getFragmentation()
+                    > address.getFragmentationThreshold()) {
+                rebuild(subscriptionGroup);
+            }
+        }
     }
 
     /**
-     * Called on subscribe.
+     * Called on subscribe. Definitions which are new to the group are
+     * subscribed with a delta subscription.
      * 
      * @param subscriptionGroup The subscription group to subscribe for.
      */
     @Override
     protected synchronized void onSubscribe(
             final SubscriptionGroup<DASoapItemDefintion> subscriptionGroup) {
-        stopPollForSubscription(subscriptionGroup);
-        subscribe(subscriptionGroup);
+        subscribeDelta(subscriptionGroup);
     }
 
     /**
@@ -445,22 +763,25 @@ public class DASoapEndpoint extends OPCEndpoint<DASoapItemDefintion> {
      * reachable and can most likely not be restored.
      */
     @Override
-    protected synchronized void checkStatus() {
-        try {
-            GetStatusResponse response = dataAccess.getStatus(new GetStatus());
-            if (!response.getGetStatusResult().getServerState().getValue().equals("running")) {
-                throw new OPCCommunicationException(
-                        "OPC server not in running state. " + response.getStatus().getStatusInfo());
-            }
-        } catch (RemoteException e) {
-            throw new OPCCommunicationException(e);
-        }
-        finally {
+    protected void checkStatus() {
+        GetStatusResponse response;
+        synchronized (dataAccessLock) {
             try {
-                dataAccess._getServiceClient().cleanupTransport();
-            } catch (AxisFault e) {
+                response = dataAccess.getStatus(new GetStatus());
+            } catch (RemoteException e) {
                 throw new OPCCommunicationException(e);
             }
+            finally {
+                try {
+                    dataAccess._getServiceClient().cleanupTransport();
+                } catch (AxisFault e) {
+                    throw new OPCCommunicationException(e);
+                }
+            }
+        }
+        if (!response.getGetStatusResult().getServerState().getValue().equals("running")) {
+            throw new OPCCommunicationException(
+                    "OPC server not in running state. " + response.getStatus().getStatusInfo());
         }
     }
 
@@ -122,7 +122,7 @@ public class DefaultSoapLongPollExceptionHandler
             timer.schedule(new TimerTask() {
                 @Override
                 public void run() {
-                    endpoint.onSubscribe(group);
+                    endpoint.resubscribe(group);
                 }
             }, restartDelay);
         }
@@ -33,4 +33,36 @@ public interface ISoapLongPollListener {
      */
     void valueChanged(String clientHandle, long timeStamp, Object value);
 
+    /**
+     * Called when a value of an integer type changes. The default
+     * implementation boxes the value.
+     * 
+     * @param clientHandle The client handle of the changed value.
+     * @param timeStamp The timestamp when the object was changed.
+     * @param value The changed value.
+     */
+    default void valueChanged(String clientHandle, long timeStamp, long value) {
+        valueChanged(clientHandle, timeStamp, (Object) Long.valueOf(value));
+    }
+
+    /**
+     * Called when a value of a double type changes. The default
+     * implementation boxes the value.
+     * 
+     * @param clientHandle The client handle of the changed value.
+     * @param timeStamp The timestamp when the object was changed.
+     * @param value The changed value.
+     */
+    default void valueChanged(String clientHandle, long timeStamp, double value) {
+        valueChanged(clientHandle, timeStamp, (Object) Double.valueOf(value));
+    }
+
+    /**
+     * Called when a value with a bad or uncertain quality was received.
+     * 
+     * @param clientHandle The client handle of the item.
+     * @param quality The quality field of the value.
+     */
+    void invalidQuality(String clientHandle, String quality);
+
 }
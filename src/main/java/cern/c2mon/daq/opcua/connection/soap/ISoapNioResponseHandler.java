@@ -0,0 +1,45 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+import java.io.InputStream;
+
+/**
+ * Receives the outcome of a request sent with a {@link SoapNioConnection}.
+ * The methods are called from a callback thread of the
+ * {@link SoapNioTransport}, never from its selector thread.
+ */
+public interface ISoapNioResponseHandler {
+
+    /**
+     * Called when the complete response was received.
+     *
+     * @param statusCode The HTTP status code.
+     * @param statusLine The HTTP status line.
+     * @param body The body of the response. It has to be closed to return
+     * its buffers to the pool.
+     */
+    void responseReceived(int statusCode, String statusLine, InputStream body);
+
+    /**
+     * Called if the request failed or timed out.
+     *
+     * @param e The cause of the failure.
+     */
+    void requestFailed(Throwable e);
+
+}
@@ -0,0 +1,38 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+/**
+ * A loop polling one or more server subscriptions (see
+ * {@link SoapLongPoll}). It runs till it is stopped or fails.
+ */
+public interface ISoapPollLoop {
+
+    /**
+     * Sets the server subscriptions to poll. The change is used from the
+     * next poll on.
+     *
+     * @param serverSubscriptionHandles The handles of the subscriptions.
+     */
+    void setServerSubscriptionHandles(String[] serverSubscriptionHandles);
+
+    /**
+     * Stops the loop. It will never run again.
+     */
+    void stop();
+
+}
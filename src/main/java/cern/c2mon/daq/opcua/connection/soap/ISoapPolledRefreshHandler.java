@@ -0,0 +1,65 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+/**
+ * Receives the item values of a SubscriptionPolledRefresh response while
+ * it is decoded by the {@link SoapPolledRefreshDecoder}.
+ */
+public interface ISoapPolledRefreshHandler {
+
+    /**
+     * Called for every item value in the response.
+     *
+     * @param clientHandle The client handle of the item.
+     * @param timestamp The timestamp of the value.
+     * @param value The value of the item.
+     * @param quality The quality field of the value ('good' if the server
+     * did not send one).
+     */
+    void itemValue(String clientHandle, long timestamp, Object value,
+            String quality);
+
+    /**
+     * Called for every item value of an integer type. The default
+     * implementation boxes the value.
+     *
+     * @param clientHandle The client handle of the item.
+     * @param timestamp The timestamp of the value.
+     * @param value The value of the item.
+     * @param quality The quality field of the value.
+     */
+    default void itemValue(String clientHandle, long timestamp, long value,
+            String quality) {
+        itemValue(clientHandle, timestamp, (Object) Long.valueOf(value), quality);
+    }
+
+    /**
+     * Called for every item value of a double type. The default
+     * implementation boxes the value.
+     *
+     * @param clientHandle The client handle of the item.
+     * @param timestamp The timestamp of the value.
+     * @param value The value of the item.
+     * @param quality The quality field of the value.
+     */
+    default void itemValue(String clientHandle, long timestamp, double value,
+            String quality) {
+        itemValue(clientHandle, timestamp, (Object) Double.valueOf(value), quality);
+    }
+
+}
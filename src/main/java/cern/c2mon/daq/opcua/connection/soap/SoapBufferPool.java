@@ -0,0 +1,110 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct byte buffers of one size. Direct buffers are expensive to
+ * allocate and are therefore reused for the request and response bodies of
+ * the {@link SoapNioTransport}. The pool is thread safe.
+ */
+public class SoapBufferPool {
+
+    /**
+     * The size of every buffer.
+     */
+    private final int bufferSize;
+
+    /**
+     * The maximum number of buffers kept in the pool.
+     */
+    private final int maxPooledBuffers;
+
+    /**
+     * The pooled buffers.
+     */
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /**
+     * The number of pooled buffers.
+     */
+    private final AtomicInteger pooledBuffers = new AtomicInteger();
+
+    /**
+     * Creates a new buffer pool.
+     *
+     * @param bufferSize The size of every buffer.
+     * @param maxPooledBuffers The maximum number of buffers kept in the pool.
+     * More buffers can be acquired but they are not kept after release.
+     */
+    public SoapBufferPool(final int bufferSize, final int maxPooledBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    /**
+     * Takes a cleared buffer from the pool or allocates a new one.
+     *
+     * @return The buffer.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooledBuffers.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used afterwards.
+     *
+     * @param buffer The buffer to return.
+     */
+    public void release(final ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSize
+                && pooledBuffers.incrementAndGet() <= maxPooledBuffers) {
+            buffers.add(buffer);
+        }
+        else if (buffer.capacity() == bufferSize) {
+            pooledBuffers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the size of the buffers of this pool.
+     *
+     * @return The buffer size.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns the number of buffers currently in the pool.
+     *
+     * @return The number of pooled buffers.
+     */
+    public int getPooledBufferCount() {
+        return pooledBuffers.get();
+    }
+}
@@ -0,0 +1,165 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of the server subscriptions of one subscription group. A group
+ * starts with one base subscription containing all its items. Items added
+ * later are subscribed with small delta subscriptions which are polled
+ * together with the base subscription. Removed items stay subscribed on the
+ * server (stale) until the subscription they belong to has no live item
+ * anymore and can be cancelled.
+ * <p>
+ * The fragmentation of a group is the number of delta subscriptions plus the
+ * number of stale items. If it gets too high the group should be rebuilt
+ * with a single subscription.
+ * <p>
+ * This class is not thread safe. It is guarded by the endpoint.
+ */
+public class SoapGroupSubscriptions {
+
+    /**
+     * Server subscription handle to the live definition ids of the
+     * subscription. The first entry is the base subscription.
+     */
+    private final Map<String, Set<Long>> liveDefinitionIds =
+        new LinkedHashMap<String, Set<Long>>();
+
+    /**
+     * Server subscription handle to the number of definitions which were
+     * subscribed with it.
+     */
+    private final Map<String, Integer> subscribedCounts =
+        new HashMap<String, Integer>();
+
+    /**
+     * Definition id to the server subscription handle it is subscribed with.
+     */
+    private final Map<Long, String> handles = new HashMap<Long, String>();
+
+    /**
+     * Adds a server subscription.
+     *
+     * @param serverSubHandle The handle of the subscription.
+     * @param definitionIds The ids of the definitions subscribed with it.
+     */
+    public void add(final String serverSubHandle,
+            final Collection<Long> definitionIds) {
+        liveDefinitionIds.put(serverSubHandle, new HashSet<Long>(definitionIds));
+        subscribedCounts.put(serverSubHandle, definitionIds.size());
+        for (Long definitionId : definitionIds) {
+            handles.put(definitionId, serverSubHandle);
+        }
+    }
+
+    /**
+     * Removes a definition. The definition is still sampled by the server
+     * till its subscription is cancelled.
+     *
+     * @param definitionId The id of the definition to remove.
+     * @return The handle of the subscription of the definition if it has no
+     * live definitions anymore and should be cancelled else null.
+     */
+    public String remove(final long definitionId) {
+        String serverSubHandle = handles.remove(definitionId);
+        if (serverSubHandle == null) {
+            return null;
+        }
+        Set<Long> live = liveDefinitionIds.get(serverSubHandle);
+        live.remove(definitionId);
+        if (live.isEmpty()) {
+            liveDefinitionIds.remove(serverSubHandle);
+            subscribedCounts.remove(serverSubHandle);
+            return serverSubHandle;
+        }
+        return null;
+    }
+
+    /**
+     * Checks if a definition is part of a server subscription.
+     *
+     * @param definitionId The id of the definition.
+     * @return True if the definition is subscribed else false.
+     */
+    public boolean contains(final long definitionId) {
+        return handles.containsKey(definitionId);
+    }
+
+    /**
+     * Returns the fragmentation of the group. This is the number of delta
+     * subscriptions plus the number of stale items.
+     *
+     * @return The fragmentation of the group.
+     */
+    public int getFragmentation() {
+        int fragmentation = Math.max(0, liveDefinitionIds.size() - 1);
+        for (Map.Entry<String, Set<Long>> entry : liveDefinitionIds.entrySet()) {
+            fragmentation += subscribedCounts.get(entry.getKey())
+                - entry.getValue().size();
+        }
+        return fragmentation;
+    }
+
+    /**
+     * Returns the handles of all server subscriptions of the group.
+     *
+     * @return The server subscription handles.
+     */
+    public List<String> getServerSubHandles() {
+        return new ArrayList<String>(liveDefinitionIds.keySet());
+    }
+
+    /**
+     * Returns the number of server subscriptions of the group.
+     *
+     * @return The number of server subscriptions.
+     */
+    public int size() {
+        return liveDefinitionIds.size();
+    }
+
+    /**
+     * Checks if the group has no server subscriptions.
+     *
+     * @return True if there are no server subscriptions else false.
+     */
+    public boolean isEmpty() {
+        return liveDefinitionIds.isEmpty();
+    }
+
+    /**
+     * Removes all server subscriptions.
+     *
+     * @return The handles of the removed server subscriptions.
+     */
+    public List<String> clear() {
+        List<String> serverSubHandles = getServerSubHandles();
+        liveDefinitionIds.clear();
+        subscribedCounts.clear();
+        handles.clear();
+        return serverSubHandles;
+    }
+}
@@ -0,0 +1,525 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Incremental parser for HTTP/1.1 responses. The bytes are provided as they
+ * arrive from the socket. The body is copied into buffers of a
+ * {@link SoapBufferPool} and can be read as stream once the response is
+ * complete. Chunked transfer encoding, Content-Length and bodies delimited
+ * by the end of the connection are supported.
+ * <p>
+ * A parser is used for one response at a time and is not thread safe.
+ */
+public class SoapHttpResponseParser {
+
+    /**
+     * Maximum length of the status line or a header line.
+     */
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    /**
+     * The states of the parser.
+     */
+    private enum State {
+        STATUS_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END,
+        TRAILERS, BODY_UNTIL_CLOSE, DONE
+    }
+
+    /**
+     * The pool for the body buffers.
+     */
+    private final SoapBufferPool bufferPool;
+
+    /**
+     * The buffers holding the body.
+     */
+    private final List<ByteBuffer> bodyBuffers = new ArrayList<ByteBuffer>();
+
+    /**
+     * The current line of the status line, headers or chunk sizes.
+     */
+    private final StringBuilder line = new StringBuilder();
+
+    /**
+     * The current state.
+     */
+    private State state = State.STATUS_LINE;
+
+    /**
+     * The status code of the response.
+     */
+    private int statusCode;
+
+    /**
+     * The status line of the response.
+     */
+    private String statusLine;
+
+    /**
+     * The content length or -1 if it is not known.
+     */
+    private long contentLength = -1;
+
+    /**
+     * True if the body is chunked.
+     */
+    private boolean chunked;
+
+    /**
+     * True if the body is gzip encoded.
+     */
+    private boolean gzip;
+
+    /**
+     * True if the server closes the connection after this response.
+     */
+    private boolean connectionClose;
+
+    /**
+     * Number of bytes of the body or current chunk still to read.
+     */
+    private long remaining;
+
+    /**
+     * True if at least one byte of the response was received.
+     */
+    private boolean started;
+
+    /**
+     * Creates a new parser.
+     *
+     * @param bufferPool The pool for the body buffers.
+     */
+    public SoapHttpResponseParser(final SoapBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Parses the available bytes of the provided buffer.
+     *
+     * @param in The buffer to read from (in read mode).
+     * @return True if the response is complete.
+     * @throws IOException Thrown if the response is malformed.
+     */
+    public boolean parse(final ByteBuffer in) throws IOException {
+        if (in.hasRemaining()) {
+            started = true;
+        }
+        while (in.hasRemaining() && state != State.DONE) {
+            switch (state) {
+            case STATUS_LINE:
+                if (readLine(in)) {
+                    parseStatusLine();
+                }
+                break;
+            case HEADERS:
+                if (readLine(in)) {
+                    parseHeader();
+                }
+                break;
+            case BODY:
+            case CHUNK_DATA:
+                readBody(in);
+                break;
+            case BODY_UNTIL_CLOSE:
+                copyBody(in, in.remaining());
+                break;
+            case CHUNK_SIZE:
+                if (readLine(in)) {
+                    parseChunkSize();
+                }
+                break;
+            case CHUNK_END:
+                if (readLine(in)) {
+                    state = State.CHUNK_SIZE;
+                }
+                break;
+            case TRAILERS:
+                if (readLine(in) && consumeLine().isEmpty()) {
+                    state = State.DONE;
+                }
+                break;
+            default:
+                break;
+            }
+        }
+        return state == State.DONE;
+    }
+
+    /**
+     * Informs the parser that the connection was closed by the server.
+     *
+     * @return True if the response is complete.
+     */
+    public boolean endOfStream() {
+        if (state == State.BODY_UNTIL_CLOSE) {
+            state = State.DONE;
+        }
+        return state == State.DONE;
+    }
+
+    /**
+     * Reads a line. The line is available in the line builder if this
+     * method returns true.
+     *
+     * @param in The buffer to read from.
+     * @return True if a complete line was read.
+     * @throws IOException Thrown if the line is too long.
+     */
+    private boolean readLine(final ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            char c = (char) (in.get() & 0xFF);
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return true;
+            }
+            line.append(c);
+            if (line.length() > MAX_LINE_LENGTH) {
+                throw new IOException("HTTP line too long.");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the current line and clears it.
+     *
+     * @return The current line.
+     */
+    private String consumeLine() {
+        String result = line.toString();
+        line.setLength(0);
+        return result;
+    }
+
+    /**
+     * Parses the status line.
+     *
+     * @throws IOException Thrown if the status line is malformed.
+     */
+    private void parseStatusLine() throws IOException {
+        statusLine = consumeLine();
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Malformed HTTP status line: " + statusLine);
+        }
+        try {
+            statusCode = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed HTTP status line: " + statusLine);
+        }
+        connectionClose = parts[0].equals("HTTP/1.0");
+        state = State.HEADERS;
+    }
+
+    /**
+     * Parses a header line. An empty line ends the headers.
+     *
+     * @throws IOException Thrown if a header is malformed.
+     */
+    private void parseHeader() throws IOException {
+        String header = consumeLine();
+        if (header.isEmpty()) {
+            endOfHeaders();
+            return;
+        }
+        int colon = header.indexOf(':');
+        if (colon < 0) {
+            return;
+        }
+        String name = header.substring(0, colon).trim();
+        String value = header.substring(colon + 1).trim();
+        if (name.equalsIgnoreCase("Content-Length")) {
+            try {
+                contentLength = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed Content-Length: " + value);
+            }
+        }
+        else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+            chunked = value.toLowerCase().contains("chunked");
+        }
+        else if (name.equalsIgnoreCase("Content-Encoding")) {
+            gzip = value.toLowerCase().contains("gzip");
+        }
+        else if (name.equalsIgnoreCase("Connection")) {
+            if (value.equalsIgnoreCase("close")) {
+                connectionClose = true;
+            }
+            else if (value.equalsIgnoreCase("keep-alive")) {
+                connectionClose = false;
+            }
+        }
+    }
+
+    /**
+     * Decides how the body is delimited after all headers were read.
+     */
+    private void endOfHeaders() {
+        if (statusCode >= 100 && statusCode < 200) {
+            // interim response, the real one follows
+            contentLength = -1;
+            chunked = false;
+            gzip = false;
+            state = State.STATUS_LINE;
+        }
+        else if (statusCode == 204 || statusCode == 304) {
+            state = State.DONE;
+        }
+        else if (chunked) {
+            state = State.CHUNK_SIZE;
+        }
+        else if (contentLength >= 0) {
+            remaining = contentLength;
+            state = remaining == 0 ? State.DONE : State.BODY;
+        }
+        else {
+            connectionClose = true;
+            state = State.BODY_UNTIL_CLOSE;
+        }
+    }
+
+    /**
+     * Parses the size line of a chunk.
+     *
+     * @throws IOException Thrown if the chunk size is malformed.
+     */
+    private void parseChunkSize() throws IOException {
+        String sizeLine = consumeLine();
+        int extension = sizeLine.indexOf(';');
+        if (extension >= 0) {
+            sizeLine = sizeLine.substring(0, extension);
+        }
+        try {
+            remaining = Long.parseLong(sizeLine.trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed chunk size: " + sizeLine);
+        }
+        state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+    }
+
+    /**
+     * Reads body bytes of a known length (whole body or chunk).
+     *
+     * @param in The buffer to read from.
+     */
+    private void readBody(final ByteBuffer in) {
+        int length = (int) Math.min(remaining, in.remaining());
+        copyBody(in, length);
+        remaining -= length;
+        if (remaining == 0) {
+            state = state == State.CHUNK_DATA ? State.CHUNK_END : State.DONE;
+        }
+    }
+
+    /**
+     * Copies body bytes into the pooled body buffers.
+     *
+     * @param in The buffer to read from.
+     * @param length The number of bytes to copy.
+     */
+    private void copyBody(final ByteBuffer in, final int length) {
+        int left = length;
+        while (left > 0) {
+            ByteBuffer target = bodyBuffers.isEmpty()
+                ? null : bodyBuffers.get(bodyBuffers.size() - 1);
+            if (target == null || !target.hasRemaining()) {
+                target = bufferPool.acquire();
+                bodyBuffers.add(target);
+            }
+            int count = Math.min(left, target.remaining());
+            int limit = in.limit();
+            in.limit(in.position() + count);
+            target.put(in);
+            in.limit(limit);
+            left -= count;
+        }
+    }
+
+    /**
+     * Returns the body of the complete response. The stream owns the body
+     * buffers and returns them to the pool when it is closed. The parser has
+     * to be reset before the next response.
+     *
+     * @return The body as stream.
+     * @throws IOException Thrown if the gzip header is malformed.
+     */
+    public InputStream takeBody() throws IOException {
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(bodyBuffers);
+        bodyBuffers.clear();
+        InputStream body = new BufferInputStream(bufferPool, buffers);
+        if (gzip) {
+            body = new GZIPInputStream(body);
+        }
+        return body;
+    }
+
+    /**
+     * Resets the parser for the next response and returns all buffers which
+     * were not taken to the pool.
+     */
+    public void reset() {
+        for (ByteBuffer buffer : bodyBuffers) {
+            bufferPool.release(buffer);
+        }
+        bodyBuffers.clear();
+        line.setLength(0);
+        state = State.STATUS_LINE;
+        statusCode = 0;
+        statusLine = null;
+        contentLength = -1;
+        chunked = false;
+        gzip = false;
+        connectionClose = false;
+        remaining = 0;
+        started = false;
+    }
+
+    /**
+     * Returns the status code of the response.
+     *
+     * @return The status code.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Returns the status line of the response.
+     *
+     * @return The status line.
+     */
+    public String getStatusLine() {
+        return statusLine;
+    }
+
+    /**
+     * Returns true if the connection cannot be used for another request.
+     *
+     * @return True if the server closes the connection.
+     */
+    public boolean isConnectionClose() {
+        return connectionClose;
+    }
+
+    /**
+     * Returns true if at least one byte of the response was received.
+     *
+     * @return True if the response started.
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Input stream over a list of pooled buffers.
+     */
+    private static final class BufferInputStream extends InputStream {
+
+        /**
+         * The pool to return the buffers to.
+         */
+        private final SoapBufferPool bufferPool;
+
+        /**
+         * The buffers in write mode (position is the end of the data).
+         */
+        private final List<ByteBuffer> buffers;
+
+        /**
+         * Index of the current buffer.
+         */
+        private int index = 0;
+
+        /**
+         * Creates a new stream.
+         *
+         * @param bufferPool The pool to return the buffers to.
+         * @param buffers The buffers to read.
+         */
+        private BufferInputStream(final SoapBufferPool bufferPool,
+                final List<ByteBuffer> buffers) {
+            this.bufferPool = bufferPool;
+            this.buffers = buffers;
+            for (ByteBuffer buffer : buffers) {
+                buffer.flip();
+            }
+        }
+
+        /**
+         * Returns the current buffer with remaining bytes or null at the end.
+         *
+         * @return The current buffer.
+         */
+        private ByteBuffer current() {
+            while (index < buffers.size()) {
+                ByteBuffer buffer = buffers.get(index);
+                if (buffer.hasRemaining()) {
+                    return buffer;
+                }
+                index++;
+            }
+            return null;
+        }
+
+        @Override
+        public int read() {
+            ByteBuffer buffer = current();
+            return buffer == null ? -1 : buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) {
+            if (length == 0) {
+                return 0;
+            }
+            ByteBuffer buffer = current();
+            if (buffer == null) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            ByteBuffer buffer = current();
+            return buffer == null ? 0 : buffer.remaining();
+        }
+
+        @Override
+        public void close() {
+            for (ByteBuffer buffer : buffers) {
+                bufferPool.release(buffer);
+            }
+            buffers.clear();
+            index = 0;
+        }
+    }
+}
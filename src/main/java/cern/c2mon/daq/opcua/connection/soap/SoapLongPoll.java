@@ -16,10 +16,15 @@
  *****************************************************************************/
 package cern.c2mon.daq.opcua.connection.soap;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -31,11 +36,14 @@ import org.opcfoundation.xmlda.OPCXML_DataAccessStub;
 import org.opcfoundation.xmlda.SubscribePolledRefreshReplyItemList;
 
 import cern.c2mon.daq.opcua.connection.common.AbstractOPCUAAddress;
+import cern.c2mon.daq.opcua.connection.common.impl.EquipmentBulkhead;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCCommunicationException;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCCriticalException;
 
 /**
- * Polls the OPC server for updates to one subscription. It uses a long poll
+ * Polls the OPC server for updates to one or more subscriptions. Further
+ * subscriptions (e.g. delta subscriptions of a group) are multiplexed into
+ * the same poll request. It uses a long poll
  * mechanism. This means that the server only returns the poll if there are
  * updates or a certain time (wait time) is passed. Aditionally there is a
  * minimum waiting time (hold time).
@@ -64,11 +72,39 @@ public class SoapLongPoll {
     private AbstractOPCUAAddress address;
 
     /**
-     * An executor service which serves as ThreadPool.
+     * An executor service which serves as ThreadPool. It is shared by the
+     * polls of all equipments. Every blocking poll loop occupies one of its
+     * threads.
      */
     private static final ExecutorService EXECUTOR_SERVICE =
         Executors.newCachedThreadPool();
 
+    /**
+     * Maximum number of pool threads notifying the listeners of an
+     * equipment at the same time. This applies to the decoded responses of
+     * the object model as well as to the streamed responses of the
+     * streaming decoder and the NIO poll loop.
+     */
+    private static final int MAX_CONCURRENT_NOTIFICATIONS = 2;
+
+    /**
+     * Maximum number of queued notifications of an equipment. A queued
+     * notification is a whole response.
+     */
+    private static final int MAX_QUEUED_NOTIFICATIONS = 1000;
+
+    /**
+     * Maximum time in milliseconds the thread of a poll waits for a free
+     * place in the queue before a response of the object model is dropped.
+     * Streamed responses never wait.
+     */
+    private static final long MAX_NOTIFICATION_BLOCK_TIME = 10000L;
+
+    /**
+     * Limits the share of the equipment of this poll of the shared pool.
+     */
+    private EquipmentBulkhead bulkhead = createBulkhead();
+
     /**
      * Indicates the running state of the poll.
      */
@@ -81,24 +117,98 @@ public class SoapLongPoll {
         new ConcurrentLinkedQueue<ISoapLongPollListener>();
 
     /**
-     * The runnable for the long poll itself.
+     * The SOAP action of the poll requests.
      */
-    private SoapLongPollRunnable soapLongPollRunnable;
+    private static final String POLL_ACTION =
+        "http://opcfoundation.org/webservices/XMLDA/1.0/SubscriptionPolledRefresh";
 
     /**
-     * Hold time: Server has to wait at least that time.
+     * The loop of the long poll itself. It either runs on a pooled thread
+     * or on the {@link SoapNioTransport}.
      */
-    private int holdTime;
+    private ISoapPollLoop soapLongPollRunnable;
 
     /**
-     * Additional time on top of hold time to wait if there are no updates.
+     * Hold and wait time of the poll.
      */
-    private int waitTime;
+    private SoapLongPollTiming timing;
 
     /**
-     * The server subscription handle.
+     * The server subscription handles. The first one is the handle the poll
+     * was created with.
      */
-    private String serverSubscriptionHandle;
+    private List<String> serverSubscriptionHandles =
+        new CopyOnWriteArrayList<String>();
+
+    /**
+     * Notifies the listeners about the values of a batch.
+     */
+    private final ISoapPolledRefreshHandler listenerNotifier =
+        new ISoapPolledRefreshHandler() {
+            @Override
+            public void itemValue(final String clientHandle,
+                    final long timestamp, final Object value,
+                    final String quality) {
+                notifyListeners(clientHandle, timestamp, value, quality);
+            }
+
+            @Override
+            public void itemValue(final String clientHandle,
+                    final long timestamp, final long value,
+                    final String quality) {
+                notifyListeners(clientHandle, timestamp, value, quality);
+            }
+
+            @Override
+            public void itemValue(final String clientHandle,
+                    final long timestamp, final double value,
+                    final String quality) {
+                notifyListeners(clientHandle, timestamp, value, quality);
+            }
+        };
+
+    /**
+     * Called after a batch was processed. The batch is kept for reuse. A
+     * place in the queue became free, so the values kept meanwhile are
+     * queued.
+     */
+    private final SoapValueBatch.DoneListener batchDone =
+        new SoapValueBatch.DoneListener() {
+            @Override
+            public void batchDone(final SoapValueBatch batch) {
+                recycle(batch);
+                queueOverflow();
+            }
+        };
+
+    /**
+     * Guards the queuing of the batches, the overflow batch and the free
+     * batches.
+     */
+    private final Object batchLock = new Object();
+
+    /**
+     * Maximum number of processed batches kept for reuse.
+     */
+    private static final int MAX_FREE_BATCHES = 4;
+
+    /**
+     * Processed batches which can be reused.
+     */
+    private final ArrayDeque<SoapValueBatch> freeBatches =
+        new ArrayDeque<SoapValueBatch>(MAX_FREE_BATCHES);
+
+    /**
+     * The values of the response which is decoded at the moment. Only used
+     * by the poll loop, which decodes one response at a time.
+     */
+    private SoapValueBatch decodingBatch = createBatch();
+
+    /**
+     * The latest values of the items of the responses which could not be
+     * queued because the queue of the equipment was full, or null.
+     */
+    private SoapValueBatch overflow;
 
     /**
      * Creates a new soap long poll.
@@ -114,44 +224,177 @@ public class SoapLongPoll {
     public SoapLongPoll(final AbstractOPCUAAddress address,
             final String serverSubscriptionHandle, final int holdTime, 
             final int waitTime) {
+        this(address, serverSubscriptionHandle,
+                new SoapLongPollTiming(holdTime, waitTime));
+    }
+
+    /**
+     * Creates a new soap long poll.
+     * 
+     * @param address The opc address to identify the poll target.
+     * @param serverSubscriptionHandle The server handle which identifies the
+     * Subscription to poll updates for.
+     * @param timing The hold and wait time of the poll. It may be adaptive.
+     */
+    public SoapLongPoll(final AbstractOPCUAAddress address,
+            final String serverSubscriptionHandle,
+            final SoapLongPollTiming timing) {
         this.address = address;
-        this.serverSubscriptionHandle = serverSubscriptionHandle;
-        this.holdTime = holdTime;
-        this.waitTime = waitTime;
+        this.serverSubscriptionHandles.add(serverSubscriptionHandle);
+        this.timing = timing;
+    }
+
+    /**
+     * Creates a bulkhead over the pool shared by all polls. The polls of an
+     * equipment should share one bulkhead. It allows two concurrent and
+     * 1000 queued responses per equipment.
+     *
+     * @return The new bulkhead.
+     */
+    public static EquipmentBulkhead createBulkhead() {
+        return new EquipmentBulkhead(EXECUTOR_SERVICE, MAX_CONCURRENT_NOTIFICATIONS,
+                MAX_QUEUED_NOTIFICATIONS, MAX_NOTIFICATION_BLOCK_TIME);
+    }
+
+    /**
+     * Sets the bulkhead the poll responses are processed with. By default
+     * every poll has its own.
+     *
+     * @param bulkhead The bulkhead of the equipment.
+     */
+    public void setBulkhead(final EquipmentBulkhead bulkhead) {
+        this.bulkhead = bulkhead;
     }
 
     /**
-     * Starts the polling of the subscription.
+     * Starts the polling of the subscription. If the address enables the
+     * NIO transport and the server is supported by it the poll does not
+     * occupy a thread while the server holds it.
      */
     public synchronized void startPolling() {
         try {
             logger.debug(this + " Polling started.");
-            OPCXML_DataAccessStub access = createSoapAccess();
             if (soapLongPollRunnable == null || !isRunning) {
-                soapLongPollRunnable = new SoapLongPollRunnable(
-                        holdTime, waitTime, serverSubscriptionHandle,
-                        access) {
-                            @Override
-                            public void newItemValues(
-                                    final SubscribePolledRefreshReplyItemList[] rItemList) {
-                                notifyListeners(rItemList);
-                            }
-
-                            @Override
-                            public void onError(final Throwable e) {
-                                pollingThreadFailed(e);
-                            }
-                    
-                };
-                EXECUTOR_SERVICE.execute(soapLongPollRunnable);
+                URI uri = address.getUri();
+                if (address.isNioTransport()
+                        && SoapNioTransport.isSupported(uri, address.getDomain())) {
+                    startNioPoll(uri);
+                }
+                else {
+                    startThreadPoll();
+                }
                 isRunning = true;
             }
         } catch (MalformedURLException e) {
             throw new OPCCriticalException(e);
         } catch (AxisFault e) {
             throw new OPCCommunicationException(e);
+        } catch (IOException e) {
+            throw new OPCCommunicationException(e);
         }
     }
+
+    /**
+     * Starts a poll loop which blocks a pooled thread.
+     *
+     * @throws MalformedURLException Thrown if the supplied URI is malformed.
+     * @throws AxisFault Thrown if there is a problem wih Soap
+     */
+    private void startThreadPoll() throws MalformedURLException, AxisFault {
+        OPCXML_DataAccessStub access = createSoapAccess();
+        SoapLongPollRunnable runnable = new SoapLongPollRunnable(
+                timing, serverSubscriptionHandles.get(0),
+                access) {
+                    @Override
+                    public void newItemValues(
+                            final SubscribePolledRefreshReplyItemList[] rItemList) {
+                        notifyListeners(rItemList);
+                    }
+
+                    @Override
+                    public void newItemValue(final String clientHandle,
+                            final long timestamp, final Object value,
+                            final String quality) {
+                        handOffValue(clientHandle, timestamp, value, quality);
+                    }
+
+                    @Override
+                    public void newItemValue(final String clientHandle,
+                            final long timestamp, final long value,
+                            final String quality) {
+                        handOffValue(clientHandle, timestamp, value, quality);
+                    }
+
+                    @Override
+                    public void newItemValue(final String clientHandle,
+                            final long timestamp, final double value,
+                            final String quality) {
+                        handOffValue(clientHandle, timestamp, value, quality);
+                    }
+
+                    @Override
+                    public void responseDecoded() {
+                        handOffResponse();
+                    }
+
+                    @Override
+                    public void onError(final Throwable e) {
+                        pollingThreadFailed(e);
+                    }
+            
+        };
+        soapLongPollRunnable = runnable;
+        updateServerSubscriptionHandles();
+        EXECUTOR_SERVICE.execute(runnable);
+    }
+
+    /**
+     * Starts a poll loop on the NIO transport.
+     *
+     * @param uri The URI of the server.
+     * @throws IOException Thrown if the transport cannot be created.
+     */
+    private void startNioPoll(final URI uri) throws IOException {
+        SoapNioConnection connection = SoapNioTransport.getInstance()
+            .createConnection(uri, address.getUser(), address.getPassword(),
+                    POLL_ACTION);
+        SoapNioPollLoop loop = new SoapNioPollLoop(
+                timing, serverSubscriptionHandles.get(0), connection) {
+                    @Override
+                    public void newItemValue(final String clientHandle,
+                            final long timestamp, final Object value,
+                            final String quality) {
+                        handOffValue(clientHandle, timestamp, value, quality);
+                    }
+
+                    @Override
+                    public void newItemValue(final String clientHandle,
+                            final long timestamp, final long value,
+                            final String quality) {
+                        handOffValue(clientHandle, timestamp, value, quality);
+                    }
+
+                    @Override
+                    public void newItemValue(final String clientHandle,
+                            final long timestamp, final double value,
+                            final String quality) {
+                        handOffValue(clientHandle, timestamp, value, quality);
+                    }
+
+                    @Override
+                    public void responseDecoded() {
+                        handOffResponse();
+                    }
+
+                    @Override
+                    public void onError(final Throwable e) {
+                        pollingThreadFailed(e);
+                    }
+        };
+        soapLongPollRunnable = loop;
+        updateServerSubscriptionHandles();
+        loop.start();
+    }
     
     /**
      * Creates a new acces object/http session.
@@ -170,6 +413,68 @@ public class SoapLongPoll {
                 serverURL, domain, user, password);
     }
 
+    /**
+     * Adds a server subscription which is polled together with the other
+     * subscriptions of this poll.
+     * 
+     * @param serverSubscriptionHandle The handle of the subscription.
+     */
+    public synchronized void addServerSubscriptionHandle(
+            final String serverSubscriptionHandle) {
+        serverSubscriptionHandles.add(serverSubscriptionHandle);
+        updateServerSubscriptionHandles();
+    }
+
+    /**
+     * Removes a server subscription from this poll. It is not polled anymore
+     * from the next poll on.
+     * 
+     * @param serverSubscriptionHandle The handle of the subscription.
+     */
+    public synchronized void removeServerSubscriptionHandle(
+            final String serverSubscriptionHandle) {
+        serverSubscriptionHandles.remove(serverSubscriptionHandle);
+        updateServerSubscriptionHandles();
+    }
+
+    /**
+     * Returns the handles of all subscriptions polled.
+     * 
+     * @return The server subscription handles.
+     */
+    public List<String> getServerSubscriptionHandles() {
+        return serverSubscriptionHandles;
+    }
+
+    /**
+     * Returns the hold and wait time of this poll.
+     * 
+     * @return The timing of the poll.
+     */
+    public SoapLongPollTiming getTiming() {
+        return timing;
+    }
+
+    /**
+     * Checks if the poll is running.
+     * 
+     * @return True if the poll is running else false.
+     */
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * Hands the current server subscription handles to the runnable.
+     */
+    private void updateServerSubscriptionHandles() {
+        if (soapLongPollRunnable != null) {
+            soapLongPollRunnable.setServerSubscriptionHandles(
+                    serverSubscriptionHandles.toArray(
+                            new String[serverSubscriptionHandles.size()]));
+        }
+    }
+
     /**
      * Stops the polling of the subscription.
      */
@@ -228,19 +533,219 @@ public class SoapLongPoll {
      */
     public synchronized void release() {
         stopPolling();
+        synchronized (batchLock) {
+            overflow = null;
+        }
         listeners.clear();
         exceptionHandler = null;
         logger.debug(this + " Poll released");
     }
 
+    /**
+     * Adds a single value change which was decoded on the polling thread to
+     * the batch of the current response. The batch is handed over with
+     * {@link #handOffResponse()}.
+     * 
+     * @param clientItemHandle The client handle of the changed item.
+     * @param timestamp The timestamp of the value.
+     * @param value The new value.
+     * @param quality The quality field of the value.
+     */
+    public void handOffValue(final String clientItemHandle,
+            final long timestamp, final Object value, final String quality) {
+        decodingBatch.itemValue(clientItemHandle, timestamp, value, quality);
+    }
+
+    /**
+     * Adds a single change of an integer value to the batch of the current
+     * response. See {@link #handOffValue(String, long, Object, String)}.
+     * 
+     * @param clientItemHandle The client handle of the changed item.
+     * @param timestamp The timestamp of the value.
+     * @param value The new value.
+     * @param quality The quality field of the value.
+     */
+    public void handOffValue(final String clientItemHandle,
+            final long timestamp, final long value, final String quality) {
+        decodingBatch.itemValue(clientItemHandle, timestamp, value, quality);
+    }
+
+    /**
+     * Adds a single change of a double value to the batch of the current
+     * response. See {@link #handOffValue(String, long, Object, String)}.
+     * 
+     * @param clientItemHandle The client handle of the changed item.
+     * @param timestamp The timestamp of the value.
+     * @param value The new value.
+     * @param quality The quality field of the value.
+     */
+    public void handOffValue(final String clientItemHandle,
+            final long timestamp, final double value, final String quality) {
+        decodingBatch.itemValue(clientItemHandle, timestamp, value, quality);
+    }
+
+    /**
+     * Hands the values of a decoded response over to the bulkhead of the
+     * equipment as one task. The listeners are notified on a pool thread so
+     * a slow listener does not delay the next poll, and the responses of
+     * this poll are processed in order.
+     * <p>
+     * The polling thread may be shared with other equipments (see
+     * {@link SoapNioTransport}), so it never waits for the quota of this
+     * equipment. If the queue of the equipment is full the values are kept
+     * conflated: only the latest value of every item is kept. They are
+     * queued before the values of the next response, as soon as a batch of
+     * this poll was processed or the next response arrives.
+     */
+    public void handOffResponse() {
+        SoapValueBatch batch = decodingBatch;
+        if (!batch.isEmpty()) {
+            decodingBatch = createBatch();
+        }
+        synchronized (batchLock) {
+            if (overflow != null) {
+                if (!batch.isEmpty()) {
+                    overflow.addAll(batch);
+                    recycle(batch);
+                }
+                batch = overflow;
+                overflow = null;
+            }
+            if (batch.isEmpty() || bulkhead.tryExecute(this, batch)) {
+                return;
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug(this + " Queue of the equipment full. Conflating "
+                        + batch.size() + " values.");
+            }
+            if (!batch.isConflating()) {
+                SoapValueBatch kept = createBatch();
+                kept.conflate();
+                kept.addAll(batch);
+                recycle(batch);
+                batch = kept;
+            }
+            overflow = batch;
+        }
+    }
+
+    /**
+     * Queues the values kept because the queue of the equipment was full.
+     * Never waits.
+     */
+    private void queueOverflow() {
+        synchronized (batchLock) {
+            if (overflow != null && bulkhead.tryExecute(this, overflow)) {
+                overflow = null;
+            }
+        }
+    }
+
+    /**
+     * Returns an empty batch which notifies the listeners of this poll. A
+     * processed batch is reused if there is one.
+     *
+     * @return The empty batch.
+     */
+    private SoapValueBatch createBatch() {
+        synchronized (batchLock) {
+            SoapValueBatch batch = freeBatches.poll();
+            if (batch != null) {
+                return batch;
+            }
+        }
+        return new SoapValueBatch(listenerNotifier, batchDone);
+    }
+
+    /**
+     * Keeps a batch which is not used anymore for reuse.
+     *
+     * @param batch The batch which is not used anymore.
+     */
+    private void recycle(final SoapValueBatch batch) {
+        batch.clear();
+        synchronized (batchLock) {
+            if (freeBatches.size() < MAX_FREE_BATCHES) {
+                freeBatches.add(batch);
+            }
+        }
+    }
+
+    /**
+     * Notifies all registered listeners about a single value change on the
+     * calling thread. Values which do not have a good quality are reported
+     * as invalid.
+     * 
+     * @param clientItemHandle The client handle of the changed item.
+     * @param timestamp The timestamp of the value.
+     * @param value The new value.
+     * @param quality The quality field of the value.
+     */
+    public void notifyListeners(final String clientItemHandle,
+            final long timestamp, final Object value, final String quality) {
+        boolean goodQuality = SoapValueDecoder.isGoodQuality(quality);
+        for (ISoapLongPollListener listener : listeners) {
+            if (goodQuality) {
+                listener.valueChanged(clientItemHandle, timestamp, value);
+            }
+            else {
+                listener.invalidQuality(clientItemHandle, quality);
+            }
+        }
+    }
+
+    /**
+     * Notifies all registered listeners about a single change of an integer
+     * value. See {@link #notifyListeners(String, long, Object, String)}.
+     * 
+     * @param clientItemHandle The client handle of the changed item.
+     * @param timestamp The timestamp of the value.
+     * @param value The new value.
+     * @param quality The quality field of the value.
+     */
+    public void notifyListeners(final String clientItemHandle,
+            final long timestamp, final long value, final String quality) {
+        boolean goodQuality = SoapValueDecoder.isGoodQuality(quality);
+        for (ISoapLongPollListener listener : listeners) {
+            if (goodQuality) {
+                listener.valueChanged(clientItemHandle, timestamp, value);
+            }
+            else {
+                listener.invalidQuality(clientItemHandle, quality);
+            }
+        }
+    }
+
+    /**
+     * Notifies all registered listeners about a single change of a double
+     * value. See {@link #notifyListeners(String, long, Object, String)}.
+     * 
+     * @param clientItemHandle The client handle of the changed item.
+     * @param timestamp The timestamp of the value.
+     * @param value The new value.
+     * @param quality The quality field of the value.
+     */
+    public void notifyListeners(final String clientItemHandle,
+            final long timestamp, final double value, final String quality) {
+        boolean goodQuality = SoapValueDecoder.isGoodQuality(quality);
+        for (ISoapLongPollListener listener : listeners) {
+            if (goodQuality) {
+                listener.valueChanged(clientItemHandle, timestamp, value);
+            }
+            else {
+                listener.invalidQuality(clientItemHandle, quality);
+            }
+        }
+    }
+
     /**
      * Notifies all registered listeners about value changes contained in
-     * rItemList.
+     * rItemList. The responses of this poll are processed in order.
      * 
      * @param rItemList List of item vlaues which have changed.
      */
     public void notifyListeners(final SubscribePolledRefreshReplyItemList[] rItemList) {
-        EXECUTOR_SERVICE.execute(new Runnable() {
+        bulkhead.execute(this, new Runnable() {
             @Override
             public void run() {
                 logger.debug(SoapLongPoll.this + " Poll returned.");
@@ -249,11 +754,10 @@ public class SoapLongPoll {
                         logger.debug(SoapLongPoll.this + " Number of returned items: " + subscripion.getItems().length);
                         for (ItemValue itemValue : subscripion.getItems()) {
                             String clientItemHandle = itemValue.getClientItemHandle();
-                            Object value = itemValue.getValue().getText();
+                            Object value = SoapValueDecoder.decode(itemValue);
                             long timestamp = itemValue.getTimestamp().getTimeInMillis();
-                            for (ISoapLongPollListener listener : listeners) {
-                                listener.valueChanged(clientItemHandle, timestamp, value);
-                            }
+                            notifyListeners(clientItemHandle, timestamp, value,
+                                    SoapValueDecoder.getQuality(itemValue));
                         }
                     }
                 }
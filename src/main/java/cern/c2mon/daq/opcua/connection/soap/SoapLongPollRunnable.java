@@ -16,6 +16,7 @@
  *****************************************************************************/
 package cern.c2mon.daq.opcua.connection.soap;
 
+import java.rmi.RemoteException;
 import java.util.Calendar;
 
 import org.apache.axis2.AxisFault;
@@ -36,7 +37,7 @@ import cern.c2mon.daq.opcua.connection.common.impl.OPCCommunicationException;
  * @author Andreas Lang
  *
  */
-public abstract class SoapLongPollRunnable implements Runnable {
+public abstract class SoapLongPollRunnable implements Runnable, ISoapPollLoop {
 
     /**
      * Flag to stop this thread. If it is set the thread will finish and
@@ -51,27 +52,29 @@ public abstract class SoapLongPollRunnable implements Runnable {
     private long timeDiff = 0;
     
     /**
-     * Hold time: Server has to wait at least that time.
+     * Hold and wait time of the poll.
      */
-    private int holdTime;
+    private final SoapLongPollTiming timing;
 
     /**
-     * Additional time on top of hold time to wait if there are no updates.
+     * The handles of the server subscriptions polled together.
      */
-    private int waitTime;
+    private volatile String[] serverSubscriptionHandles;
 
     /**
-     * The server subscription handle.
+     * The access stub
      */
-    private String serverSubscriptionHandle;
+    private OPCXML_DataAccessStub access;
 
     /**
-     * The access stub
+     * The streaming decoder for the poll responses. If it is null the
+     * responses are parsed into the generated object model.
      */
-    private OPCXML_DataAccessStub access;
+    private final SoapPolledRefreshDecoder decoder;
     
     /**
-     * Creates a new SoapLongPollRunnable.
+     * Creates a new SoapLongPollRunnable which decodes the poll responses
+     * with a {@link SoapPolledRefreshDecoder}.
      * 
      * @param holdTime The hold time (see {@link SoapLongPoll})
      * @param waitTime The wait time (see {@link SoapLongPoll})
@@ -82,11 +85,97 @@ public abstract class SoapLongPollRunnable implements Runnable {
             final int holdTime, final int waitTime, 
             final String serverSubscriptionHandle, 
             final OPCXML_DataAccessStub access) {
+        this(holdTime, waitTime, serverSubscriptionHandle, access, true);
+    }
+
+    /**
+     * Creates a new SoapLongPollRunnable which decodes the poll responses
+     * with a {@link SoapPolledRefreshDecoder}.
+     * 
+     * @param timing The hold and wait time (see {@link SoapLongPoll}).
+     * @param serverSubscriptionHandle The handle of the subscription to poll.
+     * @param access The connection to use.
+     */
+    public SoapLongPollRunnable(
+            final SoapLongPollTiming timing,
+            final String serverSubscriptionHandle, 
+            final OPCXML_DataAccessStub access) {
+        this(timing, serverSubscriptionHandle, access, true);
+    }
+
+    /**
+     * Creates a new SoapLongPollRunnable.
+     * 
+     * @param holdTime The hold time (see {@link SoapLongPoll})
+     * @param waitTime The wait time (see {@link SoapLongPoll})
+     * @param serverSubscriptionHandle The handle of the subscription to poll.
+     * @param access The connection to use.
+     * @param streamingDecode If true the responses are decoded with a 
+     * streaming parser and reported via newItemValue. Else they are parsed
+     * by the generated stub and reported via newItemValues.
+     */
+    public SoapLongPollRunnable(
+            final int holdTime, final int waitTime, 
+            final String serverSubscriptionHandle, 
+            final OPCXML_DataAccessStub access,
+            final boolean streamingDecode) {
+        this(new SoapLongPollTiming(holdTime, waitTime),
+                serverSubscriptionHandle, access, streamingDecode);
+    }
+
+    /**
+     * Creates a new SoapLongPollRunnable.
+     * 
+     * @param timing The hold and wait time (see {@link SoapLongPoll}).
+     * @param serverSubscriptionHandle The handle of the subscription to poll.
+     * @param access The connection to use.
+     * @param streamingDecode If true the responses are decoded with a 
+     * streaming parser and reported via newItemValue. Else they are parsed
+     * by the generated stub and reported via newItemValues.
+     */
+    public SoapLongPollRunnable(
+            final SoapLongPollTiming timing,
+            final String serverSubscriptionHandle, 
+            final OPCXML_DataAccessStub access,
+            final boolean streamingDecode) {
         super();
-        this.holdTime = holdTime;
-        this.waitTime = waitTime;
-        this.serverSubscriptionHandle = serverSubscriptionHandle;
+        this.timing = timing;
+        this.serverSubscriptionHandles = new String[] {serverSubscriptionHandle};
         this.access = access;
+        if (streamingDecode) {
+            this.decoder = new SoapPolledRefreshDecoder(
+                    new ISoapPolledRefreshHandler() {
+                        @Override
+                        public void itemValue(final String clientHandle,
+                                final long timestamp, final Object value,
+                                final String quality) {
+                            if (!stop) {
+                                newItemValue(clientHandle, timestamp, value, quality);
+                            }
+                        }
+
+                        @Override
+                        public void itemValue(final String clientHandle,
+                                final long timestamp, final long value,
+                                final String quality) {
+                            if (!stop) {
+                                newItemValue(clientHandle, timestamp, value, quality);
+                            }
+                        }
+
+                        @Override
+                        public void itemValue(final String clientHandle,
+                                final long timestamp, final double value,
+                                final String quality) {
+                            if (!stop) {
+                                newItemValue(clientHandle, timestamp, value, quality);
+                            }
+                        }
+                    });
+        }
+        else {
+            this.decoder = null;
+        }
     }
 
     /**
@@ -97,7 +186,7 @@ public abstract class SoapLongPollRunnable implements Runnable {
     public void run() {
         SubscriptionPolledRefresh subscriptionPolledRefresh = 
             SoapObjectFactory.createSubscriptionPolledRefresh(
-                    serverSubscriptionHandle, waitTime);
+                    serverSubscriptionHandles[0], timing.getWaitTime());
         Calendar holdTimeCalendar = subscriptionPolledRefresh.getHoldTime();
         try {
             GetStatusResponse status = 
@@ -105,24 +194,17 @@ public abstract class SoapLongPollRunnable implements Runnable {
             updateTimeDiff(status.getGetStatusResult());
             while (!stop) {
                 updateHoldTime(holdTimeCalendar);
-                SubscriptionPolledRefreshResponse response = 
-                    access.subscriptionPolledRefresh(
-                            subscriptionPolledRefresh);
-                if (!stop) {
-                    if (response.getErrors() == null 
-                            || response.getErrors().length == 0) {
-                        updateTimeDiff(
-                                response.getSubscriptionPolledRefreshResult());
-                        newItemValues(response.getRItemList());
-                    }
-                    else {
-                        stop();
-                        onError(
-                                new OPCCommunicationException(
-                                        "OPC error for subscription: " 
-                                        + response.getErrors()[0].getText()));
-                    }
+                subscriptionPolledRefresh.setWaitTime(timing.getWaitTime());
+                subscriptionPolledRefresh.setServerSubHandles(
+                        serverSubscriptionHandles);
+                int itemCount;
+                if (decoder != null) {
+                    itemCount = pollStreaming(subscriptionPolledRefresh);
                 }
+                else {
+                    itemCount = poll(subscriptionPolledRefresh);
+                }
+                timing.update(itemCount);
                 try {
                     access._getServiceClient().cleanupTransport();
                 } catch (AxisFault e) {
@@ -135,6 +217,74 @@ public abstract class SoapLongPollRunnable implements Runnable {
         }
     }
 
+    /**
+     * Polls the server and parses the response into the generated object
+     * model.
+     * 
+     * @param subscriptionPolledRefresh The refresh request to send.
+     * @return The number of item values in the response.
+     * @throws RemoteException Thrown if the SOAP call fails.
+     */
+    private int poll(final SubscriptionPolledRefresh subscriptionPolledRefresh)
+            throws RemoteException {
+        SubscriptionPolledRefreshResponse response = 
+            access.subscriptionPolledRefresh(
+                    subscriptionPolledRefresh);
+        int itemCount = 0;
+        if (response.getRItemList() != null) {
+            for (SubscribePolledRefreshReplyItemList itemList
+                    : response.getRItemList()) {
+                if (itemList.getItems() != null) {
+                    itemCount += itemList.getItems().length;
+                }
+            }
+        }
+        if (!stop) {
+            if (response.getErrors() == null 
+                    || response.getErrors().length == 0) {
+                updateTimeDiff(
+                        response.getSubscriptionPolledRefreshResult());
+                newItemValues(response.getRItemList());
+            }
+            else {
+                stop();
+                onError(
+                        new OPCCommunicationException(
+                                "OPC error for subscription: " 
+                                + response.getErrors()[0].getText()));
+            }
+        }
+        return itemCount;
+    }
+
+    /**
+     * Polls the server and decodes the response while it is read. Item
+     * values are reported via newItemValue as soon as they are decoded.
+     * 
+     * @param subscriptionPolledRefresh The refresh request to send.
+     * @return The number of item values in the response.
+     * @throws RemoteException Thrown if the SOAP call fails.
+     */
+    private int pollStreaming(
+            final SubscriptionPolledRefresh subscriptionPolledRefresh)
+            throws RemoteException {
+        decoder.subscriptionPolledRefresh(access, subscriptionPolledRefresh);
+        responseDecoded();
+        if (!stop) {
+            if (decoder.getErrorText() == null) {
+                timeDiff = System.currentTimeMillis() - decoder.getReplyTime();
+            }
+            else {
+                stop();
+                onError(
+                        new OPCCommunicationException(
+                                "OPC error for subscription: " 
+                                + decoder.getErrorText()));
+            }
+        }
+        return decoder.getItemCount();
+    }
+
     /**
      * Updates the time difference of the server.
      * 
@@ -153,12 +303,25 @@ public abstract class SoapLongPollRunnable implements Runnable {
      */
     private void updateHoldTime(final Calendar calendar) {
         calendar.setTimeInMillis(System.currentTimeMillis() 
-                + holdTime - timeDiff);
+                + timing.getHoldTime() - timeDiff);
     }
     
+    /**
+     * Sets the server subscriptions to poll. The change is used from the
+     * next poll on.
+     * 
+     * @param serverSubscriptionHandles The handles of the subscriptions.
+     */
+    @Override
+    public void setServerSubscriptionHandles(
+            final String[] serverSubscriptionHandles) {
+        this.serverSubscriptionHandles = serverSubscriptionHandles;
+    }
+
     /**
      * Stops this runnable.
      */
+    @Override
     public void stop() {
         stop = true;
     }
@@ -170,6 +333,52 @@ public abstract class SoapLongPollRunnable implements Runnable {
      */
     public abstract void newItemValues(SubscribePolledRefreshReplyItemList[] subscribePolledRefreshReplyItemLists);
 
+    /**
+     * Called for every item value decoded by the streaming decoder.
+     * 
+     * @param clientHandle The client handle of the item.
+     * @param timestamp The timestamp of the value.
+     * @param value The new value.
+     * @param quality The quality field of the value.
+     */
+    public abstract void newItemValue(String clientHandle, long timestamp,
+            Object value, String quality);
+
+    /**
+     * Called for every item value of an integer type decoded by the
+     * streaming decoder. The default implementation boxes the value.
+     * 
+     * @param clientHandle The client handle of the item.
+     * @param timestamp The timestamp of the value.
+     * @param value The new value.
+     * @param quality The quality field of the value.
+     */
+    public void newItemValue(final String clientHandle, final long timestamp,
+            final long value, final String quality) {
+        newItemValue(clientHandle, timestamp, (Object) Long.valueOf(value), quality);
+    }
+
+    /**
+     * Called for every item value of a double type decoded by the
+     * streaming decoder. The default implementation boxes the value.
+     * 
+     * @param clientHandle The client handle of the item.
+     * @param timestamp The timestamp of the value.
+     * @param value The new value.
+     * @param quality The quality field of the value.
+     */
+    public void newItemValue(final String clientHandle, final long timestamp,
+            final double value, final String quality) {
+        newItemValue(clientHandle, timestamp, (Object) Double.valueOf(value), quality);
+    }
+
+    /**
+     * Called after all item values of a response of the streaming decoder
+     * were reported. The default implementation does nothing.
+     */
+    public void responseDecoded() {
+    }
+
     /**
      * Called if the polling thread fails.
      * 
@@ -0,0 +1,175 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+/**
+ * Hold and wait time of one long poll loop (see {@link SoapLongPoll}). An
+ * adaptive timing lengthens the hold time if the replies are nearly empty
+ * to reduce the request rate of slow groups. If the replies contain most
+ * of the subscribed items the hold time is shortened towards its minimum
+ * to reduce the latency of fast groups. The wait time follows the hold
+ * time.
+ * <p>
+ * The timing is updated only by the poll thread. The number of subscribed
+ * items may be changed from any thread.
+ */
+public class SoapLongPollTiming {
+
+    /**
+     * Wait time in relation to the hold time.
+     */
+    private static final int WAIT_FACTOR = 4;
+
+    /**
+     * Replies with at most 1/EMPTY_DIVISOR of the subscribed items are
+     * considered nearly empty.
+     */
+    private static final int EMPTY_DIVISOR = 10;
+
+    /**
+     * Replies with at least 1/FULL_DIVISOR of the subscribed items are
+     * considered full.
+     */
+    private static final int FULL_DIVISOR = 2;
+
+    /**
+     * True if the timing adapts to the replies.
+     */
+    private final boolean adaptive;
+
+    /**
+     * The minimum hold time.
+     */
+    private final int minHoldTime;
+
+    /**
+     * The maximum hold time.
+     */
+    private final int maxHoldTime;
+
+    /**
+     * The maximum of hold time plus wait time. It has to stay below the
+     * ping rate of the subscription.
+     */
+    private final int maxPollTime;
+
+    /**
+     * The current hold time.
+     */
+    private volatile int holdTime;
+
+    /**
+     * The current wait time.
+     */
+    private volatile int waitTime;
+
+    /**
+     * The number of subscribed items.
+     */
+    private volatile int subscribedItemCount;
+
+    /**
+     * Creates a fixed timing.
+     *
+     * @param holdTime The hold time.
+     * @param waitTime The wait time.
+     */
+    public SoapLongPollTiming(final int holdTime, final int waitTime) {
+        this.adaptive = false;
+        this.minHoldTime = holdTime;
+        this.maxHoldTime = holdTime;
+        this.maxPollTime = holdTime + waitTime;
+        this.holdTime = holdTime;
+        this.waitTime = waitTime;
+    }
+
+    /**
+     * Creates an adaptive timing.
+     *
+     * @param initialHoldTime The hold time to start with.
+     * @param minHoldTime The minimum hold time. This should be the time
+     * deadband of the group if it is larger than the configured minimum.
+     * @param maxHoldTime The maximum hold time.
+     * @param maxPollTime The maximum of hold time plus wait time.
+     */
+    public SoapLongPollTiming(final int initialHoldTime, final int minHoldTime,
+            final int maxHoldTime, final int maxPollTime) {
+        this.adaptive = true;
+        this.maxPollTime = maxPollTime;
+        this.maxHoldTime = Math.min(maxHoldTime, maxPollTime);
+        this.minHoldTime = Math.min(minHoldTime, this.maxHoldTime);
+        setHoldTime(initialHoldTime);
+    }
+
+    /**
+     * Updates the timing after a reply.
+     *
+     * @param returnedItemCount The number of items in the reply.
+     */
+    public void update(final int returnedItemCount) {
+        if (!adaptive) {
+            return;
+        }
+        int itemCount = subscribedItemCount;
+        if (returnedItemCount * EMPTY_DIVISOR <= itemCount) {
+            setHoldTime(holdTime + holdTime / 2 + 1);
+        }
+        else if (returnedItemCount * FULL_DIVISOR >= itemCount) {
+            setHoldTime(holdTime / 2);
+        }
+    }
+
+    /**
+     * Sets the hold time within the limits and adjusts the wait time.
+     *
+     * @param newHoldTime The new hold time.
+     */
+    private void setHoldTime(final int newHoldTime) {
+        int limited = Math.max(minHoldTime, Math.min(maxHoldTime, newHoldTime));
+        holdTime = limited;
+        waitTime = Math.max(0, Math.min(limited * WAIT_FACTOR,
+                maxPollTime - limited));
+    }
+
+    /**
+     * Sets the number of subscribed items. Replies are judged in relation to
+     * this number.
+     *
+     * @param subscribedItemCount The number of subscribed items.
+     */
+    public void setSubscribedItemCount(final int subscribedItemCount) {
+        this.subscribedItemCount = subscribedItemCount;
+    }
+
+    /**
+     * Returns the current hold time.
+     *
+     * @return The hold time in milliseconds.
+     */
+    public int getHoldTime() {
+        return holdTime;
+    }
+
+    /**
+     * Returns the current wait time.
+     *
+     * @return The wait time in milliseconds.
+     */
+    public int getWaitTime() {
+        return waitTime;
+    }
+}
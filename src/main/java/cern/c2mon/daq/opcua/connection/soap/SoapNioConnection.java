@@ -0,0 +1,423 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Base64;
+
+/**
+ * A keep-alive HTTP connection to one OPC XML DA server which is driven by
+ * the selector thread of the {@link SoapNioTransport}. Only one request can
+ * be outstanding at a time. If the server closed an idle connection the
+ * request is sent once more on a new connection.
+ * <p>
+ * {@link #send} and {@link #close} may be called from any thread. All other
+ * methods are only called from the selector thread.
+ */
+public class SoapNioConnection {
+
+    /**
+     * Charset of the HTTP header.
+     */
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * The transport this connection belongs to.
+     */
+    private final SoapNioTransport transport;
+
+    /**
+     * The host of the server.
+     */
+    private final String host;
+
+    /**
+     * The port of the server.
+     */
+    private final int port;
+
+    /**
+     * The HTTP header without Content-Length and the final empty line.
+     */
+    private final String headerPrefix;
+
+    /**
+     * The parser of the responses.
+     */
+    private final SoapHttpResponseParser parser;
+
+    /**
+     * The channel or null if the connection is not open.
+     */
+    private SocketChannel channel;
+
+    /**
+     * The selection key of the channel.
+     */
+    private SelectionKey key;
+
+    /**
+     * The address of the current request.
+     */
+    private InetSocketAddress socketAddress;
+
+    /**
+     * The bytes of the current request.
+     */
+    private byte[] request;
+
+    /**
+     * Number of bytes of the current request already written.
+     */
+    private int requestOffset;
+
+    /**
+     * The handler of the current request or null if there is none.
+     */
+    private ISoapNioResponseHandler handler;
+
+    /**
+     * Time in milliseconds after which the current request times out.
+     */
+    private long deadline;
+
+    /**
+     * True if the current request was sent on a connection which was used
+     * before.
+     */
+    private boolean reused;
+
+    /**
+     * True if the current request was already sent a second time.
+     */
+    private boolean retried;
+
+    /**
+     * True if this connection was closed for good.
+     */
+    private boolean closed;
+
+    /**
+     * Creates a new connection. Use {@link SoapNioTransport#createConnection}.
+     *
+     * @param transport The transport of the connection.
+     * @param uri The URI of the service.
+     * @param user The user for basic authentication or null.
+     * @param password The password for basic authentication.
+     * @param soapAction The SOAP action of the requests.
+     */
+    SoapNioConnection(final SoapNioTransport transport, final URI uri,
+            final String user, final String password, final String soapAction) {
+        this.transport = transport;
+        this.host = uri.getHost();
+        this.port = uri.getPort() > -1 ? uri.getPort() : 80;
+        this.parser = new SoapHttpResponseParser(transport.getBufferPool());
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty()
+            ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null) {
+            path += "?" + uri.getRawQuery();
+        }
+        StringBuilder header = new StringBuilder();
+        header.append("POST ").append(path).append(" HTTP/1.1\r\n");
+        header.append("Host: ").append(host);
+        if (uri.getPort() > -1) {
+            header.append(':').append(port);
+        }
+        header.append("\r\n");
+        header.append("Content-Type: application/soap+xml; charset=UTF-8; action=\"")
+            .append(soapAction).append("\"\r\n");
+        if (user != null && !user.isEmpty()) {
+            String credentials = user + ":" + (password != null ? password : "");
+            header.append("Authorization: Basic ").append(
+                    Base64.getEncoder().encodeToString(
+                            credentials.getBytes(Charset.forName("UTF-8"))))
+                .append("\r\n");
+        }
+        this.headerPrefix = header.toString();
+    }
+
+    /**
+     * Sends a request. The handler is informed about the response or the
+     * failure unless the connection is closed before.
+     *
+     * @param body The body of the request.
+     * @param timeout The time in milliseconds after which the request fails
+     * if there is no complete response.
+     * @param responseHandler The handler for the response.
+     */
+    public void send(final byte[] body, final long timeout,
+            final ISoapNioResponseHandler responseHandler) {
+        byte[] header = (headerPrefix + "Content-Length: " + body.length
+                + "\r\n\r\n").getBytes(ASCII);
+        final byte[] bytes = new byte[header.length + body.length];
+        System.arraycopy(header, 0, bytes, 0, header.length);
+        System.arraycopy(body, 0, bytes, header.length, body.length);
+        // resolved here to keep DNS lookups off the selector thread
+        final InetSocketAddress address = new InetSocketAddress(host, port);
+        transport.execute(new Runnable() {
+            @Override
+            public void run() {
+                start(address, bytes, timeout, responseHandler);
+            }
+        });
+    }
+
+    /**
+     * Closes the connection for good. An outstanding request is abandoned
+     * without informing its handler.
+     */
+    public void close() {
+        transport.execute(new Runnable() {
+            @Override
+            public void run() {
+                closed = true;
+                handler = null;
+                request = null;
+                closeChannel();
+                parser.reset();
+                transport.unregister(SoapNioConnection.this);
+            }
+        });
+    }
+
+    /**
+     * Starts a request.
+     *
+     * @param address The address of the server.
+     * @param bytes The request bytes.
+     * @param timeout The timeout of the request.
+     * @param responseHandler The handler of the request.
+     */
+    private void start(final InetSocketAddress address, final byte[] bytes,
+            final long timeout, final ISoapNioResponseHandler responseHandler) {
+        if (closed) {
+            transport.requestFailed(responseHandler,
+                    new IOException("Connection closed."));
+            return;
+        }
+        transport.register(this);
+        socketAddress = address;
+        request = bytes;
+        requestOffset = 0;
+        handler = responseHandler;
+        deadline = System.currentTimeMillis() + timeout;
+        retried = false;
+        parser.reset();
+        try {
+            if (channel != null && channel.isConnected()) {
+                reused = true;
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            else {
+                openChannel();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Opens a new channel to the server.
+     *
+     * @throws IOException Thrown if the channel cannot be opened.
+     */
+    private void openChannel() throws IOException {
+        closeChannel();
+        reused = false;
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+        boolean connected = channel.connect(socketAddress);
+        key = transport.registerChannel(channel,
+                connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+    }
+
+    /**
+     * Handles the ready operations of the channel.
+     *
+     * @param readyKey The selected key of the channel.
+     * @throws IOException Thrown if an operation on the channel fails.
+     */
+    void handle(final SelectionKey readyKey) throws IOException {
+        if (handler == null || readyKey != key) {
+            return;
+        }
+        if (readyKey.isConnectable()) {
+            channel.finishConnect();
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+        else if (readyKey.isWritable()) {
+            write();
+        }
+        else if (readyKey.isReadable()) {
+            read();
+        }
+    }
+
+    /**
+     * Writes as much of the request as the channel accepts.
+     *
+     * @throws IOException Thrown if the write fails.
+     */
+    private void write() throws IOException {
+        ByteBuffer buffer = transport.getBufferPool().acquire();
+        try {
+            while (requestOffset < request.length) {
+                buffer.clear();
+                int length = Math.min(buffer.capacity(), request.length - requestOffset);
+                buffer.put(request, requestOffset, length);
+                buffer.flip();
+                int written = channel.write(buffer);
+                requestOffset += written;
+                if (written < length) {
+                    break;
+                }
+            }
+        } finally {
+            transport.getBufferPool().release(buffer);
+        }
+        if (requestOffset == request.length) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Reads the available bytes of the response.
+     *
+     * @throws IOException Thrown if the read fails or the response is
+     * malformed.
+     */
+    private void read() throws IOException {
+        ByteBuffer buffer = transport.getBufferPool().acquire();
+        try {
+            while (true) {
+                buffer.clear();
+                int count = channel.read(buffer);
+                if (count < 0) {
+                    endOfStream();
+                    return;
+                }
+                if (count == 0) {
+                    return;
+                }
+                buffer.flip();
+                if (parser.parse(buffer)) {
+                    complete();
+                    return;
+                }
+            }
+        } finally {
+            transport.getBufferPool().release(buffer);
+        }
+    }
+
+    /**
+     * Handles the end of the stream. Idle keep-alive connections may be
+     * closed by the server at any time. In this case the request is sent
+     * once more on a new connection.
+     *
+     * @throws IOException Thrown if the request cannot be resent.
+     */
+    private void endOfStream() throws IOException {
+        if (parser.endOfStream()) {
+            complete();
+        }
+        else if (reused && !retried && !parser.isStarted()) {
+            retried = true;
+            requestOffset = 0;
+            openChannel();
+        }
+        else {
+            fail(new IOException("Connection closed by server."));
+        }
+    }
+
+    /**
+     * Hands the complete response to the handler.
+     *
+     * @throws IOException Thrown if the body cannot be prepared.
+     */
+    private void complete() throws IOException {
+        int statusCode = parser.getStatusCode();
+        String statusLine = parser.getStatusLine();
+        InputStream body = parser.takeBody();
+        if (parser.isConnectionClose()) {
+            closeChannel();
+        }
+        else {
+            key.interestOps(0);
+        }
+        ISoapNioResponseHandler responseHandler = handler;
+        handler = null;
+        request = null;
+        transport.responseReceived(responseHandler, statusCode, statusLine, body);
+    }
+
+    /**
+     * Fails the current request if its deadline passed.
+     *
+     * @param now The current time in milliseconds.
+     */
+    void checkTimeout(final long now) {
+        if (handler != null && now > deadline) {
+            fail(new SocketTimeoutException("SOAP request timed out."));
+        }
+    }
+
+    /**
+     * Fails the current request and closes the channel.
+     *
+     * @param e The cause of the failure.
+     */
+    void fail(final Throwable e) {
+        closeChannel();
+        parser.reset();
+        ISoapNioResponseHandler responseHandler = handler;
+        handler = null;
+        request = null;
+        if (responseHandler != null) {
+            transport.requestFailed(responseHandler, e);
+        }
+    }
+
+    /**
+     * Closes the channel if it is open.
+     */
+    private void closeChannel() {
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing to do the channel is gone anyway
+            }
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.util.StAXUtils;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.SOAPFactory;
+import org.opcfoundation.xmlda.SubscriptionPolledRefresh;
+
+import cern.c2mon.daq.opcua.connection.common.impl.OPCCommunicationException;
+
+/**
+ * The long poll loop on the {@link SoapNioTransport}. Every reply is
+ * decoded on a callback thread of the transport which then sends the next
+ * poll. No thread is blocked while the server holds a poll.
+ * <p>
+ * The time difference to the server is taken from the reply times. The
+ * first poll is therefore sent without correction.
+ */
+public abstract class SoapNioPollLoop implements ISoapPollLoop {
+
+    /**
+     * Time in addition to hold and wait time the server has to reply.
+     */
+    private static final int REPLY_TIMEOUT = 10000;
+
+    /**
+     * Flag to stop this loop. If it is set the loop will never poll again.
+     */
+    private volatile boolean stop = false;
+
+    /**
+     * Time difference to the server.
+     */
+    private volatile long timeDiff = 0;
+
+    /**
+     * Hold and wait time of the poll.
+     */
+    private final SoapLongPollTiming timing;
+
+    /**
+     * The handles of the server subscriptions polled together.
+     */
+    private volatile String[] serverSubscriptionHandles;
+
+    /**
+     * The connection to the server.
+     */
+    private final SoapNioConnection connection;
+
+    /**
+     * The request which is updated and serialized for every poll.
+     */
+    private final SubscriptionPolledRefresh subscriptionPolledRefresh;
+
+    /**
+     * Decodes the replies. Only one reply is decoded at a time.
+     */
+    private final SoapPolledRefreshDecoder decoder;
+
+    /**
+     * The handler of the replies.
+     */
+    private final ISoapNioResponseHandler responseHandler =
+        new ISoapNioResponseHandler() {
+            @Override
+            public void responseReceived(final int statusCode,
+                    final String statusLine, final InputStream body) {
+                onResponse(statusCode, statusLine, body);
+            }
+
+            @Override
+            public void requestFailed(final Throwable e) {
+                fail(e);
+            }
+        };
+
+    /**
+     * Creates a new poll loop.
+     *
+     * @param timing The hold and wait time (see {@link SoapLongPoll}).
+     * @param serverSubscriptionHandle The handle of the subscription to poll.
+     * @param connection The connection to use.
+     */
+    public SoapNioPollLoop(final SoapLongPollTiming timing,
+            final String serverSubscriptionHandle,
+            final SoapNioConnection connection) {
+        this.timing = timing;
+        this.serverSubscriptionHandles = new String[] {serverSubscriptionHandle};
+        this.connection = connection;
+        this.subscriptionPolledRefresh =
+            SoapObjectFactory.createSubscriptionPolledRefresh(
+                    serverSubscriptionHandle, timing.getWaitTime());
+        this.decoder = new SoapPolledRefreshDecoder(
+                new ISoapPolledRefreshHandler() {
+                    @Override
+                    public void itemValue(final String clientHandle,
+                            final long timestamp, final Object value,
+                            final String quality) {
+                        if (!stop) {
+                            newItemValue(clientHandle, timestamp, value, quality);
+                        }
+                    }
+
+                    @Override
+                    public void itemValue(final String clientHandle,
+                            final long timestamp, final long value,
+                            final String quality) {
+                        if (!stop) {
+                            newItemValue(clientHandle, timestamp, value, quality);
+                        }
+                    }
+
+                    @Override
+                    public void itemValue(final String clientHandle,
+                            final long timestamp, final double value,
+                            final String quality) {
+                        if (!stop) {
+                            newItemValue(clientHandle, timestamp, value, quality);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Sends the first poll.
+     */
+    public void start() {
+        poll();
+    }
+
+    /**
+     * Sends the next poll.
+     */
+    private void poll() {
+        if (stop) {
+            return;
+        }
+        try {
+            int holdTime = timing.getHoldTime();
+            int waitTime = timing.getWaitTime();
+            subscriptionPolledRefresh.getHoldTime().setTimeInMillis(
+                    System.currentTimeMillis() + holdTime - timeDiff);
+            subscriptionPolledRefresh.setWaitTime(waitTime);
+            subscriptionPolledRefresh.setServerSubHandles(
+                    serverSubscriptionHandles);
+            connection.send(serialize(), holdTime + waitTime + REPLY_TIMEOUT,
+                    responseHandler);
+        } catch (XMLStreamException e) {
+            fail(new OPCCommunicationException(
+                    "SubscriptionPolledRefresh could not be serialized.", e));
+        }
+    }
+
+    /**
+     * Serializes the request into a SOAP 1.2 envelope.
+     *
+     * @return The bytes of the envelope.
+     * @throws XMLStreamException Thrown if the serialization fails.
+     */
+    private byte[] serialize() throws XMLStreamException {
+        SOAPFactory factory = OMAbstractFactory.getSOAP12Factory();
+        SOAPEnvelope envelope = factory.getDefaultEnvelope();
+        envelope.getBody().addChild(subscriptionPolledRefresh.getOMElement(
+                SubscriptionPolledRefresh.MY_QNAME, factory));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        envelope.serialize(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a reply and sends the next poll.
+     *
+     * @param statusCode The HTTP status code.
+     * @param statusLine The HTTP status line.
+     * @param body The body of the reply.
+     */
+    private void onResponse(final int statusCode, final String statusLine,
+            final InputStream body) {
+        try {
+            if (stop) {
+                return;
+            }
+            if (statusCode != 200) {
+                fail(new OPCCommunicationException(
+                        "HTTP error for subscription: " + statusLine));
+                return;
+            }
+            decoder.decode(StAXUtils.createXMLStreamReader(body));
+            responseDecoded();
+            if (stop) {
+                return;
+            }
+            if (decoder.getErrorText() != null) {
+                fail(new OPCCommunicationException(
+                        "OPC error for subscription: "
+                        + decoder.getErrorText()));
+                return;
+            }
+            timeDiff = System.currentTimeMillis() - decoder.getReplyTime();
+            timing.update(decoder.getItemCount());
+            poll();
+        } catch (XMLStreamException e) {
+            fail(new OPCCommunicationException(
+                    "Malformed SubscriptionPolledRefresh response.", e));
+        } catch (Throwable e) {
+            fail(e);
+        } finally {
+            try {
+                body.close();
+            } catch (IOException e) {
+                // the buffers are released anyway
+            }
+        }
+    }
+
+    /**
+     * Stops the loop and reports the failure.
+     *
+     * @param e The cause of the failure.
+     */
+    private void fail(final Throwable e) {
+        if (!stop) {
+            stop();
+            onError(e);
+        }
+    }
+
+    @Override
+    public void setServerSubscriptionHandles(
+            final String[] serverSubscriptionHandles) {
+        this.serverSubscriptionHandles = serverSubscriptionHandles;
+    }
+
+    /**
+     * Stops the loop and closes its connection.
+     */
+    @Override
+    public void stop() {
+        stop = true;
+        connection.close();
+    }
+
+    /**
+     * Called for every item value decoded.
+     *
+     * @param clientHandle The client handle of the item.
+     * @param timestamp The timestamp of the value.
+     * @param value The new value.
+     * @param quality The quality field of the value.
+     */
+    public abstract void newItemValue(String clientHandle, long timestamp,
+            Object value, String quality);
+
+    /**
+     * Called for every item value of an integer type decoded. The default
+     * implementation boxes the value.
+     *
+     * @param clientHandle The client handle of the item.
+     * @param timestamp The timestamp of the value.
+     * @param value The new value.
+     * @param quality The quality field of the value.
+     */
+    public void newItemValue(final String clientHandle, final long timestamp,
+            final long value, final String quality) {
+        newItemValue(clientHandle, timestamp, (Object) Long.valueOf(value), quality);
+    }
+
+    /**
+     * Called for every item value of a double type decoded. The default
+     * implementation boxes the value.
+     *
+     * @param clientHandle The client handle of the item.
+     * @param timestamp The timestamp of the value.
+     * @param value The new value.
+     * @param quality The quality field of the value.
+     */
+    public void newItemValue(final String clientHandle, final long timestamp,
+            final double value, final String quality) {
+        newItemValue(clientHandle, timestamp, (Object) Double.valueOf(value), quality);
+    }
+
+    /**
+     * Called after all item values of a response were reported. The
+     * default implementation does nothing.
+     */
+    public void responseDecoded() {
+    }
+
+    /**
+     * Called if the loop fails.
+     *
+     * @param e The exception which caused the loop to fail.
+     */
+    public abstract void onError(Throwable e);
+
+}
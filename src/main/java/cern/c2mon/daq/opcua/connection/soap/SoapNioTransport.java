@@ -0,0 +1,303 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking HTTP transport for the long polls of the XML DA endpoint. One
+ * selector thread drives the connections of all polls. Complete responses
+ * are handed to a small pool of callback threads which decode them and send
+ * the next request. A DAQ with many SOAP equipments therefore needs a
+ * handful of threads instead of one blocked thread per poll.
+ * <p>
+ * Only plain http with basic authentication is supported. The generated
+ * Axis2 stub is still used for everything else.
+ */
+public final class SoapNioTransport {
+
+    /**
+     * The size of the pooled buffers.
+     */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * The maximum number of pooled buffers.
+     */
+    private static final int MAX_POOLED_BUFFERS = 256;
+
+    /**
+     * The number of threads which process the responses.
+     */
+    private static final int CALLBACK_THREADS = 2;
+
+    /**
+     * Maximum time the selector blocks. Timeouts are checked at least at
+     * this interval.
+     */
+    private static final long SELECT_TIMEOUT = 500L;
+
+    /**
+     * The shared transport.
+     */
+    private static SoapNioTransport instance;
+
+    /**
+     * Logger of this class.
+     */
+    private Logger logger = LoggerFactory.getLogger(SoapNioTransport.class);
+
+    /**
+     * The selector of all connections.
+     */
+    private final Selector selector;
+
+    /**
+     * Tasks to run on the selector thread.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * Connections with a request. Only used by the selector thread.
+     */
+    private final Set<SoapNioConnection> connections = new HashSet<SoapNioConnection>();
+
+    /**
+     * The pool for the request and response buffers.
+     */
+    private final SoapBufferPool bufferPool =
+        new SoapBufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+    /**
+     * The threads which process the responses.
+     */
+    private final ExecutorService callbackExecutor;
+
+    /**
+     * Creates a new transport and starts its selector thread.
+     *
+     * @throws IOException Thrown if the selector cannot be opened.
+     */
+    private SoapNioTransport() throws IOException {
+        selector = Selector.open();
+        callbackExecutor = Executors.newFixedThreadPool(CALLBACK_THREADS,
+                createThreadFactory("soap-nio-callback-"));
+        Thread selectorThread = createThreadFactory("soap-nio-selector-")
+            .newThread(new Runnable() {
+                @Override
+                public void run() {
+                    runSelector();
+                }
+            });
+        selectorThread.start();
+    }
+
+    /**
+     * Returns the shared transport. It is created on first use.
+     *
+     * @return The shared transport.
+     * @throws IOException Thrown if the transport cannot be created.
+     */
+    public static synchronized SoapNioTransport getInstance() throws IOException {
+        if (instance == null) {
+            instance = new SoapNioTransport();
+        }
+        return instance;
+    }
+
+    /**
+     * Checks if a server can be reached with this transport.
+     *
+     * @param uri The URI of the server.
+     * @param domain The NT domain for authentication or null.
+     * @return True if the transport supports the server else false.
+     */
+    public static boolean isSupported(final URI uri, final String domain) {
+        return "http".equalsIgnoreCase(uri.getScheme()) && uri.getHost() != null
+            && (domain == null || domain.isEmpty());
+    }
+
+    /**
+     * Creates a new connection to a server.
+     *
+     * @param uri The URI of the service.
+     * @param user The user for basic authentication or null.
+     * @param password The password for basic authentication.
+     * @param soapAction The SOAP action of the requests.
+     * @return The new connection. It is opened with the first request.
+     */
+    public SoapNioConnection createConnection(final URI uri, final String user,
+            final String password, final String soapAction) {
+        return new SoapNioConnection(this, uri, user, password, soapAction);
+    }
+
+    /**
+     * Returns the pool of the request and response buffers.
+     *
+     * @return The buffer pool.
+     */
+    public SoapBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Runs a task on the selector thread.
+     *
+     * @param task The task to run.
+     */
+    void execute(final Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Registers a connection with a request for timeout checks.
+     *
+     * @param connection The connection.
+     */
+    void register(final SoapNioConnection connection) {
+        connections.add(connection);
+    }
+
+    /**
+     * Removes a closed connection.
+     *
+     * @param connection The connection.
+     */
+    void unregister(final SoapNioConnection connection) {
+        connections.remove(connection);
+    }
+
+    /**
+     * Registers a channel with the selector.
+     *
+     * @param channel The channel to register.
+     * @param ops The operations of interest.
+     * @param connection The connection of the channel.
+     * @return The selection key.
+     * @throws ClosedChannelException Thrown if the channel is closed.
+     */
+    SelectionKey registerChannel(final SocketChannel channel, final int ops,
+            final SoapNioConnection connection) throws ClosedChannelException {
+        return channel.register(selector, ops, connection);
+    }
+
+    /**
+     * Hands a response to its handler on a callback thread.
+     *
+     * @param handler The handler of the request.
+     * @param statusCode The status code.
+     * @param statusLine The status line.
+     * @param body The body of the response.
+     */
+    void responseReceived(final ISoapNioResponseHandler handler,
+            final int statusCode, final String statusLine, final InputStream body) {
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                handler.responseReceived(statusCode, statusLine, body);
+            }
+        });
+    }
+
+    /**
+     * Hands a failure to its handler on a callback thread.
+     *
+     * @param handler The handler of the request.
+     * @param e The cause of the failure.
+     */
+    void requestFailed(final ISoapNioResponseHandler handler, final Throwable e) {
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                handler.requestFailed(e);
+            }
+        });
+    }
+
+    /**
+     * The loop of the selector thread.
+     */
+    private void runSelector() {
+        while (true) {
+            try {
+                selector.select(SELECT_TIMEOUT);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    SoapNioConnection connection = (SoapNioConnection) key.attachment();
+                    try {
+                        if (key.isValid()) {
+                            connection.handle(key);
+                        }
+                    } catch (Throwable e) {
+                        connection.fail(e);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                for (SoapNioConnection connection
+                        : new ArrayList<SoapNioConnection>(connections)) {
+                    connection.checkTimeout(now);
+                }
+            } catch (Throwable e) {
+                logger.error("Unexpected error in SOAP NIO selector.", e);
+            }
+        }
+    }
+
+    /**
+     * Creates a factory for named daemon threads.
+     *
+     * @param prefix The prefix of the thread names.
+     * @return The thread factory.
+     */
+    private static ThreadFactory createThreadFactory(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
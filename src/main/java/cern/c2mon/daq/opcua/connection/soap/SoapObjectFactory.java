@@ -40,6 +40,7 @@ import org.opcfoundation.xmlda.RequestOptions;
 import org.opcfoundation.xmlda.Subscribe;
 import org.opcfoundation.xmlda.SubscribeRequestItem;
 import org.opcfoundation.xmlda.SubscribeRequestItemList;
+import org.opcfoundation.xmlda.SubscriptionCancel;
 import org.opcfoundation.xmlda.SubscriptionPolledRefresh;
 import org.opcfoundation.xmlda.Write;
 import org.opcfoundation.xmlda.WriteRequestItemList;
@@ -231,6 +232,20 @@ public final class SoapObjectFactory {
         return subscriptionPolledRefresh;
     }
 
+    /**
+     * Creates a subscription cancel request.
+     * 
+     * @param serverSubscriptionHandle
+     *            The handle which identifies the subscription to cancel.
+     * @return The new SubscriptionCancel request.
+     */
+    public static SubscriptionCancel createSubscriptionCancel(final String serverSubscriptionHandle) {
+        SubscriptionCancel subscriptionCancel = new SubscriptionCancel();
+        subscriptionCancel.setServerSubHandle(serverSubscriptionHandle);
+        subscriptionCancel.setClientRequestHandle(serverSubscriptionHandle);
+        return subscriptionCancel;
+    }
+
     /**
      * Creates a write request.
      * 
@@ -271,17 +286,60 @@ public final class SoapObjectFactory {
         OMNamespace omNs = FACTORY.createOMNamespace("http://opcfoundation.org/webservices/XMLDA/1.0/", "");
         OMElement valueElement = FACTORY.createOMElement("Value", omNs);
         valueElement.declareNamespace(FACTORY.createOMNamespace("http://www.w3.org/2001/XMLSchema", "xsd"));
-        String xmlType;
-        if (value.getClass().equals(String.class))
-            xmlType = "xsd:string";
-        else
-            xmlType = "xsd:double";
+        String xmlType = getXmlType(value);
         valueElement.addAttribute(
                 FACTORY.createOMAttribute("type", FACTORY.createOMNamespace(
                         "http://www.w3.org/2001/XMLSchema-instance",  "xsi"), xmlType));
-        valueElement.addChild(FACTORY.createOMText(valueElement, value.toString()));
+        valueElement.addChild(FACTORY.createOMText(valueElement, toXmlText(value)));
         itemValue.setValue(valueElement);
         return itemValue;
     }
 
+    /**
+     * Returns the XML schema type matching the Java type of a value. The
+     * value has already been converted to the data type of its tag. Unknown
+     * types are sent as xsd:double like before.
+     * 
+     * @param value
+     *            The value to get the type for.
+     * @return The XML schema type with the xsd prefix.
+     */
+    public static String getXmlType(final Object value) {
+        if (value instanceof String)
+            return "xsd:string";
+        else if (value instanceof Boolean)
+            return "xsd:boolean";
+        else if (value instanceof Byte)
+            return "xsd:byte";
+        else if (value instanceof Short)
+            return "xsd:short";
+        else if (value instanceof Integer)
+            return "xsd:int";
+        else if (value instanceof Long)
+            return "xsd:long";
+        else if (value instanceof Float)
+            return "xsd:float";
+        else
+            return "xsd:double";
+    }
+
+    /**
+     * Returns the XML representation of a value. Infinite floating point
+     * values are written as INF and -INF.
+     * 
+     * @param value
+     *            The value to convert.
+     * @return The XML text of the value.
+     */
+    private static String toXmlText(final Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            double doubleValue = ((Number) value).doubleValue();
+            if (doubleValue == Double.POSITIVE_INFINITY)
+                return "INF";
+            else if (doubleValue == Double.NEGATIVE_INFINITY)
+                return "-INF";
+        }
+        return value.toString();
+    }
+
 }
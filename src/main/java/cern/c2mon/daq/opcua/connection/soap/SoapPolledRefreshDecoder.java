@@ -0,0 +1,394 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+import java.rmi.RemoteException;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAP12Constants;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.client.OperationClient;
+import org.apache.axis2.context.MessageContext;
+import org.apache.axis2.databinding.ADBException;
+import org.apache.axis2.databinding.utils.ConverterUtil;
+import org.apache.axis2.wsdl.WSDLConstants;
+import org.opcfoundation.xmlda.OPCXML_DataAccessStub;
+import org.opcfoundation.xmlda.SubscriptionPolledRefresh;
+
+import cern.c2mon.daq.opcua.connection.common.impl.OPCCommunicationException;
+
+/**
+ * Streaming decoder for SubscriptionPolledRefresh responses. The long poll
+ * is the hot path of the XML DA endpoint. Instead of building the generated
+ * ADB object graph (SubscriptionPolledRefreshResponse, ItemValue,
+ * OPCQuality, ...) for every reply the response body is read with a StAX
+ * pull parser and every item value is handed directly to an
+ * {@link ISoapPolledRefreshHandler}. The generated stub is still used for
+ * all other (rare) calls.
+ * <p>
+ * A decoder keeps the state of the last decoded response and is not thread
+ * safe. Every poll loop should use its own instance.
+ */
+public class SoapPolledRefreshDecoder {
+
+    /**
+     * The operation name of the polled refresh in the generated stub.
+     */
+    private static final QName OPERATION = new QName(
+            "http://opcfoundation.org/webservices/XMLDA/1.0/",
+            "subscriptionPolledRefresh");
+
+    /**
+     * The SOAP action of the polled refresh.
+     */
+    private static final String ACTION =
+        "http://opcfoundation.org/webservices/XMLDA/1.0/SubscriptionPolledRefresh";
+
+    /**
+     * Quality field if the server did not send a quality element.
+     */
+    public static final String DEFAULT_QUALITY = "good";
+
+    /**
+     * The handler to inform about item values.
+     */
+    private final ISoapPolledRefreshHandler handler;
+
+    /**
+     * Reused buffer for the text content of value elements.
+     */
+    private final StringBuilder textBuffer = new StringBuilder();
+
+    /**
+     * Reply time of the last decoded response.
+     */
+    private long replyTime;
+
+    /**
+     * Text of the first error in the last decoded response or null.
+     */
+    private String errorText;
+
+    /**
+     * Number of item values in the last decoded response.
+     */
+    private int itemCount;
+
+    /**
+     * Creates a new decoder.
+     *
+     * @param handler The handler to inform about item values.
+     */
+    public SoapPolledRefreshDecoder(final ISoapPolledRefreshHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Sends the provided polled refresh to the server and decodes the
+     * response while it is read from the connection.
+     *
+     * @param access The stub whose service client should be used.
+     * @param subscriptionPolledRefresh The request to send.
+     * @throws RemoteException Thrown if the SOAP call fails.
+     */
+    public void subscriptionPolledRefresh(final OPCXML_DataAccessStub access,
+            final SubscriptionPolledRefresh subscriptionPolledRefresh)
+            throws RemoteException {
+        MessageContext messageContext = new MessageContext();
+        try {
+            OperationClient operationClient =
+                access._getServiceClient().createClient(OPERATION);
+            operationClient.getOptions().setAction(ACTION);
+            operationClient.getOptions().setExceptionToBeThrownOnSOAPFault(true);
+            SOAPFactory factory = getFactory(
+                    operationClient.getOptions().getSoapVersionURI());
+            SOAPEnvelope envelope = factory.getDefaultEnvelope();
+            envelope.getBody().addChild(subscriptionPolledRefresh.getOMElement(
+                    SubscriptionPolledRefresh.MY_QNAME, factory));
+            access._getServiceClient().addHeadersToEnvelope(envelope);
+            messageContext.setEnvelope(envelope);
+            operationClient.addMessageContext(messageContext);
+            operationClient.execute(true);
+            MessageContext returnMessageContext = operationClient.getMessageContext(
+                    WSDLConstants.MESSAGE_LABEL_IN_VALUE);
+            OMElement body =
+                returnMessageContext.getEnvelope().getBody().getFirstElement();
+            decode(body.getXMLStreamReaderWithoutCaching());
+        } catch (ADBException e) {
+            throw AxisFault.makeFault(e);
+        } catch (XMLStreamException e) {
+            throw new OPCCommunicationException(
+                    "Malformed SubscriptionPolledRefresh response.", e);
+        } finally {
+            if (messageContext.getTransportOut() != null) {
+                messageContext.getTransportOut().getSender().cleanup(
+                        messageContext);
+            }
+        }
+    }
+
+    /**
+     * Decodes a SubscriptionPolledRefreshResponse element. The reader has to
+     * be positioned at or before the start of the response element.
+     *
+     * @param reader The reader to decode from.
+     * @throws XMLStreamException Thrown if the XML is malformed.
+     */
+    public void decode(final XMLStreamReader reader) throws XMLStreamException {
+        replyTime = System.currentTimeMillis();
+        errorText = null;
+        itemCount = 0;
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                String localName = reader.getLocalName();
+                if ("Items".equals(localName)) {
+                    decodeItemValue(reader);
+                }
+                else if ("SubscriptionPolledRefreshResult".equals(localName)) {
+                    String replyTimeString = reader.getAttributeValue(null, "ReplyTime");
+                    if (replyTimeString != null) {
+                        replyTime = parseDateTime(replyTimeString);
+                    }
+                }
+                else if ("Errors".equals(localName)) {
+                    String text = decodeErrorText(reader);
+                    if (errorText == null) {
+                        errorText = text;
+                    }
+                }
+            }
+        }
+        reader.close();
+    }
+
+    /**
+     * Decodes one ItemValue element and informs the handler. The reader is
+     * positioned at the start of the element and will be at its end after
+     * this method returns.
+     *
+     * @param reader The reader to decode from.
+     * @throws XMLStreamException Thrown if the XML is malformed.
+     */
+    private void decodeItemValue(final XMLStreamReader reader)
+            throws XMLStreamException {
+        String clientHandle = reader.getAttributeValue(null, "ClientItemHandle");
+        String timestampString = reader.getAttributeValue(null, "Timestamp");
+        long timestamp = timestampString != null
+            ? parseDateTime(timestampString) : System.currentTimeMillis();
+        String valueType = null;
+        boolean hasValue = false;
+        String quality = DEFAULT_QUALITY;
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String localName = reader.getLocalName();
+                if ("Value".equals(localName)) {
+                    valueType = readValue(reader);
+                    hasValue = true;
+                }
+                else if ("Quality".equals(localName)) {
+                    String qualityField = reader.getAttributeValue(null, "QualityField");
+                    if (qualityField != null) {
+                        quality = qualityField;
+                    }
+                    depth++;
+                }
+                else {
+                    depth++;
+                }
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        itemCount++;
+        if (hasValue) {
+            reportItemValue(clientHandle, timestamp, valueType, quality);
+        }
+        else {
+            handler.itemValue(clientHandle, timestamp, (Object) null, quality);
+        }
+    }
+
+    /**
+     * Converts the value in the text buffer based on its xsi:type (see
+     * {@link SoapValueDecoder}) and passes it to the handler. Integer and
+     * double values are passed as primitives.
+     *
+     * @param clientHandle The client handle of the item.
+     * @param timestamp The timestamp of the value.
+     * @param valueType The xsi:type of the value.
+     * @param quality The quality field of the value.
+     */
+    private void reportItemValue(final String clientHandle,
+            final long timestamp, final String valueType, final String quality) {
+        switch (SoapValueDecoder.getValueKind(valueType)) {
+        case SoapValueDecoder.LONG_VALUE:
+            long longValue;
+            try {
+                longValue = SoapValueDecoder.decodeLong(valueType, textBuffer);
+            } catch (NumberFormatException e) {
+                handler.itemValue(clientHandle, timestamp, (Object) textBuffer.toString(), quality);
+                return;
+            }
+            handler.itemValue(clientHandle, timestamp, longValue, quality);
+            break;
+        case SoapValueDecoder.DOUBLE_VALUE:
+            double doubleValue;
+            try {
+                doubleValue = SoapValueDecoder.decodeDouble(textBuffer);
+            } catch (NumberFormatException e) {
+                handler.itemValue(clientHandle, timestamp, (Object) textBuffer.toString(), quality);
+                return;
+            }
+            handler.itemValue(clientHandle, timestamp, doubleValue, quality);
+            break;
+        default:
+            handler.itemValue(clientHandle, timestamp,
+                    SoapValueDecoder.decode(valueType, textBuffer), quality);
+            break;
+        }
+    }
+
+    /**
+     * Reads the content of a value element into the text buffer. Like
+     * OMElement.getText() only the direct text content of the element is
+     * used. The reader is positioned at the start of the element and will
+     * be at its end after this method returns.
+     *
+     * @param reader The reader to decode from.
+     * @return The xsi:type of the value element or null.
+     * @throws XMLStreamException Thrown if the XML is malformed.
+     */
+    private String readValue(final XMLStreamReader reader)
+            throws XMLStreamException {
+        String xsiType = reader.getAttributeValue(
+                SoapValueDecoder.XSI_TYPE.getNamespaceURI(),
+                SoapValueDecoder.XSI_TYPE.getLocalPart());
+        textBuffer.setLength(0);
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            switch (event) {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                depth--;
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+                if (depth == 1) {
+                    textBuffer.append(reader.getTextCharacters(),
+                            reader.getTextStart(), reader.getTextLength());
+                }
+                break;
+            default:
+                break;
+            }
+        }
+        return xsiType;
+    }
+
+    /**
+     * Reads the text of an OPCError element. The reader is positioned at the
+     * start of the element and will be at its end after this method returns.
+     *
+     * @param reader The reader to decode from.
+     * @return The error text.
+     * @throws XMLStreamException Thrown if the XML is malformed.
+     */
+    private String decodeErrorText(final XMLStreamReader reader)
+            throws XMLStreamException {
+        String text = reader.getAttributeValue(null, "ID");
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if ("Text".equals(reader.getLocalName())) {
+                    text = reader.getElementText();
+                }
+                else {
+                    depth++;
+                }
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Parses a xsd:dateTime String.
+     *
+     * @param dateTime The String to parse.
+     * @return The time in milliseconds.
+     */
+    private static long parseDateTime(final String dateTime) {
+        return ConverterUtil.convertToDateTime(dateTime).getTimeInMillis();
+    }
+
+    /**
+     * Returns the SOAP factory for the provided SOAP version.
+     *
+     * @param soapVersionURI The SOAP version URI.
+     * @return The matching SOAP factory.
+     */
+    private static SOAPFactory getFactory(final String soapVersionURI) {
+        if (SOAP12Constants.SOAP_ENVELOPE_NAMESPACE_URI.equals(soapVersionURI)) {
+            return OMAbstractFactory.getSOAP12Factory();
+        }
+        return OMAbstractFactory.getSOAP11Factory();
+    }
+
+    /**
+     * Returns the reply time of the last decoded response.
+     *
+     * @return The reply time in milliseconds.
+     */
+    public long getReplyTime() {
+        return replyTime;
+    }
+
+    /**
+     * Returns the text of the first error of the last decoded response.
+     *
+     * @return The error text or null if there was no error.
+     */
+    public String getErrorText() {
+        return errorText;
+    }
+
+    /**
+     * Returns the number of item values in the last decoded response.
+     *
+     * @return The number of item values.
+     */
+    public int getItemCount() {
+        return itemCount;
+    }
+}
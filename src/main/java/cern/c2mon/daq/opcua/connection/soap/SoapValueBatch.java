@@ -0,0 +1,290 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The item values of one or more poll responses. The values are collected
+ * while a response is decoded and handed to the bulkhead of the equipment
+ * as a single task, which replays them in order to the target handler.
+ * Integer and double values are kept in primitive arrays, so collecting
+ * them does not box.
+ * <p>
+ * A conflating batch keeps only the latest value of every item. It is
+ * used to keep the values of responses which could not be queued, so
+ * their size is bounded by the number of items of the poll.
+ * <p>
+ * A batch can be cleared and reused once its values were replayed, so a
+ * poll does not allocate new arrays per response.
+ */
+final class SoapValueBatch implements ISoapPolledRefreshHandler, Runnable {
+
+    /**
+     * Kind of a value which is kept as object.
+     */
+    private static final byte OBJECT_VALUE = 0;
+
+    /**
+     * Kind of a value which is kept as long.
+     */
+    private static final byte LONG_VALUE = 1;
+
+    /**
+     * Kind of a value which is kept as the bits of a double.
+     */
+    private static final byte DOUBLE_VALUE = 2;
+
+    /**
+     * Called after the values of a batch were replayed.
+     */
+    interface DoneListener {
+
+        /**
+         * Called after the values of a batch were replayed. The batch is
+         * not used by the bulkhead anymore.
+         *
+         * @param batch The replayed batch.
+         */
+        void batchDone(SoapValueBatch batch);
+    }
+
+    /**
+     * Initial number of values a batch can hold.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The handler the values are replayed to.
+     */
+    private final ISoapPolledRefreshHandler target;
+
+    /**
+     * Called after the values were replayed.
+     */
+    private final DoneListener doneListener;
+
+    /**
+     * The slots of the items by client handle if the batch conflates.
+     */
+    private Map<String, Integer> slots;
+
+    /**
+     * The client handles of the values.
+     */
+    private String[] clientHandles = new String[INITIAL_CAPACITY];
+
+    /**
+     * The timestamps of the values.
+     */
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+
+    /**
+     * The kinds of the values.
+     */
+    private byte[] kinds = new byte[INITIAL_CAPACITY];
+
+    /**
+     * The long values and the bits of the double values.
+     */
+    private long[] bits = new long[INITIAL_CAPACITY];
+
+    /**
+     * The object values.
+     */
+    private Object[] objects = new Object[INITIAL_CAPACITY];
+
+    /**
+     * The quality fields of the values.
+     */
+    private String[] qualities = new String[INITIAL_CAPACITY];
+
+    /**
+     * The number of values.
+     */
+    private int size;
+
+    /**
+     * Creates a new batch.
+     *
+     * @param target The handler the values are replayed to.
+     * @param doneListener Called after the values were replayed.
+     */
+    SoapValueBatch(final ISoapPolledRefreshHandler target,
+            final DoneListener doneListener) {
+        this.target = target;
+        this.doneListener = doneListener;
+    }
+
+    /**
+     * Lets the batch keep only the latest value of every item. Has to be
+     * called while the batch is empty.
+     */
+    void conflate() {
+        if (slots == null) {
+            slots = new HashMap<String, Integer>();
+        }
+    }
+
+    @Override
+    public void itemValue(final String clientHandle, final long timestamp,
+            final Object value, final String quality) {
+        int slot = slot(clientHandle, timestamp, quality);
+        kinds[slot] = OBJECT_VALUE;
+        objects[slot] = value;
+    }
+
+    @Override
+    public void itemValue(final String clientHandle, final long timestamp,
+            final long value, final String quality) {
+        int slot = slot(clientHandle, timestamp, quality);
+        kinds[slot] = LONG_VALUE;
+        bits[slot] = value;
+        objects[slot] = null;
+    }
+
+    @Override
+    public void itemValue(final String clientHandle, final long timestamp,
+            final double value, final String quality) {
+        int slot = slot(clientHandle, timestamp, quality);
+        kinds[slot] = DOUBLE_VALUE;
+        bits[slot] = Double.doubleToRawLongBits(value);
+        objects[slot] = null;
+    }
+
+    /**
+     * @return True if the batch keeps only the latest value of every item.
+     */
+    boolean isConflating() {
+        return slots != null;
+    }
+
+    /**
+     * Adds the values of another batch after the values of this batch.
+     *
+     * @param other The batch with the newer values.
+     */
+    void addAll(final SoapValueBatch other) {
+        other.replay(this);
+    }
+
+    /**
+     * Removes all values so the batch can be reused. A conflating batch
+     * stops conflating.
+     */
+    void clear() {
+        Arrays.fill(clientHandles, 0, size, null);
+        Arrays.fill(objects, 0, size, null);
+        Arrays.fill(qualities, 0, size, null);
+        size = 0;
+        slots = null;
+    }
+
+    /**
+     * @return True if the batch contains no value.
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return The number of values.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Replays the values to the target handler and calls the done
+     * listener.
+     */
+    @Override
+    public void run() {
+        try {
+            replay(target);
+        } finally {
+            doneListener.batchDone(this);
+        }
+    }
+
+    /**
+     * Replays the values in order.
+     *
+     * @param handler The handler to pass the values to.
+     */
+    private void replay(final ISoapPolledRefreshHandler handler) {
+        for (int i = 0; i < size; i++) {
+            switch (kinds[i]) {
+            case LONG_VALUE:
+                handler.itemValue(clientHandles[i], timestamps[i], bits[i], qualities[i]);
+                break;
+            case DOUBLE_VALUE:
+                handler.itemValue(clientHandles[i], timestamps[i],
+                        Double.longBitsToDouble(bits[i]), qualities[i]);
+                break;
+            default:
+                handler.itemValue(clientHandles[i], timestamps[i], objects[i], qualities[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the slot of a new value. A conflating batch reuses the slot
+     * of the item.
+     *
+     * @param clientHandle The client handle of the item.
+     * @param timestamp The timestamp of the value.
+     * @param quality The quality field of the value.
+     * @return The slot to store the value in.
+     */
+    private int slot(final String clientHandle, final long timestamp,
+            final String quality) {
+        int slot;
+        Integer existing = slots == null ? null : slots.get(clientHandle);
+        if (existing != null) {
+            slot = existing;
+        }
+        else {
+            if (size == clientHandles.length) {
+                grow();
+            }
+            slot = size++;
+            clientHandles[slot] = clientHandle;
+            if (slots != null) {
+                slots.put(clientHandle, slot);
+            }
+        }
+        timestamps[slot] = timestamp;
+        qualities[slot] = quality;
+        return slot;
+    }
+
+    /**
+     * Doubles the capacity of the batch.
+     */
+    private void grow() {
+        int capacity = clientHandles.length * 2;
+        clientHandles = Arrays.copyOf(clientHandles, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        kinds = Arrays.copyOf(kinds, capacity);
+        bits = Arrays.copyOf(bits, capacity);
+        objects = Arrays.copyOf(objects, capacity);
+        qualities = Arrays.copyOf(qualities, capacity);
+    }
+}
@@ -0,0 +1,499 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+import javax.xml.namespace.QName;
+
+import org.apache.axiom.om.OMElement;
+import org.opcfoundation.xmlda.ItemValue;
+
+/**
+ * Decodes the values of XML DA item values into Java objects based on their
+ * xsi:type. Numeric and boolean values are parsed directly from the
+ * character content so that the usual case does not need intermediate
+ * Strings. Values of unknown types (arrays, dates, ...) or values which
+ * cannot be parsed are returned as String like before and are left to the
+ * TypeConverter.
+ * <p>
+ * Integer and double values can also be decoded to primitives (see
+ * {@link #getValueKind(String)}) so they do not have to be boxed.
+ */
+public final class SoapValueDecoder {
+
+    /**
+     * Qualified name of the xsi:type attribute.
+     */
+    public static final QName XSI_TYPE = new QName(
+            "http://www.w3.org/2001/XMLSchema-instance", "type");
+
+    /**
+     * Kind of values which are decoded as objects.
+     */
+    public static final int OBJECT_VALUE = 0;
+
+    /**
+     * Kind of values which can be decoded as long.
+     */
+    public static final int LONG_VALUE = 1;
+
+    /**
+     * Kind of values which can be decoded as double.
+     */
+    public static final int DOUBLE_VALUE = 2;
+
+    /**
+     * Largest mantissa which can be converted exactly to a double.
+     */
+    private static final long MAX_EXACT_DOUBLE_MANTISSA = 1L << 53;
+
+    /**
+     * Largest mantissa which can be converted exactly to a float.
+     */
+    private static final long MAX_EXACT_FLOAT_MANTISSA = 1L << 24;
+
+    /**
+     * Powers of ten which are exactly representable as double.
+     */
+    private static final double[] DOUBLE_POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Powers of ten which are exactly representable as float.
+     */
+    private static final float[] FLOAT_POWERS_OF_TEN = {
+        1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+    };
+
+    /**
+     * Private constructor. There should be no instances of this helper class.
+     */
+    private SoapValueDecoder() {
+    }
+
+    /**
+     * Decodes the value of an item value of the generated object model.
+     *
+     * @param itemValue The item value to decode.
+     * @return The decoded value or null if there is no value.
+     */
+    public static Object decode(final ItemValue itemValue) {
+        OMElement valueElement = itemValue.getValue();
+        if (valueElement == null) {
+            return null;
+        }
+        return decode(valueElement.getAttributeValue(XSI_TYPE),
+                valueElement.getText());
+    }
+
+    /**
+     * Decodes the text of a value element based on its xsi:type.
+     *
+     * @param xsiType The xsi:type of the value element (with or without
+     * prefix). May be null.
+     * @param text The text content of the value element.
+     * @return The decoded value.
+     */
+    public static Object decode(final String xsiType, final CharSequence text) {
+        if (text == null) {
+            return null;
+        }
+        String type = getLocalType(xsiType);
+        int start = trimStart(text);
+        int end = trimEnd(text, start);
+        try {
+            switch (type) {
+            case "boolean":
+                return parseBoolean(text, start, end);
+            case "byte":
+                return Byte.valueOf((byte) parseLong(text, start, end,
+                        Byte.MIN_VALUE, Byte.MAX_VALUE));
+            case "unsignedByte":
+                return Short.valueOf((short) parseLong(text, start, end,
+                        0, 0xFF));
+            case "short":
+                return Short.valueOf((short) parseLong(text, start, end,
+                        Short.MIN_VALUE, Short.MAX_VALUE));
+            case "unsignedShort":
+                return Integer.valueOf((int) parseLong(text, start, end,
+                        0, 0xFFFF));
+            case "int":
+                return Integer.valueOf((int) parseLong(text, start, end,
+                        Integer.MIN_VALUE, Integer.MAX_VALUE));
+            case "unsignedInt":
+                return Long.valueOf(parseLong(text, start, end,
+                        0, 0xFFFFFFFFL));
+            case "long":
+            case "unsignedLong":
+                return Long.valueOf(parseLong(text, start, end,
+                        Long.MIN_VALUE, Long.MAX_VALUE));
+            case "float":
+                return Float.valueOf(parseFloat(text, start, end));
+            case "double":
+            case "decimal":
+                return Double.valueOf(parseDouble(text, start, end));
+            default:
+                return text.toString();
+            }
+        } catch (NumberFormatException e) {
+            return text.toString();
+        }
+    }
+
+    /**
+     * Returns how values of a xsi:type can be decoded.
+     *
+     * @param xsiType The xsi:type of the value element (with or without
+     * prefix). May be null.
+     * @return LONG_VALUE for integer types, DOUBLE_VALUE for double and
+     * decimal and OBJECT_VALUE for all other types.
+     */
+    public static int getValueKind(final String xsiType) {
+        switch (getLocalType(xsiType)) {
+        case "byte":
+        case "unsignedByte":
+        case "short":
+        case "unsignedShort":
+        case "int":
+        case "unsignedInt":
+        case "long":
+        case "unsignedLong":
+            return LONG_VALUE;
+        case "double":
+        case "decimal":
+            return DOUBLE_VALUE;
+        default:
+            return OBJECT_VALUE;
+        }
+    }
+
+    /**
+     * Decodes the text of a value element of an integer type (see
+     * {@link #getValueKind(String)}) without boxing.
+     *
+     * @param xsiType The xsi:type of the value element.
+     * @param text The text content of the value element.
+     * @return The decoded value.
+     * @throws NumberFormatException Thrown if the text is no integer in the
+     * range of the type.
+     */
+    public static long decodeLong(final String xsiType, final CharSequence text) {
+        int start = trimStart(text);
+        int end = trimEnd(text, start);
+        switch (getLocalType(xsiType)) {
+        case "byte":
+            return parseLong(text, start, end, Byte.MIN_VALUE, Byte.MAX_VALUE);
+        case "unsignedByte":
+            return parseLong(text, start, end, 0, 0xFF);
+        case "short":
+            return parseLong(text, start, end, Short.MIN_VALUE, Short.MAX_VALUE);
+        case "unsignedShort":
+            return parseLong(text, start, end, 0, 0xFFFF);
+        case "int":
+            return parseLong(text, start, end, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        case "unsignedInt":
+            return parseLong(text, start, end, 0, 0xFFFFFFFFL);
+        default:
+            return parseLong(text, start, end, Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Decodes the text of a value element of a double type (see
+     * {@link #getValueKind(String)}) without boxing.
+     *
+     * @param text The text content of the value element.
+     * @return The decoded value.
+     * @throws NumberFormatException Thrown if the text is no double.
+     */
+    public static double decodeDouble(final CharSequence text) {
+        int start = trimStart(text);
+        return parseDouble(text, start, trimEnd(text, start));
+    }
+
+    /**
+     * Returns true if the provided XML DA quality field is a good quality.
+     *
+     * @param qualityField The quality field (e.g. 'good', 'badCommFailure').
+     * @return True if the quality is good else false. Null is treated as
+     * good because the quality element is optional.
+     */
+    public static boolean isGoodQuality(final String qualityField) {
+        return qualityField == null || qualityField.startsWith("good");
+    }
+
+    /**
+     * Returns the quality field of an item value of the generated object
+     * model.
+     *
+     * @param itemValue The item value.
+     * @return The quality field or null if it is not set.
+     */
+    public static String getQuality(final ItemValue itemValue) {
+        if (itemValue.getQuality() == null
+                || itemValue.getQuality().getQualityField() == null) {
+            return null;
+        }
+        return itemValue.getQuality().getQualityField().getValue();
+    }
+
+    /**
+     * Returns the xsi:type without prefix.
+     *
+     * @param xsiType The xsi:type (with or without prefix). May be null.
+     * @return The type without prefix or an empty String.
+     */
+    private static String getLocalType(final String xsiType) {
+        return xsiType == null
+            ? "" : xsiType.substring(xsiType.indexOf(':') + 1);
+    }
+
+    /**
+     * Returns the index of the first character which is no whitespace.
+     *
+     * @param text The text.
+     * @return The start index of the trimmed text.
+     */
+    private static int trimStart(final CharSequence text) {
+        int start = 0;
+        while (start < text.length() && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * Returns the index after the last character which is no whitespace.
+     *
+     * @param text The text.
+     * @param start The start index of the trimmed text.
+     * @return The end index (exclusive) of the trimmed text.
+     */
+    private static int trimEnd(final CharSequence text, final int start) {
+        int end = text.length();
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Parses a xsd:boolean.
+     *
+     * @param text The text to parse.
+     * @param start The start index (inclusive).
+     * @param end The end index (exclusive).
+     * @return The parsed boolean.
+     */
+    private static Boolean parseBoolean(final CharSequence text,
+            final int start, final int end) {
+        if (regionEquals(text, start, end, "true")
+                || regionEquals(text, start, end, "1")) {
+            return Boolean.TRUE;
+        }
+        else if (regionEquals(text, start, end, "false")
+                || regionEquals(text, start, end, "0")) {
+            return Boolean.FALSE;
+        }
+        throw new NumberFormatException("Not a boolean");
+    }
+
+    /**
+     * Parses an integer value and checks its range.
+     *
+     * @param text The text to parse.
+     * @param start The start index (inclusive).
+     * @param end The end index (exclusive).
+     * @param min The minimum allowed value.
+     * @param max The maximum allowed value.
+     * @return The parsed value.
+     */
+    private static long parseLong(final CharSequence text, final int start,
+            final int end, final long min, final long max) {
+        int index = start;
+        boolean negative = false;
+        if (index < end && (text.charAt(index) == '-' || text.charAt(index) == '+')) {
+            negative = text.charAt(index) == '-';
+            index++;
+        }
+        if (index == end) {
+            throw new NumberFormatException("No digits");
+        }
+        // accumulate negatively to be able to represent Long.MIN_VALUE
+        long result = 0;
+        for (; index < end; index++) {
+            int digit = text.charAt(index) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Not a digit");
+            }
+            if (result < (Long.MIN_VALUE + digit) / 10) {
+                throw new NumberFormatException("Overflow");
+            }
+            result = result * 10 - digit;
+        }
+        if (!negative) {
+            if (result == Long.MIN_VALUE) {
+                throw new NumberFormatException("Overflow");
+            }
+            result = -result;
+        }
+        if (result < min || result > max) {
+            throw new NumberFormatException("Out of range");
+        }
+        return result;
+    }
+
+    /**
+     * Parses a xsd:double. Plain decimal numbers with up to 15 significant
+     * digits are converted exactly without creating a String. Everything
+     * else is left to Double.parseDouble.
+     *
+     * @param text The text to parse.
+     * @param start The start index (inclusive).
+     * @param end The end index (exclusive).
+     * @return The parsed value.
+     */
+    private static double parseDouble(final CharSequence text, final int start,
+            final int end) {
+        if (regionEquals(text, start, end, "INF")) {
+            return Double.POSITIVE_INFINITY;
+        }
+        else if (regionEquals(text, start, end, "-INF")) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        else if (regionEquals(text, start, end, "NaN")) {
+            return Double.NaN;
+        }
+        long mantissa = parseMantissa(text, start, end, MAX_EXACT_DOUBLE_MANTISSA);
+        int fractionDigits = fractionDigits(text, start, end);
+        if (mantissa >= 0 && fractionDigits < DOUBLE_POWERS_OF_TEN.length) {
+            double value = mantissa / DOUBLE_POWERS_OF_TEN[fractionDigits];
+            return text.charAt(start) == '-' ? -value : value;
+        }
+        return Double.parseDouble(text.subSequence(start, end).toString());
+    }
+
+    /**
+     * Parses a xsd:float. Plain decimal numbers with up to 7 significant
+     * digits are converted exactly without creating a String. Everything
+     * else is left to Float.parseFloat.
+     *
+     * @param text The text to parse.
+     * @param start The start index (inclusive).
+     * @param end The end index (exclusive).
+     * @return The parsed value.
+     */
+    private static float parseFloat(final CharSequence text, final int start,
+            final int end) {
+        if (regionEquals(text, start, end, "INF")) {
+            return Float.POSITIVE_INFINITY;
+        }
+        else if (regionEquals(text, start, end, "-INF")) {
+            return Float.NEGATIVE_INFINITY;
+        }
+        else if (regionEquals(text, start, end, "NaN")) {
+            return Float.NaN;
+        }
+        long mantissa = parseMantissa(text, start, end, MAX_EXACT_FLOAT_MANTISSA);
+        int fractionDigits = fractionDigits(text, start, end);
+        if (mantissa >= 0 && fractionDigits < FLOAT_POWERS_OF_TEN.length) {
+            float value = mantissa / FLOAT_POWERS_OF_TEN[fractionDigits];
+            return text.charAt(start) == '-' ? -value : value;
+        }
+        return Float.parseFloat(text.subSequence(start, end).toString());
+    }
+
+    /**
+     * Reads the digits of a plain decimal number ([+-]digits[.digits]) as
+     * one integer mantissa.
+     *
+     * @param text The text to parse.
+     * @param start The start index (inclusive).
+     * @param end The end index (exclusive).
+     * @param maxMantissa The maximum mantissa which is accepted.
+     * @return The mantissa or -1 if the text is no plain decimal number or
+     * the mantissa is too large.
+     */
+    private static long parseMantissa(final CharSequence text, final int start,
+            final int end, final long maxMantissa) {
+        int index = start;
+        if (index < end && (text.charAt(index) == '-' || text.charAt(index) == '+')) {
+            index++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        boolean point = false;
+        for (; index < end; index++) {
+            char c = text.charAt(index);
+            if (c == '.' && !point) {
+                point = true;
+            }
+            else if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (mantissa > maxMantissa) {
+                    return -1;
+                }
+            }
+            else {
+                return -1;
+            }
+        }
+        return digits == 0 ? -1 : mantissa;
+    }
+
+    /**
+     * Counts the digits after the decimal point.
+     *
+     * @param text The text to check.
+     * @param start The start index (inclusive).
+     * @param end The end index (exclusive).
+     * @return The number of fraction digits.
+     */
+    private static int fractionDigits(final CharSequence text, final int start,
+            final int end) {
+        for (int index = start; index < end; index++) {
+            if (text.charAt(index) == '.') {
+                return end - index - 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Compares a region of a char sequence with a String.
+     *
+     * @param text The text to compare.
+     * @param start The start index (inclusive).
+     * @param end The end index (exclusive).
+     * @param expected The expected String.
+     * @return True if the region equals the String else false.
+     */
+    private static boolean regionEquals(final CharSequence text, final int start,
+            final int end, final String expected) {
+        if (end - start != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (text.charAt(start + i) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,150 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+import org.apache.axis2.AxisFault;
+import org.opcfoundation.xmlda.ItemValue;
+import org.opcfoundation.xmlda.OPCError;
+import org.opcfoundation.xmlda.OPCXML_DataAccessStub;
+import org.opcfoundation.xmlda.WriteResponse;
+
+import cern.c2mon.daq.opcua.connection.common.AbstractWriteBatcher;
+import cern.c2mon.daq.opcua.connection.common.impl.OPCCommunicationException;
+
+/**
+ * Collects writes of concurrent callers into bulk Write requests (see
+ * {@link AbstractWriteBatcher}). Errors the server reports for an item are
+ * thrown only to the caller of the write.
+ */
+public class SoapWriteBatcher extends AbstractWriteBatcher<String> {
+
+    /**
+     * The request handle of the Write requests.
+     */
+    private static final String REQUEST_HANDLE = "write";
+
+    /**
+     * Text of the error the server reports if it uses another rate. It is
+     * no real error.
+     */
+    private static final String RATE_NOT_SUPPORTED =
+        "The server does not support the requested rate but will use the closest available rate.";
+
+    /**
+     * The stub used for the Write requests. It is only used by one thread
+     * at a time.
+     */
+    private final OPCXML_DataAccessStub access;
+
+    /**
+     * Creates a new write batcher.
+     *
+     * @param access The stub to send the Write requests with. It should not
+     * be used by anyone else.
+     */
+    public SoapWriteBatcher(final OPCXML_DataAccessStub access) {
+        this.access = access;
+    }
+
+    /**
+     * Writes a value and waits till the server answered.
+     *
+     * @param clientItemHandle The client handle of the item.
+     * @param itemName The name/address of the item.
+     * @param value The value to write.
+     */
+    public void write(final String clientItemHandle, final String itemName,
+            final Object value) {
+        submit(clientItemHandle, itemName, value);
+    }
+
+    /**
+     * Sends one Write request and stores the result of every write.
+     *
+     * @param request The writes to send by client handle.
+     */
+    @Override
+    protected void flush(final Map<String, PendingWrite<String>> request) {
+        ItemValue[] values = new ItemValue[request.size()];
+        int i = 0;
+        for (PendingWrite<String> write : request.values()) {
+            values[i++] = SoapObjectFactory.createItemValue(
+                    write.getClientHandle(), write.getItemAddress(), write.getValue());
+        }
+        try {
+            WriteResponse response = access.write(
+                    SoapObjectFactory.createWrite(REQUEST_HANDLE, values));
+            mapErrors(request, response);
+        } catch (RemoteException e) {
+            setError(request.values(), new OPCCommunicationException(e));
+        } catch (RuntimeException e) {
+            setError(request.values(), e);
+        }
+        finally {
+            try {
+                access._getServiceClient().cleanupTransport();
+            } catch (AxisFault e) {
+                setError(request.values(), new OPCCommunicationException(e));
+            }
+        }
+    }
+
+    /**
+     * Maps the errors of a WriteResponse to the writes of the request. Errors
+     * referenced by the result of an item are assigned to this item. Other
+     * errors are assigned to all writes.
+     *
+     * @param request The writes of the request by client handle.
+     * @param response The response of the server.
+     */
+    private void mapErrors(final Map<String, PendingWrite<String>> request,
+            final WriteResponse response) {
+        OPCError[] errors = response.getErrors();
+        if (errors == null || errors.length == 0) {
+            return;
+        }
+        Map<QName, String> errorTexts = new HashMap<QName, String>();
+        for (OPCError error : errors) {
+            errorTexts.put(error.getID(), error.getText());
+        }
+        if (response.getRItemList() != null
+                && response.getRItemList().getItems() != null) {
+            for (ItemValue itemValue : response.getRItemList().getItems()) {
+                QName resultId = itemValue.getResultID();
+                PendingWrite<String> write = request.get(itemValue.getClientItemHandle());
+                if (write != null && resultId != null
+                        && resultId.getLocalPart().startsWith("E_")) {
+                    String text = errorTexts.remove(resultId);
+                    write.setError(new OPCCommunicationException("Error: "
+                            + (text != null ? text : resultId.getLocalPart())));
+                }
+            }
+        }
+        for (String text : errorTexts.values()) {
+            if (text != null && !text.equals(RATE_NOT_SUPPORTED)) {
+                setError(request.values(), new OPCCommunicationException("Error(s): " + text));
+                return;
+            }
+        }
+    }
+}
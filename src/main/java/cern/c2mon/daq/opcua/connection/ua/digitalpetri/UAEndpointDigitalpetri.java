@@ -59,9 +59,11 @@ import com.digitalpetri.opcua.stack.core.types.structured.ReadValueId;
 import cern.c2mon.daq.opcua.connection.common.AbstractOPCUAAddress;
 import cern.c2mon.daq.opcua.connection.common.IGroupProvider;
 import cern.c2mon.daq.opcua.connection.common.IItemDefinitionFactory;
+import cern.c2mon.daq.opcua.connection.common.impl.EquipmentBulkhead;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCCommunicationException;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCCriticalException;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCEndpoint;
+import cern.c2mon.daq.opcua.connection.common.impl.StatusQualityTable;
 import cern.c2mon.daq.opcua.connection.common.impl.SubscriptionGroup;
 
 /**
@@ -83,10 +85,35 @@ public class UAEndpointDigitalpetri extends OPCEndpoint<UAItemDefintionDigitalpe
   private Map<SubscriptionGroup<UAItemDefintionDigitalpetri>, UaSubscription> subscrMap = new HashMap<>();
 
   /**
-   * An executor service which serves as ThreadPool.
+   * An executor service which serves as ThreadPool. It is shared by the
+   * endpoints of all equipments.
    */
   private static final ExecutorService EXECUTOR_SERVICE = Executors.newCachedThreadPool();
 
+  /**
+   * Maximum number of pool threads processing the notifications of this
+   * endpoint at the same time.
+   */
+  private static final int MAX_CONCURRENT_NOTIFICATIONS = 4;
+
+  /**
+   * Maximum number of queued notifications of this endpoint.
+   */
+  private static final int MAX_QUEUED_NOTIFICATIONS = 10000;
+
+  /**
+   * Maximum time in milliseconds the SDK thread waits for a free place in
+   * the queue before a notification is dropped.
+   */
+  private static final long MAX_NOTIFICATION_BLOCK_TIME = 1000L;
+
+  /**
+   * Limits the share of this endpoint of the shared pool. The
+   * notifications of one item are processed in order.
+   */
+  private final EquipmentBulkhead notificationBulkhead = new EquipmentBulkhead(EXECUTOR_SERVICE,
+      MAX_CONCURRENT_NOTIFICATIONS, MAX_QUEUED_NOTIFICATIONS, MAX_NOTIFICATION_BLOCK_TIME);
+
   private static final String PRODUCT_URI = "urn:cern.ch:UA:C2MON";
 
   private static final String APPLICATION_URI = "urn:localhost:UA:C2MON";
@@ -115,6 +142,11 @@ public class UAEndpointDigitalpetri extends OPCEndpoint<UAItemDefintionDigitalpe
    */
   private Map<UInteger, UAItemDefintionDigitalpetri> definitionMap = new HashMap<>();
 
+  /**
+   * The exceptions of the bad status codes received so far.
+   */
+  private final StatusQualityTable badStatusCodes = new StatusQualityTable();
+
   SessionActivityListener opcUasessionActivityListener = new SessionActivityListener() {
   };
 
@@ -219,6 +251,17 @@ public class UAEndpointDigitalpetri extends OPCEndpoint<UAItemDefintionDigitalpe
     }
   }
 
+  /**
+   * Returns the bulkhead which limits the share of this endpoint of the
+   * pool shared by all equipments. It records the dropped notifications
+   * and the time the notifications waited.
+   *
+   * @return The notification bulkhead.
+   */
+  public EquipmentBulkhead getNotificationBulkhead() {
+    return notificationBulkhead;
+  }
+
   /**
    * Notifies endpoints about a changed monitored item.
    *
@@ -228,7 +271,7 @@ public class UAEndpointDigitalpetri extends OPCEndpoint<UAItemDefintionDigitalpe
    *          The new value of the item.
    */
   private void notifyEndpointsAboutMonitoredItemChange(final UaMonitoredItem item, final DataValue value) {
-    EXECUTOR_SERVICE.execute(new Runnable() {
+    notificationBulkhead.execute(item.getClientHandle(), new Runnable() {
       @Override
       public void run() {
         long itemdefinitionId = definitionMap.get(item.getClientHandle()).getId();
@@ -333,8 +376,13 @@ public class UAEndpointDigitalpetri extends OPCEndpoint<UAItemDefintionDigitalpe
 
   private boolean checkError(long itemdefintionId, DataValue value) {
     boolean error = false;
-    if (value.getStatusCode().getValue() != 0) {
-      notifyEndpointListenersItemError(itemdefintionId, new OPCCommunicationException(value.getStatusCode().toString()));
+    int statusCode = (int) value.getStatusCode().getValue();
+    if (statusCode != 0) {
+      OPCCommunicationException exception = badStatusCodes.get(statusCode);
+      if (exception == null) {
+        exception = badStatusCodes.put(statusCode, new OPCCommunicationException(value.getStatusCode().toString()));
+      }
+      notifyEndpointListenersItemError(itemdefintionId, exception);
       error = true;
     }
     return error;
@@ -28,6 +28,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -67,9 +69,12 @@ import com.prosysopc.ua.client.UaClient;
 import cern.c2mon.daq.opcua.connection.common.AbstractOPCUAAddress;
 import cern.c2mon.daq.opcua.connection.common.IGroupProvider;
 import cern.c2mon.daq.opcua.connection.common.IItemDefinitionFactory;
+import cern.c2mon.daq.opcua.connection.common.impl.EquipmentBulkhead;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCCommunicationException;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCCriticalException;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCEndpoint;
+import cern.c2mon.daq.opcua.connection.common.impl.RedundantAddressArbiter;
+import cern.c2mon.daq.opcua.connection.common.impl.StatusQualityTable;
 import cern.c2mon.daq.opcua.connection.common.impl.SubscriptionGroup;
 import cern.c2mon.daq.opcua.connection.ua.UAItemDefintion;
 
@@ -92,10 +97,35 @@ public class UAEndpointProsys extends OPCEndpoint<UAItemDefintion> implements Ce
   private Map<SubscriptionGroup<UAItemDefintion>, Subscription> subscrMap = new HashMap<SubscriptionGroup<UAItemDefintion>, Subscription>();
 
   /**
-   * An executor service which serves as ThreadPool.
+   * An executor service which serves as ThreadPool. It is shared by the
+   * endpoints of all equipments.
    */
   private static final ExecutorService EXECUTOR_SERVICE = Executors.newCachedThreadPool();
 
+  /**
+   * Maximum number of pool threads processing the notifications of this
+   * endpoint at the same time.
+   */
+  private static final int MAX_CONCURRENT_NOTIFICATIONS = 4;
+
+  /**
+   * Maximum number of queued notifications of this endpoint.
+   */
+  private static final int MAX_QUEUED_NOTIFICATIONS = 10000;
+
+  /**
+   * Maximum time in milliseconds the SDK thread waits for a free place in
+   * the queue before a notification is dropped.
+   */
+  private static final long MAX_NOTIFICATION_BLOCK_TIME = 1000L;
+
+  /**
+   * Limits the share of this endpoint of the shared pool. The
+   * notifications of one item are processed in order.
+   */
+  private final EquipmentBulkhead notificationBulkhead = new EquipmentBulkhead(EXECUTOR_SERVICE,
+      MAX_CONCURRENT_NOTIFICATIONS, MAX_QUEUED_NOTIFICATIONS, MAX_NOTIFICATION_BLOCK_TIME);
+
   // TODO should be in configuration file.
   private static final String PRIVATE_KEY_PASSWORD = "password";
 
@@ -124,9 +154,22 @@ public class UAEndpointProsys extends OPCEndpoint<UAItemDefintion> implements Ce
   private UaClient client;
 
   /**
-   * Mapping between MonitoredItem ids and UAItemDefinitions.
+   * Mapping between MonitoredItem ids and UAItemDefinitions. Read by the
+   * notification threads of the pool.
+   */
+  private final Map<UnsignedInteger, UAItemDefintion> definitionMap =
+      new ConcurrentHashMap<UnsignedInteger, UAItemDefintion>();
+
+  /**
+   * The ids of the MonitoredItems of redundant addresses. Read by the
+   * notification threads of the pool.
    */
-  private Map<UnsignedInteger, UAItemDefintion> definitionMap = new HashMap<UnsignedInteger, UAItemDefintion>();
+  private final Set<UnsignedInteger> redundantItemIds = ConcurrentHashMap.newKeySet();
+
+  /**
+   * The exceptions of the bad status codes received so far.
+   */
+  private final StatusQualityTable badStatusCodes = new StatusQualityTable();
 
   /**
    * Creates a new OPC UA endpoint.
@@ -273,11 +316,12 @@ public class UAEndpointProsys extends OPCEndpoint<UAItemDefintion> implements Ce
   private void processDefinition(final Subscription subscription, final float valueDeadband, final int timeDeadband, final UAItemDefintion definition)
       throws ServiceException, StatusException {
     MonitoredItem item = UAObjectFactory.createMonitoredItem(definition.getAddress(), valueDeadband, timeDeadband);
-    addToSubscription(subscription, definition, item);
-    // System.out.println(definition.getAddress());
+    addToSubscription(subscription, definition, item, false);
     if (definition.hasRedundantAddress()) {
-      MonitoredItem redundantItem = UAObjectFactory.createMonitoredItem(definition.getAddress(), valueDeadband, timeDeadband);
-      addToSubscription(subscription, definition, redundantItem);
+      // the redundant address is only a standby, sample it slowly
+      MonitoredItem redundantItem = UAObjectFactory.createMonitoredItem(definition.getRedundantAddress(), valueDeadband,
+          RedundantAddressArbiter.getSecondarySamplingRate(timeDeadband));
+      addToSubscription(subscription, definition, redundantItem, true);
     }
   }
 
@@ -288,13 +332,17 @@ public class UAEndpointProsys extends OPCEndpoint<UAItemDefintion> implements Ce
    * @param subscription The subscription to add to.
    * @param definition The item definition.
    * @param item The item to add to the subscription.
+   * @param redundant True if the item is for the redundant address.
    * @throws ServiceException May throw a service exception.
    * @throws StatusException May throw a status exception.
    */
-  private void addToSubscription(final Subscription subscription, final UAItemDefintion definition, final MonitoredItem item)
-      throws ServiceException, StatusException {
+  private void addToSubscription(final Subscription subscription, final UAItemDefintion definition, final MonitoredItem item,
+      final boolean redundant) throws ServiceException, StatusException {
     UnsignedInteger itemId = item.getClientHandle();
     definitionMap.put(itemId, definition);
+    if (redundant) {
+      redundantItemIds.add(itemId);
+    }
     subscription.addItem(item);
     definition.setSubscribed(true);
   }
@@ -322,6 +370,17 @@ public class UAEndpointProsys extends OPCEndpoint<UAItemDefintion> implements Ce
     });
   }
 
+  /**
+   * Returns the bulkhead which limits the share of this endpoint of the
+   * pool shared by all equipments. It records the dropped notifications
+   * and the time the notifications waited.
+   *
+   * @return The notification bulkhead.
+   */
+  public EquipmentBulkhead getNotificationBulkhead() {
+    return notificationBulkhead;
+  }
+
   /**
    * Notifies endpoints about a changed monitored item.
    *
@@ -329,12 +388,14 @@ public class UAEndpointProsys extends OPCEndpoint<UAItemDefintion> implements Ce
    * @param value The new value of the item.
    */
   private void notifyEndpointsAboutMonitoredItemChange(final MonitoredItem item, final DataValue value) {
-    EXECUTOR_SERVICE.execute(new Runnable() {
+    notificationBulkhead.execute(item.getClientHandle(), new Runnable() {
       @Override
       public void run() {
         long itemdefintionId = definitionMap.get(item.getClientHandle()).getId();
-        if (!checkError(itemdefintionId, value)) {
-          notifyEndpointListenersValueChange(itemdefintionId, value.getSourceTimestamp().getTimeInMillis(), value.getValue().getValue());
+        boolean redundant = redundantItemIds.contains(item.getClientHandle());
+        if (!checkError(itemdefintionId, redundant, value)) {
+          notifyEndpointListenersValueChange(itemdefintionId, redundant, value.getSourceTimestamp().getTimeInMillis(),
+              value.getValue().getValue());
         }
       }
     });
@@ -348,7 +409,7 @@ public class UAEndpointProsys extends OPCEndpoint<UAItemDefintion> implements Ce
    */
   private void notifyEndpointsAboutMonitoredItemError(final MonitoredItemNotification item, final Throwable exception) {
     long itemdefintionId = definitionMap.get(item.getClientHandle()).getId();
-    notifyEndpointListenersItemError(itemdefintionId, exception);
+    notifyEndpointListenersItemError(itemdefintionId, redundantItemIds.contains(item.getClientHandle()), exception);
   }
 
   /**
@@ -399,8 +460,11 @@ public class UAEndpointProsys extends OPCEndpoint<UAItemDefintion> implements Ce
       NodeId[] nodeIdArray = items.toArray(new NodeId[items.size()]);
       try {
         DataValue[] values = client.readValues(nodeIdArray, TimestampsToReturn.Both);
-        for (DataValue value : values) {
-          if (!checkError(definition.getId(), value)) {
+        for (int i = 0; i < values.length; i++) {
+          DataValue value = values[i];
+          // the second value is the one of the redundant address
+          boolean redundant = i > 0;
+          if (!checkError(definition.getId(), redundant, value)) {
             DateTime timestamp = value.getSourceTimestamp();
             if (timestamp == null) {
               timestamp = value.getServerTimestamp();
@@ -409,7 +473,7 @@ public class UAEndpointProsys extends OPCEndpoint<UAItemDefintion> implements Ce
               }
             }
             long timeInMillis = timestamp.getTimeInMillis();
-            notifyEndpointListenersValueChange(definition.getId(), timeInMillis, value.getValue().getValue());
+            notifyEndpointListenersValueChange(definition.getId(), redundant, timeInMillis, value.getValue().getValue());
           }
         }
       }
@@ -419,10 +483,15 @@ public class UAEndpointProsys extends OPCEndpoint<UAItemDefintion> implements Ce
     }
   }
 
-  private boolean checkError(long itemdefintionId, DataValue value) {
+  private boolean checkError(long itemdefintionId, boolean redundant, DataValue value) {
     boolean error = false;
-    if (value.getStatusCode().getValue().intValue() != 0) {
-      notifyEndpointListenersItemError(itemdefintionId, new OPCCommunicationException(value.getStatusCode().toString()));
+    int statusCode = value.getStatusCode().getValue().intValue();
+    if (statusCode != 0) {
+      OPCCommunicationException exception = badStatusCodes.get(statusCode);
+      if (exception == null) {
+        exception = badStatusCodes.put(statusCode, new OPCCommunicationException(value.getStatusCode().toString()));
+      }
+      notifyEndpointListenersItemError(itemdefintionId, redundant, exception);
       error = true;
     }
     return error;
@@ -481,6 +550,7 @@ public class UAEndpointProsys extends OPCEndpoint<UAItemDefintion> implements Ce
   protected void onStop() {
     client.disconnect();
     definitionMap.clear();
+    redundantItemIds.clear();
     client = null;
   }
 
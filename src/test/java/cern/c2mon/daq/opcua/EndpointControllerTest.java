@@ -35,6 +35,7 @@ import cern.c2mon.daq.opcua.connection.common.IOPCEndpoint.STATE;
 import cern.c2mon.daq.opcua.connection.common.IOPCEndpointFactory;
 import cern.c2mon.daq.opcua.connection.common.impl.EndpointControllerDefault;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCUADefaultAddress;
+import cern.c2mon.daq.opcua.connection.common.impl.TagValueRingBuffer;
 import cern.c2mon.shared.common.ConfigurationException;
 import cern.c2mon.shared.common.command.ISourceCommandTag;
 import cern.c2mon.shared.common.command.SourceCommandTag;
@@ -53,6 +54,7 @@ import cern.c2mon.shared.daq.config.ChangeReport.CHANGE_STATE;
 import static org.easymock.EasyMock.*;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 public class EndpointControllerTest {
 
@@ -115,6 +117,32 @@ public class EndpointControllerTest {
 
   @Test
   public void testStart() throws URISyntaxException {
+    expect(factory.createEndpoint(opcAddress)).andReturn(endpoint);
+    expect(conf.getSourceDataTags()).andReturn(sourceDataTags).anyTimes();
+    expect(conf.getSourceCommandTags()).andReturn(sourceCommandTags).anyTimes();
+    expect(conf.getAliveTagId()).andReturn(1L);
+    expect(conf.getSourceDataTag(1L)).andReturn(null);
+    endpoint.initialize(opcAddress);
+    endpoint.addDataTags(sourceDataTags.values());
+    endpoint.addCommandTags(sourceCommandTags.values());
+    endpoint.registerEndpointListener(isA(TagValueRingBuffer.class));
+    endpoint.registerEndpointListener(
+            isA(EndpointEquipmentLogListener.class));
+    endpoint.setStateOperational();
+
+    replay(factory, endpoint, conf);
+    controller.startEndpoint();
+    verify(factory, endpoint, conf);
+    assertNotNull(controller.getRingBuffer());
+  }
+
+  @Test
+  public void testStartWithoutHandoff() throws URISyntaxException {
+    opcAddress = (OPCUADefaultAddress) new OPCUADefaultAddress.DefaultBuilder(
+            "test://somhost/somepath", 1000, 1000)
+            .handoffCapacity(0)
+            .build();
+    addresses.set(0, opcAddress);
     expect(factory.createEndpoint(opcAddress)).andReturn(endpoint);
     expect(conf.getSourceDataTags()).andReturn(sourceDataTags).anyTimes();
     expect(conf.getSourceCommandTags()).andReturn(sourceCommandTags).anyTimes();
@@ -131,6 +159,7 @@ public class EndpointControllerTest {
     replay(factory, endpoint, conf);
     controller.startEndpoint();
     verify(factory, endpoint, conf);
+    assertNull(controller.getRingBuffer());
   }
 
   @Test(expected = EndpointTypesUnknownException.class)
@@ -280,7 +309,7 @@ public class EndpointControllerTest {
     SourceCommandTagValue sourceCommandTagValue = new SourceCommandTagValue();
 
     expect(endpoint.getState()).andReturn(STATE.INITIALIZED);
-    endpoint.executeCommand(hardwareAddress, sourceCommandTagValue);
+    expect(endpoint.executeCommand(hardwareAddress, sourceCommandTagValue)).andReturn(null);
 
 //        endpoint.checkConnection();
 //        expectLastCall().anyTimes();
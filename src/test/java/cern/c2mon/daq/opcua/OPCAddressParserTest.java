@@ -28,6 +28,7 @@ import org.junit.Test;
 import cern.c2mon.daq.opcua.connection.common.AbstractOPCUAAddressParser.AddressKeys;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCUADefaultAddress;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCUADefaultAddressParser;
+import cern.c2mon.shared.common.datatag.DataTagAddress;
 
 public class OPCAddressParserTest {
 
@@ -51,6 +52,15 @@ public class OPCAddressParserTest {
         assertEquals("dcom://testhost:1234/testpath", address.getUriString());
         assertEquals("user", address.getUser());
         assertEquals(true, address.isAliveWriterEnabled());
+        assertEquals(OPCUADefaultAddress.DEFAULT_FRAGMENTATION_THRESHOLD,
+                address.getFragmentationThreshold());
+        assertEquals(OPCUADefaultAddress.DEFAULT_MIN_HOLD_TIME, address.getMinHoldTime());
+        assertEquals(OPCUADefaultAddress.DEFAULT_MAX_HOLD_TIME, address.getMaxHoldTime());
+        assertEquals(false, address.isNioTransport());
+        assertEquals(OPCUADefaultAddress.DEFAULT_REFRESH_SOURCE, address.getRefreshSource());
+        assertEquals(false, address.isConflation());
+        assertEquals(OPCUADefaultAddress.DEFAULT_HANDOFF_CAPACITY, address.getHandoffCapacity());
+        assertEquals(DataTagAddress.PRIORITY_MEDIUM, address.getHighPriority());
     }
 
     @Test
@@ -59,7 +69,14 @@ public class OPCAddressParserTest {
             + "http://testhost2:1234/testpath2;" + AddressKeys.user + "=user@domain,user2;"
             + AddressKeys.password + "=password, password2;"
             + AddressKeys.serverTimeout + "=314;" + AddressKeys.serverRetryTimeout + "=1337;"
-            + AddressKeys.aliveWriter + "=false";
+            + AddressKeys.aliveWriter + "=false;"
+            + AddressKeys.fragmentationThreshold + "=3;"
+            + AddressKeys.minHoldTime + "=100;" + AddressKeys.maxHoldTime + "=2000;"
+            + AddressKeys.nioTransport + "=true;"
+            + AddressKeys.refreshSource + "=device;"
+            + AddressKeys.conflation + "=true;"
+            + AddressKeys.handoffCapacity + "=2048;"
+            + AddressKeys.highPriority + "=7";
         List<OPCUADefaultAddress> addresses =
             parser.createOPCAddressFromAddressString(addressString);
         assertEquals(2, addresses.size());
@@ -84,6 +101,14 @@ public class OPCAddressParserTest {
         assertEquals("http://testhost2:1234/testpath2", address.getUriString());
         assertEquals("user2", address.getUser());
         assertEquals(false, address.isAliveWriterEnabled());
+        assertEquals(3, address.getFragmentationThreshold());
+        assertEquals(100, address.getMinHoldTime());
+        assertEquals(2000, address.getMaxHoldTime());
+        assertEquals(true, address.isNioTransport());
+        assertEquals("device", address.getRefreshSource());
+        assertEquals(true, address.isConflation());
+        assertEquals(2048, address.getHandoffCapacity());
+        assertEquals(7, address.getHighPriority());
     }
 
     @Test(expected=Exception.class)
@@ -0,0 +1,159 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import cern.c2mon.daq.opcua.connection.common.impl.OPCCommunicationException;
+
+public class AbstractWriteBatcherTest {
+
+    private final CountDownLatch firstRequestStarted = new CountDownLatch(1);
+
+    private final CountDownLatch releaseFirstRequest = new CountDownLatch(1);
+
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+    private final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+    private final TestBatcher batcher = new TestBatcher();
+
+    @After
+    public void tearDown() {
+        releaseFirstRequest.countDown();
+    }
+
+    @Test
+    public void testSingleWrite() {
+        releaseFirstRequest.countDown();
+        batcher.write(1, "a", 1);
+        assertEquals("[1=1]", requests.toString());
+    }
+
+    @Test
+    public void testRepeatedItemIsNotCoalesced() throws InterruptedException {
+        Thread first = startWrite(1, "a", 1);
+        assertTrue(firstRequestStarted.await(1, TimeUnit.SECONDS));
+        // queued while the first request is in flight
+        Thread second = startQueuedWrite(1, "a", 2);
+        Thread third = startQueuedWrite(1, "a", 3);
+        Thread fourth = startQueuedWrite(2, "b", 4);
+        releaseFirstRequest.countDown();
+        join(first, second, third, fourth);
+
+        assertEquals("[1=1, 1=2, 1=3 2=4]", requests.toString());
+        assertEquals(0, errors.size());
+    }
+
+    @Test
+    public void testErrorOnlyForFailedWrite() throws InterruptedException {
+        Thread first = startWrite(1, "a", 1);
+        assertTrue(firstRequestStarted.await(1, TimeUnit.SECONDS));
+        Thread failing = startQueuedWrite(2, "fail", 2);
+        Thread ok = startQueuedWrite(3, "c", 3);
+        releaseFirstRequest.countDown();
+        join(first, failing, ok);
+
+        assertEquals("[1=1, 2=2 3=3]", requests.toString());
+        assertEquals(1, errors.size());
+        assertSame(OPCCommunicationException.class, errors.get(0).getClass());
+    }
+
+    private Thread startWrite(final int clientHandle, final String itemAddress,
+            final int value) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    batcher.write(clientHandle, itemAddress, value);
+                } catch (RuntimeException e) {
+                    errors.add(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Starts a write and returns once it waits for the request in flight,
+     * so the writes are queued in a fixed order.
+     */
+    private Thread startQueuedWrite(final int clientHandle, final String itemAddress,
+            final int value) throws InterruptedException {
+        Thread thread = startWrite(clientHandle, itemAddress, value);
+        long deadline = System.currentTimeMillis() + 1000;
+        while (thread.getState() != Thread.State.WAITING) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Write was not queued.");
+            }
+            Thread.sleep(1);
+        }
+        return thread;
+    }
+
+    private static void join(final Thread... threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join(1000);
+            assertTrue(!thread.isAlive());
+        }
+    }
+
+    private class TestBatcher extends AbstractWriteBatcher<Integer> {
+
+        public void write(final int clientHandle, final String itemAddress,
+                final Object value) {
+            submit(clientHandle, itemAddress, value);
+        }
+
+        @Override
+        protected void flush(final Map<Integer, PendingWrite<Integer>> request) {
+            StringBuilder builder = new StringBuilder();
+            for (PendingWrite<Integer> write : request.values()) {
+                if (builder.length() > 0) {
+                    builder.append(' ');
+                }
+                builder.append(write.getClientHandle()).append('=').append(write.getValue());
+                if (write.getItemAddress().equals("fail")) {
+                    write.setError(new OPCCommunicationException("Write failed."));
+                }
+            }
+            requests.add(builder.toString());
+            if (firstRequestStarted.getCount() > 0) {
+                firstRequestStarted.countDown();
+                try {
+                    releaseFirstRequest.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
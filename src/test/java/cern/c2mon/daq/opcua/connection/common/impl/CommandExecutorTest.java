@@ -0,0 +1,204 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class CommandExecutorTest {
+
+    private CommandExecutor executor = new CommandExecutor(2, 3, 500L);
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testDifferentItemsRunConcurrently() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread blocked = executeInThread("item1", 1L, new Runnable() {
+            @Override
+            public void run() {
+                await(release);
+            }
+        });
+        executor.execute("item2", 2L, new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        release.countDown();
+        blocked.join(1000L);
+        assertEquals(1L, executor.getStatistics().get(2L).getCount());
+    }
+
+    @Test
+    public void testSameItemRunsInOrder() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        Thread first = executeInThread("item1", 1L, new Runnable() {
+            @Override
+            public void run() {
+                running.incrementAndGet();
+                await(release);
+                running.decrementAndGet();
+            }
+        });
+        while (running.get() == 0) {
+            Thread.sleep(1L);
+        }
+        Thread second = executeInThread("item1", 2L, new Runnable() {
+            @Override
+            public void run() {
+                assertEquals(0, running.get());
+            }
+        });
+        Thread.sleep(50L);
+        assertEquals(2, executor.getQueuedCommands());
+        release.countDown();
+        first.join(1000L);
+        second.join(1000L);
+        for (int i = 0; i < 1000 && executor.getQueuedCommands() > 0; i++) {
+            Thread.sleep(1L);
+        }
+        assertEquals(0, executor.getQueuedCommands());
+        assertEquals(1L, executor.getStatistics().get(2L).getCount());
+    }
+
+    @Test
+    public void testTimeout() {
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            executor.execute("item1", 1L, new Runnable() {
+                @Override
+                public void run() {
+                    await(release);
+                }
+            });
+            fail("Timeout expected");
+        } catch (OPCCommunicationException e) {
+            assertTrue(e.getMessage().contains("outcome is unknown"));
+        }
+        release.countDown();
+    }
+
+    @Test
+    public void testTimeoutBeforeStart() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean ran = new AtomicBoolean();
+        Thread blocked = executeInThread("item1", 1L, new Runnable() {
+            @Override
+            public void run() {
+                await(release);
+            }
+        });
+        while (executor.getQueuedCommands() == 0) {
+            Thread.sleep(1L);
+        }
+        try {
+            executor.execute("item1", 2L, new Runnable() {
+                @Override
+                public void run() {
+                    ran.set(true);
+                }
+            });
+            fail("Timeout expected");
+        } catch (OPCCommunicationException e) {
+            assertTrue(e.getMessage().contains("not sent"));
+        }
+        release.countDown();
+        blocked.join(1000L);
+        for (int i = 0; i < 1000 && executor.getQueuedCommands() > 0; i++) {
+            Thread.sleep(1L);
+        }
+        assertFalse(ran.get());
+    }
+
+    @Test
+    public void testQueueFull() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                await(release);
+            }
+        };
+        Thread[] threads = {
+            executeInThread("item1", 1L, blocking),
+            executeInThread("item1", 1L, blocking),
+            executeInThread("item1", 1L, blocking)
+        };
+        while (executor.getQueuedCommands() < 3) {
+            Thread.sleep(1L);
+        }
+        try {
+            executor.execute("item2", 2L, blocking);
+            fail("Rejection expected");
+        } catch (OPCCommunicationException e) {
+            assertTrue(e.getMessage().contains("queue full"));
+        }
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(1000L);
+        }
+    }
+
+    @Test(expected = OPCCriticalException.class)
+    public void testCommandException() {
+        executor.execute("item1", 1L, new Runnable() {
+            @Override
+            public void run() {
+                throw new OPCCriticalException("test");
+            }
+        });
+    }
+
+    private Thread executeInThread(final Object item, final long commandTagId,
+            final Runnable command) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    executor.execute(item, commandTagId, command);
+                } catch (RuntimeException e) {
+                    // timeouts of blocked commands are not checked here
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
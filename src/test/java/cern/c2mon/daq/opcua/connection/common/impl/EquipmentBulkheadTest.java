@@ -0,0 +1,277 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class EquipmentBulkheadTest {
+
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        pool.shutdown();
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws InterruptedException {
+        EquipmentBulkhead bulkhead = new EquipmentBulkhead(pool, 2, 100, 1000);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(50);
+        for (int i = 0; i < 50; i++) {
+            bulkhead.execute(i, new Runnable() {
+                @Override
+                public void run() {
+                    int current = running.incrementAndGet();
+                    maxRunning.set(Math.max(maxRunning.get(), current));
+                    sleep(1);
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(maxRunning.get() <= 2);
+        assertEquals(50, bulkhead.getExecutedCount());
+        assertEquals(0, bulkhead.getDroppedCount());
+        assertTrue(bulkhead.getMaxWait() > 0.0);
+    }
+
+    @Test
+    public void testSameKeyKeepsOrder() throws InterruptedException {
+        EquipmentBulkhead bulkhead = new EquipmentBulkhead(pool, 4, 10000, 1000);
+        final int keys = 3;
+        final int tasksPerKey = 500;
+        final CountDownLatch done = new CountDownLatch(keys * tasksPerKey);
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        final List<List<Integer>> results = new ArrayList<List<Integer>>();
+        final List<AtomicInteger> running = new ArrayList<AtomicInteger>();
+        for (int key = 0; key < keys; key++) {
+            results.add(Collections.synchronizedList(new ArrayList<Integer>()));
+            running.add(new AtomicInteger());
+        }
+        for (int i = 0; i < tasksPerKey; i++) {
+            for (int key = 0; key < keys; key++) {
+                final List<Integer> result = results.get(key);
+                final AtomicInteger keyRunning = running.get(key);
+                final int value = i;
+                bulkhead.execute(key, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (keyRunning.incrementAndGet() > 1) {
+                            overlapped.set(true);
+                        }
+                        result.add(value);
+                        keyRunning.decrementAndGet();
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertFalse(overlapped.get());
+        for (List<Integer> result : results) {
+            assertEquals(tasksPerKey, result.size());
+            for (int i = 0; i < tasksPerKey; i++) {
+                assertEquals(Integer.valueOf(i), result.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testFullQueueDropsAfterBlockTime() throws InterruptedException {
+        EquipmentBulkhead bulkhead = new EquipmentBulkhead(pool, 1, 2, 50);
+        final CountDownLatch done = new CountDownLatch(3);
+        Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                await();
+                done.countDown();
+            }
+        };
+        fillQueue(bulkhead, blocking);
+
+        final AtomicBoolean ran = new AtomicBoolean();
+        assertFalse(bulkhead.execute("item", new Runnable() {
+            @Override
+            public void run() {
+                ran.set(true);
+            }
+        }));
+        assertEquals(1, bulkhead.getDroppedCount());
+        assertTrue(bulkhead.getTotalBlockTime() >= 40.0);
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+        assertEquals(3, bulkhead.getExecutedCount());
+    }
+
+    @Test
+    public void testFullQueueBlocksCaller() throws InterruptedException {
+        final EquipmentBulkhead bulkhead = new EquipmentBulkhead(pool, 1, 2, 10000);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                await();
+                order.add("queued");
+            }
+        };
+        fillQueue(bulkhead, blocking);
+
+        final CountDownLatch lastDone = new CountDownLatch(1);
+        final CountDownLatch submitted = new CountDownLatch(1);
+        Thread caller = new Thread() {
+            @Override
+            public void run() {
+                bulkhead.execute("item", new Runnable() {
+                    @Override
+                    public void run() {
+                        order.add("last");
+                        lastDone.countDown();
+                    }
+                });
+                submitted.countDown();
+            }
+        };
+        caller.start();
+        // the caller waits for a free place instead of running its task
+        assertFalse(submitted.await(100, TimeUnit.MILLISECONDS));
+        assertTrue(order.isEmpty());
+
+        release.countDown();
+        assertTrue(submitted.await(10, TimeUnit.SECONDS));
+        assertTrue(lastDone.await(10, TimeUnit.SECONDS));
+        assertEquals(4, order.size());
+        assertEquals("last", order.get(3));
+        assertEquals(0, bulkhead.getDroppedCount());
+    }
+
+    @Test
+    public void testFullQueueRejectsWithoutWaiting() throws InterruptedException {
+        EquipmentBulkhead bulkhead = new EquipmentBulkhead(pool, 1, 2, 10000);
+        final CountDownLatch done = new CountDownLatch(3);
+        Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                await();
+                done.countDown();
+            }
+        };
+        fillQueue(bulkhead, blocking);
+
+        final AtomicBoolean ran = new AtomicBoolean();
+        long start = System.nanoTime();
+        assertFalse(bulkhead.tryExecute("item", new Runnable() {
+            @Override
+            public void run() {
+                ran.set(true);
+            }
+        }));
+        // the block time of 10 s does not apply
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(1, bulkhead.getRejectedCount());
+        assertEquals(0, bulkhead.getDroppedCount());
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+        assertTrue(bulkhead.tryExecute("item", new Runnable() {
+            @Override
+            public void run() {
+                ran.set(true);
+            }
+        }));
+    }
+
+    @Test
+    public void testOtherEquipmentNotBlocked() throws InterruptedException {
+        EquipmentBulkhead busy = new EquipmentBulkhead(pool, 1, 100, 1000);
+        EquipmentBulkhead other = new EquipmentBulkhead(pool, 1, 100, 1000);
+        for (int i = 0; i < 10; i++) {
+            busy.execute(i, new Runnable() {
+                @Override
+                public void run() {
+                    await();
+                }
+            });
+        }
+        final CountDownLatch otherDone = new CountDownLatch(1);
+        other.execute("item", new Runnable() {
+            @Override
+            public void run() {
+                otherDone.countDown();
+            }
+        });
+        assertTrue(otherDone.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 1000 && busy.getQueuedCount() > 9; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(9, busy.getQueuedCount());
+    }
+
+    /**
+     * Blocks the only thread of the bulkhead with one task and fills the
+     * queue of two places with two more.
+     */
+    private void fillQueue(final EquipmentBulkhead bulkhead, final Runnable blocking)
+            throws InterruptedException {
+        bulkhead.execute("item", blocking);
+        for (int i = 0; i < 1000 && bulkhead.getQueuedCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        bulkhead.execute("item", blocking);
+        bulkhead.execute("item", blocking);
+        assertEquals(2, bulkhead.getQueuedCount());
+    }
+
+    private void await() {
+        try {
+            release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
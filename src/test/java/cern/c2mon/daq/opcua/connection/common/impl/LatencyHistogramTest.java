@@ -0,0 +1,53 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    @Test
+    public void testBuckets() {
+        histogram.record(500L);
+        histogram.record(1000L);
+        histogram.record(3000L);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(1, histogram.getCount(0));
+        assertEquals(1, histogram.getCount(1));
+        assertEquals(1, histogram.getCount(2));
+        assertEquals(1, histogram.getCount(LatencyHistogram.BUCKETS - 1));
+        assertEquals(4, histogram.getCount());
+    }
+
+    @Test
+    public void testPercentile() {
+        assertEquals(0L, histogram.getPercentile(99.0));
+        for (int i = 0; i < 99; i++) {
+            histogram.record(10000L);
+        }
+        histogram.record(5000000L);
+        // 10 microseconds are in the bucket up to 16 microseconds
+        assertEquals(16L, histogram.getPercentile(50.0));
+        assertEquals(16L, histogram.getPercentile(99.0));
+        // 5 milliseconds are in the bucket up to 8192 microseconds
+        assertEquals(8192L, histogram.getPercentile(100.0));
+    }
+}
@@ -0,0 +1,381 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import cern.c2mon.daq.opcua.connection.common.AbstractOPCUAAddress;
+import cern.c2mon.daq.opcua.connection.common.IGroupProvider;
+import cern.c2mon.daq.opcua.connection.common.IItemDefinitionFactory;
+import cern.c2mon.daq.opcua.connection.common.IOPCEndpoint.STATE;
+import cern.c2mon.shared.common.datatag.ISourceDataTag;
+import cern.c2mon.shared.common.datatag.address.HardwareAddress;
+import cern.c2mon.shared.common.datatag.address.impl.OPCHardwareAddressImpl;
+
+/**
+ * Tests for the locking model of the OPCEndpoint. Structural changes must
+ * never overlap with each other or with data path calls, data path calls
+ * must not wait for each other and the state must be readable while a
+ * structural change runs.
+ * <p>
+ * The interleavings are forced with latches: a call is held inside the
+ * endpoint and the competing call is checked while its thread waits for
+ * the lock. The tests check the lock model only; they do not replace a
+ * stress harness like jcstress for the memory effects.
+ */
+public class OPCEndpointConcurrencyTest {
+
+    private TestEndpoint endpoint;
+
+    private OPCHardwareAddressImpl hardwareAddress;
+
+    private AbstractOPCUAAddress address;
+
+    @Before
+    public void setUp() throws Exception {
+        endpoint = new TestEndpoint();
+        hardwareAddress = new OPCHardwareAddressImpl("asd");
+        address = new OPCUADefaultAddress.DefaultBuilder("http://host/path",
+                100, 1000).build();
+        endpoint.initialize(address);
+        endpoint.setStateOperational();
+    }
+
+    @Test
+    public void testSlowRefreshDoesNotBlockDataPath() throws InterruptedException {
+        endpoint.blockRefresh = new CountDownLatch(1);
+        Thread refresh = new Thread() {
+            @Override
+            public void run() {
+                endpoint.refreshDataTags(new ArrayList<ISourceDataTag>());
+            }
+        };
+        refresh.start();
+        assertTrue(endpoint.refreshStarted.await(5, TimeUnit.SECONDS));
+        endpoint.write(hardwareAddress, true);
+        endpoint.checkConnection();
+        assertEquals(STATE.OPERATIONAL, endpoint.getState());
+        assertEquals(1, endpoint.writes.get());
+        endpoint.blockRefresh.countDown();
+        refresh.join(5000L);
+    }
+
+    @Test
+    public void testStateReadableDuringStructuralChange() throws InterruptedException {
+        endpoint.blockSubscribe = new CountDownLatch(1);
+        Thread subscribe = new Thread() {
+            @Override
+            public void run() {
+                endpoint.addDataTags(new ArrayList<ISourceDataTag>());
+            }
+        };
+        // addDataTags requires the initialized state
+        endpoint.reset();
+        endpoint.initialize(address);
+        subscribe.start();
+        assertTrue(endpoint.subscribeStarted.await(5, TimeUnit.SECONDS));
+        assertEquals(STATE.INITIALIZED, endpoint.getState());
+        endpoint.blockSubscribe.countDown();
+        subscribe.join(5000L);
+    }
+
+    @Test
+    public void testResetWaitsForDataPath() throws InterruptedException {
+        endpoint.blockWrite = new CountDownLatch(1);
+        Thread write = new Thread() {
+            @Override
+            public void run() {
+                endpoint.write(hardwareAddress, true);
+            }
+        };
+        write.start();
+        assertTrue(endpoint.writeStarted.await(5, TimeUnit.SECONDS));
+        Thread reset = new Thread() {
+            @Override
+            public void run() {
+                endpoint.reset();
+            }
+        };
+        reset.start();
+        awaitWaiting(reset);
+        assertEquals(0, endpoint.stops.get());
+        endpoint.blockWrite.countDown();
+        write.join(5000L);
+        reset.join(5000L);
+        assertEquals(1, endpoint.stops.get());
+        assertEquals(STATE.NOT_INITIALIZED, endpoint.getState());
+        assertFalse(endpoint.overlap.get());
+    }
+
+    @Test
+    public void testDataPathWaitsForReset() throws InterruptedException {
+        endpoint.blockStop = new CountDownLatch(1);
+        Thread reset = new Thread() {
+            @Override
+            public void run() {
+                endpoint.reset();
+            }
+        };
+        reset.start();
+        assertTrue(endpoint.stopStarted.await(5, TimeUnit.SECONDS));
+        final AtomicBoolean rejected = new AtomicBoolean();
+        Thread write = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    endpoint.write(hardwareAddress, true);
+                } catch (OPCCriticalException e) {
+                    rejected.set(true);
+                }
+            }
+        };
+        write.start();
+        awaitWaiting(write);
+        assertEquals(0, endpoint.writes.get());
+        endpoint.blockStop.countDown();
+        reset.join(5000L);
+        write.join(5000L);
+        // the write sees the reset endpoint
+        assertTrue(rejected.get());
+        assertEquals(0, endpoint.writes.get());
+        assertFalse(endpoint.overlap.get());
+    }
+
+    @Test
+    public void testRefreshesRunConcurrently() throws InterruptedException {
+        endpoint.blockRefresh = new CountDownLatch(1);
+        endpoint.refreshStarted = new CountDownLatch(2);
+        Thread[] refreshes = new Thread[2];
+        for (int i = 0; i < refreshes.length; i++) {
+            refreshes[i] = new Thread() {
+                @Override
+                public void run() {
+                    endpoint.refreshDataTags(new ArrayList<ISourceDataTag>());
+                }
+            };
+            refreshes[i].start();
+        }
+        assertTrue(endpoint.refreshStarted.await(5, TimeUnit.SECONDS));
+        endpoint.blockRefresh.countDown();
+        for (Thread refresh : refreshes) {
+            refresh.join(5000L);
+        }
+        assertFalse(endpoint.overlap.get());
+    }
+
+    @Test
+    public void testResubscribeWaitsForDataPath() throws InterruptedException {
+        endpoint.blockWrite = new CountDownLatch(1);
+        Thread write = new Thread() {
+            @Override
+            public void run() {
+                endpoint.write(hardwareAddress, true);
+            }
+        };
+        write.start();
+        assertTrue(endpoint.writeStarted.await(5, TimeUnit.SECONDS));
+        Thread resubscribe = new Thread() {
+            @Override
+            public void run() {
+                endpoint.resubscribe(null);
+            }
+        };
+        resubscribe.start();
+        awaitWaiting(resubscribe);
+        assertEquals(0, endpoint.resubscribes.get());
+        endpoint.blockWrite.countDown();
+        write.join(5000L);
+        resubscribe.join(5000L);
+        assertEquals(1, endpoint.resubscribes.get());
+        assertFalse(endpoint.overlap.get());
+    }
+
+    @Test
+    public void testResubscribeAfterResetSkipped() {
+        endpoint.reset();
+        endpoint.resubscribe(null);
+        assertEquals(0, endpoint.resubscribes.get());
+    }
+
+    /**
+     * Waits till a thread waits for a lock of the endpoint.
+     */
+    private static void awaitWaiting(final Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue("Thread does not wait for the lock.",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Endpoint which records overlapping calls.
+     */
+    private static final class TestEndpoint extends OPCEndpoint<ItemDefinition<String>> {
+
+        private final AtomicInteger dataPathCalls = new AtomicInteger();
+
+        private final AtomicInteger structuralCalls = new AtomicInteger();
+
+        private final AtomicBoolean overlap = new AtomicBoolean();
+
+        private final AtomicInteger writes = new AtomicInteger();
+
+        private final AtomicInteger stops = new AtomicInteger();
+
+        private final AtomicInteger resubscribes = new AtomicInteger();
+
+        private volatile CountDownLatch refreshStarted = new CountDownLatch(1);
+
+        private final CountDownLatch writeStarted = new CountDownLatch(1);
+
+        private final CountDownLatch stopStarted = new CountDownLatch(1);
+
+        private final CountDownLatch subscribeStarted = new CountDownLatch(1);
+
+        private volatile CountDownLatch blockRefresh;
+
+        private volatile CountDownLatch blockSubscribe;
+
+        private volatile CountDownLatch blockWrite;
+
+        private volatile CountDownLatch blockStop;
+
+        private TestEndpoint() {
+            super(new IItemDefinitionFactory<ItemDefinition<String>>() {
+                @Override
+                public ItemDefinition<String> createItemDefinition(final long id,
+                        final HardwareAddress hardwareAddress) {
+                    return new ItemDefinition<String>(id, "asd");
+                }
+            }, new IGroupProvider<ItemDefinition<String>>() {
+                @Override
+                public SubscriptionGroup<ItemDefinition<String>> getOrCreateGroup(
+                        final ISourceDataTag sourceDataTag) {
+                    return null;
+                }
+            });
+        }
+
+        private void enterDataPath() {
+            dataPathCalls.incrementAndGet();
+            if (structuralCalls.get() > 0) {
+                overlap.set(true);
+            }
+        }
+
+        private void enterStructural() {
+            if (structuralCalls.incrementAndGet() > 1 || dataPathCalls.get() > 0) {
+                overlap.set(true);
+            }
+        }
+
+        private static void await(final CountDownLatch latch) {
+            if (latch != null) {
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        protected void checkStatus() {
+            enterDataPath();
+            dataPathCalls.decrementAndGet();
+        }
+
+        @Override
+        protected void onInit(final AbstractOPCUAAddress address) {
+            enterStructural();
+            structuralCalls.decrementAndGet();
+        }
+
+        @Override
+        protected void onStop() {
+            enterStructural();
+            stops.incrementAndGet();
+            stopStarted.countDown();
+            await(blockStop);
+            structuralCalls.decrementAndGet();
+        }
+
+        @Override
+        protected void onWrite(final ItemDefinition<String> itemDefinition,
+                final Object value) {
+            enterDataPath();
+            writes.incrementAndGet();
+            writeStarted.countDown();
+            await(blockWrite);
+            dataPathCalls.decrementAndGet();
+        }
+
+        @Override
+        protected void onSubscribe(
+                final Collection<SubscriptionGroup<ItemDefinition<String>>> subscriptionGroups) {
+            enterStructural();
+            subscribeStarted.countDown();
+            await(blockSubscribe);
+            structuralCalls.decrementAndGet();
+        }
+
+        @Override
+        protected void onSubscribe(
+                final SubscriptionGroup<ItemDefinition<String>> subscriptionGroup) {
+            enterStructural();
+            resubscribes.incrementAndGet();
+            structuralCalls.decrementAndGet();
+        }
+
+        @Override
+        protected void onRemove(
+                final SubscriptionGroup<ItemDefinition<String>> subscriptionGroup,
+                final ItemDefinition<String> removedDefinition) {
+            enterStructural();
+            structuralCalls.decrementAndGet();
+        }
+
+        @Override
+        protected void onRefresh(final Collection<ItemDefinition<String>> itemDefintions) {
+            enterDataPath();
+            refreshStarted.countDown();
+            await(blockRefresh);
+            dataPathCalls.decrementAndGet();
+        }
+
+        @Override
+        protected void onCallMethod(final ItemDefinition<String> itemDefintion,
+                final Object... value) {
+            enterDataPath();
+            dataPathCalls.decrementAndGet();
+        }
+    }
+}
@@ -20,15 +20,23 @@ import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.isA;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.reset;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.easymock.Capture;
 import org.easymock.EasyMock;
@@ -70,6 +78,8 @@ public class OPCEndpointTest {
               .withArgs(factory, provider)
               .addMockedMethod(OPCEndpoint.class.getDeclaredMethod("onInit", AbstractOPCUAAddress.class))
               .addMockedMethod(OPCEndpoint.class.getDeclaredMethod("onSubscribe", Collection.class))
+              .addMockedMethod(OPCEndpoint.class.getDeclaredMethod("onSubscribe", SubscriptionGroup.class))
+              .addMockedMethod(OPCEndpoint.class.getDeclaredMethod("onRemove", SubscriptionGroup.class, ItemDefinition.class))
               .addMockedMethod(OPCEndpoint.class.getDeclaredMethod("onWrite", ItemDefinition.class, Object.class))
               .addMockedMethod(OPCEndpoint.class.getDeclaredMethod("onCallMethod", ItemDefinition.class, Object[].class))
               .addMockedMethod(OPCEndpoint.class.getDeclaredMethod("onRefresh", Collection.class))
@@ -129,6 +139,104 @@ public class OPCEndpointTest {
         verify(endpoint, factory, provider);
     }
     
+    @Test
+    public void testAddDataTagsSharedItem() throws ConfigurationException {
+        IOPCEndpointListener endpointListener =
+            createMock(IOPCEndpointListener.class);
+        SubscriptionGroup<ItemDefinition<String>> group =
+            new SubscriptionGroup<ItemDefinition<String>>(0, 0.1F);
+        OPCHardwareAddressImpl hwimpl = new OPCHardwareAddressImpl("asd");
+        SourceDataTag dataTag1 = createSharedTag(1L, hwimpl, group);
+        SourceDataTag dataTag2 = createSharedTag(2L, hwimpl, group);
+        Collection<ISourceDataTag> dataTags = new ArrayList<ISourceDataTag>();
+        dataTags.add(dataTag1);
+        dataTags.add(dataTag2);
+        endpoint.onSubscribe(isA(Collection.class));
+        endpointListener.onNewTagValue(dataTag1, 2L, "value");
+        endpointListener.onNewTagValue(dataTag2, 2L, "value");
+
+        replay(endpoint, endpointListener, factory, provider);
+        endpoint.addDataTags(dataTags);
+        endpoint.registerEndpointListener(endpointListener);
+        endpoint.notifyEndpointListenersValueChange(1L, 2L, "value");
+        verify(endpoint, endpointListener, factory, provider);
+        assertEquals(1, group.size());
+        assertEquals(1, endpoint.getItemDefinitionCount());
+    }
+
+    @Test
+    public void testRemoveSharedTag() throws ConfigurationException {
+        IOPCEndpointListener endpointListener =
+            createMock(IOPCEndpointListener.class);
+        SubscriptionGroup<ItemDefinition<String>> group =
+            new SubscriptionGroup<ItemDefinition<String>>(0, 0.1F);
+        OPCHardwareAddressImpl hwimpl = new OPCHardwareAddressImpl("asd");
+        SourceDataTag dataTag1 = createSharedTag(1L, hwimpl, group);
+        SourceDataTag dataTag2 = createSharedTag(2L, hwimpl, group);
+        Collection<ISourceDataTag> dataTags = new ArrayList<ISourceDataTag>();
+        dataTags.add(dataTag1);
+        dataTags.add(dataTag2);
+        endpoint.onSubscribe(isA(Collection.class));
+        // only the remaining tag gets the value
+        endpointListener.onNewTagValue(dataTag1, 2L, "value");
+        endpoint.onRemove(eq(group), isA(ItemDefinition.class));
+
+        replay(endpoint, endpointListener, factory, provider);
+        endpoint.addDataTags(dataTags);
+        endpoint.setStateOperational();
+        endpoint.registerEndpointListener(endpointListener);
+        endpoint.removeDataTag(dataTag2);
+        assertEquals(1, group.size());
+        endpoint.notifyEndpointListenersValueChange(1L, 2L, "value");
+        endpoint.removeDataTag(dataTag1);
+        verify(endpoint, endpointListener, factory, provider);
+        assertEquals(0, group.size());
+        assertEquals(0, endpoint.getItemDefinitionCount());
+    }
+
+    @Test
+    public void testRemoveSharedTagOwningDefinition() throws ConfigurationException {
+        IOPCEndpointListener endpointListener =
+            createMock(IOPCEndpointListener.class);
+        SubscriptionGroup<ItemDefinition<String>> group =
+            new SubscriptionGroup<ItemDefinition<String>>(0, 0.1F);
+        OPCHardwareAddressImpl hwimpl = new OPCHardwareAddressImpl("asd");
+        SourceDataTag dataTag1 = createSharedTag(1L, hwimpl, group);
+        SourceDataTag dataTag2 = createSharedTag(2L, hwimpl, group);
+        Collection<ISourceDataTag> dataTags = new ArrayList<ISourceDataTag>();
+        dataTags.add(dataTag1);
+        dataTags.add(dataTag2);
+        endpoint.onSubscribe(isA(Collection.class));
+        endpoint.onRemove(eq(group), isA(ItemDefinition.class));
+        // the item is subscribed again for the remaining tag
+        expect(factory.createItemDefinition(2L, hwimpl)).andReturn(
+                new ItemDefinition<String>(2L, "asd"));
+        expect(provider.getOrCreateGroup(dataTag2)).andReturn(group);
+        endpoint.onSubscribe(group);
+        endpointListener.onNewTagValue(dataTag2, 2L, "value");
+
+        replay(endpoint, endpointListener, factory, provider);
+        endpoint.addDataTags(dataTags);
+        endpoint.setStateOperational();
+        endpoint.registerEndpointListener(endpointListener);
+        endpoint.removeDataTag(dataTag1);
+        endpoint.notifyEndpointListenersValueChange(1L, 2L, "value");
+        endpoint.notifyEndpointListenersValueChange(2L, 2L, "value");
+        verify(endpoint, endpointListener, factory, provider);
+        assertEquals(1, group.size());
+    }
+
+    private SourceDataTag createSharedTag(final long id,
+            final OPCHardwareAddressImpl hwimpl,
+            final SubscriptionGroup<ItemDefinition<String>> group) {
+        SourceDataTag dataTag = new SourceDataTag(id, "asd", false);
+        dataTag.setAddress(new DataTagAddress(hwimpl));
+        expect(factory.createItemDefinition(id, hwimpl)).andReturn(
+                new ItemDefinition<String>(id, "asd"));
+        expect(provider.getOrCreateGroup(dataTag)).andReturn(group).anyTimes();
+        return dataTag;
+    }
+
     @Test
     public void testAddCommandTagsEmpty() {
         Collection<ISourceCommandTag> commandTags = new ArrayList<ISourceCommandTag>();
@@ -246,9 +354,8 @@ public class OPCEndpointTest {
         dataTag2.setAddress(address);
         dataTags.add(dataTag2);
         
-        ItemDefinition<String> itemAddress = new ItemDefinition<String>(1L, "asd");
-        expect(factory.createItemDefinition(1L, hwimpl)).andReturn(itemAddress);
-        expect(factory.createItemDefinition(2L, hwimpl)).andReturn(itemAddress);
+        expect(factory.createItemDefinition(1L, hwimpl)).andReturn(new ItemDefinition<String>(1L, "asd"));
+        expect(factory.createItemDefinition(2L, hwimpl)).andReturn(new ItemDefinition<String>(2L, "asd"));
         expect(provider.getOrCreateGroup(dataTag1)).andReturn(new SubscriptionGroup<ItemDefinition<?>>(0, 0.1F));
         expect(provider.getOrCreateGroup(dataTag2)).andReturn(new SubscriptionGroup<ItemDefinition<?>>(0, 0.1F));
         endpoint.onSubscribe(isA(Collection.class));
@@ -309,7 +416,7 @@ public class OPCEndpointTest {
     }
     
     @Test
-    public void testExecuteCommandWriteReWriteForBoolean() throws ConfigurationException, InterruptedException {
+    public void testExecuteCommandWriteReWriteForBoolean() throws Exception {
         OPCHardwareAddressImpl address = new OPCHardwareAddressImpl("asd", 1);
         address.setCommandType(COMMAND_TYPE.CLASSIC);
         Object value = true;
@@ -326,13 +433,12 @@ public class OPCEndpointTest {
         replay(endpoint, factory);
         endpoint.addCommandTag(commandTag);
         endpoint.setStateOperational();
-        endpoint.executeCommand(address, sctValue);
-        Thread.sleep(5);
+        endpoint.executeCommand(address, sctValue).get(1, TimeUnit.SECONDS);
         verify(endpoint, factory);
     }
     
     @Test
-    public void testExecuteCommandWriteReWriteForInteger() throws ConfigurationException, InterruptedException {
+    public void testExecuteCommandWriteReWriteForInteger() throws Exception {
         OPCHardwareAddressImpl address = new OPCHardwareAddressImpl("asd", 1);
         address.setCommandType(COMMAND_TYPE.CLASSIC);
         Integer value = 7;
@@ -349,13 +455,12 @@ public class OPCEndpointTest {
         replay(endpoint, factory);
         endpoint.addCommandTag(commandTag);
         endpoint.setStateOperational();
-        endpoint.executeCommand(address, sctValue);
-        Thread.sleep(5);
+        endpoint.executeCommand(address, sctValue).get(1, TimeUnit.SECONDS);
         verify(endpoint, factory);
     }
     
     @Test
-    public void testExecuteCommandWriteReWriteForString() throws ConfigurationException, InterruptedException {
+    public void testExecuteCommandWriteReWriteForString() throws Exception {
         OPCHardwareAddressImpl address = new OPCHardwareAddressImpl("asd", 1);
         address.setCommandType(COMMAND_TYPE.CLASSIC);
         String value = "Test String";
@@ -372,8 +477,87 @@ public class OPCEndpointTest {
         replay(endpoint, factory);
         endpoint.addCommandTag(commandTag);
         endpoint.setStateOperational();
-        endpoint.executeCommand(address, sctValue);
-        Thread.sleep(5);
+        endpoint.executeCommand(address, sctValue).get(1, TimeUnit.SECONDS);
+        verify(endpoint, factory);
+    }
+    
+    @Test
+    public void testExecuteCommandOverlappingPulses() throws Exception {
+        OPCHardwareAddressImpl address = new OPCHardwareAddressImpl("asd", 200);
+        address.setCommandType(COMMAND_TYPE.CLASSIC);
+        SourceCommandTagValue sctValue =
+            new SourceCommandTagValue(1L, "asd", 1L, (short) 0, true , "Boolean");
+        ISourceCommandTag commandTag =
+            new SourceCommandTag(1L, "asd", 100, 1000, address );
+        
+        expect(factory.createItemDefinition(1L, address))
+            .andReturn(new ItemDefinition<String>(1L, "asd"));
+        endpoint.onWrite(isA(ItemDefinition.class), eq(true));
+        expectLastCall().times(2);
+        endpoint.onWrite(isA(ItemDefinition.class), eq(false));
+        
+        replay(endpoint, factory);
+        endpoint.addCommandTag(commandTag);
+        endpoint.setStateOperational();
+        Future<Void> first = endpoint.executeCommand(address, sctValue);
+        Future<Void> second = endpoint.executeCommand(address, sctValue);
+        assertSame(first, second);
+        assertFalse(first.isDone());
+        second.get(1, TimeUnit.SECONDS);
+        verify(endpoint, factory);
+    }
+    
+    @Test
+    public void testExecuteCommandPulseResetFailure() throws Exception {
+        OPCHardwareAddressImpl address = new OPCHardwareAddressImpl("asd", 200);
+        address.setCommandType(COMMAND_TYPE.CLASSIC);
+        SourceCommandTagValue sctValue =
+            new SourceCommandTagValue(1L, "asd", 1L, (short) 0, true , "Boolean");
+        ISourceCommandTag commandTag =
+            new SourceCommandTag(1L, "asd", 100, 1000, address );
+        OPCCommunicationException failure = new OPCCommunicationException("reset failed");
+        
+        expect(factory.createItemDefinition(1L, address))
+            .andReturn(new ItemDefinition<String>(1L, "asd"));
+        endpoint.onWrite(isA(ItemDefinition.class), eq(true));
+        endpoint.onWrite(isA(ItemDefinition.class), eq(false));
+        expectLastCall().andThrow(failure);
+        
+        replay(endpoint, factory);
+        endpoint.addCommandTag(commandTag);
+        endpoint.setStateOperational();
+        try {
+            endpoint.executeCommand(address, sctValue).get(1, TimeUnit.SECONDS);
+            fail("The failed reset write has to fail the future.");
+        } catch (ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+        verify(endpoint, factory);
+    }
+    
+    @Test
+    public void testRemoveCommandTagResetsPulse() throws Exception {
+        OPCHardwareAddressImpl address = new OPCHardwareAddressImpl("asd", 10000);
+        address.setCommandType(COMMAND_TYPE.CLASSIC);
+        SourceCommandTagValue sctValue =
+            new SourceCommandTagValue(1L, "asd", 1L, (short) 0, true , "Boolean");
+        ISourceCommandTag commandTag =
+            new SourceCommandTag(1L, "asd", 100, 1000, address );
+        
+        expect(factory.createItemDefinition(1L, address))
+            .andReturn(new ItemDefinition<String>(1L, "asd"));
+        endpoint.onWrite(isA(ItemDefinition.class), eq(true));
+        endpoint.onWrite(isA(ItemDefinition.class), eq(false));
+        
+        replay(endpoint, factory);
+        endpoint.addCommandTag(commandTag);
+        endpoint.setStateOperational();
+        Future<Void> pulse = endpoint.executeCommand(address, sctValue);
+        assertEquals(1, endpoint.getPulseLockCount());
+        endpoint.removeCommandTag(commandTag);
+        // reset at once instead of after the pulse length
+        assertTrue(pulse.isDone());
+        assertEquals(0, endpoint.getPulseLockCount());
         verify(endpoint, factory);
     }
     
@@ -0,0 +1,165 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RedundantAddressArbiterTest {
+
+    private static final long SILENCE_TIMEOUT = 1000L;
+
+    private RedundantAddressArbiter arbiter = new RedundantAddressArbiter(SILENCE_TIMEOUT);
+
+    private List<Object> forwarded = new ArrayList<Object>();
+
+    private RedundantAddressArbiter.Listener listener = new RedundantAddressArbiter.Listener() {
+        @Override
+        public void onArbitratedValue(final long definitionId, final long timestamp,
+                final Object value) {
+            forwarded.add(value);
+        }
+
+        @Override
+        public void onArbitratedError(final long definitionId, final Throwable cause) {
+            forwarded.add(cause);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        arbiter.register(1L, 0L);
+    }
+
+    @Test
+    public void testOnlyPrimaryReported() {
+        arbiter.onValue(1L, false, 0L, "p1", 10L, listener);
+        arbiter.onValue(1L, true, 0L, "s1", 20L, listener);
+        arbiter.onValue(1L, false, 0L, "p2", 30L, listener);
+        assertEquals(2, forwarded.size());
+        assertEquals("p1", forwarded.get(0));
+        assertEquals("p2", forwarded.get(1));
+        assertEquals(0, arbiter.getSwitchCount());
+    }
+
+    @Test
+    public void testSwitchOnBadPrimary() {
+        Exception bad = new Exception("bad");
+        arbiter.onValue(1L, false, 0L, "p1", 10L, listener);
+        arbiter.onValue(1L, true, 0L, "s1", 20L, listener);
+        arbiter.onError(1L, false, bad, listener);
+        assertTrue(arbiter.isSecondaryActive(1L));
+        arbiter.onValue(1L, true, 0L, "s2", 40L, listener);
+        // back to the primary with its next good value
+        arbiter.onValue(1L, false, 0L, "p2", 50L, listener);
+        arbiter.onValue(1L, true, 0L, "s3", 60L, listener);
+        assertFalse(arbiter.isSecondaryActive(1L));
+        assertEquals(4, forwarded.size());
+        assertEquals("s1", forwarded.get(1));
+        assertEquals("s2", forwarded.get(2));
+        assertEquals("p2", forwarded.get(3));
+        assertEquals(2, arbiter.getSwitchCount());
+    }
+
+    @Test
+    public void testBothBad() {
+        Exception bad = new Exception("bad");
+        arbiter.onError(1L, false, bad, listener);
+        assertEquals(1, forwarded.size());
+        assertEquals(bad, forwarded.get(0));
+        // the first good secondary value takes over
+        arbiter.onValue(1L, true, 0L, "s1", 10L, listener);
+        assertTrue(arbiter.isSecondaryActive(1L));
+        arbiter.onError(1L, true, bad, listener);
+        assertFalse(arbiter.isSecondaryActive(1L));
+        assertEquals(3, forwarded.size());
+        assertEquals("s1", forwarded.get(1));
+        assertEquals(bad, forwarded.get(2));
+        assertEquals(2, arbiter.getSwitchCount());
+    }
+
+    @Test
+    public void testSwitchOnSilentPrimary() {
+        arbiter.onValue(1L, false, 0L, "v", 0L, listener);
+        // same value on the secondary: the primary is just quiet
+        arbiter.onValue(1L, true, 0L, "v", SILENCE_TIMEOUT * 2, listener);
+        assertFalse(arbiter.isSecondaryActive(1L));
+        // a change the primary did not report within the timeout
+        arbiter.onValue(1L, true, 0L, "w", SILENCE_TIMEOUT - 1, listener);
+        assertFalse(arbiter.isSecondaryActive(1L));
+        arbiter.onValue(1L, true, 0L, "w", SILENCE_TIMEOUT, listener);
+        assertTrue(arbiter.isSecondaryActive(1L));
+        assertEquals(2, forwarded.size());
+        assertEquals("w", forwarded.get(1));
+        assertEquals(1, arbiter.getSwitchCount());
+    }
+
+    @Test
+    public void testSecondaryErrorWithGoodPrimaryNotForwarded() {
+        Exception bad = new Exception("bad");
+        arbiter.onValue(1L, false, 0L, "v", 0L, listener);
+        arbiter.onValue(1L, true, 0L, "w", SILENCE_TIMEOUT, listener);
+        assertTrue(arbiter.isSecondaryActive(1L));
+        // the primary is only silent, it still has a good value
+        arbiter.onError(1L, true, bad, listener);
+        assertFalse(arbiter.isSecondaryActive(1L));
+        assertEquals(2, forwarded.size());
+        assertEquals("w", forwarded.get(1));
+        assertEquals(2, arbiter.getSwitchCount());
+    }
+
+    @Test
+    public void testCheckSilenceWithQuietSecondary() {
+        arbiter.onValue(1L, false, 0L, "v", 0L, listener);
+        arbiter.onValue(1L, true, 0L, "w", 10L, listener);
+        arbiter.checkSilence(SILENCE_TIMEOUT - 1, listener);
+        assertFalse(arbiter.isSecondaryActive(1L));
+        // the secondary does not change anymore but the primary is dead
+        arbiter.checkSilence(SILENCE_TIMEOUT, listener);
+        assertTrue(arbiter.isSecondaryActive(1L));
+        arbiter.checkSilence(SILENCE_TIMEOUT * 2, listener);
+        assertEquals(2, forwarded.size());
+        assertEquals("w", forwarded.get(1));
+        assertEquals(1, arbiter.getSwitchCount());
+    }
+
+    @Test
+    public void testCheckSilenceWithoutGoodSecondary() {
+        arbiter.onValue(1L, false, 0L, "v", 0L, listener);
+        arbiter.checkSilence(SILENCE_TIMEOUT * 2, listener);
+        assertFalse(arbiter.isSecondaryActive(1L));
+        assertEquals(1, forwarded.size());
+    }
+
+    @Test
+    public void testUnregisteredPassedThrough() {
+        arbiter.onValue(2L, false, 0L, "p", 0L, listener);
+        arbiter.onValue(2L, true, 0L, "s", 0L, listener);
+        arbiter.unregister(1L);
+        arbiter.onValue(1L, false, 0L, "p1", 0L, listener);
+        assertEquals(2, forwarded.size());
+        assertEquals("p", forwarded.get(0));
+        assertEquals("p1", forwarded.get(1));
+    }
+}
@@ -0,0 +1,125 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import cern.c2mon.shared.common.datatag.DataTagAddress;
+import cern.c2mon.shared.common.datatag.ISourceDataTag;
+import cern.c2mon.shared.common.datatag.SourceDataTag;
+
+public class RefreshSchedulerTest {
+
+    private final List<Object> refreshes = Collections.synchronizedList(new ArrayList<Object>());
+
+    private final RefreshScheduler scheduler = new RefreshScheduler(new RefreshScheduler.RefreshTarget() {
+        @Override
+        public void refreshAll() {
+            refreshes.add("all");
+        }
+
+        @Override
+        public void refresh(final Collection<ISourceDataTag> dataTags) {
+            refreshes.add(dataTags.size());
+        }
+    }, 50L, 3);
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testAllCoversSingleTags() throws InterruptedException {
+        scheduler.request(createSourceDataTag(1L));
+        scheduler.requestAll();
+        scheduler.requestAll();
+        scheduler.request(createSourceDataTag(2L));
+        waitForRefreshes(1);
+        assertEquals("all", refreshes.get(0));
+        assertEquals(4, scheduler.getRequestCount());
+        assertEquals(3, scheduler.getMergedCount());
+        assertEquals(1, scheduler.getFullRefreshCount());
+        assertEquals(0, scheduler.getTagRefreshCount());
+    }
+
+    @Test
+    public void testSingleTagsDeduplicatedAndChunked() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            for (long id = 0; id < 7; id++) {
+                scheduler.request(createSourceDataTag(id));
+            }
+        }
+        waitForRefreshes(3);
+        assertEquals(3, refreshes.get(0));
+        assertEquals(3, refreshes.get(1));
+        assertEquals(1, refreshes.get(2));
+        assertEquals(21, scheduler.getRequestCount());
+        assertEquals(14, scheduler.getMergedCount());
+        assertEquals(7, scheduler.getTagRefreshCount());
+        assertEquals(3, scheduler.getChunkCount());
+    }
+
+    @Test
+    public void testRequestAfterRefreshRunsAgain() throws InterruptedException {
+        scheduler.requestAll();
+        waitForRefreshes(1);
+        scheduler.requestAll();
+        waitForRefreshes(2);
+        assertEquals(2, scheduler.getFullRefreshCount());
+        assertEquals(0, scheduler.getMergedCount());
+    }
+
+    @Test
+    public void testDelayedAllRunsAfterDelay() throws InterruptedException {
+        scheduler.requestAll(200L);
+        Thread.sleep(100);
+        assertEquals(0, refreshes.size());
+        waitForRefreshes(1);
+        assertEquals("all", refreshes.get(0));
+        assertEquals(1, scheduler.getRequestCount());
+    }
+
+    @Test
+    public void testDelayedAllAfterShutdownDropped() throws InterruptedException {
+        scheduler.shutdown();
+        scheduler.requestAll(10L);
+        Thread.sleep(100);
+        assertEquals(0, refreshes.size());
+    }
+
+    private void waitForRefreshes(final int count) throws InterruptedException {
+        for (int i = 0; i < 1000 && refreshes.size() < count; i++) {
+            Thread.sleep(10);
+        }
+        // give a wrong extra refresh the chance to show up
+        Thread.sleep(100);
+        assertEquals(count, refreshes.size());
+    }
+
+    private SourceDataTag createSourceDataTag(final long id) {
+        return new SourceDataTag(id, "tag" + id, false, (short) 0, "Integer", new DataTagAddress());
+    }
+}
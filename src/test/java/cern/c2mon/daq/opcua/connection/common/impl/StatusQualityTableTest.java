@@ -0,0 +1,52 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class StatusQualityTableTest {
+
+    private StatusQualityTable table = new StatusQualityTable();
+
+    @Test
+    public void testExceptionReused() {
+        assertNull(table.get(0x80340000));
+        OPCCommunicationException exception = new OPCCommunicationException("BadNodeIdUnknown");
+        assertSame(exception, table.put(0x80340000, exception));
+        assertSame(exception, table.get(0x80340000));
+        // the first exception of a code is kept
+        assertSame(exception, table.put(0x80340000, new OPCCommunicationException()));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testCodesSorted() {
+        int[] codes = {0x80340000, 0x40000000, 0x00000001, 0x80000000, 0x00A00000};
+        for (int code : codes) {
+            table.put(code, new OPCCommunicationException(Integer.toHexString(code)));
+        }
+        for (int code : codes) {
+            assertEquals(Integer.toHexString(code), table.get(code).getMessage());
+        }
+        assertNull(table.get(0x80350000));
+        assertEquals(codes.length, table.size());
+    }
+}
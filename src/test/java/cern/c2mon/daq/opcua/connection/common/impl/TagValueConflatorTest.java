@@ -0,0 +1,191 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import cern.c2mon.daq.opcua.connection.common.IOPCEndpointListener;
+import cern.c2mon.shared.common.datatag.DataTagAddress;
+import cern.c2mon.shared.common.datatag.ISourceDataTag;
+import cern.c2mon.shared.common.datatag.SourceDataTag;
+
+public class TagValueConflatorTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final List<Object> delivered = Collections.synchronizedList(new ArrayList<Object>());
+
+    private final TagValueConflator conflator = new TagValueConflator(new IOPCEndpointListener() {
+        @Override
+        public void onNewTagValue(final ISourceDataTag dataTag, final long timestamp,
+                final Object value) {
+            await();
+            delivered.add(dataTag.getId() + "=" + value);
+        }
+
+        @Override
+        public void onNewTagValue(final ISourceDataTag dataTag, final long timestamp,
+                final long value) {
+            await();
+            delivered.add(dataTag.getId() + "=long " + value);
+        }
+
+        @Override
+        public void onNewTagValue(final ISourceDataTag dataTag, final long timestamp,
+                final double value) {
+            await();
+            delivered.add(dataTag.getId() + "=double " + value);
+        }
+
+        @Override
+        public void onTagInvalidException(final ISourceDataTag dataTag,
+                final Throwable cause) {
+            await();
+            delivered.add(dataTag.getId() + " invalid");
+        }
+
+        @Override
+        public void onSubscriptionException(final Throwable cause) {
+        }
+    });
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        conflator.stop();
+    }
+
+    @Test
+    public void testLatestValueWins() throws InterruptedException {
+        SourceDataTag tag = createSourceDataTag(1L);
+        SourceDataTag tag2 = createSourceDataTag(2L);
+        for (int i = 0; i < 100; i++) {
+            conflator.onNewTagValue(tag, i, i);
+        }
+        conflator.onNewTagValue(tag2, 0L, 0);
+        conflator.onTagInvalidException(tag2, new Exception());
+        assertEquals(2, conflator.getPendingCount());
+        assertEquals(100, conflator.getConflatedCount());
+
+        release.countDown();
+        conflator.start("test");
+        waitForDelivery(2);
+        assertEquals("1=long 99", delivered.get(0));
+        assertEquals("2 invalid", delivered.get(1));
+        assertEquals(0, conflator.getPendingCount());
+    }
+
+    @Test
+    public void testPendingBoundedByTags() throws InterruptedException {
+        conflator.start("test");
+        conflator.onNewTagValue(createSourceDataTag(0L), 0L, 0);
+        // the listener blocks on the first update
+        for (int i = 0; i < 1000 && conflator.getPendingCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < 100; i++) {
+            for (long id = 0; id < 500; id++) {
+                conflator.onNewTagValue(createSourceDataTag(id), i, i);
+            }
+        }
+        assertTrue(conflator.getPendingCount() <= 500);
+        release.countDown();
+        waitForDelivery(501);
+        assertEquals(501, conflator.getDeliveredCount());
+        assertEquals(50001 - 501, conflator.getConflatedCount());
+    }
+
+    @Test
+    public void testPrimitivesNotBoxed() throws InterruptedException {
+        SourceDataTag tag = createSourceDataTag(1L);
+        SourceDataTag tag2 = createSourceDataTag(2L);
+        SourceDataTag tag3 = createSourceDataTag(3L);
+        conflator.onNewTagValue(tag, 0L, 1L);
+        conflator.onNewTagValue(tag, 1L, Long.MAX_VALUE);
+        conflator.onNewTagValue(tag2, 0L, "a");
+        conflator.onNewTagValue(tag2, 1L, 2.5);
+        conflator.onNewTagValue(tag3, 0L, 3L);
+        conflator.onNewTagValue(tag3, 1L, "b");
+        assertEquals(3, conflator.getConflatedCount());
+
+        release.countDown();
+        conflator.start("test");
+        waitForDelivery(3);
+        assertEquals("1=long " + Long.MAX_VALUE, delivered.get(0));
+        assertEquals("2=double 2.5", delivered.get(1));
+        assertEquals("3=b", delivered.get(2));
+    }
+
+    @Test
+    public void testHighPriorityDeliveredFirst() throws InterruptedException {
+        TagValueConflator lanes = new TagValueConflator(conflator, DataTagAddress.PRIORITY_MEDIUM);
+        SourceDataTag criticalTag = createSourceDataTag(3L);
+        criticalTag.getAddress().setPriority(DataTagAddress.PRIORITY_MEDIUM);
+        lanes.onNewTagValue(createSourceDataTag(1L), 0L, "a");
+        lanes.onNewTagValue(createSourceDataTag(2L), 0L, "b");
+        lanes.onNewTagValue(criticalTag, 0L, "c");
+        assertEquals(3, lanes.getPendingCount());
+
+        release.countDown();
+        conflator.start("test");
+        lanes.start("lanes");
+        try {
+            waitForDelivery(3);
+        } finally {
+            lanes.stop();
+        }
+        assertEquals("3=c", delivered.get(0));
+        assertEquals("1=a", delivered.get(1));
+        assertEquals("2=b", delivered.get(2));
+    }
+
+    @Test
+    public void testStopDropsPending() {
+        conflator.onNewTagValue(createSourceDataTag(1L), 0L, 0);
+        conflator.stop();
+        assertEquals(0, conflator.getPendingCount());
+    }
+
+    private void waitForDelivery(final int count) throws InterruptedException {
+        for (int i = 0; i < 1000 && delivered.size() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, delivered.size());
+    }
+
+    private void await() {
+        try {
+            release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private SourceDataTag createSourceDataTag(final long id) {
+        return new SourceDataTag(id, "tag" + id, false, (short) 0, "Integer", new DataTagAddress());
+    }
+}
@@ -0,0 +1,94 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TagValueConverterTest {
+
+    @Test
+    public void testUnknownDataTypePassesThrough() {
+        Object value = new Object();
+        assertSame(TagValueConverter.IDENTITY, TagValueConverter.forDataType("asd"));
+        assertSame(TagValueConverter.IDENTITY, TagValueConverter.forDataType(null));
+        assertSame(value, TagValueConverter.forDataType("asd").convert(value));
+    }
+
+    @Test
+    public void testValueOfTagTypePassesThrough() {
+        Integer intValue = 1234567;
+        Double doubleValue = 1.5;
+        String stringValue = "value";
+        assertSame(intValue, TagValueConverter.forDataType("Integer").convert(intValue));
+        assertSame(doubleValue, TagValueConverter.forDataType("java.lang.Double").convert(doubleValue));
+        assertSame(stringValue, TagValueConverter.forDataType("String").convert(stringValue));
+        assertSame(Boolean.TRUE, TagValueConverter.forDataType("Boolean").convert(Boolean.TRUE));
+        assertNull(TagValueConverter.forDataType("Long").convert(null));
+    }
+
+    @Test
+    public void testIntegralWidening() {
+        assertEquals(Long.valueOf(5L), TagValueConverter.forDataType("Long").convert(5));
+        assertEquals(Long.valueOf(5L), TagValueConverter.forDataType("Long").convert((short) 5));
+        assertEquals(Integer.valueOf(5), TagValueConverter.forDataType("Integer").convert((byte) 5));
+        assertEquals(Short.valueOf((short) 5), TagValueConverter.forDataType("Short").convert((byte) 5));
+        assertEquals(Double.valueOf(5.0), TagValueConverter.forDataType("Double").convert(5));
+        assertEquals(Float.valueOf(5.0f), TagValueConverter.forDataType("java.lang.Float").convert((short) 5));
+    }
+
+    @Test
+    public void testPrimitiveTypes() {
+        assertEquals(TagValueConverter.PRIMITIVE_LONG,
+                TagValueConverter.forDataType("Long").getPrimitiveType());
+        assertEquals(TagValueConverter.PRIMITIVE_DOUBLE,
+                TagValueConverter.forDataType("java.lang.Double").getPrimitiveType());
+        assertEquals(TagValueConverter.PRIMITIVE_BOOLEAN,
+                TagValueConverter.forDataType("Boolean").getPrimitiveType());
+        assertEquals(TagValueConverter.PRIMITIVE_NONE,
+                TagValueConverter.forDataType("Integer").getPrimitiveType());
+        assertEquals(Integer.valueOf(5), TagValueConverter.forDataType("Integer").convert(5L));
+        assertEquals(Short.valueOf((short) 5), TagValueConverter.forDataType("Short").convert(5L));
+    }
+
+    @Test
+    public void testUnconvertibleValuePassesThrough() {
+        String value = "no number";
+        assertSame(value, TagValueConverter.forDataType("Integer").convert(value));
+        assertSame(value, TagValueConverter.forDataType("java.lang.Double").convert(value));
+    }
+
+    @Test
+    public void testTakesPrimitive() {
+        TagValueConverter longConverter = TagValueConverter.forDataType("Long");
+        TagValueConverter doubleConverter = TagValueConverter.forDataType("Double");
+        assertTrue(longConverter.takesPrimitive(5L));
+        assertTrue(longConverter.takesPrimitive(5));
+        assertFalse(longConverter.takesPrimitive(5.0));
+        assertFalse(longConverter.takesPrimitive(null));
+        assertTrue(doubleConverter.takesPrimitive(1.5));
+        assertTrue(doubleConverter.takesPrimitive((short) 5));
+        assertFalse(doubleConverter.takesPrimitive(Long.MAX_VALUE));
+        assertFalse(doubleConverter.takesPrimitive(1.5f));
+        assertFalse(TagValueConverter.forDataType("Integer").takesPrimitive(5));
+    }
+}
@@ -0,0 +1,186 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import cern.c2mon.shared.common.datatag.DataTagAddress;
+import cern.c2mon.shared.common.datatag.DataTagDeadband;
+import cern.c2mon.shared.common.datatag.ISourceDataTag;
+import cern.c2mon.shared.common.datatag.SourceDataTag;
+
+public class TagValueFilterTest {
+
+    private TagValueFilter filter = new TagValueFilter();
+
+    @Test
+    public void testDuplicates() {
+        SourceDataTag tag = createSourceDataTag(1L, 0, DataTagDeadband.DEADBAND_NONE, 0.0f);
+        assertTrue(filter.accept(tag, 0L, 1.0, 0L));
+        assertFalse(filter.accept(tag, 1L, 1.0, 1L));
+        assertFalse(filter.accept(tag, 1L, 1, 1L));
+        assertTrue(filter.accept(tag, 2L, 2.0, 2L));
+        assertTrue(filter.accept(tag, 3L, "a", 3L));
+        assertFalse(filter.accept(tag, 4L, "a", 4L));
+        assertTrue(filter.accept(tag, 5L, true, 5L));
+        assertEquals(3, filter.getFilteredCount());
+    }
+
+    @Test
+    public void testAbsoluteDeadband() {
+        SourceDataTag tag = createSourceDataTag(1L, 0, DataTagDeadband.DEADBAND_EQUIPMENT_ABSOLUTE, 1.0f);
+        assertTrue(filter.accept(tag, 0L, 10.0, 0L));
+        assertFalse(filter.accept(tag, 1L, 10.5, 1L));
+        assertFalse(filter.accept(tag, 2L, 9.5f, 2L));
+        assertTrue(filter.accept(tag, 3L, 11, 3L));
+    }
+
+    @Test
+    public void testRelativeDeadband() {
+        SourceDataTag tag = createSourceDataTag(1L, 0, DataTagDeadband.DEADBAND_PROCESS_RELATIVE, 10.0f);
+        assertTrue(filter.accept(tag, 0L, 100.0, 0L));
+        assertFalse(filter.accept(tag, 1L, 105.0, 1L));
+        assertTrue(filter.accept(tag, 2L, 111.0, 2L));
+        assertTrue(filter.accept(tag, 3L, 0.0, 3L));
+        // no relative deadband around zero
+        assertTrue(filter.accept(tag, 4L, 0.001, 4L));
+    }
+
+    @Test
+    public void testTimeDeadbandHoldsLatestValue() {
+        SourceDataTag tag = createSourceDataTag(1L, 100, DataTagDeadband.DEADBAND_NONE, 0.0f);
+        assertTrue(filter.accept(tag, 0L, 1, 0L));
+        assertFalse(filter.accept(tag, 10L, 2, 10L));
+        assertFalse(filter.accept(tag, 20L, 3, 20L));
+        assertEquals(1, filter.getHeldCount());
+
+        List<Object> released = release(50L);
+        assertTrue(released.isEmpty());
+        released = release(100L);
+        assertEquals(1, released.size());
+        assertEquals(3, released.get(0));
+        assertEquals(0, filter.getHeldCount());
+        // the released value is the last sent value now
+        assertFalse(filter.accept(tag, 110L, 3, 210L));
+        assertTrue(filter.accept(tag, 120L, 4, 210L));
+    }
+
+    @Test
+    public void testPrimitiveValues() {
+        SourceDataTag tag = createSourceDataTag(1L, 100, DataTagDeadband.DEADBAND_PROCESS_ABSOLUTE, 1.0f);
+        assertTrue(filter.acceptLong(tag, 0L, 10L, 0L));
+        assertFalse(filter.acceptLong(tag, 200L, 10L, 200L));
+        assertFalse(filter.acceptDouble(tag, 200L, 10.5, 200L));
+        assertFalse(filter.accept(tag, 200L, Integer.valueOf(10), 200L));
+        assertTrue(filter.acceptDouble(tag, 300L, 12.5, 300L));
+        assertFalse(filter.acceptLong(tag, 310L, 20L, 310L));
+
+        // held primitives are boxed when they are released
+        List<Object> released = release(400L);
+        assertEquals(1, released.size());
+        assertEquals(Long.valueOf(20L), released.get(0));
+    }
+
+    @Test
+    public void testLongsComparedExactly() {
+        SourceDataTag tag = createSourceDataTag(1L, 0, DataTagDeadband.DEADBAND_NONE, 0.0f);
+        long large = (1L << 53) + 1;
+        assertTrue(filter.acceptLong(tag, 0L, large - 1, 0L));
+        // equal to the last value as double
+        assertTrue(filter.acceptLong(tag, 1L, large, 1L));
+        assertFalse(filter.accept(tag, 2L, Long.valueOf(large), 2L));
+        assertTrue(filter.acceptDouble(tag, 3L, (double) large, 3L));
+        assertTrue(filter.acceptLong(tag, 4L, large, 4L));
+        assertTrue(filter.acceptLong(tag, 5L, Long.MAX_VALUE, 5L));
+        assertTrue(filter.acceptDouble(tag, 6L, 0x1p63, 6L));
+        assertEquals(1, filter.getFilteredCount());
+    }
+
+    @Test
+    public void testLongDeadband() {
+        SourceDataTag tag = createSourceDataTag(1L, 0, DataTagDeadband.DEADBAND_EQUIPMENT_ABSOLUTE, 2.0f);
+        assertTrue(filter.acceptLong(tag, 0L, Long.MAX_VALUE - 1, 0L));
+        assertFalse(filter.acceptLong(tag, 1L, Long.MAX_VALUE, 1L));
+        assertTrue(filter.acceptLong(tag, 2L, Long.MAX_VALUE - 3, 2L));
+        // the difference overflows a long
+        assertTrue(filter.acceptLong(tag, 3L, Long.MIN_VALUE, 3L));
+    }
+
+    @Test
+    public void testHeldValueDroppedOnReturnToSentValue() {
+        SourceDataTag tag = createSourceDataTag(1L, 100, DataTagDeadband.DEADBAND_NONE, 0.0f);
+        assertTrue(filter.accept(tag, 0L, 1, 0L));
+        assertFalse(filter.accept(tag, 10L, 2, 10L));
+        assertFalse(filter.accept(tag, 20L, 1, 20L));
+        assertEquals(0, filter.getHeldCount());
+        assertTrue(release(200L).isEmpty());
+    }
+
+    @Test
+    public void testReset() {
+        SourceDataTag tag = createSourceDataTag(1L, 0, DataTagDeadband.DEADBAND_NONE, 0.0f);
+        SourceDataTag tag2 = createSourceDataTag(2L, 0, DataTagDeadband.DEADBAND_NONE, 0.0f);
+        assertTrue(filter.accept(tag, 0L, 1, 0L));
+        assertTrue(filter.accept(tag2, 0L, 1, 0L));
+        filter.reset(1L);
+        assertTrue(filter.accept(tag, 1L, 1, 1L));
+        assertFalse(filter.accept(tag2, 1L, 1, 1L));
+        filter.resetAll();
+        assertTrue(filter.accept(tag2, 2L, 1, 2L));
+    }
+
+    @Test
+    public void testManyTags() {
+        for (long id = 0; id < 1000; id++) {
+            SourceDataTag tag = createSourceDataTag(id, 0, DataTagDeadband.DEADBAND_NONE, 0.0f);
+            assertTrue(filter.accept(tag, 0L, id, 0L));
+        }
+        for (long id = 0; id < 1000; id++) {
+            SourceDataTag tag = createSourceDataTag(id, 0, DataTagDeadband.DEADBAND_NONE, 0.0f);
+            assertFalse(filter.accept(tag, 1L, id, 1L));
+        }
+        assertEquals(1000, filter.getFilteredCount());
+    }
+
+    private List<Object> release(final long now) {
+        final List<Object> released = new ArrayList<Object>();
+        filter.releaseHeldValues(now, new TagValueFilter.HeldValueListener() {
+            @Override
+            public void onHeldValue(final ISourceDataTag dataTag, final long timestamp,
+                    final Object value) {
+                released.add(value);
+            }
+        });
+        return released;
+    }
+
+    private SourceDataTag createSourceDataTag(final long id, final int timeDeadband,
+            final short valueDeadbandType, final float valueDeadband) {
+        DataTagAddress address = new DataTagAddress();
+        address.setTimeDeadband(timeDeadband);
+        address.setValueDeadbandType(valueDeadbandType);
+        address.setValueDeadband(valueDeadband);
+        return new SourceDataTag(id, "tag" + id, false, (short) 0, "Double", address);
+    }
+}
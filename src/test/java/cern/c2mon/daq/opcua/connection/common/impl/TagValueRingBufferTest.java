@@ -0,0 +1,221 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.common.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+
+import cern.c2mon.daq.opcua.connection.common.IOPCEndpointListener;
+import cern.c2mon.shared.common.datatag.DataTagAddress;
+import cern.c2mon.shared.common.datatag.ISourceDataTag;
+import cern.c2mon.shared.common.datatag.SourceDataTag;
+
+public class TagValueRingBufferTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final List<Object> delivered = Collections.synchronizedList(new ArrayList<Object>());
+
+    private final AtomicLong reportedDropped = new AtomicLong();
+
+    private final TagValueRingBuffer ringBuffer = new TagValueRingBuffer(new IOPCEndpointListener() {
+        @Override
+        public void onNewTagValue(final ISourceDataTag dataTag, final long timestamp,
+                final Object value) {
+            await();
+            delivered.add(dataTag.getId() + "=" + value);
+        }
+
+        @Override
+        public void onNewTagValue(final ISourceDataTag dataTag, final long timestamp,
+                final long value) {
+            await();
+            delivered.add(dataTag.getId() + "=long " + value);
+        }
+
+        @Override
+        public void onNewTagValue(final ISourceDataTag dataTag, final long timestamp,
+                final double value) {
+            await();
+            delivered.add(dataTag.getId() + "=double " + value);
+        }
+
+        @Override
+        public void onTagInvalidException(final ISourceDataTag dataTag,
+                final Throwable cause) {
+            await();
+            delivered.add(dataTag.getId() + " invalid");
+        }
+
+        @Override
+        public void onSubscriptionException(final Throwable cause) {
+            delivered.add("subscription");
+        }
+    }, 100, DataTagAddress.PRIORITY_HIGHEST, new TagValueRingBuffer.OverflowListener() {
+        @Override
+        public void onOverflow(final long droppedCount) {
+            reportedDropped.addAndGet(droppedCount);
+        }
+    });
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        ringBuffer.stop();
+    }
+
+    @Test
+    public void testDeliveryInOrder() throws InterruptedException {
+        SourceDataTag tag = createSourceDataTag(1L);
+        ringBuffer.onNewTagValue(tag, 0L, "a");
+        ringBuffer.onNewTagValue(tag, 1L, 2L);
+        ringBuffer.onNewTagValue(tag, 2L, 1.5);
+        ringBuffer.onTagInvalidException(tag, new Exception());
+        assertEquals(128, ringBuffer.getCapacity());
+        assertEquals(4, ringBuffer.getPendingCount());
+
+        release.countDown();
+        ringBuffer.start("test");
+        waitForDelivery(4);
+        assertEquals("1=a", delivered.get(0));
+        assertEquals("1=long 2", delivered.get(1));
+        assertEquals("1=double 1.5", delivered.get(2));
+        assertEquals("1 invalid", delivered.get(3));
+        assertEquals(0, ringBuffer.getPendingCount());
+        assertEquals(4, ringBuffer.getDeliveredCount());
+    }
+
+    @Test
+    public void testFullRingDropsAndReports() throws InterruptedException {
+        SourceDataTag tag = createSourceDataTag(1L);
+        for (int i = 0; i < 200; i++) {
+            ringBuffer.onNewTagValue(tag, i, (long) i);
+        }
+        assertEquals(128, ringBuffer.getPendingCount());
+        assertEquals(72, ringBuffer.getDroppedCount());
+
+        release.countDown();
+        ringBuffer.start("test");
+        waitForDelivery(128);
+        assertEquals("1=long 127", delivered.get(127));
+        for (int i = 0; i < 1000 && reportedDropped.get() < 72; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(72, reportedDropped.get());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        release.countDown();
+        ringBuffer.start("test");
+        final int producers = 4;
+        final int values = 20000;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            final SourceDataTag tag = createSourceDataTag(p);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < values; i++) {
+                        ringBuffer.onNewTagValue(tag, i, (long) i);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long expected = producers * values - ringBuffer.getDroppedCount();
+        for (int i = 0; i < 1000 && ringBuffer.getDeliveredCount() < expected; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, ringBuffer.getDeliveredCount());
+
+        // the values of every producer arrive in the order they were written
+        long[] last = new long[producers];
+        Arrays.fill(last, -1L);
+        synchronized (delivered) {
+            for (Object update : delivered) {
+                String[] parts = ((String) update).split("=long ");
+                int producer = Integer.parseInt(parts[0]);
+                long value = Long.parseLong(parts[1]);
+                assertTrue(value > last[producer]);
+                last[producer] = value;
+            }
+        }
+    }
+
+    @Test
+    public void testHighPriorityFirst() throws InterruptedException {
+        SourceDataTag tag = createSourceDataTag(1L);
+        SourceDataTag criticalTag = createSourceDataTag(2L);
+        criticalTag.getAddress().setPriority(DataTagAddress.PRIORITY_HIGHEST);
+        for (int i = 0; i < 50; i++) {
+            ringBuffer.onNewTagValue(tag, i, (long) i);
+        }
+        ringBuffer.onNewTagValue(criticalTag, 0L, true);
+        ringBuffer.onTagInvalidException(criticalTag, new Exception());
+
+        release.countDown();
+        ringBuffer.start("test");
+        waitForDelivery(52);
+        assertEquals("2=true", delivered.get(0));
+        assertEquals("2 invalid", delivered.get(1));
+        assertEquals("1=long 0", delivered.get(2));
+        assertEquals(2, ringBuffer.getHighPriorityLatency().getCount());
+        assertEquals(50, ringBuffer.getNormalLatency().getCount());
+    }
+
+    @Test
+    public void testSubscriptionExceptionPassedDirectly() {
+        ringBuffer.onSubscriptionException(new Exception());
+        assertEquals(1, delivered.size());
+        assertEquals(0, ringBuffer.getPendingCount());
+    }
+
+    private void waitForDelivery(final int count) throws InterruptedException {
+        for (int i = 0; i < 1000 && delivered.size() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, delivered.size());
+    }
+
+    private void await() {
+        try {
+            release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private SourceDataTag createSourceDataTag(final long id) {
+        return new SourceDataTag(id, "tag" + id, false, (short) 0, "Integer", new DataTagAddress());
+    }
+}
@@ -0,0 +1,109 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.dcom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class DCOMGroupExecutorTest {
+
+    private DCOMGroupExecutor executor = new DCOMGroupExecutor(2);
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testOrderWithinGroup() throws InterruptedException {
+        final List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(1000);
+        for (int i = 0; i < 1000; i++) {
+            final int value = i;
+            executor.execute("Group0", new Runnable() {
+                @Override
+                public void run() {
+                    results.add(value);
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Integer.valueOf(i), results.get(i));
+        }
+    }
+
+    @Test
+    public void testBlockedGroupDoesNotBlockOthers() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch otherGroupDone = new CountDownLatch(1);
+        executor.execute("Group0", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        executor.execute("Group0", new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        executor.execute("Group1", new Runnable() {
+            @Override
+            public void run() {
+                otherGroupDone.countDown();
+            }
+        });
+        assertTrue(otherGroupDone.await(10, TimeUnit.SECONDS));
+        assertEquals(2, executor.getQueueDepth("Group0"));
+        assertEquals(Integer.valueOf(2), executor.getQueueDepths().get("Group0"));
+        release.countDown();
+    }
+
+    @Test
+    public void testFailingTaskDoesNotStopGroup() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute("Group0", new Runnable() {
+            @Override
+            public void run() {
+                throw new RuntimeException("test");
+            }
+        });
+        executor.execute("Group0", new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, executor.getQueueDepth("Unknown"));
+    }
+}
@@ -0,0 +1,71 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.dcom;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class DCOMTimestampConverterTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    // 2016-03-27T01:00:00Z start of summer time in Europe/Zurich
+    private static final long SUMMER_TIME_START = 1459040400000L;
+
+    @Test
+    public void testMatchesCalendarOffsets() {
+        ZoneId zone = ZoneId.of("Europe/Zurich");
+        long start = SUMMER_TIME_START - 2 * 365 * 24 * HOUR;
+        long end = SUMMER_TIME_START + 2 * 365 * 24 * HOUR;
+        DCOMTimestampConverter converter = new DCOMTimestampConverter(zone, start, end);
+        GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone(zone));
+        // steps are chosen to hit different minutes and seconds
+        for (long time = start - 30 * 24 * HOUR; time < end + 30 * 24 * HOUR;
+                time += 7 * HOUR + 12345) {
+            calendar.setTimeInMillis(time);
+            long expected = time + calendar.get(GregorianCalendar.ZONE_OFFSET)
+                + calendar.get(GregorianCalendar.DST_OFFSET);
+            assertEquals(expected, converter.toLocalTime(time));
+        }
+    }
+
+    @Test
+    public void testTransitionBoundaries() {
+        DCOMTimestampConverter converter = new DCOMTimestampConverter(
+                ZoneId.of("Europe/Zurich"), 0L, SUMMER_TIME_START + 365 * 24 * HOUR);
+        assertEquals(SUMMER_TIME_START - 1 + HOUR,
+                converter.toLocalTime(SUMMER_TIME_START - 1));
+        assertEquals(SUMMER_TIME_START + 2 * HOUR,
+                converter.toLocalTime(SUMMER_TIME_START));
+    }
+
+    @Test
+    public void testArrayConversion() {
+        DCOMTimestampConverter converter = new DCOMTimestampConverter(
+                ZoneId.of("UTC"), 0L, Long.MAX_VALUE);
+        Date[] timestamps = {new Date(1000L), new Date(SUMMER_TIME_START)};
+        long[] local = converter.toLocalTime(timestamps, new long[2]);
+        assertEquals(1000L, local[0]);
+        assertEquals(SUMMER_TIME_START, local[1]);
+    }
+}
@@ -0,0 +1,123 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.dcom;
+
+import static org.easymock.classextension.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+
+import cern.c2mon.daq.opcua.connection.common.impl.OPCCommunicationException;
+import cern.c2mon.daq.opcua.connection.common.impl.OPCCriticalException;
+import cern.c2mon.daq.opcua.jintegraInterface.IOPCGroup;
+import cern.c2mon.daq.opcua.jintegraInterface.OPCItems;
+
+public class DCOMWriteBatcherTest {
+
+    private IOPCGroup group = createMock(IOPCGroup.class);
+
+    private OPCItems items = createMock(OPCItems.class);
+
+    private DCOMWriteBatcher batcher = new DCOMWriteBatcher(group, 200L);
+
+    @Before
+    public void setUp() throws IOException {
+        expect(group.getOPCItems()).andReturn(items).anyTimes();
+        items.addItems(eq(1), aryEq(new String[] {"a"}), aryEq(new int[] {1}),
+                (int[][]) anyObject(), (int[][]) anyObject(), isNull(), isNull());
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                ((int[][]) getCurrentArguments()[3])[0] = new int[] {10};
+                ((int[][]) getCurrentArguments()[4])[0] = new int[] {0};
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testWriteAddsItemOnce() throws IOException {
+        expectAsyncWrite(2, new int[] {0}, new int[] {0});
+
+        replay(group, items);
+        batcher.write(1, "a", 1.0f);
+        batcher.write(1, "a", 2.0f);
+        verify(group, items);
+    }
+
+    @Test(expected = OPCCriticalException.class)
+    public void testItemErrorOfEvent() throws IOException {
+        expectAsyncWrite(1, new int[] {0}, new int[] {0xC0040007});
+
+        replay(group, items);
+        batcher.write(1, "a", 1.0f);
+    }
+
+    @Test(expected = OPCCriticalException.class)
+    public void testRejectedWrite() throws IOException {
+        group.asyncWrite(eq(1), aryEq(new int[] {10}), (Object[]) anyObject(),
+                (int[][]) anyObject(), anyInt(), (int[]) anyObject());
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                ((int[][]) getCurrentArguments()[3])[0] = new int[] {0xC0040007};
+                return null;
+            }
+        });
+
+        replay(group, items);
+        batcher.write(1, "a", 1.0f);
+    }
+
+    @Test
+    public void testTimeout() throws IOException {
+        group.asyncWrite(eq(1), aryEq(new int[] {10}), (Object[]) anyObject(),
+                (int[][]) anyObject(), anyInt(), (int[]) anyObject());
+
+        replay(group, items);
+        try {
+            batcher.write(1, "a", 1.0f);
+            fail("Timeout expected");
+        } catch (OPCCommunicationException e) {
+            // expected
+        }
+        verify(group, items);
+    }
+
+    /**
+     * Expects AsyncWrites which complete immediately with the provided
+     * errors.
+     */
+    private void expectAsyncWrite(final int times, final int[] errors,
+            final int[] eventErrors) throws IOException {
+        group.asyncWrite(eq(1), aryEq(new int[] {10}), (Object[]) anyObject(),
+                (int[][]) anyObject(), anyInt(), (int[]) anyObject());
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                ((int[][]) getCurrentArguments()[3])[0] = errors;
+                batcher.writeComplete((Integer) getCurrentArguments()[4],
+                        new int[] {1}, eventErrors);
+                return null;
+            }
+        }).times(times);
+    }
+}
@@ -17,12 +17,17 @@
 package cern.c2mon.daq.opcua.connection.dcom;
 
 import java.io.IOException;
+import java.util.Date;
 
 import static org.easymock.classextension.EasyMock.*;
 import static org.junit.Assert.*;
 
+import org.easymock.IAnswer;
 import org.junit.Test;
 
+import cern.c2mon.daq.opcua.connection.common.impl.OPCCommunicationException;
+import cern.c2mon.daq.opcua.connection.common.impl.OPCCriticalException;
+
 import cern.c2mon.daq.opcua.connection.dcom.OPCDCOMFactory;
 import cern.c2mon.daq.opcua.jintegraInterface.IOPCGroup;
 import cern.c2mon.daq.opcua.jintegraInterface.IOPCGroups;
@@ -64,4 +69,86 @@ public class OPCDCOMFactoryTest {
         assertEquals(itemMock, item);
         verify(items);
     }
+
+    @Test
+    public void testCreateOPCItems() throws IOException {
+        OPCItems items = createMock(OPCItems.class);
+        String[] itemAddresses = {"a", "b"};
+        int[] clientHandles = {1, -1};
+        items.addItems(eq(2), aryEq(itemAddresses), aryEq(clientHandles),
+                (int[][]) anyObject(), (int[][]) anyObject(), isNull(), isNull());
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                ((int[][]) getCurrentArguments()[3])[0] = new int[] {10, 11};
+                ((int[][]) getCurrentArguments()[4])[0] = new int[] {0, 0xC0040007};
+                return null;
+            }
+        });
+
+        replay(items);
+        int[] serverHandles = new int[2];
+        int[] errors = new int[2];
+        OPCDCOMFactory.createOPCItems(items, itemAddresses, clientHandles,
+                serverHandles, errors);
+        verify(items);
+        assertArrayEquals(new int[] {10, 11}, serverHandles);
+        assertArrayEquals(new int[] {0, 0xC0040007}, errors);
+    }
+
+    @Test
+    public void testRemoveOPCItems() throws IOException {
+        OPCItems items = createMock(OPCItems.class);
+        int[] serverHandles = {10, 11};
+        items.remove(eq(2), aryEq(serverHandles), (int[][]) anyObject());
+
+        replay(items);
+        int[] errors = OPCDCOMFactory.removeOPCItems(items, serverHandles);
+        verify(items);
+        assertArrayEquals(new int[] {0, 0}, errors);
+    }
+
+    @Test
+    public void testCreateItemException() {
+        assertTrue(OPCDCOMFactory.createItemException(0xC0040007, "a")
+                instanceof OPCCriticalException);
+        assertTrue(OPCDCOMFactory.createItemException(0x80010108, "a")
+                instanceof OPCCommunicationException);
+        assertTrue(OPCDCOMFactory.createItemException(0x80004005, "a")
+                instanceof OPCCommunicationException);
+    }
+
+    @Test
+    public void testReadOPCItems() throws IOException {
+        IOPCGroup group = createMock(IOPCGroup.class);
+        int[] serverHandles = {10, 11};
+        final Date timestamp = new Date(1000L);
+        group.syncRead(eq((short) 1), eq(2), aryEq(serverHandles),
+                (Object[][]) anyObject(), (int[][]) anyObject(),
+                (Object[]) anyObject(), (Object[]) anyObject());
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                ((Object[][]) getCurrentArguments()[3])[0] = new Object[] {1.5f, null};
+                ((int[][]) getCurrentArguments()[4])[0] = new int[] {0, 0xC0040007};
+                ((Object[]) getCurrentArguments()[5])[0] = new short[] {0xC0, 0};
+                ((Object[]) getCurrentArguments()[6])[0] = new Date[] {timestamp, null};
+                return null;
+            }
+        });
+
+        replay(group);
+        Object[] values = new Object[2];
+        int[] qualities = new int[2];
+        Date[] timestamps = new Date[2];
+        int[] errors = new int[2];
+        OPCDCOMFactory.readOPCItems(group, (short) 1, serverHandles, values,
+                qualities, timestamps, errors);
+        verify(group);
+        assertEquals(1.5f, values[0]);
+        assertArrayEquals(new int[] {0xC0, 0}, qualities);
+        assertEquals(timestamp, timestamps[0]);
+        assertNotNull(timestamps[1]);
+        assertArrayEquals(new int[] {0, 0xC0040007}, errors);
+    }
 }
@@ -0,0 +1,69 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SoapGroupSubscriptionsTest {
+
+    private SoapGroupSubscriptions subscriptions = new SoapGroupSubscriptions();
+
+    @Test
+    public void testDeltaSubscriptions() {
+        subscriptions.add("base", Arrays.asList(1L, 2L, 3L));
+        assertEquals(0, subscriptions.getFragmentation());
+        subscriptions.add("delta", Arrays.asList(4L));
+        assertEquals(1, subscriptions.getFragmentation());
+        assertEquals(2, subscriptions.size());
+        assertTrue(subscriptions.contains(4L));
+        assertFalse(subscriptions.contains(5L));
+        assertEquals(Arrays.asList("base", "delta"),
+                subscriptions.getServerSubHandles());
+    }
+
+    @Test
+    public void testRemove() {
+        subscriptions.add("base", Arrays.asList(1L, 2L));
+        subscriptions.add("delta", Arrays.asList(3L));
+        assertNull(subscriptions.remove(1L));
+        // one delta subscription and one stale item
+        assertEquals(2, subscriptions.getFragmentation());
+        assertEquals("delta", subscriptions.remove(3L));
+        assertEquals(1, subscriptions.getFragmentation());
+        assertNull(subscriptions.remove(3L));
+        assertEquals("base", subscriptions.remove(2L));
+        assertTrue(subscriptions.isEmpty());
+        assertEquals(0, subscriptions.size());
+    }
+
+    @Test
+    public void testClear() {
+        subscriptions.add("base", Arrays.asList(1L, 2L));
+        subscriptions.add("delta", Arrays.asList(3L));
+        assertEquals(Arrays.asList("base", "delta"), subscriptions.clear());
+        assertTrue(subscriptions.isEmpty());
+        assertFalse(subscriptions.contains(1L));
+        assertEquals(0, subscriptions.getFragmentation());
+    }
+}
@@ -0,0 +1,128 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SoapHttpResponseParserTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private SoapBufferPool bufferPool;
+
+    private SoapHttpResponseParser parser;
+
+    @Before
+    public void setUp() {
+        bufferPool = new SoapBufferPool(8, 16);
+        parser = new SoapHttpResponseParser(bufferPool);
+    }
+
+    @Test
+    public void testContentLength() throws IOException {
+        String response = "HTTP/1.1 200 OK\r\nContent-Length: 12\r\n\r\n<a>body</a>\n";
+        assertTrue(parser.parse(toBuffer(response)));
+        assertEquals(200, parser.getStatusCode());
+        assertEquals("HTTP/1.1 200 OK", parser.getStatusLine());
+        assertFalse(parser.isConnectionClose());
+        assertEquals("<a>body</a>\n", readBody(parser.takeBody()));
+    }
+
+    @Test
+    public void testSplitResponse() throws IOException {
+        String response = "HTTP/1.1 200 OK\r\nContent-Length: 12\r\n\r\n<a>body</a>\n";
+        for (int i = 0; i < response.length() - 1; i++) {
+            assertFalse(parser.parse(toBuffer(response.substring(i, i + 1))));
+        }
+        assertTrue(parser.isStarted());
+        assertTrue(parser.parse(toBuffer(response.substring(response.length() - 1))));
+        assertEquals("<a>body</a>\n", readBody(parser.takeBody()));
+    }
+
+    @Test
+    public void testChunked() throws IOException {
+        String response = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "5\r\nhello\r\n7;ext=1\r\n, world\r\n0\r\nTrailer: x\r\n\r\n";
+        assertTrue(parser.parse(toBuffer(response)));
+        assertEquals("hello, world", readBody(parser.takeBody()));
+    }
+
+    @Test
+    public void testUntilClose() throws IOException {
+        String response = "HTTP/1.1 500 Internal Server Error\r\nConnection: close\r\n\r\nfault";
+        assertFalse(parser.parse(toBuffer(response)));
+        assertTrue(parser.endOfStream());
+        assertEquals(500, parser.getStatusCode());
+        assertTrue(parser.isConnectionClose());
+        assertEquals("fault", readBody(parser.takeBody()));
+    }
+
+    @Test
+    public void testContinueIsSkipped() throws IOException {
+        String response = "HTTP/1.1 100 Continue\r\n\r\n"
+            + "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+        assertTrue(parser.parse(toBuffer(response)));
+        assertEquals(200, parser.getStatusCode());
+        assertEquals("ok", readBody(parser.takeBody()));
+    }
+
+    @Test
+    public void testIncompleteResponseAtEndOfStream() throws IOException {
+        String response = "HTTP/1.1 200 OK\r\nContent-Length: 20\r\n\r\nshort";
+        assertFalse(parser.parse(toBuffer(response)));
+        assertFalse(parser.endOfStream());
+    }
+
+    @Test
+    public void testBuffersReturnedToPool() throws IOException {
+        String response = "HTTP/1.1 200 OK\r\nContent-Length: 40\r\n\r\n"
+            + "0123456789012345678901234567890123456789";
+        assertTrue(parser.parse(toBuffer(response)));
+        InputStream body = parser.takeBody();
+        assertEquals(0, bufferPool.getPooledBufferCount());
+        assertEquals(40, readBody(body).length());
+        assertEquals(5, bufferPool.getPooledBufferCount());
+        parser.reset();
+        assertFalse(parser.isStarted());
+    }
+
+    private static ByteBuffer toBuffer(final String text) {
+        return ByteBuffer.wrap(text.getBytes(UTF8));
+    }
+
+    private static String readBody(final InputStream body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] bytes = new byte[3];
+        int count;
+        while ((count = body.read(bytes)) != -1) {
+            out.write(bytes, 0, count);
+        }
+        body.close();
+        return new String(out.toByteArray(), UTF8);
+    }
+}
@@ -20,11 +20,20 @@ import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
 
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.axiom.om.OMElement;
 import org.junit.After;
@@ -33,6 +42,7 @@ import org.junit.Test;
 import org.opcfoundation.xmlda.ItemValue;
 import org.opcfoundation.xmlda.SubscribePolledRefreshReplyItemList;
 
+import cern.c2mon.daq.opcua.connection.common.impl.EquipmentBulkhead;
 import cern.c2mon.daq.opcua.connection.common.impl.OPCUADefaultAddress;
 
 public class SoapLongPollTest {
@@ -87,6 +97,7 @@ public class SoapLongPollTest {
         SubscribePolledRefreshReplyItemList[] lists = {list};
         
         String value = "asd";
+        expect(element.getAttributeValue(SoapValueDecoder.XSI_TYPE)).andReturn(null);
         expect(element.getText()).andReturn(value);
         listener.valueChanged(clientHandle, timeStamp, value);
         
@@ -96,4 +107,89 @@ public class SoapLongPollTest {
         verify(listener, element);
     }
 
+    @Test
+    public void testHandOffValueLeavesPollingThread() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        final List<Object> values = Collections.synchronizedList(new ArrayList<Object>());
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        poll.addListener(new ISoapLongPollListener() {
+            @Override
+            public void valueChanged(final String clientHandle, final long timeStamp, final Object value) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                threads.add(Thread.currentThread());
+                values.add(value);
+                done.countDown();
+            }
+
+            @Override
+            public void invalidQuality(final String clientHandle, final String quality) {
+            }
+        });
+
+        // the slow listener must not block the polling thread
+        poll.handOffValue("asd", 100L, "first", "good");
+        poll.handOffValue("asd", 101L, 2L, "good");
+        poll.handOffValue("asd", 102L, 3.0, "good");
+        assertTrue(values.isEmpty());
+        poll.handOffResponse();
+        assertTrue(values.isEmpty());
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals("first", values.get(0));
+        assertEquals(2L, values.get(1));
+        assertEquals(3.0, values.get(2));
+        for (Thread thread : threads) {
+            assertNotSame(Thread.currentThread(), thread);
+        }
+    }
+
+    @Test
+    public void testFullQueueConflatesWithoutWaiting() throws InterruptedException {
+        // one running and one queued response, no block time
+        poll.setBulkhead(new EquipmentBulkhead(Executors.newCachedThreadPool(), 1, 1, 0));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<String> values = Collections.synchronizedList(new ArrayList<String>());
+        poll.addListener(new ISoapLongPollListener() {
+            @Override
+            public void valueChanged(final String clientHandle, final long timeStamp, final Object value) {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                values.add(clientHandle + "=" + value);
+                done.countDown();
+            }
+
+            @Override
+            public void invalidQuality(final String clientHandle, final String quality) {
+            }
+        });
+
+        poll.handOffValue("a", 1L, "1", "good");
+        poll.handOffResponse();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        poll.handOffValue("a", 2L, "2", "good");
+        poll.handOffResponse();
+        // the queue is full: kept without waiting and conflated
+        poll.handOffValue("a", 3L, "3", "good");
+        poll.handOffValue("b", 3L, "3", "good");
+        poll.handOffResponse();
+        poll.handOffValue("a", 4L, "4", "good");
+        poll.handOffResponse();
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals("[a=1, a=2, a=4, b=3]", values.toString());
+    }
+
 }
@@ -0,0 +1,70 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SoapLongPollTimingTest {
+
+    @Test
+    public void testFixedTiming() {
+        SoapLongPollTiming timing = new SoapLongPollTiming(1000, 4000);
+        timing.setSubscribedItemCount(10);
+        timing.update(0);
+        timing.update(10);
+        assertEquals(1000, timing.getHoldTime());
+        assertEquals(4000, timing.getWaitTime());
+    }
+
+    @Test
+    public void testEmptyRepliesLengthenHoldTime() {
+        SoapLongPollTiming timing = new SoapLongPollTiming(1000, 250, 5000, 25000);
+        timing.setSubscribedItemCount(100);
+        timing.update(0);
+        assertTrue(timing.getHoldTime() > 1000);
+        for (int i = 0; i < 20; i++) {
+            timing.update(1);
+        }
+        assertEquals(5000, timing.getHoldTime());
+        assertEquals(20000, timing.getWaitTime());
+    }
+
+    @Test
+    public void testFullRepliesShortenHoldTime() {
+        SoapLongPollTiming timing = new SoapLongPollTiming(1000, 250, 5000, 25000);
+        timing.setSubscribedItemCount(100);
+        timing.update(60);
+        assertEquals(500, timing.getHoldTime());
+        assertEquals(2000, timing.getWaitTime());
+        timing.update(100);
+        timing.update(100);
+        assertEquals(250, timing.getHoldTime());
+        // replies in between keep the timing
+        timing.update(20);
+        assertEquals(250, timing.getHoldTime());
+    }
+
+    @Test
+    public void testPollTimeLimit() {
+        SoapLongPollTiming timing = new SoapLongPollTiming(10000, 250, 20000, 25000);
+        assertEquals(10000, timing.getHoldTime());
+        assertEquals(15000, timing.getWaitTime());
+    }
+}
@@ -32,6 +32,7 @@ import org.opcfoundation.xmlda.OPCXML_DataAccessStub;
 import org.opcfoundation.xmlda.ReadRequestItem;
 import org.opcfoundation.xmlda.Subscribe;
 import org.opcfoundation.xmlda.SubscribeRequestItem;
+import org.opcfoundation.xmlda.SubscriptionCancel;
 import org.opcfoundation.xmlda.SubscriptionPolledRefresh;
 import org.opcfoundation.xmlda.Write;
 
@@ -76,6 +77,13 @@ public class SoapObjectFactoryTest {
         assertEquals(bufferEnabled, item.getEnableBuffering());
     }
     
+    @Test
+    public void testCreateSubscriptionCancel() {
+        SubscriptionCancel subscriptionCancel =
+            SoapObjectFactory.createSubscriptionCancel("asd");
+        assertEquals("asd", subscriptionCancel.getServerSubHandle());
+    }
+
     @Test
     public void testCreateSubscriptionPolledRefresh() {
         String serverSubscriptionHandle = "asd";
@@ -182,4 +190,14 @@ public class SoapObjectFactoryTest {
         assertEquals(itemName, itemValue.getItemName());
         assertEquals(value.toString(), itemValue.getValue().getText());
     }
+
+    @Test
+    public void testGetXmlType() {
+        assertEquals("xsd:string", SoapObjectFactory.getXmlType("asd"));
+        assertEquals("xsd:boolean", SoapObjectFactory.getXmlType(Boolean.TRUE));
+        assertEquals("xsd:int", SoapObjectFactory.getXmlType(Integer.valueOf(1)));
+        assertEquals("xsd:long", SoapObjectFactory.getXmlType(Long.valueOf(1L)));
+        assertEquals("xsd:float", SoapObjectFactory.getXmlType(Float.valueOf(1.0f)));
+        assertEquals("xsd:double", SoapObjectFactory.getXmlType(Double.valueOf(1.0)));
+    }
 }
@@ -0,0 +1,93 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.StringReader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.junit.Test;
+
+public class SoapPolledRefreshDecoderTest {
+
+    private static final String NS =
+        "xmlns=\"http://opcfoundation.org/webservices/XMLDA/1.0/\" "
+        + "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" "
+        + "xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\"";
+
+    private static final String TIME = "1970-01-01T00:00:00.100Z";
+
+    private XMLStreamReader createReader(final String xml)
+            throws XMLStreamException {
+        return XMLInputFactory.newInstance().createXMLStreamReader(
+                new StringReader(xml));
+    }
+
+    @Test
+    public void testDecode() throws XMLStreamException {
+        ISoapPolledRefreshHandler handler =
+            createMock(ISoapPolledRefreshHandler.class);
+        String xml = "<SubscriptionPolledRefreshResponse " + NS + ">"
+            + "<SubscriptionPolledRefreshResult ReplyTime=\"" + TIME + "\"/>"
+            + "<RItemList SubscriptionHandle=\"sub\">"
+            + "<Items ClientItemHandle=\"1\" Timestamp=\"" + TIME + "\">"
+            + "<Value xsi:type=\"xsd:double\">1.5</Value>"
+            + "</Items>"
+            + "<Items ClientItemHandle=\"2\" Timestamp=\"" + TIME + "\">"
+            + "<Value xsi:type=\"xsd:string\">asd</Value>"
+            + "<Quality QualityField=\"badCommFailure\"/>"
+            + "</Items>"
+            + "</RItemList>"
+            + "</SubscriptionPolledRefreshResponse>";
+        handler.itemValue("1", 100L, 1.5, "good");
+        handler.itemValue("2", 100L, "asd", "badCommFailure");
+
+        replay(handler);
+        SoapPolledRefreshDecoder decoder = new SoapPolledRefreshDecoder(handler);
+        decoder.decode(createReader(xml));
+        verify(handler);
+        assertEquals(100L, decoder.getReplyTime());
+        assertEquals(2, decoder.getItemCount());
+        assertNull(decoder.getErrorText());
+    }
+
+    @Test
+    public void testDecodeErrors() throws XMLStreamException {
+        ISoapPolledRefreshHandler handler =
+            createMock(ISoapPolledRefreshHandler.class);
+        String xml = "<SubscriptionPolledRefreshResponse " + NS + ">"
+            + "<SubscriptionPolledRefreshResult ReplyTime=\"" + TIME + "\"/>"
+            + "<InvalidServerSubHandles>sub</InvalidServerSubHandles>"
+            + "<Errors ID=\"E_NOSUBSCRIPTION\"><Text>No subscription</Text></Errors>"
+            + "</SubscriptionPolledRefreshResponse>";
+
+        replay(handler);
+        SoapPolledRefreshDecoder decoder = new SoapPolledRefreshDecoder(handler);
+        decoder.decode(createReader(xml));
+        verify(handler);
+        assertEquals(0, decoder.getItemCount());
+        assertEquals("No subscription", decoder.getErrorText());
+    }
+}
@@ -0,0 +1,127 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SoapValueBatchTest {
+
+    private final List<String> replayed = new ArrayList<String>();
+
+    private final AtomicInteger doneCalls = new AtomicInteger();
+
+    private final ISoapPolledRefreshHandler recorder = new ISoapPolledRefreshHandler() {
+        @Override
+        public void itemValue(final String clientHandle, final long timestamp,
+                final Object value, final String quality) {
+            replayed.add(clientHandle + "@" + timestamp + "=" + value + " " + quality);
+        }
+
+        @Override
+        public void itemValue(final String clientHandle, final long timestamp,
+                final long value, final String quality) {
+            replayed.add(clientHandle + "@" + timestamp + "=long " + value + " " + quality);
+        }
+
+        @Override
+        public void itemValue(final String clientHandle, final long timestamp,
+                final double value, final String quality) {
+            replayed.add(clientHandle + "@" + timestamp + "=double " + value + " " + quality);
+        }
+    };
+
+    private final SoapValueBatch.DoneListener done = new SoapValueBatch.DoneListener() {
+        @Override
+        public void batchDone(final SoapValueBatch batch) {
+            doneCalls.incrementAndGet();
+        }
+    };
+
+    @Test
+    public void testReplayKeepsOrderAndKinds() {
+        SoapValueBatch batch = new SoapValueBatch(recorder, done);
+        batch.itemValue("a", 1L, "text", "good");
+        batch.itemValue("b", 2L, 3L, "good");
+        batch.itemValue("a", 3L, 1.5, "bad");
+        batch.run();
+
+        assertEquals("[a@1=text good, b@2=long 3 good, a@3=double 1.5 bad]",
+                replayed.toString());
+        assertEquals(1, doneCalls.get());
+    }
+
+    @Test
+    public void testGrowsBeyondInitialCapacity() {
+        SoapValueBatch batch = new SoapValueBatch(recorder, done);
+        for (int i = 0; i < 100; i++) {
+            batch.itemValue("item" + i, i, (long) i, "good");
+        }
+        assertEquals(100, batch.size());
+        batch.run();
+        assertEquals(100, replayed.size());
+        assertEquals("item99@99=long 99 good", replayed.get(99));
+    }
+
+    @Test
+    public void testConflatingBatchKeepsLatestValue() {
+        SoapValueBatch older = new SoapValueBatch(recorder, done);
+        older.itemValue("a", 1L, 1L, "good");
+        older.itemValue("b", 2L, "b1", "good");
+        older.itemValue("a", 3L, 3L, "good");
+        SoapValueBatch newer = new SoapValueBatch(recorder, done);
+        newer.itemValue("c", 4L, 4.0, "good");
+        newer.itemValue("a", 5L, "a5", "good");
+
+        SoapValueBatch kept = new SoapValueBatch(recorder, done);
+        kept.conflate();
+        assertTrue(kept.isConflating());
+        kept.addAll(older);
+        kept.addAll(newer);
+        assertEquals(3, kept.size());
+        kept.run();
+
+        assertEquals("[a@5=a5 good, b@2=b1 good, c@4=double 4.0 good]",
+                replayed.toString());
+    }
+
+    @Test
+    public void testClearedBatchReused() {
+        SoapValueBatch batch = new SoapValueBatch(recorder, done);
+        batch.conflate();
+        batch.itemValue("a", 1L, "a1", "good");
+        batch.itemValue("a", 2L, "a2", "good");
+        batch.run();
+        batch.clear();
+        assertTrue(batch.isEmpty());
+        assertFalse(batch.isConflating());
+        batch.itemValue("b", 3L, 3L, "good");
+        batch.itemValue("b", 4L, 4L, "good");
+        batch.run();
+
+        assertEquals("[a@2=a2 good, b@3=long 3 good, b@4=long 4 good]",
+                replayed.toString());
+        assertEquals(2, doneCalls.get());
+    }
+}
@@ -0,0 +1,80 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SoapValueDecoderTest {
+
+    @Test
+    public void testDecodeNumbers() {
+        assertEquals(Double.valueOf(1.5), SoapValueDecoder.decode("xsd:double", "1.5"));
+        assertEquals(Double.valueOf(0.1), SoapValueDecoder.decode("xsd:double", " 0.1 "));
+        assertEquals(Double.valueOf(1e5), SoapValueDecoder.decode("xsd:double", "1e5"));
+        assertEquals(Double.valueOf(Double.NEGATIVE_INFINITY),
+                SoapValueDecoder.decode("xsd:double", "-INF"));
+        assertEquals(Float.valueOf(0.3f), SoapValueDecoder.decode("xsd:float", "0.3"));
+        assertEquals(Integer.valueOf(-42), SoapValueDecoder.decode("xsd:int", "-42"));
+        assertEquals(Long.valueOf(Long.MIN_VALUE),
+                SoapValueDecoder.decode("long", "-9223372036854775808"));
+        assertEquals(Short.valueOf((short) 255),
+                SoapValueDecoder.decode("xsd:unsignedByte", "255"));
+    }
+
+    @Test
+    public void testDecodeBoolean() {
+        assertEquals(Boolean.TRUE, SoapValueDecoder.decode("xsd:boolean", "true"));
+        assertEquals(Boolean.FALSE, SoapValueDecoder.decode("xsd:boolean", "0"));
+    }
+
+    @Test
+    public void testDecodeFallbackToString() {
+        assertEquals("asd", SoapValueDecoder.decode("xsd:string", "asd"));
+        assertEquals("asd", SoapValueDecoder.decode(null, "asd"));
+        assertEquals("2147483648", SoapValueDecoder.decode("xsd:int", "2147483648"));
+        assertEquals("abc", SoapValueDecoder.decode("xsd:double", "abc"));
+    }
+
+    @Test
+    public void testDecodePrimitives() {
+        assertEquals(SoapValueDecoder.LONG_VALUE, SoapValueDecoder.getValueKind("xsd:int"));
+        assertEquals(SoapValueDecoder.DOUBLE_VALUE, SoapValueDecoder.getValueKind("xsd:double"));
+        assertEquals(SoapValueDecoder.OBJECT_VALUE, SoapValueDecoder.getValueKind("xsd:float"));
+        assertEquals(SoapValueDecoder.OBJECT_VALUE, SoapValueDecoder.getValueKind(null));
+        assertEquals(-42L, SoapValueDecoder.decodeLong("xsd:int", " -42 "));
+        assertEquals(255L, SoapValueDecoder.decodeLong("xsd:unsignedByte", "255"));
+        assertEquals(1.5, SoapValueDecoder.decodeDouble("1.5"), 0.0);
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testDecodeLongOutOfRange() {
+        SoapValueDecoder.decodeLong("xsd:byte", "128");
+    }
+
+    @Test
+    public void testIsGoodQuality() {
+        assertTrue(SoapValueDecoder.isGoodQuality(null));
+        assertTrue(SoapValueDecoder.isGoodQuality("good"));
+        assertTrue(SoapValueDecoder.isGoodQuality("goodLocalOverride"));
+        assertFalse(SoapValueDecoder.isGoodQuality("uncertain"));
+        assertFalse(SoapValueDecoder.isGoodQuality("badCommFailure"));
+    }
+}
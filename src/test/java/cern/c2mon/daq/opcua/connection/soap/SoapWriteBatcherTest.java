@@ -0,0 +1,87 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.daq.opcua.connection.soap;
+
+import static org.easymock.classextension.EasyMock.capture;
+import static org.easymock.classextension.EasyMock.createMock;
+import static org.easymock.classextension.EasyMock.expect;
+import static org.easymock.classextension.EasyMock.replay;
+import static org.easymock.classextension.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+
+import java.rmi.RemoteException;
+
+import javax.xml.namespace.QName;
+
+import org.apache.axis2.client.ServiceClient;
+import org.easymock.Capture;
+import org.junit.Test;
+import org.opcfoundation.xmlda.ItemValue;
+import org.opcfoundation.xmlda.OPCError;
+import org.opcfoundation.xmlda.OPCXML_DataAccessStub;
+import org.opcfoundation.xmlda.ReplyItemList;
+import org.opcfoundation.xmlda.Write;
+import org.opcfoundation.xmlda.WriteResponse;
+
+import cern.c2mon.daq.opcua.connection.common.impl.OPCCommunicationException;
+
+public class SoapWriteBatcherTest {
+
+    private OPCXML_DataAccessStub access = createMock(OPCXML_DataAccessStub.class);
+
+    private ServiceClient serviceClient = createMock(ServiceClient.class);
+
+    private SoapWriteBatcher batcher = new SoapWriteBatcher(access);
+
+    @Test
+    public void testWrite() throws RemoteException {
+        Capture<Write> writeCapture = new Capture<Write>();
+        expect(access.write(capture(writeCapture))).andReturn(new WriteResponse());
+        expect(access._getServiceClient()).andReturn(serviceClient);
+        serviceClient.cleanupTransport();
+
+        replay(access, serviceClient);
+        batcher.write("1", "item1", Integer.valueOf(3));
+        verify(access, serviceClient);
+        ItemValue[] items = writeCapture.getValue().getItemList().getItems();
+        assertEquals(1, items.length);
+        assertEquals("1", items[0].getClientItemHandle());
+        assertEquals("3", items[0].getValue().getText());
+    }
+
+    @Test(expected = OPCCommunicationException.class)
+    public void testWriteItemError() throws RemoteException {
+        QName errorId = new QName("http://opcfoundation.org/webservices/XMLDA/1.0/", "E_BADTYPE");
+        OPCError error = new OPCError();
+        error.setID(errorId);
+        error.setText("Bad type");
+        ItemValue result = new ItemValue();
+        result.setClientItemHandle("1");
+        result.setResultID(errorId);
+        ReplyItemList replyItemList = new ReplyItemList();
+        replyItemList.addItems(result);
+        WriteResponse response = new WriteResponse();
+        response.setRItemList(replyItemList);
+        response.setErrors(new OPCError[] {error});
+        expect(access.write(capture(new Capture<Write>()))).andReturn(response);
+        expect(access._getServiceClient()).andReturn(serviceClient);
+        serviceClient.cleanupTransport();
+
+        replay(access, serviceClient);
+        batcher.write("1", "item1", Boolean.TRUE);
+    }
+}